@@ -0,0 +1,135 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.benchmark;
+
+import eluvio.lmdb.api.Api;
+import eluvio.lmdb.api.Cursor;
+import eluvio.lmdb.api.DB;
+import eluvio.lmdb.api.Env;
+import eluvio.lmdb.api.Txn;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for the low level {@link DB} and {@link Cursor} wrappers.
+ * <p>
+ * Reads use a per-thread read-only transaction that is reset/renewed around
+ * each measurement iteration so the numbers reflect the cost of the native
+ * call and MDB_val marshalling rather than transaction setup.  Each write
+ * benchmark invocation is its own committed transaction.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ApiBenchmark {
+  @Param({"16", "128", "511"})
+  public int keySize;
+
+  @Param({"8", "256", "4096"})
+  public int valueSize;
+
+  @Param({"SYNC", "NO_SYNC"})
+  public BenchmarkEnv.SyncMode syncMode;
+
+  @Param({"100000"})
+  public int entries;
+
+  private File dir;
+  private Env env;
+  private DB db;
+  private ByteBuffer value;
+
+  @State(Scope.Thread)
+  public static class ThreadState {
+    Txn txn;
+    ByteBuffer key;
+
+    @Setup(Level.Iteration)
+    public void setup(ApiBenchmark bench) {
+      txn = new Txn(bench.env, Api.MDB_RDONLY);
+      key = ByteBuffer.allocateDirect(bench.keySize);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+      txn.abort();
+    }
+  }
+
+  @State(Scope.Thread)
+  public static class WriteState {
+    ByteBuffer key;
+
+    @Setup(Level.Trial)
+    public void setup(ApiBenchmark bench) {
+      key = ByteBuffer.allocateDirect(bench.keySize);
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    dir = BenchmarkEnv.createTempDir();
+    env = new Env();
+    env.setMapSize(BenchmarkEnv.MAPSIZE);
+    env.open(dir.toString(), syncMode.flags);
+
+    value = BenchmarkEnv.directBytes(valueSize);
+    final ByteBuffer key = ByteBuffer.allocateDirect(keySize);
+
+    try (Txn txn = new Txn(env)) {
+      db = new DB(txn);
+      for (int i = 0; i < entries; i++) db.put(txn, BenchmarkEnv.key(key, i), value.duplicate());
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    env.close();
+    BenchmarkEnv.deleteDir(dir);
+  }
+
+  @Benchmark
+  public ByteBuffer get(ThreadState state) {
+    return db.get(state.txn, BenchmarkEnv.key(state.key, ThreadLocalRandom.current().nextInt(entries)));
+  }
+
+  @Benchmark
+  public boolean put(WriteState state) {
+    try (Txn txn = new Txn(env)) {
+      return db.put(txn, BenchmarkEnv.key(state.key, ThreadLocalRandom.current().nextInt(entries)), value.duplicate());
+    }
+  }
+
+  @Benchmark
+  public void cursorIterate(ThreadState state, Blackhole bh) {
+    try (Cursor cursor = db.openCursor(state.txn)) {
+      Cursor.KeyAndData kd = cursor.first();
+
+      while (null != kd) {
+        bh.consume(kd.data);
+        kd = cursor.next();
+      }
+    }
+  }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.benchmark;
+
+import eluvio.lmdb.api.Api;
+import eluvio.lmdb.map.LMDBEnv;
+import eluvio.lmdb.map.LMDBEnvProfile;
+import eluvio.lmdb.map.LMDBEnvTemplate;
+import eluvio.lmdb.map.LMDBMap;
+import eluvio.lmdb.map.LMDBMultiMap;
+import eluvio.lmdb.map.LMDBSerializer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+/**
+ * An environment (in a temporary directory that is deleted on close) for the
+ * map level benchmarks along with some helpers shared by all the benchmarks.
+ */
+class BenchmarkEnv extends LMDBEnvTemplate {
+  /** Large enough for the biggest parameter combinations */
+  static final long MAPSIZE = 16L * 1024L * 1024L * 1024L;
+
+  /**
+   * Whether or not commits fsync.  Note: Temporary LMDBEnvs (i.e. null path)
+   * always use MDB_NOSYNC which is why the benchmarks use a real directory.
+   */
+  enum SyncMode {
+    SYNC(0),
+    NO_SYNC(Api.MDB_NOSYNC);
+
+    final int flags;
+
+    SyncMode(int flags) {
+      this.flags = flags;
+    }
+  }
+
+  private final File dir;
+
+  BenchmarkEnv(SyncMode syncMode) {
+    this(createTempDir(), syncMode.flags);
+  }
+
+  BenchmarkEnv(LMDBEnvProfile profile) {
+    this(createTempDir(), profile.lmdbFlags());
+  }
+
+  private BenchmarkEnv(File dir, int flags) {
+    super(dir, false /* readOnly */, MAPSIZE, 8, LMDBEnv.DEFAULT_MAXREADERS, flags);
+    this.dir = dir;
+  }
+
+  <K,V> LMDBMap<K,V> map(String name, LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer) {
+    return new LMDBMapTemplate<K,V>(name, keySerializer, valueSerializer);
+  }
+
+  <K,V> LMDBMultiMap<K,V> multiMap(String name, LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer) {
+    return new LMDBMultiMapTemplate<K,V>(name, keySerializer, valueSerializer);
+  }
+
+  @Override
+  public void close() {
+    super.close();
+    deleteDir(dir);
+  }
+
+  static File createTempDir() {
+    try {
+      return Files.createTempDirectory("lmdb_benchmark").toFile();
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  static void deleteDir(File dir) {
+    final File[] files = dir.listFiles();
+    if (null != files) for (File f : files) f.delete();
+    dir.delete();
+  }
+
+  /**
+   * A direct buffer of the given size filled with a non-zero pattern
+   */
+  static ByteBuffer directBytes(int size) {
+    final ByteBuffer buf = ByteBuffer.allocateDirect(size);
+    for (int i = 0; i < size; i++) buf.put(i, (byte)(i * 31 + 7));
+    return buf;
+  }
+
+  /**
+   * A byte array of the given size filled with a non-zero pattern
+   */
+  static byte[] bytes(int size) {
+    final byte[] bytes = new byte[size];
+    for (int i = 0; i < size; i++) bytes[i] = (byte)(i * 31 + 7);
+    return bytes;
+  }
+
+  /**
+   * Write the (big-endian so keys sort numerically) index into the start of
+   * the fixed size key buffer
+   */
+  static ByteBuffer key(ByteBuffer buf, long index) {
+    buf.clear();
+    buf.putLong(0, index);
+    return buf;
+  }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.benchmark;
+
+import eluvio.lmdb.map.LMDBBlockingDeque;
+import eluvio.lmdb.map.LMDBSerializer;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput of an {@link LMDBBlockingDeque} used as a FIFO queue, both from a
+ * single thread and with concurrent producers and consumers.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BlockingDequeBenchmark {
+  @Param({"8", "256", "4096"})
+  public int valueSize;
+
+  @Param({"SYNC", "NO_SYNC"})
+  public BenchmarkEnv.SyncMode syncMode;
+
+  private BenchmarkEnv env;
+  private LMDBBlockingDeque<byte[]> deque;
+  private byte[] value;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    env = new BenchmarkEnv(syncMode);
+    deque = new LMDBBlockingDeque<byte[]>(env.map("deque", LMDBSerializer.Long, LMDBSerializer.ByteArray));
+    value = BenchmarkEnv.bytes(valueSize);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    env.close();
+  }
+
+  @Benchmark
+  @Group("offerPoll")
+  public byte[] offerThenPoll() {
+    deque.offerLast(value);
+    return deque.pollFirst();
+  }
+
+  @Benchmark
+  @Group("producerConsumer")
+  @GroupThreads(2)
+  public boolean produce() {
+    return deque.offerLast(value);
+  }
+
+  @Benchmark
+  @Group("producerConsumer")
+  @GroupThreads(2)
+  public byte[] consume() {
+    return deque.pollFirst();
+  }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.benchmark;
+
+import eluvio.lmdb.map.LMDBEnvProfile;
+import eluvio.lmdb.map.LMDBMap;
+import eluvio.lmdb.map.LMDBSerializer;
+import eluvio.lmdb.map.LMDBTxn;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Write throughput and fsync cost of each {@link LMDBEnvProfile}.
+ * <p>
+ * {@link #commit} commits every put on its own (so it is dominated by the
+ * flushing done on commit), {@link #batchCommit} amortizes a commit over
+ * 100 puts and {@link #sync} measures a forced
+ * {@link eluvio.lmdb.map.LMDBEnv#sync(boolean)} after a single put (which is
+ * what a {@link LMDBEnvProfile#BULK_LOAD} environment needs to become
+ * durable).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EnvProfileBenchmark {
+  private static final int BATCH_SIZE = 100;
+
+  @Param({"DURABLE", "RELAXED", "BULK_LOAD", "READ_MOSTLY"})
+  public LMDBEnvProfile profile;
+
+  @Param({"256", "4096"})
+  public int valueSize;
+
+  @Param({"100000"})
+  public int entries;
+
+  private BenchmarkEnv env;
+  private LMDBMap<Long,byte[]> map;
+  private byte[] value;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    env = new BenchmarkEnv(profile);
+    map = env.map("map", LMDBSerializer.Long, LMDBSerializer.ByteArray);
+    value = BenchmarkEnv.bytes(valueSize);
+
+    try (LMDBTxn txn = map.withReadWriteTxn()) {
+      for (long i = 0; i < entries; i++) map.putNoPrev(i, value);
+    }
+
+    env.sync(true);
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    env.close();
+  }
+
+  private Long randomKey() {
+    return ThreadLocalRandom.current().nextLong(entries);
+  }
+
+  @Benchmark
+  public void commit() {
+    map.putNoPrev(randomKey(), value);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void batchCommit() {
+    try (LMDBTxn txn = map.withReadWriteTxn()) {
+      for (int i = 0; i < BATCH_SIZE; i++) map.putNoPrev(randomKey(), value);
+    }
+  }
+
+  @Benchmark
+  public void sync() {
+    map.putNoPrev(randomKey(), value);
+    env.sync(true);
+  }
+}
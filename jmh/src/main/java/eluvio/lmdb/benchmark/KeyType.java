@@ -0,0 +1,64 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.benchmark;
+
+import eluvio.lmdb.map.LMDBSerializer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The built-in key serializers along with a way to generate keys (that sort
+ * in index order) for each of them
+ */
+enum KeyType {
+  STRING(LMDBSerializer.String) {
+    Object key(int i) { return String.format("key-%010d", i); }
+  },
+  INT(LMDBSerializer.Int) {
+    Object key(int i) { return i; }
+  },
+  UNSIGNED_INT(LMDBSerializer.UnsignedInt) {
+    Object key(int i) { return i; }
+  },
+  LONG(LMDBSerializer.Long) {
+    Object key(int i) { return (long)i; }
+  },
+  UNSIGNED_LONG(LMDBSerializer.UnsignedLong) {
+    Object key(int i) { return (long)i; }
+  },
+  BYTE_ARRAY(LMDBSerializer.ByteArray) {
+    Object key(int i) { return ByteBuffer.allocate(16).putLong(8, i).array(); }
+  };
+
+  private final LMDBSerializer<?> serializer;
+
+  KeyType(LMDBSerializer<?> serializer) {
+    this.serializer = serializer;
+  }
+
+  abstract Object key(int i);
+
+  Object[] keys(int count) {
+    final Object[] keys = new Object[count];
+    for (int i = 0; i < count; i++) keys[i] = key(i);
+    return keys;
+  }
+
+  @SuppressWarnings("unchecked")
+  LMDBSerializer<Object> serializer() {
+    return (LMDBSerializer<Object>)serializer;
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.benchmark;
+
+import eluvio.lmdb.map.LMDBIterator;
+import eluvio.lmdb.map.LMDBMap;
+import eluvio.lmdb.map.LMDBSerializer;
+import eluvio.lmdb.map.LMDBTxn;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for {@link LMDBMap} (i.e. LMDBMapImpl) operations with each of
+ * the built-in key serializers.  These include the per-operation transaction
+ * handling and serialization overhead that {@link ApiBenchmark} does not.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MapBenchmark {
+  @Param({"STRING", "INT", "UNSIGNED_INT", "LONG", "UNSIGNED_LONG", "BYTE_ARRAY"})
+  public KeyType keyType;
+
+  @Param({"8", "256", "4096"})
+  public int valueSize;
+
+  @Param({"SYNC", "NO_SYNC"})
+  public BenchmarkEnv.SyncMode syncMode;
+
+  @Param({"100000"})
+  public int entries;
+
+  /** The number of keys visited by {@link #subMapScan} */
+  @Param({"100"})
+  public int rangeSize;
+
+  private BenchmarkEnv env;
+  private LMDBMap<Object,byte[]> map;
+  private Object[] keys;
+  private byte[] value;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    env = new BenchmarkEnv(syncMode);
+    map = env.map("map", keyType.serializer(), LMDBSerializer.ByteArray);
+    keys = keyType.keys(entries);
+    value = BenchmarkEnv.bytes(valueSize);
+
+    try (LMDBTxn txn = map.withReadWriteTxn()) {
+      for (Object key : keys) map.putNoPrev(key, value);
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    env.close();
+  }
+
+  private Object randomKey() {
+    return keys[ThreadLocalRandom.current().nextInt(keys.length)];
+  }
+
+  @Benchmark
+  public byte[] get() {
+    return map.get(randomKey());
+  }
+
+  @Benchmark
+  public void put() {
+    map.putNoPrev(randomKey(), value);
+  }
+
+  @Benchmark
+  public void iterate(Blackhole bh) {
+    try (LMDBIterator<Map.Entry<Object,byte[]>> it = map.entrySet().lmdbIterator()) {
+      while (it.hasNext()) bh.consume(it.next());
+    }
+  }
+
+  @Benchmark
+  public void subMapScan(Blackhole bh) {
+    final int from = ThreadLocalRandom.current().nextInt(keys.length - rangeSize);
+
+    try (LMDBIterator<Map.Entry<Object,byte[]>> it = map.subMap(keys[from], true, keys[from + rangeSize], false).entrySet().lmdbIterator()) {
+      while (it.hasNext()) bh.consume(it.next());
+    }
+  }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.benchmark;
+
+import eluvio.lmdb.map.LMDBIterator;
+import eluvio.lmdb.map.LMDBMultiMap;
+import eluvio.lmdb.map.LMDBSerializer;
+import eluvio.lmdb.map.LMDBTxn;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks for iterating the duplicate values of an {@link LMDBMultiMap}
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MultiMapBenchmark {
+  @Param({"1000"})
+  public int keys;
+
+  @Param({"1", "16", "256"})
+  public int dupsPerKey;
+
+  @Param({"8", "256"})
+  public int valueSize;
+
+  private BenchmarkEnv env;
+  private LMDBMultiMap<Long,byte[]> map;
+
+  @Setup(Level.Trial)
+  public void setup() {
+    env = new BenchmarkEnv(BenchmarkEnv.SyncMode.NO_SYNC);
+    map = env.multiMap("multimap", LMDBSerializer.Long, LMDBSerializer.ByteArray);
+
+    try (LMDBTxn txn = map.withReadWriteTxn()) {
+      for (long key = 0; key < keys; key++) {
+        for (int dup = 0; dup < dupsPerKey; dup++) {
+          final byte[] value = BenchmarkEnv.bytes(valueSize);
+          value[0] = (byte)(dup >> 8);
+          value[1] = (byte)dup;
+          map.add(key, value);
+        }
+      }
+    }
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    env.close();
+  }
+
+  @Benchmark
+  public void iterateDups(Blackhole bh) {
+    final long key = ThreadLocalRandom.current().nextInt(keys);
+
+    try (LMDBIterator<byte[]> it = map.get(key).lmdbIterator()) {
+      while (it.hasNext()) bh.consume(it.next());
+    }
+  }
+
+  @Benchmark
+  public void iterateAll(Blackhole bh) {
+    try (LMDBIterator<Map.Entry<Long,byte[]>> it = map.entrySet().lmdbIterator()) {
+      while (it.hasNext()) bh.consume(it.next());
+    }
+  }
+}
@@ -144,6 +144,11 @@ public interface Api {
     @Delegate public int call(Pointer a, Pointer b);
   }
   
+  public static interface MDB_msg_func {
+    // typedef int(MDB_msg_func)(const char *msg, void *ctx)
+    @Delegate public int call(Pointer msg, Pointer ctx);
+  }
+  
   @IgnoreError String mdb_version(@Out IntByReference major, @Out IntByReference minor, @Out IntByReference patch);
   @IgnoreError String mdb_strerror(int err);
   
@@ -159,12 +164,15 @@ public interface Api {
   @IgnoreError int mdb_env_info(Pointer env, @Out @Transient MDB_envinfo stat);
   @IgnoreError int mdb_env_set_flags(Pointer env, int flags, int onoff);
   @IgnoreError int mdb_env_get_flags(Pointer env, @Out IntByReference flags);
+  @IgnoreError int mdb_env_copy2(Pointer env, @In CharSequence path, int flags);
+  @IgnoreError int mdb_env_copyfd2(Pointer env, int fd, int flags); // mdb_filehandle_t is an int (except on Windows)
   
   @IgnoreError int mdb_txn_begin(Pointer env, Pointer parent, int flags, @Out PointerByReference txn);
   @IgnoreError int mdb_txn_commit(Pointer txn);
   @IgnoreError void mdb_txn_abort(Pointer txn);
   @IgnoreError void mdb_txn_reset(Pointer txn);
   @IgnoreError void mdb_txn_renew(Pointer txn);
+  @IgnoreError @size_t long mdb_txn_id(Pointer txn);
   
   @IgnoreError int mdb_dbi_open(Pointer txn, @In CharSequence name, int flags, @Out IntByReference dbi);
   @IgnoreError void mdb_dbi_close(Pointer env, int dbi);
@@ -190,5 +198,6 @@ public interface Api {
   @IgnoreError int mdb_cursor_del(Pointer cursor, int flags);
   @IgnoreError int mdb_cursor_count(Pointer cursor, @Out NumberByReference countp);
   
+  @IgnoreError int mdb_reader_list(Pointer env, MDB_msg_func func, Pointer ctx);
   @IgnoreError int mdb_reader_check(Pointer env, @Out IntByReference dead);
 }
\ No newline at end of file
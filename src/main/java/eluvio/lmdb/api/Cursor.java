@@ -16,6 +16,8 @@
 package eluvio.lmdb.api;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Objects;
 
 import jnr.ffi.Pointer;
@@ -353,7 +355,7 @@ final public class Cursor implements AutoCloseable {
    * @param data the data to store
    */
   public void put(ByteBuffer key, ByteBuffer data) {
-    put(key, data);
+    put(key, data, 0);
   }
   
   /**
@@ -412,28 +414,185 @@ final public class Cursor implements AutoCloseable {
     ApiErrors.checkError("mdb_cursor_del", Api.instance.mdb_cursor_del(cursor, flags));
   }
   
+  /**
+   * Count the number of unique keys in the database
+   * <p>
+   * This walks the keys using {@link CursorOp#MDB_NEXT_NODUP} and leaves the
+   * cursor positioned at the end of the database.
+   * @return the number of unique keys
+   */
   public long keyCount() {
+    return count(null, false, null, false, false);
+  }
+  
+  /**
+   * Count the keys (or key/data pairs) within a range of keys.
+   * <p>
+   * The range is walked natively using {@link CursorOp#MDB_SET_RANGE} and
+   * {@link CursorOp#MDB_NEXT_NODUP} with the end of the range checked via
+   * mdb_cmp so no keys or values are copied out of the database.  When
+   * counting duplicates each key contributes its mdb_cursor_count so the
+   * walk is proportional to the number of keys, not values.
+   * @param from the start of the range, or null to start at the first key
+   * @param fromInclusive should a key equal to from be counted?
+   * @param to the end of the range, or null to continue to the last key
+   * @param toInclusive should a key equal to to be counted?
+   * @param dups if true count every key/data pair (only valid for {@link Api#MDB_DUPSORT}), otherwise count unique keys
+   * @return the number of keys (or key/data pairs) in the range
+   */
+  public long count(ByteBuffer from, boolean fromInclusive, ByteBuffer to, boolean toInclusive, boolean dups) {
     if (State.OPEN != state) throw new RuntimeException("Cursor is not open!");
+    if (null != from && from.remaining() <= 0) throw new IllegalArgumentException("From key has no data!");
+    if (null != to && to.remaining() <= 0) throw new IllegalArgumentException("To key has no data!");
     
-    final Api.MDB_val keyVal = new Api.MDB_val();
+    final Api.MDB_val fromVal = null != from ? new Api.MDB_val(from) : null;
+    final Api.MDB_val toVal = null != to ? new Api.MDB_val(to) : null;
+    final Api.MDB_val keyVal = new Api.MDB_val(from);
     final Api.MDB_val dataVal = new Api.MDB_val();
+    final NumberByReference dupCount = dups ? new NumberByReference(TypeAlias.size_t) : null;
+    
+    int rc = seek(keyVal, dataVal, fromVal, fromInclusive);
     
     long count = 0;
     
-    int rc = Api.instance.mdb_cursor_get(cursor, keyVal, dataVal, CursorOp.MDB_FIRST);
-    if (ApiErrors.MDB_NOTFOUND == rc) return 0;
-    else count++;
+    while (0 == rc && !pastEnd(keyVal, toVal, toInclusive)) {
+      if (dups) {
+        ApiErrors.checkError("mdb_cursor_count", Api.instance.mdb_cursor_count(cursor, dupCount));
+        count += dupCount.longValue();
+      } else {
+        count++;
+      }
+      
+      rc = Api.instance.mdb_cursor_get(cursor, keyVal, dataVal, CursorOp.MDB_NEXT_NODUP);
+    }
+    
+    if (0 != rc && ApiErrors.MDB_NOTFOUND != rc) throw ApiErrors.toException("mdb_cursor_get", rc);
+    
+    return count;
+  }
+  
+  /**
+   * Pick keys that divide a range of keys into (up to) the specified number
+   * of partitions with roughly the same number of keys in each.
+   * <p>
+   * The range is walked natively twice (once to count it and once to
+   * collect the keys) so only the returned keys are copied out of the
+   * database.
+   * @param from the start of the range, or null to start at the first key
+   * @param fromInclusive is a key equal to from part of the range?
+   * @param to the end of the range, or null to continue to the last key
+   * @param toInclusive is a key equal to to part of the range?
+   * @param partitions the desired number of partitions
+   * @return copies of the (strictly increasing) keys that start each partition
+   *         after the first one.  This will have at most partitions - 1
+   *         entries.
+   */
+  public List<ByteBuffer> splitKeys(ByteBuffer from, boolean fromInclusive, ByteBuffer to, boolean toInclusive, int partitions) {
+    if (partitions <= 0) throw new IllegalArgumentException("Partitions must be positive");
+    
+    final long count = count(from, fromInclusive, to, toInclusive, false);
+    final int parts = (int)Math.min(partitions, count);
+    final List<ByteBuffer> res = new ArrayList<ByteBuffer>(Math.max(parts - 1, 0));
+    
+    if (parts <= 1) return res;
+    
+    final Api.MDB_val fromVal = null != from ? new Api.MDB_val(from) : null;
+    final Api.MDB_val keyVal = new Api.MDB_val(from);
+    final Api.MDB_val dataVal = new Api.MDB_val();
+    
+    int rc = seek(keyVal, dataVal, fromVal, fromInclusive);
+    long idx = 0;
+    
+    for (int i = 1; i < parts && 0 == rc; i++) {
+      final long target = i * count / parts;
+      
+      while (idx < target && 0 == rc) {
+        rc = Api.instance.mdb_cursor_get(cursor, keyVal, dataVal, CursorOp.MDB_NEXT_NODUP);
+        idx++;
+      }
+      
+      if (0 == rc) {
+        final ByteBuffer key = keyVal.asByteBuffer();
+        final ByteBuffer copy = ByteBuffer.allocateDirect(key.remaining());
+        copy.put(key);
+        copy.flip();
+        res.add(copy);
+      }
+    }
+    
+    if (0 != rc && ApiErrors.MDB_NOTFOUND != rc) throw ApiErrors.toException("mdb_cursor_get", rc);
+    
+    return res;
+  }
+  
+  /**
+   * Delete every key (and all of its duplicates) within a range of keys.
+   * <p>
+   * The range is walked natively the same way as {@link #count} and each key
+   * is removed with mdb_cursor_del so nothing is copied out of the database.
+   * At most limit keys are deleted which allows callers to commit large
+   * ranges in chunks by calling this repeatedly until it returns less than
+   * limit.
+   * @param from the start of the range, or null to start at the first key
+   * @param fromInclusive should a key equal to from be deleted?
+   * @param to the end of the range, or null to continue to the last key
+   * @param toInclusive should a key equal to to be deleted?
+   * @param dups if true delete with {@link Api#MDB_NODUPDATA} (only valid for {@link Api#MDB_DUPSORT})
+   * @param limit the maximum number of keys to delete
+   * @return the number of keys deleted
+   */
+  public long deleteRange(ByteBuffer from, boolean fromInclusive, ByteBuffer to, boolean toInclusive, boolean dups, long limit) {
+    if (State.OPEN != state) throw new RuntimeException("Cursor is not open!");
+    if (txn.readOnly) throw new RuntimeException("Cannot delete using a read-only transaction!");
+    if (null != from && from.remaining() <= 0) throw new IllegalArgumentException("From key has no data!");
+    if (null != to && to.remaining() <= 0) throw new IllegalArgumentException("To key has no data!");
+    if (limit <= 0) throw new IllegalArgumentException("Limit must be positive");
+    
+    final Api.MDB_val fromVal = null != from ? new Api.MDB_val(from) : null;
+    final Api.MDB_val toVal = null != to ? new Api.MDB_val(to) : null;
+    final Api.MDB_val keyVal = new Api.MDB_val(from);
+    final Api.MDB_val dataVal = new Api.MDB_val();
+    final int flags = dups ? Api.MDB_NODUPDATA : 0;
+    
+    int rc = seek(keyVal, dataVal, fromVal, fromInclusive);
     
-    ApiErrors.checkError("mdb_cursor_get", rc); 
+    long deleted = 0;
     
-    while (true) {
+    while (0 == rc && deleted < limit && !pastEnd(keyVal, toVal, toInclusive)) {
+      ApiErrors.checkError("mdb_cursor_del", Api.instance.mdb_cursor_del(cursor, flags));
+      deleted++;
+      
+      // After mdb_cursor_del the cursor already points at the following key
+      // so MDB_NEXT_NODUP returns that key instead of skipping over it
       rc = Api.instance.mdb_cursor_get(cursor, keyVal, dataVal, CursorOp.MDB_NEXT_NODUP);
-      if (0 == rc) count++;
-      else if (ApiErrors.MDB_NOTFOUND == rc) break;
-      else throw ApiErrors.toException("mdb_cursor_get", rc);
     }
     
-    return count;
+    if (0 != rc && ApiErrors.MDB_NOTFOUND != rc) throw ApiErrors.toException("mdb_cursor_get", rc);
+    
+    return deleted;
+  }
+  
+  /**
+   * Position at the first key of a range (as used by {@link #count} and {@link #deleteRange})
+   * @return the mdb_cursor_get return code
+   */
+  private int seek(Api.MDB_val keyVal, Api.MDB_val dataVal, Api.MDB_val fromVal, boolean fromInclusive) {
+    int rc = Api.instance.mdb_cursor_get(cursor, keyVal, dataVal, null != fromVal ? CursorOp.MDB_SET_RANGE : CursorOp.MDB_FIRST);
+    
+    if (0 == rc && null != fromVal && !fromInclusive && 0 == Api.instance.mdb_cmp(txn.txn, db.dbi, keyVal, fromVal)) {
+      rc = Api.instance.mdb_cursor_get(cursor, keyVal, dataVal, CursorOp.MDB_NEXT_NODUP);
+    }
+    
+    return rc;
+  }
+  
+  /**
+   * @return true if keyVal falls after the end of a range
+   */
+  private boolean pastEnd(Api.MDB_val keyVal, Api.MDB_val toVal, boolean toInclusive) {
+    if (null == toVal) return false;
+    final int cmp = Api.instance.mdb_cmp(txn.txn, db.dbi, keyVal, toVal);
+    return cmp > 0 || (0 == cmp && !toInclusive);
   }
   
   /**
@@ -200,6 +200,13 @@ public class DB {
     }
   }
   
+  /**
+   * @return the database handle (which is only valid for the Env it was opened in)
+   */
+  public int dbi() {
+    return dbi;
+  }
+  
   /**
    * mdb_dbi_flags
    * @param txn the transaction to use
@@ -330,13 +337,19 @@ public class DB {
    * @param key the key to reserve data for
    * @param size the size of the data
    * @param flags flags (in addition to MDB_RESERVE) for the underlying mdb_put call
-   * @return The data ByteBuffer that can be written into
+   * @return The data ByteBuffer that can be written into or null if the key
+   *         already existed (if you are using the MDB_NOOVERWRITE or
+   *         MDB_APPEND flags)
    */
   public ByteBuffer reserve(Txn txn, ByteBuffer key, int size, int flags) {
     txn.threadCheck();
     if (key.remaining() < 1) throw new IllegalArgumentException("Key must be at least 1 byte long");
     Api.MDB_val data = new Api.MDB_val(size);
-    ApiErrors.checkError("mdb_put", Api.instance.mdb_put(txn.txn, dbi, new Api.MDB_val(key), data, flags | Api.MDB_RESERVE));
+    final int rc = Api.instance.mdb_put(txn.txn, dbi, new Api.MDB_val(key), data, flags | Api.MDB_RESERVE);
+    
+    if (ApiErrors.MDB_KEYEXIST == rc) return null;
+    ApiErrors.checkError("mdb_put", rc);
+    
     return data.asByteBuffer();
   }
   
@@ -15,19 +15,49 @@
  */
 package eluvio.lmdb.api;
 
+import jnr.ffi.LibraryLoader;
+import jnr.ffi.Platform;
 import jnr.ffi.Pointer;
 import jnr.ffi.byref.IntByReference;
 import jnr.ffi.byref.PointerByReference;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
 
 public class Env implements AutoCloseable {
   private static enum State { INIT, OPEN, CLOSED }
   
+  private static final int COPY_BUFFER_SIZE = 1024 * 1024;
+  
+  private static final class LibCHolder {
+    static final LibC instance = LibraryLoader.create(LibC.class).failImmediately().load(Platform.getNativePlatform().getStandardCLibraryName());
+  }
+  
   protected final Pointer env;
   private volatile State state = State.INIT;
+  
+  /**
+   * Shared by calls that must not use the MDB_env after it has been freed
+   * (e.g. from background threads) and exclusively held by {@link #close()}
+   */
+  private final ReentrantReadWriteLock closeLock = new ReentrantReadWriteLock();
 
   private boolean isNotThreadLocalTransactions = false;
+  
+  /** Reused by {@link #lastTxnId()} since it is called for every lookup by a bloom filter */
+  private final ThreadLocal<Api.MDB_envinfo> cachedInfo = new ThreadLocal<Api.MDB_envinfo>() {
+    @Override
+    protected Api.MDB_envinfo initialValue() {
+      return new Api.MDB_envinfo();
+    }
+  };
 
   public Env() {
     PointerByReference ref = new PointerByReference();
@@ -103,16 +133,33 @@ public class Env implements AutoCloseable {
     setFlags(Api.MDB_NOSYNC, false);
   }
   
-  private void setFlags(int flags, boolean enableOrDisable) {
+  /**
+   * mdb_env_set_flags - Set (or clear) environment flags that can be changed
+   * while the environment is open (MDB_NOSYNC, MDB_NOMETASYNC, MDB_MAPASYNC
+   * and MDB_NOMEMINIT)
+   * @param flags the flags to change
+   * @param enableOrDisable true to set the flags or false to clear them
+   */
+  public void setFlags(int flags, boolean enableOrDisable) {
     ApiErrors.checkError("mdb_env_set_flags", Api.instance.mdb_env_set_flags(env, flags, enableOrDisable ? 1 : 0));
   }
 
-  private int getFlags() {
+  /**
+   * @return the flags of the environment (e.g. Api.MDB_WRITEMAP)
+   */
+  public int getFlags() {
     final IntByReference ref = new IntByReference();
     ApiErrors.checkError("mdb_env_get_flags", Api.instance.mdb_env_get_flags(env, ref));
     return ref.intValue();
   }
 
+  /**
+   * @return true if the MDB_NOSYNC flag is set
+   */
+  public boolean isNoSync() {
+    return (getFlags() & Api.MDB_NOSYNC) == Api.MDB_NOSYNC;
+  }
+
   public boolean isThreadLocalTransactions() {
     return !isNotThreadLocalTransactions;
   }
@@ -152,22 +199,270 @@ public class Env implements AutoCloseable {
   
   public synchronized void close() {
     if (State.CLOSED == state) return;
-    Api.instance.mdb_env_close(env);
-    state = State.CLOSED;
+    
+    closeLock.writeLock().lock();
+    
+    try {
+      Api.instance.mdb_env_close(env);
+      state = State.CLOSED;
+    } finally {
+      closeLock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * Acquire the shared {@link #closeLock} (which must then be released)
+   * @throws IllegalStateException if the environment is not open
+   */
+  private void lockOpen(String function) {
+    closeLock.readLock().lock();
+    
+    if (State.OPEN != state) {
+      closeLock.readLock().unlock();
+      throw new IllegalStateException("Cannot call " + function + " since the Env is not open");
+    }
+  }
+  
+  private void unlockOpen() {
+    closeLock.readLock().unlock();
   }
   
   public EnvInfo info() {
-    Api.MDB_envinfo info = new Api.MDB_envinfo();;
-    ApiErrors.checkError("mdb_env_info", Api.instance.mdb_env_info(env, info));
+    Api.MDB_envinfo info = new Api.MDB_envinfo();
+    lockOpen("mdb_env_info");
+    
+    try {
+      ApiErrors.checkError("mdb_env_info", Api.instance.mdb_env_info(env, info));
+    } finally {
+      unlockOpen();
+    }
+    
     return new EnvInfo(info);
   }
   
+  /**
+   * Same as {@link #info()}.lastTxnId without allocating a new EnvInfo
+   * @return the id of the last committed transaction
+   */
+  public long lastTxnId() {
+    final Api.MDB_envinfo info = cachedInfo.get();
+    lockOpen("mdb_env_info");
+    
+    try {
+      ApiErrors.checkError("mdb_env_info", Api.instance.mdb_env_info(env, info));
+    } finally {
+      unlockOpen();
+    }
+    
+    return info.me_last_txnid.longValue();
+  }
+  
   public Stat stat() {
     Api.MDB_stat stat = new Api.MDB_stat();
-    ApiErrors.checkError("mdb_env_info", Api.instance.mdb_env_stat(env, stat));
+    lockOpen("mdb_env_stat");
+    
+    try {
+      ApiErrors.checkError("mdb_env_stat", Api.instance.mdb_env_stat(env, stat));
+    } finally {
+      unlockOpen();
+    }
+    
     return new Stat(stat);
   }
   
+  /**
+   * mdb_reader_check - Clear stale entries (left behind by dead processes or
+   * threads) from the reader lock table
+   * @return the number of stale entries that were cleared
+   */
+  public int readerCheck() {
+    final IntByReference dead = new IntByReference();
+    lockOpen("mdb_reader_check");
+    
+    try {
+      ApiErrors.checkError("mdb_reader_check", Api.instance.mdb_reader_check(env, dead));
+    } finally {
+      unlockOpen();
+    }
+    
+    return dead.getValue();
+  }
+  
+  /**
+   * mdb_reader_list - The entries in the reader lock table (from all processes)
+   * @return the reader table entries
+   */
+  public List<ReaderInfo> readers() {
+    final List<ReaderInfo> readers = new ArrayList<ReaderInfo>();
+    
+    final Api.MDB_msg_func func = new Api.MDB_msg_func() {
+      public int call(Pointer msg, Pointer ctx) {
+        for (String line : msg.getString(0).split("\n")) {
+          final ReaderInfo reader = ReaderInfo.parse(line);
+          if (null != reader) readers.add(reader);
+        }
+        
+        return 0;
+      }
+    };
+    
+    lockOpen("mdb_reader_list");
+    final int rc;
+    
+    try {
+      rc = Api.instance.mdb_reader_list(env, func, null);
+    } finally {
+      unlockOpen();
+    }
+    
+    // mdb_reader_list returns the result of the last callback (or -1 if there is no lock table)
+    if (rc < 0) throw new IllegalStateException("mdb_reader_list failed: " + rc);
+    
+    return readers;
+  }
+  
+  /**
+   * mdb_env_copy2 - Copy the environment to the specified path while it is
+   * in use.  The copy is made using a single read-only transaction so writers
+   * are not blocked.  {@link #close()} waits for a copy in progress.
+   * @param path an existing, empty directory (or the data file path if the
+   *        environment uses MDB_NOSUBDIR)
+   * @param compact omit free pages and renumber all pages sequentially
+   *        (MDB_CP_COMPACT).  This is slower but the copy can be much smaller
+   *        than a fragmented environment.
+   */
+  public void copyTo(Path path, boolean compact) {
+    lockOpen("mdb_env_copy2");
+    
+    try {
+      ApiErrors.checkError("mdb_env_copy2", Api.instance.mdb_env_copy2(env, path.toString(), copyFlags(compact)));
+    } finally {
+      unlockOpen();
+    }
+  }
+  
+  /**
+   * @return true if {@link #copyTo(WritableByteChannel, boolean, LongConsumer)}
+   *         is supported on this platform (i.e. not on Windows)
+   */
+  public static boolean isStreamingCopySupported() {
+    return Platform.OS.WINDOWS != Platform.getNativePlatform().getOS();
+  }
+  
+  /**
+   * Same as {@link #copyTo(WritableByteChannel, boolean, LongConsumer)} without progress reporting
+   */
+  public long copyTo(WritableByteChannel channel, boolean compact) throws IOException {
+    return copyTo(channel, compact, null);
+  }
+  
+  /**
+   * mdb_env_copyfd2 - Stream a copy of the environment (i.e. the contents of
+   * its data file) into the channel while it is in use.
+   * <p>
+   * LMDB writes the copy into a pipe from a separate thread while the calling
+   * thread drains the pipe into the channel.  If writing to the channel fails
+   * then the pipe is closed which makes the copy fail (with EPIPE) as well.
+   * <p>
+   * {@link #close()} waits for a copy in progress.  Not supported on Windows
+   * (where mdb_env_copyfd2 takes a HANDLE).
+   * @param channel the destination (which is not closed)
+   * @param compact see {@link #copyTo(Path, boolean)}
+   * @param progress called with the total number of bytes written so far
+   *        after each chunk (may be null)
+   * @return the number of bytes written
+   */
+  public long copyTo(WritableByteChannel channel, boolean compact, LongConsumer progress) throws IOException {
+    if (!isStreamingCopySupported()) throw new UnsupportedOperationException("Streaming copies are not supported on Windows");
+    
+    lockOpen("mdb_env_copyfd2");
+    
+    try {
+      return copyToPipe(channel, compact, progress);
+    } finally {
+      unlockOpen();
+    }
+  }
+  
+  private long copyToPipe(WritableByteChannel channel, boolean compact, LongConsumer progress) throws IOException {
+    final LibC libc = LibCHolder.instance;
+    final int[] fds = new int[2];
+    if (0 != libc.pipe(fds)) throw new IOException("pipe failed: errno " + lastError(libc));
+    
+    final int readFd = fds[0];
+    final int writeFd = fds[1];
+    final int[] rc = new int[1];
+    
+    final Thread writer = new Thread(() -> {
+      try {
+        rc[0] = Api.instance.mdb_env_copyfd2(env, writeFd, copyFlags(compact));
+      } finally {
+        // Signals EOF to the reading side
+        libc.close(writeFd);
+      }
+    }, "LMDB-copyfd2");
+    
+    writer.setDaemon(true);
+    writer.start();
+    
+    long total = 0;
+    
+    try {
+      final ByteBuffer buf = ByteBuffer.allocateDirect(COPY_BUFFER_SIZE);
+      
+      while (true) {
+        buf.clear();
+        final long n = libc.read(readFd, buf, buf.capacity());
+        
+        if (0 == n) break;
+        
+        if (n < 0) {
+          final int errno = lastError(libc);
+          if (LibC.EINTR == errno) continue;
+          throw new IOException("read failed: errno " + errno);
+        }
+        
+        buf.limit((int)n);
+        while (buf.hasRemaining()) channel.write(buf);
+        
+        total += n;
+        if (null != progress) progress.accept(total);
+      }
+    } finally {
+      // If we stopped early this makes the copy fail instead of blocking on a full pipe
+      libc.close(readFd);
+      joinUninterruptibly(writer);
+    }
+    
+    // The join above makes rc[0] visible to this thread
+    ApiErrors.checkError("mdb_env_copyfd2", rc[0]);
+    
+    return total;
+  }
+  
+  private static int copyFlags(boolean compact) {
+    return compact ? Api.MDB_CP_COMPACT : 0;
+  }
+  
+  private static int lastError(LibC libc) {
+    return jnr.ffi.Runtime.getRuntime(libc).getLastError();
+  }
+  
+  private static void joinUninterruptibly(Thread thread) {
+    boolean interrupted = false;
+    
+    while (true) {
+      try {
+        thread.join();
+        break;
+      } catch (InterruptedException ex) {
+        interrupted = true;
+      }
+    }
+    
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+  
   public Txn beginTxn() {
     return new Txn(this);
   }
@@ -185,6 +480,12 @@ public class Env implements AutoCloseable {
   }
   
   public void sync(boolean force) {
-    ApiErrors.checkError("mdb_env_sync", Api.instance.mdb_env_sync(env, force ? 1 : 0));
+    lockOpen("mdb_env_sync");
+    
+    try {
+      ApiErrors.checkError("mdb_env_sync", Api.instance.mdb_env_sync(env, force ? 1 : 0));
+    } finally {
+      unlockOpen();
+    }
   }
 }
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.api;
+
+import java.nio.ByteBuffer;
+
+import jnr.ffi.annotations.*;
+import jnr.ffi.types.*;
+
+/**
+ * The few POSIX functions needed to stream an environment copy through a pipe.
+ * <p>
+ * This is only public because jnr-ffi generates the implementation in its own
+ * class loader.  It is not part of the API.
+ */
+public interface LibC {
+  public static final int EINTR = 4;
+  
+  @IgnoreError int pipe(@Out int[] fds);
+  @ssize_t long read(int fd, @Out ByteBuffer buf, @size_t long count);
+  @IgnoreError int close(int fd);
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.api;
+
+/**
+ * An entry in the reader lock table as reported by mdb_reader_list
+ */
+public class ReaderInfo {
+  /** txnId of a reader slot that is not currently in a read-only transaction */
+  public static final long NO_TXN = -1;
+
+  public final long pid;
+  /** The native (e.g. pthread) thread id */
+  public final long thread;
+  /** The txn id of the snapshot being read or {@link #NO_TXN} */
+  public final long txnId;
+
+  public ReaderInfo(long pid, long thread, long txnId) {
+    this.pid = pid;
+    this.thread = thread;
+    this.txnId = txnId;
+  }
+
+  /**
+   * Parse a line of mdb_reader_list output (e.g. "     12345 7f0a1c2b3700 42")
+   * @return the ReaderInfo or null if the line is not a reader entry (e.g. the header)
+   */
+  static ReaderInfo parse(String line) {
+    final String[] parts = line.trim().split("\\s+");
+    if (3 != parts.length) return null;
+
+    try {
+      return new ReaderInfo(Long.parseLong(parts[0]), Long.parseUnsignedLong(parts[1], 16), "-".equals(parts[2]) ? NO_TXN : Long.parseUnsignedLong(parts[2]));
+    } catch (NumberFormatException ex) {
+      return null;
+    }
+  }
+
+  public String toString() {
+    return "ReaderInfo(pid: "+pid+", thread: "+Long.toHexString(thread)+", txnId: "+txnId+")";
+  }
+}
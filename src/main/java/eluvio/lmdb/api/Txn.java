@@ -168,6 +168,18 @@ public class Txn implements AutoCloseable {
     state = State.OPEN;
   }
   
+  /**
+   * mdb_txn_id
+   * <p>
+   * For a read-only transaction this is the id of the snapshot being read
+   * so two read-only transactions with the same id see the same data.
+   * @return the transaction id
+   */
+  public long id() {
+    if (State.OPEN != state) throw new RuntimeException("Cannot get the id of a Txn that is not OPEN");
+    return Api.instance.mdb_txn_id(txn);
+  }
+  
   /**
    * Throws an exception if the current thread is not the same thread that created the transaction.
    */
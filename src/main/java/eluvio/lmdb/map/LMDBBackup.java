@@ -0,0 +1,205 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import eluvio.lmdb.api.Api;
+import eluvio.lmdb.api.Env;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A hot backup of an LMDB environment that runs in a background thread while
+ * the environment continues to be read from and written to.
+ * <p>
+ * The copy is made (using mdb_env_copyfd2) from a single read-only
+ * transaction so it reflects the version of the environment that was latest
+ * when the backup started.  Progress and throughput can be polled while it
+ * runs.
+ * <p>
+ * A compacted backup omits free pages and renumbers the remaining pages
+ * sequentially so it is also a way to shrink a fragmented environment without
+ * any downtime.
+ * <p>
+ * Closing the environment waits for a running backup to finish.  If the
+ * environment is compacted while a backup is running then the backup keeps
+ * copying the version it started from.
+ */
+public final class LMDBBackup {
+  private static final Logger logger = Logger.getLogger(LMDBBackup.class.getName());
+
+  /** The name of the data file written by {@link #start(LMDBEnv, File, boolean)} */
+  public static final String DATA_FILE_NAME = "data.mdb";
+
+  /** Copies the Env (reporting the number of bytes written so far) */
+  private interface Copy {
+    long copy(Env source, LongConsumer progress) throws IOException;
+  }
+
+  /**
+   * Start backing up the environment into a {@value #DATA_FILE_NAME} file in
+   * the directory.  The directory can then be opened as an environment (without
+   * MDB_NOSUBDIR) even if the source environment uses MDB_NOSUBDIR.
+   * <p>
+   * Where streaming copies are not supported (see
+   * {@link Env#isStreamingCopySupported()}) the file is written by
+   * mdb_env_copy2 instead so {@link #bytesCopied()} is only updated once the
+   * backup is done.
+   * @param env an {@link LMDBMap}, {@link LMDBMultiMap} or {@link LMDBEnvTemplate}
+   * @param dir an existing directory that does not already contain a data file
+   * @param compact see {@link eluvio.lmdb.api.Env#copyTo(java.nio.file.Path, boolean)}
+   */
+  public static LMDBBackup start(LMDBEnv env, File dir, boolean compact) throws IOException {
+    if (!dir.isDirectory()) throw new IllegalArgumentException("Path must be a directory: " + dir);
+
+    final File file = new File(dir, DATA_FILE_NAME);
+
+    if (!Env.isStreamingCopySupported()) {
+      if (file.exists()) throw new FileAlreadyExistsException(file.toString());
+
+      return new LMDBBackup(LMDBEnvInternal.of(env), compact, (source, progress) -> {
+        final boolean noSubDir = 0 != (source.getFlags() & Api.MDB_NOSUBDIR);
+        source.copyTo(noSubDir ? file.toPath() : dir.toPath(), compact);
+        return file.length();
+      });
+    }
+
+    final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+
+    return new LMDBBackup(LMDBEnvInternal.of(env), compact, (source, progress) -> {
+      try {
+        final long total = source.copyTo(channel, compact, progress);
+        channel.force(true);
+        return total;
+      } finally {
+        channel.close();
+      }
+    });
+  }
+
+  /**
+   * Start streaming a backup of the environment into the channel.  The
+   * channel is not closed.
+   * @param env an {@link LMDBMap}, {@link LMDBMultiMap} or {@link LMDBEnvTemplate}
+   * @param channel the destination (e.g. a socket or file)
+   * @param compact see {@link eluvio.lmdb.api.Env#copyTo(java.nio.file.Path, boolean)}
+   */
+  public static LMDBBackup start(LMDBEnv env, WritableByteChannel channel, boolean compact) {
+    return new LMDBBackup(LMDBEnvInternal.of(env), compact, (source, progress) -> source.copyTo(channel, compact, progress));
+  }
+
+  private final String source;
+  private final boolean compact;
+  private final CompletableFuture<Long> future = new CompletableFuture<Long>();
+  private final long startNanos = System.nanoTime();
+  private volatile long bytesCopied = 0;
+  private volatile long endNanos = 0;
+
+  private LMDBBackup(LMDBEnvInternal env, boolean compact, Copy copy) {
+    this.source = env.path().toString();
+    this.compact = compact;
+
+    // Keeps compact() from closing the Env being copied
+    final Env backedUp = env.beginBackup();
+
+    final Thread thread = new Thread(() -> run(env, backedUp, copy), "LMDBBackup");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  private void run(LMDBEnvInternal env, Env backedUp, Copy copy) {
+    try {
+      try {
+        bytesCopied = copy.copy(backedUp, bytes -> bytesCopied = bytes);
+      } finally {
+        env.endBackup(backedUp);
+      }
+
+      endNanos = System.nanoTime();
+      if (logger.isLoggable(Level.INFO)) logger.log(Level.INFO, String.format("Backed up %s (%d bytes%s) in %d ms (%.1f MB/s)", source, bytesCopied, compact ? ", compacted" : "", TimeUnit.NANOSECONDS.toMillis(elapsedNanos()), bytesPerSecond() / (1024 * 1024)));
+      future.complete(bytesCopied);
+    } catch (Throwable ex) {
+      endNanos = System.nanoTime();
+      logger.log(Level.SEVERE, "Backup of " + source + " failed", ex);
+      future.completeExceptionally(ex);
+    }
+  }
+
+  /**
+   * @return the number of bytes copied so far
+   */
+  public long bytesCopied() {
+    return bytesCopied;
+  }
+
+  /**
+   * @return how long the backup has been running (or took if it is done)
+   */
+  public long elapsedNanos() {
+    final long end = endNanos;
+    return (0 == end ? System.nanoTime() : end) - startNanos;
+  }
+
+  /**
+   * @return the average throughput so far
+   */
+  public double bytesPerSecond() {
+    final long elapsed = elapsedNanos();
+    return 0 == elapsed ? 0 : bytesCopied * 1e9 / elapsed;
+  }
+
+  public boolean isCompact() {
+    return compact;
+  }
+
+  public boolean isDone() {
+    return future.isDone();
+  }
+
+  /**
+   * @return a future that completes with the total number of bytes copied
+   */
+  public CompletableFuture<Long> future() {
+    return future;
+  }
+
+  /**
+   * Wait for the backup to finish
+   * @return the total number of bytes copied
+   * @throws IOException if writing the backup failed
+   */
+  public long await() throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException ex) {
+      final Throwable cause = ex.getCause();
+      if (cause instanceof IOException) throw (IOException)cause;
+      if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+      if (cause instanceof Error) throw (Error)cause;
+      throw new RuntimeException(cause);
+    }
+  }
+}
@@ -0,0 +1,334 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A Bloom filter over the serialized keys of an {@link LMDBMap} that lets
+ * {@link LMDBMap#get} and {@link LMDBMap#containsKey} return for most absent
+ * keys without starting a transaction or searching the B-tree.
+ * <p>
+ * Keys are added to the filter as they are written through any
+ * {@link LMDBMap} of this process using the same database (every such map
+ * uses the filter).  Writes made any other way (from another process or
+ * through the {@link eluvio.lmdb.api} classes) are not seen by the filter so
+ * while the filter is open every commit to the environment is checked against
+ * the commits that wrote through the maps.  Once a commit that is not
+ * accounted for is found the filter is no longer used (lookups read from
+ * LMDB, see {@link #isCurrent()}) until it is rebuilt.
+ * <p>
+ * Removing keys does not
+ * remove them from the filter (a Bloom filter cannot do that) so the false
+ * positive rate creeps up as keys are removed or as the map grows beyond the
+ * expected number of keys.  {@link #rebuild()} recreates the filter from the
+ * keys currently in the map.
+ * <p>
+ * The filter is persisted (in a dedicated database, so the environment needs
+ * room for one extra named database) when it is closed along with the id of
+ * the transaction that persisted it.  When it is opened again the persisted
+ * filter is only used if no other transaction has been committed to the
+ * environment since then, otherwise (e.g. after a crash) it is rebuilt.
+ * <p>
+ * The filter is skipped by lookups from a thread with an open transaction.
+ * It cannot be opened, rebuilt or persisted from a thread with an open
+ * transaction since the caller could still abort (e.g. deletes the rebuilt
+ * filter no longer includes) or write more keys after the filter was
+ * persisted with that transaction's id.  Closing it from such a thread
+ * skips persisting it (so it is rebuilt when it is opened again).
+ */
+public final class LMDBBloomFilter implements AutoCloseable {
+  static final String FILTERS_NAME = "__lmdb_bloom_filters";
+  
+  private static final int HEADER_SIZE = 8 + 8 + 4;
+  
+  private final LMDBMapImpl<?,?> map;
+  private final LMDBMapImpl<String,byte[]> filters;
+  private final String name;
+  private final long numBits;
+  private final int numHashes;
+  private volatile AtomicLongArray bits;
+  /** {@link LMDBEnvInternal#unaccountedCommits()} when the bits were built */
+  private volatile long unaccountedCommits;
+  private final boolean rebuiltOnOpen;
+  private final LongAdder lookups = new LongAdder();
+  private final LongAdder negatives = new LongAdder();
+  private volatile boolean closed = false;
+  
+  /**
+   * Open (loading or rebuilding) the filter of a map and start using it
+   * @param map the map (whose database must not already have a filter open)
+   * @param expectedKeys the number of keys the filter is sized for
+   * @param falsePositiveRate the rate of false positives when the map has
+   *        the expected number of keys (e.g. 0.01)
+   * @return the filter
+   */
+  public static LMDBBloomFilter open(LMDBMap<?,?> map, long expectedKeys, double falsePositiveRate) {
+    if (!(map instanceof LMDBMapImpl)) throw new IllegalArgumentException("Unsupported LMDBMap implementation: " + map.getClass());
+    if (expectedKeys <= 0) throw new IllegalArgumentException("Invalid expectedKeys: " + expectedKeys);
+    if (!(falsePositiveRate > 0.0 && falsePositiveRate < 1.0)) throw new IllegalArgumentException("Invalid falsePositiveRate: " + falsePositiveRate);
+    if (((LMDBMapImpl<?,?>)map).env.hasOpenTxn()) throw new IllegalStateException("Cannot open a LMDBBloomFilter from a thread with an open transaction");
+    
+    final double ln2 = Math.log(2);
+    final long numBits = roundUpToWord((long)Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2)));
+    final int numHashes = (int)Math.max(1, Math.min(30, Math.round((double)numBits / expectedKeys * ln2)));
+    
+    return new LMDBBloomFilter((LMDBMapImpl<?,?>)map, numBits, numHashes);
+  }
+  
+  private static long roundUpToWord(long numBits) {
+    final long words = Math.max(1, (numBits + 63) / 64);
+    if (words * 8 > Integer.MAX_VALUE - HEADER_SIZE) throw new IllegalArgumentException("Bloom filter would be too large: " + numBits + " bits");
+    return words * 64;
+  }
+  
+  private LMDBBloomFilter(LMDBMapImpl<?,?> map, long numBits, int numHashes) {
+    this.map = map;
+    this.name = null != map.getName() ? map.getName() : "";
+    this.numBits = numBits;
+    this.numHashes = numHashes;
+    this.filters = new LMDBMapImpl<String,byte[]>(map.env, FILTERS_NAME, LMDBSerializer.String, LMDBSerializer.ByteArray, null, null, false);
+    this.filters.excludeFromChangeLog();
+    
+    boolean rebuilt = false;
+    
+    // Holding the write lock means no keys can be written between checking
+    // (or rebuilding) the filter and attaching it
+    try (LMDBTxnInternal txn = map.env.withReadWriteTxn()) {
+      try {
+        bits = load(map.env.env().info().lastTxnId);
+        
+        if (null == bits) {
+          bits = build(txn);
+          rebuilt = true;
+        }
+        
+        map.env.attachBloomFilter(name, this, txn.txn());
+        unaccountedCommits = map.env.unaccountedCommits();
+      } catch (RuntimeException ex) {
+        txn.abort();
+        throw ex;
+      }
+    }
+    
+    this.rebuiltOnOpen = rebuilt;
+  }
+  
+  /**
+   * @return the persisted bits if they are up to date with the last
+   *         committed transaction (and match the size of this filter)
+   */
+  private AtomicLongArray load(long lastTxnId) {
+    final byte[] stored = filters.get(name);
+    if (null == stored || stored.length < HEADER_SIZE) return null;
+    
+    final ByteBuffer buf = ByteBuffer.wrap(stored);
+    final long txnId = buf.getLong();
+    final long storedNumBits = buf.getLong();
+    final int storedNumHashes = buf.getInt();
+    
+    if (txnId != lastTxnId || storedNumBits != numBits || storedNumHashes != numHashes || buf.remaining() != numBits / 8) return null;
+    
+    final AtomicLongArray res = new AtomicLongArray((int)(numBits / 64));
+    for (int i = 0; i < res.length(); i++) res.set(i, buf.getLong());
+    return res;
+  }
+  
+  private AtomicLongArray build(LMDBTxnInternal txn) {
+    final AtomicLongArray res = new AtomicLongArray((int)(numBits / 64));
+    map.forEachKey(txn.txn(), keyBuf -> add(res, keyBuf));
+    return res;
+  }
+  
+  /**
+   * Recreate the filter from the keys currently in the map (dropping the
+   * keys that have been removed) and persist it.  Writers are blocked while
+   * the keys are scanned.
+   */
+  public void rebuild() {
+    if (closed) throw new IllegalStateException("LMDBBloomFilter has been closed");
+    if (map.env.hasOpenTxn()) throw new IllegalStateException("Cannot rebuild a LMDBBloomFilter from a thread with an open transaction");
+    
+    try (LMDBTxnInternal txn = map.env.withReadWriteTxn()) {
+      try {
+        bits = build(txn);
+        unaccountedCommits = map.env.unaccountedCommits();
+        persist(txn);
+      } catch (RuntimeException ex) {
+        txn.abort();
+        throw ex;
+      }
+    }
+  }
+  
+  /**
+   * Persist the filter so it can be loaded (instead of rebuilt) when it is
+   * opened again as long as nothing is written to the environment in the
+   * meantime.  Called by {@link #close()}.
+   */
+  public void persist() {
+    if (closed) throw new IllegalStateException("LMDBBloomFilter has been closed");
+    if (map.env.hasOpenTxn()) throw new IllegalStateException("Cannot persist a LMDBBloomFilter from a thread with an open transaction");
+    
+    try (LMDBTxnInternal txn = map.env.withReadWriteTxn()) {
+      try {
+        persist(txn);
+      } catch (RuntimeException ex) {
+        txn.abort();
+        throw ex;
+      }
+    }
+  }
+  
+  private void persist(LMDBTxnInternal txn) {
+    final AtomicLongArray current = bits;
+    final ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE + current.length() * 8);
+    buf.putLong(txn.txn().id());
+    buf.putLong(numBits);
+    buf.putInt(numHashes);
+    for (int i = 0; i < current.length(); i++) buf.putLong(current.get(i));
+    filters.putNoPrev(name, buf.array());
+  }
+  
+  /**
+   * Add a (serialized) key to the filter
+   */
+  void add(ByteBuffer keyBuf) {
+    add(bits, keyBuf);
+  }
+  
+  private void add(AtomicLongArray bits, ByteBuffer keyBuf) {
+    final long hash = hash(keyBuf);
+    final long h1 = hash;
+    final long h2 = Long.rotateLeft(hash, 32) | 1L;
+    
+    for (int i = 0; i < numHashes; i++) {
+      final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+      final int word = (int)(bit >>> 6);
+      final long mask = 1L << bit;
+      
+      if (0 == (bits.get(word) & mask)) bits.accumulateAndGet(word, mask, (a, b) -> a | b);
+    }
+  }
+  
+  /**
+   * @return false if the (serialized) key is definitely not in the map
+   */
+  boolean mightContain(ByteBuffer keyBuf) {
+    if (!map.env.writesAccountedFor(unaccountedCommits)) return true;
+    lookups.increment();
+    
+    final AtomicLongArray bits = this.bits;
+    final long hash = hash(keyBuf);
+    final long h1 = hash;
+    final long h2 = Long.rotateLeft(hash, 32) | 1L;
+    
+    for (int i = 0; i < numHashes; i++) {
+      final long bit = ((h1 + i * h2) & Long.MAX_VALUE) % numBits;
+      
+      if (0 == (bits.get((int)(bit >>> 6)) & (1L << bit))) {
+        negatives.increment();
+        return false;
+      }
+    }
+    
+    return true;
+  }
+  
+  /**
+   * FNV-1a over the bytes (read individually so the byte order of the
+   * buffer doesn't matter) followed by the MurmurHash3 finalizer
+   */
+  static long hash(ByteBuffer buf) {
+    long h = 0xcbf29ce484222325L;
+    
+    for (int i = buf.position(); i < buf.limit(); i++) {
+      h ^= buf.get(i) & 0xff;
+      h *= 0x100000001b3L;
+    }
+    
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+  
+  /**
+   * @return true if every transaction committed since the filter was
+   *         opened (or rebuilt) wrote through the maps of this process so the
+   *         filter is being used by lookups
+   */
+  public boolean isCurrent() {
+    return !closed && map.env.writesAccountedFor(unaccountedCommits);
+  }
+  
+  /**
+   * @return true if the persisted filter was stale (or missing) when this
+   *         filter was opened so it was rebuilt from the keys in the map
+   */
+  public boolean wasRebuiltOnOpen() {
+    return rebuiltOnOpen;
+  }
+  
+  /**
+   * @return the size of the filter in bits
+   */
+  public long bitSize() {
+    return numBits;
+  }
+  
+  public int hashCount() {
+    return numHashes;
+  }
+  
+  /**
+   * @return the number of lookups that consulted the filter
+   */
+  public long lookupCount() {
+    return lookups.sum();
+  }
+  
+  /**
+   * @return the number of lookups answered by the filter without reading
+   *         from LMDB
+   */
+  public long negativeCount() {
+    return negatives.sum();
+  }
+  
+  /**
+   * Persist the filter and stop using it
+   */
+  @Override
+  public void close() {
+    if (closed) return;
+    
+    try {
+      if (map.isOpen() && !map.env.hasOpenTxn()) persist();
+    } finally {
+      closed = true;
+      map.env.detachBloomFilter(name, this);
+    }
+  }
+  
+  public boolean isClosed() {
+    return closed;
+  }
+}
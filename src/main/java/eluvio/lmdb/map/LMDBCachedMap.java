@@ -0,0 +1,489 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import eluvio.lmdb.api.Txn;
+
+/**
+ * An {@link LMDBMap} decorator that keeps a size bounded on-heap cache of
+ * deserialized values in front of {@link #get}.
+ * <p>
+ * Entries are evicted using the CLOCK (second chance) algorithm.  Every write
+ * to the underlying map (through this decorator or not) invalidates the
+ * written keys once the enclosing transaction commits (or aborts) so the
+ * cache only ever holds committed values.  Reads from a thread with an open
+ * transaction bypass the cache so they see that transaction's view.
+ * <p>
+ * If a write-behind interval is given then {@link #put}, {@link #putNoPrev},
+ * {@link #remove(Object)} and {@link #removeNoPrev} (when called outside of
+ * a transaction) are buffered on-heap, with later writes to the same key
+ * replacing earlier ones, and committed to the map in a single write
+ * transaction by a background thread (or by {@link #flush()}).  Only
+ * {@link #get} and {@link #containsKey} see buffered writes, every other
+ * operation sees the map as of the last flush.  Buffered writes are lost if
+ * the process dies before they are flushed.
+ * <p>
+ * Keys must implement equals/hashCode consistently with their serialized
+ * form and cached values are shared between callers so they must not be
+ * modified.  Only maps with a single value per key are supported.
+ * @param <K> map key
+ * @param <V> map value
+ */
+public class LMDBCachedMap<K,V> extends LMDBMapProxy<K,V> {
+  private static final Logger logger = Logger.getLogger(LMDBCachedMap.class.getName());
+  
+  /** The default number of buffered writes that causes the caller to flush them */
+  public static final int DEFAULT_MAX_PENDING_WRITES = 10000;
+  
+  private static final int STRIPES = 64;
+  
+  /** Marks a buffered remove */
+  private static final Object REMOVED = new Object();
+  
+  private static final class Node<K,V> {
+    final K key;
+    final V value;
+    volatile boolean referenced = false;
+    
+    Node(K key, V value) {
+      this.key = key;
+      this.value = value;
+    }
+  }
+  
+  /**
+   * The keys written by a top-level transaction of the current thread
+   */
+  private final class Invalidation implements Runnable {
+    final Txn root;
+    final Set<K> keys = new HashSet<K>();
+    boolean all = false;
+    
+    Invalidation(Txn root) {
+      this.root = root;
+    }
+    
+    @Override
+    public void run() {
+      if (invalidations.get() == this) invalidations.remove();
+      
+      if (all) invalidateAll();
+      else for (K key : keys) invalidate(key);
+    }
+  }
+  
+  private final LMDBMapImpl<K,V> map;
+  private final int maximumSize;
+  private final int maxPendingWrites;
+  private final ConcurrentHashMap<K,Node<K,V>> entries = new ConcurrentHashMap<K,Node<K,V>>();
+  private final Node<K,V>[] ring;
+  private int hand = 0;
+  
+  /**
+   * Bumped whenever a key hashing to the stripe is invalidated so a value
+   * loaded concurrently with a commit is not left in the cache
+   */
+  private final AtomicLongArray versions = new AtomicLongArray(STRIPES);
+  
+  private final ThreadLocal<Invalidation> invalidations = new ThreadLocal<Invalidation>();
+  private final ConcurrentHashMap<K,Object> pendingWrites = new ConcurrentHashMap<K,Object>();
+  private final ScheduledExecutorService flusher;
+  
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final LongAdder evictions = new LongAdder();
+  private final LongAdder invalidationsCount = new LongAdder();
+  
+  private final LMDBMapImpl.WriteListener listener = new LMDBMapImpl.WriteListener() {
+    @Override
+    public void keyWritten(Txn txn, ByteBuffer keyBuf) {
+      invalidation(txn).keys.add(map.keySerializer.deserialize(keyBuf.duplicate()));
+    }
+    
+    @Override
+    public void allWritten(Txn txn) {
+      invalidation(txn).all = true;
+    }
+  };
+  
+  private volatile boolean closed = false;
+  
+  /**
+   * @param map the map to cache the values of
+   * @param maximumSize the maximum number of cached values
+   */
+  public LMDBCachedMap(LMDBMap<K,V> map, int maximumSize) {
+    this(map, maximumSize, 0, DEFAULT_MAX_PENDING_WRITES);
+  }
+  
+  /**
+   * @param map the map to cache the values of
+   * @param maximumSize the maximum number of cached values
+   * @param writeBehindMillis how often buffered writes are flushed (or 0 to
+   *        disable write-behind)
+   */
+  public LMDBCachedMap(LMDBMap<K,V> map, int maximumSize, long writeBehindMillis) {
+    this(map, maximumSize, writeBehindMillis, DEFAULT_MAX_PENDING_WRITES);
+  }
+  
+  /**
+   * @param map the map to cache the values of
+   * @param maximumSize the maximum number of cached values
+   * @param writeBehindMillis how often buffered writes are flushed (or 0 to
+   *        disable write-behind)
+   * @param maxPendingWrites the number of buffered writes at which the
+   *        writing thread flushes them itself
+   */
+  @SuppressWarnings("unchecked")
+  public LMDBCachedMap(LMDBMap<K,V> map, int maximumSize, long writeBehindMillis, int maxPendingWrites) {
+    super(impl(map));
+    if (maximumSize <= 0) throw new IllegalArgumentException("Invalid maximumSize: " + maximumSize);
+    if (writeBehindMillis < 0) throw new IllegalArgumentException("Invalid writeBehindMillis: " + writeBehindMillis);
+    if (maxPendingWrites <= 0) throw new IllegalArgumentException("Invalid maxPendingWrites: " + maxPendingWrites);
+    
+    this.map = (LMDBMapImpl<K,V>)self;
+    this.maximumSize = maximumSize;
+    this.maxPendingWrites = maxPendingWrites;
+    this.ring = (Node<K,V>[])new Node<?,?>[maximumSize];
+    
+    this.map.addWriteListener(listener);
+    
+    if (writeBehindMillis > 0) {
+      flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+        final Thread t = new Thread(r, "LMDBCachedMap-flusher");
+        t.setDaemon(true);
+        return t;
+      });
+      
+      flusher.scheduleWithFixedDelay(this::backgroundFlush, writeBehindMillis, writeBehindMillis, TimeUnit.MILLISECONDS);
+    } else {
+      flusher = null;
+    }
+  }
+  
+  @SuppressWarnings("unchecked")
+  private static <K,V> LMDBMapImpl<K,V> impl(LMDBMap<K,V> map) {
+    if (!(map instanceof LMDBMapImpl)) throw new IllegalArgumentException("Unsupported LMDBMap implementation: " + map.getClass());
+    final LMDBMapImpl<K,V> impl = (LMDBMapImpl<K,V>)map;
+    if (impl.dup) throw new IllegalArgumentException("LMDBCachedMap does not support maps with multiple values per key");
+    return impl;
+  }
+  
+  /**
+   * @return true if buffered writes are flushed in the background
+   */
+  public boolean isWriteBehind() {
+    return null != flusher;
+  }
+  
+  @Override
+  public V get(Object key) {
+    if (null != flusher) {
+      final Object pending = pendingWrites.get(key);
+      if (null != pending) return pending == REMOVED ? null : castValue(pending);
+    }
+    
+    if (null == key || closed || map.env.hasOpenTxn()) return self.get(key);
+    
+    final Node<K,V> node = entries.get(key);
+    
+    if (null != node) {
+      node.referenced = true;
+      hits.increment();
+      return node.value;
+    }
+    
+    misses.increment();
+    
+    final int stripe = stripe(key);
+    final long version = versions.get(stripe);
+    final V value = self.get(key);
+    
+    if (null != value) cache(castKey(key), value, stripe, version);
+    
+    return value;
+  }
+  
+  @Override
+  public boolean containsKey(Object key) {
+    if (null != flusher) {
+      final Object pending = pendingWrites.get(key);
+      if (null != pending) return pending != REMOVED;
+    }
+    
+    if (null != key && !closed && !map.env.hasOpenTxn() && entries.containsKey(key)) return true;
+    
+    return self.containsKey(key);
+  }
+  
+  @Override
+  public V put(K key, V value) {
+    if (!buffered()) return self.put(key, value);
+    final V prev = get(key);
+    buffer(key, value);
+    return prev;
+  }
+  
+  @Override
+  public void putNoPrev(K key, V value) {
+    if (!buffered()) self.putNoPrev(key, value);
+    else buffer(key, value);
+  }
+  
+  @Override
+  public V remove(Object key) {
+    if (!buffered()) return self.remove(key);
+    final V prev = get(key);
+    buffer(castKey(key), REMOVED);
+    return prev;
+  }
+  
+  @Override
+  public boolean removeNoPrev(K key) {
+    if (!buffered()) return self.removeNoPrev(key);
+    final boolean existed = containsKey(key);
+    buffer(key, REMOVED);
+    return existed;
+  }
+  
+  /**
+   * Writes from a thread with an open transaction go directly to the map so
+   * they are part of that transaction
+   */
+  private boolean buffered() {
+    return null != flusher && !closed && !map.env.hasOpenTxn();
+  }
+  
+  private void buffer(K key, Object value) {
+    if (null == key || null == value) throw new NullPointerException();
+    pendingWrites.put(key, value);
+    if (pendingWrites.size() >= maxPendingWrites) flush();
+  }
+  
+  /**
+   * Commit all buffered writes to the map in a single write transaction.
+   * This cannot be called from a thread with an open transaction since the
+   * buffered writes would be lost if that transaction were aborted.
+   * @return the number of keys written
+   */
+  public synchronized int flush() {
+    if (map.env.hasOpenTxn()) throw new IllegalStateException("Cannot flush a LMDBCachedMap from a thread with an open transaction");
+    if (pendingWrites.isEmpty()) return 0;
+    
+    final List<Map.Entry<K,Object>> batch = new ArrayList<Map.Entry<K,Object>>(pendingWrites.size());
+    for (Map.Entry<K,Object> e : pendingWrites.entrySet()) batch.add(new AbstractMap.SimpleImmutableEntry<K,Object>(e.getKey(), e.getValue()));
+    
+    try (LMDBTxnInternal txn = map.env.withReadWriteTxn()) {
+      try {
+        for (Map.Entry<K,Object> e : batch) {
+          if (e.getValue() == REMOVED) self.removeNoPrev(e.getKey());
+          else self.putNoPrev(e.getKey(), castValue(e.getValue()));
+        }
+      } catch (RuntimeException ex) {
+        txn.abort();
+        throw ex;
+      }
+    }
+    
+    // Keep anything that was re-written while flushing for the next flush
+    for (Map.Entry<K,Object> e : batch) pendingWrites.remove(e.getKey(), e.getValue());
+    
+    return batch.size();
+  }
+  
+  private void backgroundFlush() {
+    try {
+      flush();
+    } catch (RuntimeException ex) {
+      logger.log(Level.WARNING, "LMDBCachedMap flush failed", ex);
+    }
+  }
+  
+  /**
+   * @return the number of buffered writes that have not been flushed yet
+   */
+  public int pendingWriteCount() {
+    return pendingWrites.size();
+  }
+  
+  private Invalidation invalidation(Txn txn) {
+    Txn root = txn;
+    while (null != root.parent) root = root.parent;
+    
+    Invalidation inv = invalidations.get();
+    
+    if (null == inv || inv.root != root) {
+      inv = new Invalidation(root);
+      invalidations.set(inv);
+      root.onAbortOrCommit(inv);
+    }
+    
+    return inv;
+  }
+  
+  private static int stripe(Object key) {
+    final int h = key.hashCode();
+    return (h ^ (h >>> 16)) & (STRIPES - 1);
+  }
+  
+  private void cache(K key, V value, int stripe, long version) {
+    final Node<K,V> node = new Node<K,V>(key, value);
+    
+    synchronized (ring) {
+      if (null != entries.putIfAbsent(key, node)) return;
+      
+      while (true) {
+        final Node<K,V> n = ring[hand];
+        
+        // Empty slot or a node that has already been invalidated
+        if (null == n || entries.get(n.key) != n) break;
+        
+        if (n.referenced) {
+          n.referenced = false;
+          hand = (hand + 1) % maximumSize;
+          continue;
+        }
+        
+        entries.remove(n.key, n);
+        evictions.increment();
+        break;
+      }
+      
+      ring[hand] = node;
+      hand = (hand + 1) % maximumSize;
+    }
+    
+    // The key was written (and committed) while the value was being loaded
+    if (versions.get(stripe) != version) entries.remove(key, node);
+  }
+  
+  /**
+   * Remove the key from the cache
+   */
+  public void invalidate(Object key) {
+    versions.incrementAndGet(stripe(key));
+    if (null != entries.remove(key)) invalidationsCount.increment();
+  }
+  
+  /**
+   * Remove everything from the cache
+   */
+  public void invalidateAll() {
+    for (int i = 0; i < STRIPES; i++) versions.incrementAndGet(i);
+    
+    synchronized (ring) {
+      invalidationsCount.add(entries.size());
+      entries.clear();
+      Arrays.fill(ring, null);
+    }
+  }
+  
+  /**
+   * @return the number of values currently cached
+   */
+  public int cachedCount() {
+    return entries.size();
+  }
+  
+  public int maximumSize() {
+    return maximumSize;
+  }
+  
+  public long hitCount() {
+    return hits.sum();
+  }
+  
+  public long missCount() {
+    return misses.sum();
+  }
+  
+  /**
+   * @return the fraction of cache lookups that were hits (or 0 if there
+   *         have not been any)
+   */
+  public double hitRate() {
+    final long h = hits.sum();
+    final long total = h + misses.sum();
+    return 0 == total ? 0.0 : (double)h / total;
+  }
+  
+  public long evictionCount() {
+    return evictions.sum();
+  }
+  
+  /**
+   * @return the number of cached values removed because they were written
+   */
+  public long invalidationCount() {
+    return invalidationsCount.sum();
+  }
+  
+  @SuppressWarnings("unchecked")
+  private K castKey(Object key) {
+    return (K)key;
+  }
+  
+  @SuppressWarnings("unchecked")
+  private V castValue(Object value) {
+    return (V)value;
+  }
+  
+  /**
+   * Flush any buffered writes and stop caching.  The underlying map is left
+   * open.  If writes are buffered then this cannot be called from a thread
+   * with an open transaction (see {@link #flush()}).
+   */
+  @Override
+  public void close() {
+    synchronized (this) {
+      if (closed) return;
+      if (null != flusher && map.env.hasOpenTxn()) throw new IllegalStateException("Cannot close a write-behind LMDBCachedMap from a thread with an open transaction");
+      closed = true;
+    }
+    
+    if (null != flusher) {
+      flusher.shutdown();
+      
+      try {
+        flusher.awaitTermination(1, TimeUnit.MINUTES);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+      
+      flush();
+    }
+    
+    map.removeWriteListener(listener);
+    invalidateAll();
+  }
+}
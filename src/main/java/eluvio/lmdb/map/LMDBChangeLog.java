@@ -0,0 +1,444 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import eluvio.lmdb.api.Txn;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An opt-in log of the writes committed to the maps of an environment.
+ * <p>
+ * While a change log is open every put/remove/clear made through an
+ * {@link LMDBMap} or {@link LMDBMultiMap} of the environment appends a
+ * {@link Record} (map name, operation, key and value) to a dedicated
+ * database in the <b>same</b> write transaction as the change itself.  So a
+ * record exists if and only if its change was committed and records are
+ * numbered by a sequence number that increases in commit order (even when
+ * multiple processes write to the environment).
+ * <p>
+ * {@link Subscriber}s consume the log incrementally and persist how far
+ * they have gotten (their checkpoint) in a second database.  Records that
+ * every subscriber has acknowledged can be removed with {@link #prune()}.
+ * <p>
+ * The environment needs room (maxdbs) for the two extra named databases.
+ */
+public final class LMDBChangeLog implements AutoCloseable {
+  /** The name of the database holding the records */
+  public static final String LOG_NAME = "__lmdb_changelog";
+
+  /** The name of the database holding the subscriber checkpoints */
+  public static final String CHECKPOINTS_NAME = "__lmdb_changelog_checkpoints";
+
+  /** How often {@link Subscriber#await} re-checks for records committed by other processes */
+  public static final long POLL_INTERVAL_MILLIS = 100;
+
+  public enum Op {
+    /** The value was put (or for an {@link LMDBMultiMap}, added) */
+    PUT,
+    /** The value (or if the record has no value, every value) of the key was removed */
+    DELETE,
+    /** Every key in the map was removed */
+    CLEAR
+  }
+
+  /**
+   * A single committed change
+   */
+  public static final class Record {
+    public final long seq;
+    /** The name of the map (or null for the unnamed database) */
+    public final String map;
+    public final Op op;
+    private final byte[] key;
+    private final byte[] value;
+
+    private Record(long seq, String map, Op op, byte[] key, byte[] value) {
+      this.seq = seq;
+      this.map = map;
+      this.op = op;
+      this.key = key;
+      this.value = value;
+    }
+
+    /**
+     * @return the serialized key or null for {@link Op#CLEAR}
+     */
+    public byte[] keyBytes() {
+      return key;
+    }
+
+    /**
+     * @return the serialized value or null if the record has no value
+     */
+    public byte[] valueBytes() {
+      return value;
+    }
+
+    public <K> K key(LMDBSerializer<K> serializer) {
+      return null != key ? serializer.deserialize(ByteBuffer.wrap(key)) : null;
+    }
+
+    public <V> V value(LMDBSerializer<V> serializer) {
+      return null != value ? serializer.deserialize(ByteBuffer.wrap(value)) : null;
+    }
+
+    @Override
+    public String toString() {
+      return "Record(" + seq + ", " + map + ", " + op + ")";
+    }
+  }
+
+  /**
+   * Open the change log of an environment.  Only one change log can be open
+   * at a time for each environment.
+   * @param env an {@link LMDBMap}, {@link LMDBMultiMap} or {@link LMDBEnvTemplate}
+   * @return the change log
+   */
+  public static LMDBChangeLog open(LMDBEnv env) {
+    final LMDBEnvInternal internal = LMDBEnvInternal.of(env);
+    final LMDBChangeLog log = new LMDBChangeLog(internal);
+    internal.attachChangeLog(log);
+    return log;
+  }
+
+  private final LMDBEnvInternal env;
+  private final LMDBMapImpl<Long,byte[]> log;
+  private final LMDBMapImpl<String,Long> checkpoints;
+
+  /** The top-level write transaction of the current thread that will signal subscribers when it ends */
+  private final ThreadLocal<Txn> signalling = new ThreadLocal<Txn>();
+
+  private final Object signal = new Object();
+  private long signals = 0; // guarded by signal
+  private volatile boolean closed = false;
+
+  private LMDBChangeLog(LMDBEnvInternal env) {
+    this.env = env;
+    this.log = new LMDBMapImpl<Long,byte[]>(env, LOG_NAME, LMDBSerializer.UnsignedLong, LMDBSerializer.ByteArray, null, null, false);
+    this.checkpoints = new LMDBMapImpl<String,Long>(env, CHECKPOINTS_NAME, LMDBSerializer.String, LMDBSerializer.Long, null, null, false);
+    log.excludeFromChangeLog();
+    checkpoints.excludeFromChangeLog();
+  }
+
+  /**
+   * Called by {@link LMDBMapImpl} (from within the write transaction making
+   * the change)
+   * @param keyBuf the serialized key (null for {@link Op#CLEAR})
+   * @param valueBuf the serialized value (or null)
+   */
+  void append(Txn txn, LMDBMapImpl<?,?> map, Op op, ByteBuffer keyBuf, ByteBuffer valueBuf) {
+    final Long last = log.lastKey();
+    final long seq = null != last ? last + 1 : 1L;
+    if (!log.append(seq, encode(map.getName(), op, keyBuf, valueBuf))) throw new IllegalStateException("Change log record " + seq + " already exists");
+    signalOnCommit(txn);
+  }
+
+  /**
+   * Wake up waiting subscribers once the top-level transaction ends
+   */
+  private void signalOnCommit(Txn txn) {
+    Txn root = txn;
+    while (null != root.parent) root = root.parent;
+
+    if (signalling.get() == root) return;
+
+    signalling.set(root);
+    root.onAbortOrCommit(() -> {
+      signalling.remove();
+      signal();
+    });
+  }
+
+  private void signal() {
+    synchronized (signal) {
+      signals++;
+      signal.notifyAll();
+    }
+  }
+
+  LMDBEnvInternal env() {
+    return env;
+  }
+
+  /**
+   * @return the sequence number of the oldest record that has not been
+   *         pruned (or 0 if nothing has been logged yet)
+   */
+  public long firstSeq() {
+    final Long first = log.firstKey();
+    return null != first ? first : 0L;
+  }
+
+  /**
+   * @return the sequence number of the latest record (or 0 if nothing has
+   *         been logged yet)
+   */
+  public long lastSeq() {
+    final Long last = log.lastKey();
+    return null != last ? last : 0L;
+  }
+
+  /**
+   * @return the number of records in the log
+   */
+  public long size() {
+    return log.keyCount();
+  }
+
+  /**
+   * Get (or create) a subscriber.  A new subscriber starts with a checkpoint
+   * of 0 (i.e. it sees every record that has not been pruned).
+   */
+  public Subscriber subscribe(String name) {
+    if (null == name) throw new IllegalArgumentException("Subscriber name is null");
+
+    try (LMDBTxnInternal txn = checkpoints.withReadWriteTxn()) {
+      Long checkpoint = checkpoints.get(name);
+
+      if (null == checkpoint) {
+        checkpoint = 0L;
+        checkpoints.putNoPrev(name, checkpoint);
+      }
+
+      return new Subscriber(name, checkpoint);
+    }
+  }
+
+  /**
+   * Remove a subscriber (so it no longer holds back {@link #prune()})
+   * @return true if the subscriber existed
+   */
+  public boolean unsubscribe(String name) {
+    return checkpoints.removeNoPrev(name);
+  }
+
+  /**
+   * @return the checkpoint of every subscriber
+   */
+  public Map<String,Long> subscribers() {
+    try (LMDBTxnInternal txn = checkpoints.withReadOnlyTxn()) {
+      final Map<String,Long> res = new TreeMap<String,Long>();
+      res.putAll(checkpoints);
+      return Collections.unmodifiableMap(res);
+    }
+  }
+
+  /**
+   * Remove the records that every subscriber has acknowledged.  The latest
+   * record is always kept so that sequence numbers keep increasing.
+   * @return the number of records removed
+   */
+  public long prune() {
+    try (LMDBTxnInternal txn = log.withReadWriteTxn()) {
+      final Long last = log.lastKey();
+      if (null == last) return 0;
+
+      long upTo = last - 1;
+
+      try (LMDBIterator<Long> it = checkpoints.values().lmdbIterator()) {
+        while (it.hasNext()) upTo = Math.min(upTo, it.next());
+      }
+
+      if (upTo <= 0) return 0;
+
+      final LMDBMapInternal<Long,byte[]> pruned = log.headMap(upTo, true);
+      final long count = pruned.keyCount();
+      pruned.clear();
+      return count;
+    }
+  }
+
+  /**
+   * Stop logging changes.  The logged records and checkpoints are kept.
+   */
+  @Override
+  public void close() {
+    if (closed) return;
+    closed = true;
+    env.detachChangeLog(this);
+    signal();
+  }
+
+  public boolean isClosed() {
+    return closed;
+  }
+
+  static byte[] encode(Record record) {
+    return encode(record.map, record.op, null != record.key ? ByteBuffer.wrap(record.key) : null, null != record.value ? ByteBuffer.wrap(record.value) : null);
+  }
+
+  private static byte[] encode(String map, Op op, ByteBuffer keyBuf, ByteBuffer valueBuf) {
+    final byte[] name = null != map ? map.getBytes(StandardCharsets.UTF_8) : new byte[0];
+    final int keySize = null != keyBuf ? keyBuf.remaining() : 0;
+    final int valueSize = null != valueBuf ? valueBuf.remaining() : 0;
+
+    final ByteBuffer buf = ByteBuffer.allocate(1 + 4 + name.length + 4 + keySize + 4 + valueSize);
+    buf.put((byte)op.ordinal());
+    buf.putInt(name.length).put(name);
+    putBytes(buf, keyBuf);
+    putBytes(buf, valueBuf);
+    return buf.array();
+  }
+
+  private static void putBytes(ByteBuffer buf, ByteBuffer bytes) {
+    if (null == bytes) {
+      buf.putInt(-1);
+    } else {
+      buf.putInt(bytes.remaining());
+      buf.put(bytes.duplicate());
+    }
+  }
+
+  static Record decode(long seq, byte[] bytes) {
+    final ByteBuffer buf = ByteBuffer.wrap(bytes);
+    final Op op = Op.values()[buf.get()];
+    final byte[] name = new byte[buf.getInt()];
+    buf.get(name);
+    final byte[] key = getBytes(buf);
+    final byte[] value = getBytes(buf);
+    return new Record(seq, name.length > 0 ? new String(name, StandardCharsets.UTF_8) : null, op, key, value);
+  }
+
+  private static byte[] getBytes(ByteBuffer buf) {
+    final int size = buf.getInt();
+    if (size < 0) return null;
+    final byte[] bytes = new byte[size];
+    buf.get(bytes);
+    return bytes;
+  }
+
+  /**
+   * Consumes the log in sequence order.  {@link #poll} returns the records
+   * after the last one it returned (starting after the checkpoint) and
+   * {@link #acknowledge} persists a new checkpoint.  A subscriber that is
+   * re-created (e.g. after a restart) starts over after its checkpoint so
+   * records are delivered at least once.
+   * <p>
+   * A Subscriber is not thread-safe.
+   */
+  public final class Subscriber {
+    private final String name;
+    private long checkpoint;
+    private long position;
+
+    private Subscriber(String name, long checkpoint) {
+      this.name = name;
+      this.checkpoint = checkpoint;
+      this.position = checkpoint;
+    }
+
+    public String name() {
+      return name;
+    }
+
+    /**
+     * @return the sequence number of the last acknowledged record
+     */
+    public long checkpoint() {
+      return checkpoint;
+    }
+
+    /**
+     * @return the sequence number of the last record returned by {@link #poll}
+     */
+    public long position() {
+      return position;
+    }
+
+    /**
+     * Move the position so the next {@link #poll} returns the records after
+     * seq (without changing the checkpoint)
+     */
+    public void seek(long seq) {
+      if (seq < 0) throw new IllegalArgumentException("Invalid seq: " + seq);
+      position = seq;
+    }
+
+    /**
+     * @return up to max records after the last one returned (empty if there
+     *         are none)
+     */
+    public List<Record> poll(int max) {
+      if (max <= 0) throw new IllegalArgumentException("Max must be positive: " + max);
+
+      final List<Record> res = new ArrayList<Record>();
+
+      try (LMDBIterator<Map.Entry<Long,byte[]>> it = log.tailMap(position, false).entrySet().lmdbIterator()) {
+        while (res.size() < max && it.hasNext()) {
+          final Map.Entry<Long,byte[]> entry = it.next();
+          res.add(decode(entry.getKey(), entry.getValue()));
+        }
+      }
+
+      if (!res.isEmpty()) position = res.get(res.size() - 1).seq;
+
+      return res;
+    }
+
+    /**
+     * Same as {@link #poll} but waits up to the timeout for a record to be
+     * committed if there are none.  Commits made by this process wake it up
+     * immediately and commits made by other processes are noticed within
+     * {@link #POLL_INTERVAL_MILLIS}.
+     * @return the records or an empty list if the timeout expired (or the
+     *         change log was closed)
+     */
+    public List<Record> await(int max, long timeout, TimeUnit unit) throws InterruptedException {
+      final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+      while (true) {
+        final long seen;
+        synchronized (signal) { seen = signals; }
+
+        final List<Record> res = poll(max);
+        if (!res.isEmpty() || closed) return res;
+
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0) return res;
+
+        synchronized (signal) {
+          if (seen == signals) TimeUnit.NANOSECONDS.timedWait(signal, Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(POLL_INTERVAL_MILLIS)));
+        }
+      }
+    }
+
+    /**
+     * Persist seq as this subscriber's checkpoint (i.e. every record up to
+     * and including seq has been processed)
+     */
+    public void acknowledge(long seq) {
+      if (seq < checkpoint) throw new IllegalArgumentException("Cannot move the checkpoint of " + name + " back from " + checkpoint + " to " + seq);
+      checkpoints.putNoPrev(name, seq);
+      checkpoint = seq;
+      if (position < seq) position = seq;
+    }
+
+    /**
+     * Acknowledge the last record returned by {@link #poll}
+     */
+    public void acknowledge() {
+      acknowledge(position);
+    }
+  }
+}
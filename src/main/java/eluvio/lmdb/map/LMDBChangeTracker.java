@@ -0,0 +1,73 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records which keys of which maps have been written to while it is
+ * installed on an environment (see {@link LMDBEnvImpl#compact()}).
+ * <p>
+ * Only the keys are recorded (not the operation or values) since replaying
+ * them means copying whatever the current value(s) of each key are.  Keys
+ * written by transactions that end up being aborted are also recorded which
+ * is harmless for the same reason.
+ */
+final class LMDBChangeTracker {
+  private final Map<LMDBMapImpl<?,?>, Set<ByteBuffer>> keys = new ConcurrentHashMap<LMDBMapImpl<?,?>, Set<ByteBuffer>>();
+  private final Set<LMDBMapImpl<?,?>> all = Collections.newSetFromMap(new ConcurrentHashMap<LMDBMapImpl<?,?>, Boolean>());
+
+  /**
+   * Record that the (serialized) key is being written to
+   */
+  void changed(LMDBMapImpl<?,?> map, ByteBuffer keyBuf) {
+    if (all.contains(map)) return;
+
+    final ByteBuffer dup = keyBuf.duplicate();
+    final ByteBuffer copy = ByteBuffer.allocateDirect(dup.remaining());
+    copy.put(dup);
+    copy.flip();
+
+    keys.computeIfAbsent(map, m -> Collections.newSetFromMap(new ConcurrentHashMap<ByteBuffer, Boolean>())).add(copy);
+  }
+
+  /**
+   * Record that any (or every) key in the map may have been written to (e.g.
+   * the map was cleared)
+   */
+  void changedAll(LMDBMapImpl<?,?> map) {
+    all.add(map);
+    keys.remove(map);
+  }
+
+  /**
+   * @return the maps that need to be copied in full
+   */
+  Set<LMDBMapImpl<?,?>> changedAll() {
+    return all;
+  }
+
+  /**
+   * @return the changed keys of maps that do not need to be copied in full
+   */
+  Map<LMDBMapImpl<?,?>, Set<ByteBuffer>> changedKeys() {
+    return keys;
+  }
+}
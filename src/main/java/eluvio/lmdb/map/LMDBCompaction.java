@@ -0,0 +1,69 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+/**
+ * Online compaction of an LMDB environment.
+ * <p>
+ * LMDB never shrinks its data file so after mass deletes an environment
+ * stays at its high-water mark.  {@link #compact} replaces the environment
+ * with a compacted copy of itself while it stays in use: readers are never
+ * blocked and writers are only blocked while the writes committed during the
+ * copy are replayed into it.  Threads move to the new environment when they
+ * start their next transaction.
+ * <p>
+ * The environment must not be open in any other process.
+ */
+public final class LMDBCompaction {
+  /**
+   * Compact the environment (blocking until it is done)
+   * @param env an {@link LMDBMap}, {@link LMDBMultiMap} or {@link LMDBEnvTemplate}
+   * @return the results of the compaction
+   * @throws IllegalStateException if the calling thread has an open
+   *         transaction or the environment is open in another process
+   */
+  public static LMDBCompaction compact(LMDBEnv env) {
+    return LMDBEnvInternal.of(env).compact();
+  }
+
+  /** The bytes used by the environment before it was compacted */
+  public final long bytesBefore;
+
+  /** The bytes used by the compacted environment */
+  public final long bytesAfter;
+
+  /** The number of keys written during the copy that were replayed into it */
+  public final long replayedKeys;
+
+  /** How long writers were blocked for */
+  public final long quiesceNanos;
+
+  /** How long the whole compaction took */
+  public final long elapsedNanos;
+
+  LMDBCompaction(long bytesBefore, long bytesAfter, long replayedKeys, long quiesceNanos, long elapsedNanos) {
+    this.bytesBefore = bytesBefore;
+    this.bytesAfter = bytesAfter;
+    this.replayedKeys = replayedKeys;
+    this.quiesceNanos = quiesceNanos;
+    this.elapsedNanos = elapsedNanos;
+  }
+
+  @Override
+  public String toString() {
+    return "LMDBCompaction(bytesBefore: "+bytesBefore+", bytesAfter: "+bytesAfter+", replayedKeys: "+replayedKeys+", quiesceNanos: "+quiesceNanos+", elapsedNanos: "+elapsedNanos+")";
+  }
+}
@@ -19,6 +19,7 @@ import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Spliterator;
 
 class LMDBEntrySet<K,V> implements LMDBSet<Map.Entry<K,V>> {
   private final LMDBMapInternal<K,V> map;
@@ -100,6 +101,11 @@ class LMDBEntrySet<K,V> implements LMDBSet<Map.Entry<K,V>> {
     return map.size();
   }
 
+  @Override
+  public Spliterator<Map.Entry<K,V>> spliterator() {
+    return LMDBSpliterator.forEntries(map);
+  }
+
   @Override
   public Object[] toArray() {
     try (LMDBTxnInternal txn = map.withReadOnlyTxn()) {
@@ -77,8 +77,8 @@ public enum LMDBEnvFlag {
    * <p>
    * This sets the <b>MDB_NORDAHEAD</b> flag on the underlying LMDB environment.
    */
-  
   NO_READAHEAD(Api.MDB_NORDAHEAD),
+  
   /**
    * Don't initialize malloc'd memory before writing to unused spaces in the
    * data file. By default, memory for pages written to the data file is
@@ -99,7 +99,55 @@ public enum LMDBEnvFlag {
    * <p>
    * This sets the <b>MDB_NOMEMINIT</b> flag on the underlying LMDB environment.
    */
-  NO_MEM_INIT(Api.MDB_NORDAHEAD);
+  NO_MEM_INIT(Api.MDB_NOMEMINIT),
+  
+  /**
+   * Use a writeable memory map unless MDB_RDONLY is set. This uses fewer
+   * mallocs but loses protection from application bugs like wild pointer
+   * writes and other bad updates into the database. This may be slightly
+   * faster for DBs that fit entirely in RAM, but is slower for DBs larger
+   * than RAM. Incompatible with nested transactions. Do not mix processes
+   * with and without MDB_WRITEMAP on the same environment. This can defeat
+   * durability (mdb_env_sync etc).
+   * <p>
+   * This sets the <b>MDB_WRITEMAP</b> flag on the underlying LMDB environment.
+   */
+  WRITE_MAP(Api.MDB_WRITEMAP),
+  
+  /**
+   * When using MDB_WRITEMAP, use asynchronous flushes to disk. As with
+   * MDB_NOSYNC, a system crash can then corrupt the database or lose the last
+   * transactions. Calling mdb_env_sync() ensures on-disk database integrity
+   * until next commit.
+   * <p>
+   * This sets the <b>MDB_MAPASYNC</b> flag on the underlying LMDB environment.
+   */
+  MAP_ASYNC(Api.MDB_MAPASYNC),
+  
+  /**
+   * Don't do any locking. If concurrent access is anticipated, the caller
+   * must manage all concurrency itself. For proper operation the caller must
+   * enforce single-writer semantics, and must ensure that no readers are using
+   * old transactions while a writer is active. The simplest approach is to use
+   * an exclusive lock so that no readers may be active at all when a writer
+   * begins.
+   * <p>
+   * This sets the <b>MDB_NOLOCK</b> flag on the underlying LMDB environment.
+   */
+  NO_LOCK(Api.MDB_NOLOCK),
+  
+  /**
+   * Use a fixed address for the mmap region. This flag must be specified when
+   * creating the environment, and is stored persistently in the environment.
+   * If successful, the memory map will always reside at the same virtual
+   * address and pointers used to reference data items in the database will be
+   * constant across multiple invocations. This option may not always work,
+   * depending on how the operating system has allocated memory to shared
+   * libraries and other uses. The feature is highly experimental.
+   * <p>
+   * This sets the <b>MDB_FIXEDMAP</b> flag on the underlying LMDB environment.
+   */
+  FIXED_MAP(Api.MDB_FIXEDMAP);
   
   /**
    * The corresponding LMDB flag.
@@ -109,4 +157,14 @@ public enum LMDBEnvFlag {
   private LMDBEnvFlag(int lmdbValue) {
     this.lmdbValue = lmdbValue;
   }
+  
+  /**
+   * @param flags the flags to combine
+   * @return the LMDB flags (e.g. for {@link LMDBEnvTemplate}) of the given flags
+   */
+  public static int toLMDBFlags(Iterable<LMDBEnvFlag> flags) {
+    int res = 0;
+    for (LMDBEnvFlag flag : flags) res |= flag.lmdbValue;
+    return res;
+  }
 }
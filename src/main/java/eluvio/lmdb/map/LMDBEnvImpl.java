@@ -18,20 +18,83 @@ package eluvio.lmdb.map;
 import java.io.File;
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import eluvio.lmdb.api.Api;
+import eluvio.lmdb.api.DB;
 import eluvio.lmdb.api.Env;
+import eluvio.lmdb.api.EnvInfo;
+import eluvio.lmdb.api.Txn;
 
 // TODO: register a shutdown hook to close the env?
 class LMDBEnvImpl extends LMDBEnvInternal {
-  final Env env;
-  private final File path;
+  /** The flags that can be changed (with mdb_env_set_flags) after the Env is opened */
+  private static final int RUNTIME_FLAGS = Api.MDB_NOSYNC | Api.MDB_NOMETASYNC | Api.MDB_MAPASYNC | Api.MDB_NOMEMINIT;
+  
+  /** Replaced by {@link #compact()} */
+  volatile Env env;
+  private volatile File path;
   private final boolean deleteOnClose;
   final boolean readOnly;
+  private final int maxdbs;
+  private final int flags;
+  private final LMDBMetrics metrics;
+  
+  /** Installed while {@link #compact()} is copying the environment */
+  private volatile LMDBChangeTracker changeTracker = null;
+  
+  private volatile LMDBChangeLog changeLog = null;
+  
+  private volatile LMDBSyncScheduler syncScheduler = null;
+  
+  /** Set (for good) by {@link #trackReaders()} */
+  private volatile boolean trackReaders = false;
+  
+  /** The open bloom filters by database name (guarded by the maps lock) */
+  private final Map<String, LMDBBloomFilter> bloomFilters = new LinkedHashMap<String, LMDBBloomFilter>();
+  
+  /*
+   * Bloom filters only see keys written through maps of this environment so
+   * while any are open every commit is checked against the txn ids of the
+   * commits that wrote through them.  These are only written by the thread
+   * holding the write lock.
+   */
+  private volatile boolean trackWrites = false;
+  /** Set once the current write transaction has written through a map */
+  private volatile boolean wroteThroughMaps = false;
+  /** The last committed txn id that is accounted for */
+  private volatile long accountedTxnId = 0;
+  /** The id of the write transaction being committed (after writing through a map) */
+  private volatile long committingTxnId = 0;
+  private volatile long unaccountedCommits = 0;
+  
+  /** Started monitors (which are stopped when this is closed) */
+  private final List<LMDBEnvMonitor> monitors = new CopyOnWriteArrayList<LMDBEnvMonitor>();
+  
+  /** The maps opened in this environment (so {@link #compact()} can re-open them) */
+  private final Map<LMDBMapImpl<?,?>, Boolean> maps = Collections.synchronizedMap(new WeakHashMap<LMDBMapImpl<?,?>, Boolean>());
+  
+  /** Envs replaced by {@link #compact()} that are still being used by transactions */
+  private final List<Env> retiredEnvs = new ArrayList<Env>();
+  
+  /** The number of running backups of each Env (guarded by the retiredEnvs lock) */
+  private final Map<Env, Integer> backups = new IdentityHashMap<Env, Integer>();
+  
+  private final Object compactLock = new Object();
   private AtomicBoolean closed = new AtomicBoolean(false);
   private AtomicBoolean transactionsClosed = new AtomicBoolean(false);
 
@@ -44,7 +107,7 @@ class LMDBEnvImpl extends LMDBEnvInternal {
   private final ThreadLocal<ReusableTxn> currentTxn = new ThreadLocal<ReusableTxn>() {
     @Override
     protected ReusableTxn initialValue() {
-      ReusableTxn txn = new ReusableTxn(env);
+      ReusableTxn txn = new ReusableTxn(LMDBEnvImpl.this, metrics);
       allReusableTxns.put(txn, Boolean.TRUE);
       return txn;
     }
@@ -62,6 +125,10 @@ class LMDBEnvImpl extends LMDBEnvInternal {
     this(path, readOnly, mapsize, maxdbs, maxReaders, 0);
   }
 
+  public LMDBEnvImpl(File path, boolean readOnly, long mapsize, int maxdbs, int maxReaders, LMDBEnvProfile profile) {
+    this(path, readOnly, mapsize, maxdbs, maxReaders, profile.lmdbFlags());
+  }
+
   public LMDBEnvImpl(File path, boolean readOnly, long mapsize, int maxdbs, int maxReaders, int flags) {
     this.readOnly = readOnly;
 
@@ -90,16 +157,24 @@ class LMDBEnvImpl extends LMDBEnvInternal {
     }
 
     this.path = path;
+    this.maxdbs = maxdbs;
+    this.flags = readOnlyFlag | flags;
+    this.metrics = LMDBMetrics.ENABLED ? LMDBMetrics.forEnv(path.toString()) : null;
 
-    env = new Env();
-    if (maxdbs > 0) env.setMaxDBs(maxdbs); // 0 == no named databases, > 0 == Named databases
-    env.setMapSize(mapsize);
-    env.setMaxReaders(maxReaders);
-    env.open(path.toString(), readOnlyFlag | flags);
+    env = openEnv(path, mapsize, maxReaders);
 
     // Unlink the file so that the OS will cleanup for us when the process exits
     if (deleteOnClose) deleteTempDBAndLockFile();
   }
+  
+  private Env openEnv(File path, long mapsize, int maxReaders) {
+    final Env env = new Env();
+    if (maxdbs > 0) env.setMaxDBs(maxdbs); // 0 == no named databases, > 0 == Named databases
+    env.setMapSize(mapsize);
+    env.setMaxReaders(maxReaders);
+    env.open(path.toString(), flags);
+    return env;
+  }
 
   /**
    * Abort the current transaction for this thread
@@ -147,11 +222,47 @@ class LMDBEnvImpl extends LMDBEnvInternal {
     return txn;
   }
 
+  @Override
+  ReusableTxn attachTxnToCurrentThread(ReusableTxn txn) {
+    if (env.isThreadLocalTransactions()) throw new IllegalStateException("attachTxnToCurrentThread() is only applicable when using the MDB_NOTLS flag");
+    final ReusableTxn prev = currentTxn.get();
+    currentTxn.set(txn);
+    return prev;
+  }
+
+  @Override
+  ReusableTxn beginDetachedReadOnlyTxn() {
+    if (env.isThreadLocalTransactions()) throw new IllegalStateException("beginDetachedReadOnlyTxn() is only applicable when using the MDB_NOTLS flag");
+    final ReusableTxn txn = ReusableTxn.readOnly(env);
+    allReusableTxns.put(txn, Boolean.TRUE);
+    return txn;
+  }
+
+  @Override
+  void releaseDetachedReadOnlyTxn(ReusableTxn txn) {
+    allReusableTxns.remove(txn);
+    txn.close();
+  }
+
   @Override
   public void close() {
     if (closed.compareAndSet(false, true)) {
+      // Stops its thread (waiting for a sync in progress) and makes a final sync
+      final LMDBSyncScheduler scheduler = syncScheduler;
+      if (null != scheduler) scheduler.close();
+      
+      // Waits for a sample in progress
+      for (LMDBEnvMonitor monitor : monitors) monitor.stop();
+      
       closeTransactions();
+      
+      synchronized (retiredEnvs) {
+        for (Env retired : retiredEnvs) retired.close();
+        retiredEnvs.clear();
+      }
+      
       env.close();
+      if (null != metrics) metrics.unregister();
     }
   }
   
@@ -173,18 +284,521 @@ class LMDBEnvImpl extends LMDBEnvInternal {
   }
 
   private void deleteTempDBAndLockFile() {
-    if (deleteOnClose) {
-      if (path.isFile()) path.delete();
-      File lockFile = new File(path.toString() + "-lock");
-      if (lockFile.isFile()) lockFile.delete();
+    if (deleteOnClose) deleteTempDBAndLockFile(path);
+  }
+  
+  private static void deleteTempDBAndLockFile(File path) {
+    if (path.isFile()) path.delete();
+    File lockFile = new File(path.toString() + "-lock");
+    if (lockFile.isFile()) lockFile.delete();
+  }
+  
+  @Override
+  LMDBChangeTracker changeTracker() {
+    return changeTracker;
+  }
+  
+  @Override
+  LMDBChangeLog changeLog() {
+    return changeLog;
+  }
+  
+  @Override
+  synchronized void attachChangeLog(LMDBChangeLog log) {
+    if (null != changeLog) throw new IllegalStateException("A change log is already open for this environment");
+    changeLog = log;
+  }
+  
+  @Override
+  synchronized void detachChangeLog(LMDBChangeLog log) {
+    if (changeLog == log) changeLog = null;
+  }
+  
+  @Override
+  LMDBSyncScheduler syncScheduler() {
+    return syncScheduler;
+  }
+  
+  @Override
+  synchronized void attachSyncScheduler(LMDBSyncScheduler scheduler) {
+    if (null != syncScheduler) throw new IllegalStateException("A sync scheduler is already running for this environment");
+    syncScheduler = scheduler;
+  }
+  
+  @Override
+  synchronized void detachSyncScheduler(LMDBSyncScheduler scheduler) {
+    if (syncScheduler == scheduler) syncScheduler = null;
+  }
+  
+  @Override
+  void attachMonitor(LMDBEnvMonitor monitor) {
+    monitors.add(monitor);
+  }
+  
+  @Override
+  void detachMonitor(LMDBEnvMonitor monitor) {
+    monitors.remove(monitor);
+  }
+  
+  /**
+   * Called by {@link ReusableTxn} when a top-level write transaction has
+   * begun (i.e. while holding the write lock)
+   */
+  void writeBegun(Txn txn) {
+    if (!trackWrites) return;
+    
+    // Our own commit may not have been accounted for by committed() yet
+    final long lastTxnId = txn.id() - 1;
+    if (lastTxnId != accountedTxnId && lastTxnId != committingTxnId) unaccountedCommits++;
+    
+    accountedTxnId = lastTxnId;
+    committingTxnId = lastTxnId;
+    wroteThroughMaps = false;
+  }
+  
+  /**
+   * Called by {@link ReusableTxn} right before a top-level write transaction
+   * is committed
+   * @return the id to pass to {@link #committed} (0 if it isn't tracked)
+   */
+  long committing(Txn txn) {
+    if (!trackWrites || !wroteThroughMaps) return 0;
+    final long id = txn.id();
+    committingTxnId = id;
+    return id;
+  }
+  
+  /**
+   * Called by {@link ReusableTxn} if committing a top-level write transaction
+   * failed
+   */
+  void commitFailed() {
+    committingTxnId = accountedTxnId;
+  }
+  
+  /**
+   * Called by {@link ReusableTxn} after a top-level write transaction has
+   * been committed
+   * @param txnId the result of {@link #committing}
+   */
+  void committed(long txnId) {
+    // Unless another write transaction has already begun since
+    if (0 != txnId && accountedTxnId == txnId - 1) accountedTxnId = txnId;
+    
+    final LMDBSyncScheduler scheduler = syncScheduler;
+    if (null != scheduler) scheduler.committed();
+  }
+  
+  @Override
+  void attachBloomFilter(String name, LMDBBloomFilter filter, Txn txn) {
+    synchronized (maps) {
+      if (bloomFilters.containsKey(name)) throw new IllegalStateException("A LMDBBloomFilter is already open for database: " + name);
+      
+      if (!trackWrites) {
+        accountedTxnId = txn.id() - 1;
+        committingTxnId = accountedTxnId;
+        wroteThroughMaps = false;
+        trackWrites = true;
+      }
+      
+      bloomFilters.put(name, filter);
+      
+      for (LMDBMapImpl<?,?> map : maps.keySet()) {
+        if (map.isOpen() && name.equals(bloomFilterName(map))) map.attachBloomFilter(filter);
+      }
+    }
+  }
+  
+  @Override
+  void detachBloomFilter(String name, LMDBBloomFilter filter) {
+    synchronized (maps) {
+      if (!bloomFilters.remove(name, filter)) return;
+      if (bloomFilters.isEmpty()) trackWrites = false;
+      
+      for (LMDBMapImpl<?,?> map : maps.keySet()) map.detachBloomFilter(filter);
+    }
+  }
+  
+  private static String bloomFilterName(LMDBMapImpl<?,?> map) {
+    return null != map.getName() ? map.getName() : "";
+  }
+  
+  @Override
+  void mapWritten() {
+    if (trackWrites) wroteThroughMaps = true;
+  }
+  
+  @Override
+  long unaccountedCommits() {
+    return unaccountedCommits;
+  }
+  
+  @Override
+  boolean writesAccountedFor(long unaccountedCommits) {
+    if (unaccountedCommits != this.unaccountedCommits) return false;
+    
+    // Read before the last txn id so a commit of ours in between is accepted
+    final long accounted = accountedTxnId;
+    final long committing = committingTxnId;
+    final long lastTxnId = env.lastTxnId();
+    return lastTxnId == accounted || lastTxnId == committing;
+  }
+  
+  @Override
+  void register(LMDBMapImpl<?,?> map) {
+    // Synchronized with compact() so a map opened during a compaction is
+    // either re-opened by it or opened in the new Env
+    synchronized (maps) {
+      map.open(env);
+      maps.put(map, Boolean.TRUE);
+      
+      final LMDBBloomFilter filter = bloomFilters.get(bloomFilterName(map));
+      if (null != filter) map.attachBloomFilter(filter);
+    }
+  }
+  
+  @Override
+  LMDBMapImpl<?,?> map(String name) {
+    synchronized (maps) {
+      for (LMDBMapImpl<?,?> map : maps.keySet()) {
+        if (map.isOpen() && Objects.equals(name, map.getName())) return map;
+      }
+    }
+    
+    return null;
+  }
+  
+  @Override
+  boolean hasOpenTxn() {
+    return currentTxn.get().hasOpenTxn();
+  }
+  
+  /**
+   * Replace the environment with a compacted copy of itself (to reclaim the
+   * free pages left behind by deletes since LMDB never shrinks its data file)
+   * without blocking readers and only briefly blocking writers:
+   * <ol>
+   *   <li>A {@link LMDBChangeTracker} starts recording the keys written to by
+   *   every map and a compacted copy is made with mdb_env_copy2 (from a
+   *   single read-only transaction) next to the current data.</li>
+   *   <li>The copy is opened and every map's DB is opened in it (with the
+   *   same dbi).</li>
+   *   <li>Writers are quiesced by holding the (old) environment's write lock
+   *   while the current values of every key written since the copy started
+   *   are copied into the new environment.</li>
+   *   <li>The new data and lock files are renamed over the old ones and the
+   *   new Env and DB handles are swapped in.  Writers that were waiting on
+   *   the old write lock retry on the new Env.</li>
+   * </ol>
+   * Read-only transactions that are open on the old Env keep reading it and
+   * each of those threads moves to the new Env as soon as its transaction
+   * ends.  Idle threads are moved right away.  The old Env (whose files have
+   * already been replaced but stay mapped) is closed once no transaction is
+   * open on it anymore.  Flags changed at runtime (e.g. by
+   * {@link #disableSync()}) are carried over to the new Env.
+   * <p>
+   * The environment must not be open in any other process and the calling
+   * thread must not have an open transaction.  Maps whose DB was closed
+   * while other maps stayed open can leave gaps in the dbi numbers that make
+   * compaction fail (before anything is swapped).
+   */
+  @Override
+  LMDBCompaction compact() {
+    assertOpen();
+    assertWritable();
+    
+    synchronized (compactLock) {
+      if (currentTxn.get().hasOpenTxn()) throw new IllegalStateException("Cannot compact from a thread with an open transaction");
+      
+      for (LMDBReader reader : LMDBReader.list(this)) {
+        if (!reader.isCurrentProcess()) throw new IllegalStateException("Cannot compact since the environment is also open in process " + reader.pid);
+      }
+      
+      final long start = System.nanoTime();
+      final Env old = env;
+      final EnvInfo info = old.info();
+      final long sizeBefore = usedBytes(old);
+      final File dest = compactionDest();
+      
+      final LMDBChangeTracker tracker = new LMDBChangeTracker();
+      Env copy = null;
+      Txn quiesce = null;
+      boolean swapped = false;
+      
+      try {
+        changeTracker = tracker;
+        
+        // Wait for read/write transactions started before the tracker was
+        // installed so every write the copy does not include is recorded
+        old.beginTxn(0).abort();
+        
+        old.copyTo(dest.toPath(), true);
+        copy = openEnv(dest, info.mapSize, (int)info.maxReaders);
+        if (deleteOnClose) deleteTempDBAndLockFile(dest);
+        
+        synchronized (maps) {
+          final Map<LMDBMapImpl<?,?>, DB> dbs = openMapsIn(copy);
+          
+          final long quiesceStart = System.nanoTime();
+          quiesce = old.beginTxn(0);
+          changeTracker = null;
+          
+          final long replayed = replay(tracker, quiesce, copy, dbs);
+          copy.sync(true);
+          
+          if (!deleteOnClose) moveCompactedFiles(dest);
+          
+          for (Map.Entry<LMDBMapImpl<?,?>, DB> entry : dbs.entrySet()) entry.getKey().swapDB(entry.getValue());
+          copyRuntimeFlags(old, copy);
+          env = copy;
+          
+          // The compacted copy starts over with its own txn ids
+          if (trackWrites) {
+            accountedTxnId = copy.lastTxnId();
+            committingTxnId = accountedTxnId;
+          }
+          if (deleteOnClose) path = dest;
+          swapped = true;
+          
+          quiesce.abort();
+          quiesce = null;
+          
+          synchronized (retiredEnvs) {
+            retiredEnvs.add(old);
+          }
+          
+          released(old);
+          
+          return new LMDBCompaction(sizeBefore, usedBytes(copy), replayed, System.nanoTime() - quiesceStart, System.nanoTime() - start);
+        }
+      } finally {
+        changeTracker = null;
+        if (null != quiesce) quiesce.abort();
+        
+        if (!swapped) {
+          if (null != copy) copy.close();
+          if (deleteOnClose) deleteTempDBAndLockFile(dest);
+          else deleteDir(dest);
+        }
+      }
+    }
+  }
+  
+  private File compactionDest() {
+    try {
+      if (deleteOnClose) {
+        final File dest = File.createTempFile("lmdbmap_temp", "data.mdb");
+        
+        // mdb_env_copy2 creates the file
+        dest.delete();
+        
+        return dest;
+      } else {
+        final File dest = new File(path.getAbsoluteFile().getParentFile(), path.getName() + ".compacting");
+        if (dest.exists()) throw new IllegalStateException("Cannot compact since " + dest + " already exists (left behind by a failed compaction?)");
+        Files.createDirectory(dest.toPath());
+        return dest;
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+  
+  /**
+   * Open every (open) map's DB in the copy in dbi order so the copy assigns
+   * each the same dbi
+   */
+  private Map<LMDBMapImpl<?,?>, DB> openMapsIn(Env copy) {
+    final List<LMDBMapImpl<?,?>> sorted = new ArrayList<LMDBMapImpl<?,?>>();
+    
+    for (LMDBMapImpl<?,?> map : maps.keySet()) {
+      if (map.isOpen()) sorted.add(map);
+    }
+    
+    sorted.sort(Comparator.comparingInt(LMDBMapImpl::dbi));
+    
+    final Map<LMDBMapImpl<?,?>, DB> dbs = new LinkedHashMap<LMDBMapImpl<?,?>, DB>();
+    
+    final Txn txn = copy.beginTxn(0);
+    
+    try {
+      for (LMDBMapImpl<?,?> map : sorted) dbs.put(map, map.openIn(txn));
+      txn.commit();
+    } finally {
+      if (!txn.isClosed()) txn.abort();
+    }
+    
+    return dbs;
+  }
+  
+  /**
+   * Copy the current values of everything the tracker recorded into the copy
+   * @return the number of keys copied
+   */
+  private static long replay(LMDBChangeTracker tracker, Txn src, Env copy, Map<LMDBMapImpl<?,?>, DB> dbs) {
+    long replayed = 0;
+    
+    final Txn dst = copy.beginTxn(0);
+    
+    try {
+      for (LMDBMapImpl<?,?> map : tracker.changedAll()) {
+        final DB db = dbs.get(map);
+        if (null != db) replayed += map.copyTo(src, db, dst, null);
+      }
+      
+      for (Map.Entry<LMDBMapImpl<?,?>, Set<ByteBuffer>> entry : tracker.changedKeys().entrySet()) {
+        final DB db = dbs.get(entry.getKey());
+        if (null != db && !tracker.changedAll().contains(entry.getKey())) replayed += entry.getKey().copyTo(src, db, dst, entry.getValue());
+      }
+      
+      dst.commit();
+    } finally {
+      if (!dst.isClosed()) dst.abort();
+    }
+    
+    return replayed;
+  }
+  
+  /**
+   * Move the compacted data and lock files over the current ones.  The old
+   * Env keeps its (now unlinked) files open until it is closed.
+   */
+  private void moveCompactedFiles(File dest) {
+    try {
+      Files.move(new File(dest, "data.mdb").toPath(), new File(path, "data.mdb").toPath(), StandardCopyOption.ATOMIC_MOVE);
+      Files.move(new File(dest, "lock.mdb").toPath(), new File(path, "lock.mdb").toPath(), StandardCopyOption.ATOMIC_MOVE);
+      Files.delete(dest.toPath());
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
     }
   }
+  
+  /**
+   * Carry over the flags changed at runtime (e.g. by {@link #disableSync()})
+   * since the copy was opened with the flags this was constructed with
+   */
+  private static void copyRuntimeFlags(Env from, Env to) {
+    final int current = from.getFlags() & RUNTIME_FLAGS;
+    final int opened = to.getFlags() & RUNTIME_FLAGS;
+    if (0 != (current & ~opened)) to.setFlags(current & ~opened, true);
+    if (0 != (opened & ~current)) to.setFlags(opened & ~current, false);
+  }
+  
+  private static void deleteDir(File dir) {
+    final File[] files = dir.listFiles();
+    if (null != files) for (File f : files) f.delete();
+    dir.delete();
+  }
+  
+  private static long usedBytes(Env env) {
+    return (env.info().lastPageNumber + 1) * env.stat().psize;
+  }
+  
+  /**
+   * Called when a ReusableTxn stops using an Env replaced by {@link #compact()}.
+   * Moves the ReusableTxns of idle threads (which would otherwise only move
+   * when they start their next transaction) to the new Env and closes the
+   * old Env once no ReusableTxn is using it.  Otherwise the last thread to
+   * finish a transaction on the old Env closes it.
+   */
+  void released(Env prev) {
+    if (prev == env) return;
+    
+    final List<ReusableTxn> owned = new ArrayList<ReusableTxn>();
+    
+    synchronized (allReusableTxns) {
+      for (ReusableTxn txn : allReusableTxns.keySet()) {
+        if (txn.env() != prev) continue;
+        if (txn.hasOwner()) owned.add(txn);
+        else if (!txn.isClosed()) return;
+      }
+    }
+    
+    // Not holding the allReusableTxns lock since a thread holding the
+    // ReusableTxn's lock can call back into here
+    for (ReusableTxn txn : owned) {
+      txn.leaveReplacedEnv(true);
+      if (txn.env() == prev) return;
+    }
+    
+    synchronized (retiredEnvs) {
+      if (!backups.containsKey(prev) && retiredEnvs.remove(prev)) prev.close();
+    }
+  }
+  
+  @Override
+  Env beginBackup() {
+    synchronized (retiredEnvs) {
+      if (closed.get()) throw new IllegalStateException("The environment has been closed");
+      final Env current = env;
+      backups.merge(current, 1, Integer::sum);
+      return current;
+    }
+  }
+  
+  @Override
+  void endBackup(Env backedUp) {
+    synchronized (retiredEnvs) {
+      backups.computeIfPresent(backedUp, (e, count) -> count > 1 ? count - 1 : null);
+    }
+    
+    released(backedUp);
+  }
 
   @Override
   public Env env() {
     return env;
   }
 
+  @Override
+  LMDBMetrics metrics() {
+    return metrics;
+  }
+
+  @Override
+  File path() {
+    return path;
+  }
+
+  @Override
+  long oldestReadOnlyTxnAgeNanos() {
+    final long now = System.nanoTime();
+    long oldest = 0;
+
+    for (ReusableTxn txn : openReadOnlyTxns()) {
+      final long openedAt = txn.readOnlyOpenedAtNanos();
+      if (0 != openedAt) oldest = Math.max(oldest, now - openedAt);
+    }
+
+    return oldest;
+  }
+
+  @Override
+  void trackReaders() {
+    trackReaders = true;
+  }
+  
+  /**
+   * @return true if {@link ReusableTxn}s should record when and by which
+   *         thread their transactions are opened
+   */
+  boolean tracksReaders() {
+    return trackReaders;
+  }
+
+  @Override
+  List<ReusableTxn> openReadOnlyTxns() {
+    final List<ReusableTxn> res = new ArrayList<ReusableTxn>();
+
+    synchronized (allReusableTxns) {
+      for (ReusableTxn txn : allReusableTxns.keySet()) {
+        if (0 != txn.readOnlyOpenedAtNanos()) res.add(txn);
+      }
+    }
+
+    return res;
+  }
+
   @Override
   public boolean readOnly() {
     return readOnly;
@@ -16,12 +16,193 @@
 package eluvio.lmdb.map;
 
 import eluvio.lmdb.api.Env;
+import eluvio.lmdb.api.Txn;
+
+import java.io.File;
+import java.util.List;
 
 abstract class LMDBEnvInternal implements LMDBEnv {
+  /**
+   * Find the underlying LMDBEnvInternal for an {@link LMDBMap},
+   * {@link LMDBMultiMap} or {@link LMDBEnvTemplate}
+   */
+  static LMDBEnvInternal of(LMDBEnv env) {
+    if (env instanceof LMDBEnvInternal) return (LMDBEnvInternal)env;
+    if (env instanceof LMDBMapInternal) return ((LMDBMapInternal<?,?>)env).env();
+    if (env instanceof LMDBMultiMapImpl) return ((LMDBMultiMapImpl<?,?>)env).map.env();
+    if (env instanceof LMDBEnvTemplate) return ((LMDBEnvTemplate)env).env();
+    throw new IllegalArgumentException("Unsupported LMDBEnv implementation: " + env.getClass());
+  }
+  
   abstract void closeTransactions();
   
   abstract Env env();
   
+  /**
+   * @return the metrics for this environment or null if metrics are not enabled
+   */
+  abstract LMDBMetrics metrics();
+  
+  /**
+   * @return the tracker recording written keys (while the environment is
+   *         being compacted) or null
+   */
+  abstract LMDBChangeTracker changeTracker();
+  
+  /**
+   * @return the open {@link LMDBChangeLog} or null
+   */
+  abstract LMDBChangeLog changeLog();
+  
+  /**
+   * Start logging changes to the change log
+   * @throws IllegalStateException if a change log is already open
+   */
+  abstract void attachChangeLog(LMDBChangeLog log);
+  
+  /**
+   * Stop logging changes to the change log (if it is the open one)
+   */
+  abstract void detachChangeLog(LMDBChangeLog log);
+  
+  /**
+   * @return the running {@link LMDBSyncScheduler} or null
+   */
+  abstract LMDBSyncScheduler syncScheduler();
+  
+  /**
+   * Start counting commits and written bytes for the sync scheduler
+   * @throws IllegalStateException if a sync scheduler is already running
+   */
+  abstract void attachSyncScheduler(LMDBSyncScheduler scheduler);
+  
+  /**
+   * Stop counting for the sync scheduler (if it is the running one)
+   */
+  abstract void detachSyncScheduler(LMDBSyncScheduler scheduler);
+  
+  /**
+   * Stop the started monitor when the environment is closed
+   */
+  abstract void attachMonitor(LMDBEnvMonitor monitor);
+  
+  /**
+   * Forget about the monitor (once it has been stopped)
+   */
+  abstract void detachMonitor(LMDBEnvMonitor monitor);
+  
+  /**
+   * Open the map's DB and keep track of it (so it can be re-opened if the
+   * environment is compacted)
+   */
+  abstract void register(LMDBMapImpl<?,?> map);
+  
+  /**
+   * @return an open map of this environment using the named database (null
+   *         for the unnamed database) or null if there isn't one
+   */
+  abstract LMDBMapImpl<?,?> map(String name);
+  
+  /**
+   * Use the filter for every open (and later opened) map of this environment
+   * using the named database ("" for the unnamed database).  Called from
+   * within the filter's own top-level write transaction.
+   * @throws IllegalStateException if a filter is already open for the database
+   */
+  abstract void attachBloomFilter(String name, LMDBBloomFilter filter, Txn txn);
+  
+  /**
+   * Stop using the filter attached by {@link #attachBloomFilter}
+   */
+  abstract void detachBloomFilter(String name, LMDBBloomFilter filter);
+  
+  /**
+   * Called by {@link LMDBMapImpl} (from within the write transaction) for
+   * every write
+   */
+  abstract void mapWritten();
+  
+  /**
+   * @return how many times (while bloom filters have been open) a committed
+   *         transaction that did not write through the maps of this
+   *         environment (e.g. from another process) has been found
+   */
+  abstract long unaccountedCommits();
+  
+  /**
+   * @return true if no transaction that did not write through the maps of
+   *         this environment has been committed since
+   *         {@link #unaccountedCommits()} returned the given count
+   */
+  abstract boolean writesAccountedFor(long unaccountedCommits);
+  
+  /**
+   * @return true if the current thread has an open (not reset) transaction
+   */
+  abstract boolean hasOpenTxn();
+  
+  /**
+   * Replace the environment with a compacted copy of itself
+   */
+  abstract LMDBCompaction compact();
+  
+  /**
+   * @return the path of the environment (or data file if using MDB_NOSUBDIR)
+   */
+  abstract File path();
+  
+  /**
+   * @return how long (in nanoseconds) the oldest read-only transaction opened
+   *         by this process has been open, or 0 if none are open
+   */
+  abstract long oldestReadOnlyTxnAgeNanos();
+  
+  /**
+   * Start recording when (and by which thread) each top-level transaction is
+   * begun or renewed.  This stays on once started and is off by default so
+   * beginning a transaction does not read the clock.
+   */
+  abstract void trackReaders();
+  
+  /**
+   * @return the ReusableTxns (from any thread) that currently have an open
+   *         read-only transaction (that was opened while tracking readers)
+   */
+  abstract List<ReusableTxn> openReadOnlyTxns();
+  
+  /**
+   * Attach a ReusableTxn (e.g. one returned by {@link #detachTxnFromCurrentThread()})
+   * to the current thread.  Only applicable when using the MDB_NOTLS flag.
+   * @return the ReusableTxn that was previously attached to the current thread
+   */
+  abstract ReusableTxn attachTxnToCurrentThread(ReusableTxn txn);
+  
+  /**
+   * Begin a read-only transaction that is not attached to any thread and
+   * stays open (pinned to its snapshot) until it is closed.  Only applicable
+   * when using the MDB_NOTLS flag.
+   */
+  abstract ReusableTxn beginDetachedReadOnlyTxn();
+  
+  /**
+   * Keep the current Env from being closed if it is replaced by compact()
+   * until {@link #endBackup} is called.  Closing the environment still closes
+   * it (which waits for a copy in progress).
+   * @return the Env to back up
+   */
+  abstract Env beginBackup();
+  
+  /**
+   * Called once the backup of the Env returned by {@link #beginBackup()} is done
+   */
+  abstract void endBackup(Env backedUp);
+  
+  /**
+   * Close a transaction returned by {@link #beginDetachedReadOnlyTxn()} and
+   * stop tracking it
+   */
+  abstract void releaseDetachedReadOnlyTxn(ReusableTxn txn);
+  
   @Override
   public abstract LMDBTxnInternal withExistingReadOnlyTxn();
   
@@ -0,0 +1,305 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import eluvio.lmdb.api.EnvInfo;
+import eluvio.lmdb.api.Stat;
+
+import java.lang.management.ManagementFactory;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Periodically samples the health of an LMDB environment: map usage, reader
+ * table usage, the last txn id, how long the oldest read-only transaction in
+ * this process has been open and per-database page counts/depth.
+ * <p>
+ * Each sample calls mdb_reader_check to clear reader table entries left
+ * behind by dead processes/threads, publishes the results as JMX gauges
+ * (while started) and calls any threshold callbacks whose condition has
+ * become true since the previous sample.
+ */
+public class LMDBEnvMonitor implements LMDBEnvMonitorMXBean, AutoCloseable {
+  private static final Logger logger = Logger.getLogger(LMDBEnvMonitor.class.getName());
+
+  /**
+   * A point in time sample of the environment
+   */
+  public static final class Sample {
+    public final long timestampMillis;
+    public final long mapSize;
+    /** (me_last_pgno + 1) * psize */
+    public final long mapUsedBytes;
+    public final long numReaders;
+    public final long maxReaders;
+    public final long lastTxnId;
+    /** The number of stale reader table entries cleared by mdb_reader_check for this sample */
+    public final int deadReadersCleared;
+    /** How long the oldest read-only transaction opened by this process has been open */
+    public final long oldestReaderAgeMillis;
+    /** Stats for each monitored database */
+    public final Map<String,Stat> databases;
+
+    Sample(long timestampMillis, EnvInfo info, Stat stat, int deadReadersCleared, long oldestReaderAgeMillis, Map<String,Stat> databases) {
+      this.timestampMillis = timestampMillis;
+      this.mapSize = info.mapSize;
+      this.mapUsedBytes = (info.lastPageNumber + 1) * stat.psize;
+      this.numReaders = info.numReaders;
+      this.maxReaders = info.maxReaders;
+      this.lastTxnId = info.lastTxnId;
+      this.deadReadersCleared = deadReadersCleared;
+      this.oldestReaderAgeMillis = oldestReaderAgeMillis;
+      this.databases = Collections.unmodifiableMap(databases);
+    }
+
+    /**
+     * @return the fraction (0.0 to 1.0) of the map that is in use
+     */
+    public double mapUsage() {
+      return 0 == mapSize ? 0.0 : (double)mapUsedBytes / (double)mapSize;
+    }
+
+    /**
+     * @return the fraction (0.0 to 1.0) of the reader table that is in use
+     */
+    public double readerUsage() {
+      return 0 == maxReaders ? 0.0 : (double)numReaders / (double)maxReaders;
+    }
+
+    public String toString() {
+      return "Sample(mapSize: "+mapSize+", mapUsedBytes: "+mapUsedBytes+", numReaders: "+numReaders+", maxReaders: "+maxReaders+", lastTxnId: "+lastTxnId+", deadReadersCleared: "+deadReadersCleared+", oldestReaderAgeMillis: "+oldestReaderAgeMillis+", databases: "+databases+")";
+    }
+  }
+
+  /**
+   * A callback that is called when its condition goes from false to true
+   */
+  private static final class Threshold {
+    private final Predicate<Sample> condition;
+    private final Consumer<Sample> callback;
+    private boolean crossed = false;
+
+    Threshold(Predicate<Sample> condition, Consumer<Sample> callback) {
+      this.condition = condition;
+      this.callback = callback;
+    }
+
+    void check(Sample sample) {
+      final boolean prev = crossed;
+      crossed = condition.test(sample);
+      if (crossed && !prev) callback.accept(sample);
+    }
+  }
+
+  private final LMDBEnvInternal env;
+  private final Object sampleLock = new Object();
+  private final Map<String,LMDBMapImpl<?,?>> databases = new LinkedHashMap<String,LMDBMapImpl<?,?>>();
+  private final List<Consumer<Sample>> sampleListeners = new CopyOnWriteArrayList<Consumer<Sample>>();
+  private final List<Threshold> thresholds = new CopyOnWriteArrayList<Threshold>();
+  private final AtomicLong totalDeadReadersCleared = new AtomicLong();
+  private volatile Sample lastSample = null;
+  private ScheduledExecutorService executor = null;
+  private ObjectName objectName = null;
+
+  /**
+   * @param env an {@link LMDBMap}, {@link LMDBMultiMap} or {@link LMDBEnvTemplate}
+   */
+  public LMDBEnvMonitor(LMDBEnv env) {
+    this.env = LMDBEnvInternal.of(env);
+    // Needed for the age of the oldest reader
+    this.env.trackReaders();
+  }
+
+  /**
+   * Include the page counts and depth of the map's database in each sample
+   */
+  public LMDBEnvMonitor monitorDatabase(LMDBMap<?,?> map) {
+    if (!(map instanceof LMDBMapImpl)) throw new IllegalArgumentException("Unsupported LMDBMap implementation: " + map.getClass());
+    final LMDBMapImpl<?,?> impl = (LMDBMapImpl<?,?>)map;
+
+    synchronized (sampleLock) {
+      databases.put(null == impl.getName() ? "" : impl.getName(), impl);
+    }
+
+    return this;
+  }
+
+  /**
+   * Include the page counts and depth of the multimap's database in each sample
+   */
+  public LMDBEnvMonitor monitorDatabase(LMDBMultiMap<?,?> map) {
+    if (!(map instanceof LMDBMultiMapImpl)) throw new IllegalArgumentException("Unsupported LMDBMultiMap implementation: " + map.getClass());
+    return monitorDatabase(((LMDBMultiMapImpl<?,?>)map).map);
+  }
+
+  /**
+   * Call the callback with every sample
+   */
+  public LMDBEnvMonitor onSample(Consumer<Sample> callback) {
+    sampleListeners.add(callback);
+    return this;
+  }
+
+  /**
+   * Call the callback when the fraction of the map in use goes above the threshold (e.g. 0.9)
+   */
+  public LMDBEnvMonitor onMapUsageAbove(double fraction, Consumer<Sample> callback) {
+    thresholds.add(new Threshold(s -> s.mapUsage() > fraction, callback));
+    return this;
+  }
+
+  /**
+   * Call the callback when the fraction of the reader table in use goes above the threshold (e.g. 0.9)
+   */
+  public LMDBEnvMonitor onReaderUsageAbove(double fraction, Consumer<Sample> callback) {
+    thresholds.add(new Threshold(s -> s.readerUsage() > fraction, callback));
+    return this;
+  }
+
+  /**
+   * Call the callback when a read-only transaction in this process has been
+   * open for longer than the duration
+   */
+  public LMDBEnvMonitor onReaderHeldLongerThan(long duration, TimeUnit unit, Consumer<Sample> callback) {
+    final long millis = unit.toMillis(duration);
+    thresholds.add(new Threshold(s -> s.oldestReaderAgeMillis > millis, callback));
+    return this;
+  }
+
+  /**
+   * Take a sample now (clearing any stale readers) and call the callbacks
+   */
+  public Sample sample() {
+    synchronized (sampleLock) {
+      final int dead = env.env().readerCheck();
+      totalDeadReadersCleared.addAndGet(dead);
+
+      final Map<String,Stat> stats = new LinkedHashMap<String,Stat>();
+      for (Map.Entry<String,LMDBMapImpl<?,?>> entry : databases.entrySet()) stats.put(entry.getKey(), entry.getValue().stat());
+
+      final Sample sample = new Sample(
+        System.currentTimeMillis(),
+        env.env().info(),
+        env.env().stat(),
+        dead,
+        TimeUnit.NANOSECONDS.toMillis(env.oldestReadOnlyTxnAgeNanos()),
+        stats
+      );
+
+      lastSample = sample;
+
+      for (Consumer<Sample> listener : sampleListeners) listener.accept(sample);
+      for (Threshold threshold : thresholds) threshold.check(sample);
+
+      return sample;
+    }
+  }
+
+  /**
+   * @return the most recent sample or null if no samples have been taken
+   */
+  public Sample lastSample() {
+    return lastSample;
+  }
+
+  /**
+   * Start a background thread that takes a sample every period and register
+   * the JMX gauges.  The monitor is stopped when the environment is closed.
+   */
+  public synchronized void start(long period, TimeUnit unit) {
+    if (null != executor) throw new IllegalStateException("Monitor has already been started");
+
+    executor = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r, "LMDBEnvMonitor");
+      t.setDaemon(true);
+      return t;
+    });
+
+    executor.scheduleWithFixedDelay(() -> {
+      try {
+        sample();
+      } catch (RuntimeException ex) {
+        // Keep monitoring even if a sample or callback fails
+        logger.log(Level.WARNING, "LMDBEnvMonitor sample failed", ex);
+      }
+    }, 0, period, unit);
+
+    env.attachMonitor(this);
+
+    try {
+      final ObjectName name = new ObjectName(LMDBMetrics.JMX_DOMAIN + ":type=EnvMonitor,path=" + ObjectName.quote(env.path().toString()));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+      objectName = name;
+    } catch (JMException ex) {
+      logger.log(Level.WARNING, "Unable to register LMDBEnvMonitor MBean", ex);
+    }
+  }
+
+  /**
+   * Stop the background thread (if it was started) and unregister the JMX gauges
+   */
+  public synchronized void stop() {
+    if (null == executor) return;
+
+    executor.shutdown();
+
+    try {
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    executor = null;
+    env.detachMonitor(this);
+
+    if (null != objectName) {
+      try {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      } catch (JMException ex) {
+        // Already unregistered
+      }
+
+      objectName = null;
+    }
+  }
+
+  @Override
+  public void close() {
+    stop();
+  }
+
+  @Override public long getMapSize() { return null == lastSample ? 0 : lastSample.mapSize; }
+  @Override public long getMapUsedBytes() { return null == lastSample ? 0 : lastSample.mapUsedBytes; }
+  @Override public double getMapUsage() { return null == lastSample ? 0.0 : lastSample.mapUsage(); }
+  @Override public long getNumReaders() { return null == lastSample ? 0 : lastSample.numReaders; }
+  @Override public long getMaxReaders() { return null == lastSample ? 0 : lastSample.maxReaders; }
+  @Override public long getLastTxnId() { return null == lastSample ? 0 : lastSample.lastTxnId; }
+  @Override public long getOldestReaderAgeMillis() { return null == lastSample ? 0 : lastSample.oldestReaderAgeMillis; }
+  @Override public long getDeadReadersCleared() { return totalDeadReadersCleared.get(); }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+/**
+ * The JMX gauges published by {@link LMDBEnvMonitor} (from its most recent sample)
+ */
+public interface LMDBEnvMonitorMXBean {
+  long getMapSize();
+  long getMapUsedBytes();
+  double getMapUsage();
+  long getNumReaders();
+  long getMaxReaders();
+  long getLastTxnId();
+  long getOldestReaderAgeMillis();
+
+  /**
+   * @return the total number of stale reader table entries cleared by mdb_reader_check
+   */
+  long getDeadReadersCleared();
+}
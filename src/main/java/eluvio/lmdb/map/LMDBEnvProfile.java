@@ -0,0 +1,79 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Named combinations of {@link LMDBEnvFlag}s for common workloads that can be
+ * passed to {@link LMDBEnvTemplate} instead of raw LMDB flags.
+ * <p>
+ * Flags that only matter when an environment is opened (e.g.
+ * {@link LMDBEnvFlag#WRITE_MAP}) cannot be changed without re-opening it so
+ * an environment that was bulk loaded should be synced (and re-opened with
+ * another profile if it is to be written to durably afterwards).
+ */
+public enum LMDBEnvProfile {
+  /**
+   * Every commit is flushed to disk (the LMDB defaults).
+   */
+  DURABLE(),
+  
+  /**
+   * Commits flush the data pages but not the meta page (so a system crash may
+   * undo the last committed transaction) and new pages are not zeroed before
+   * being written.
+   */
+  RELAXED(LMDBEnvFlag.NO_METADATA_SYNC, LMDBEnvFlag.NO_MEM_INIT),
+  
+  /**
+   * Writes go directly to a writeable memory map and commits do not flush
+   * anything to disk.  This is the fastest way to load a large amount of data
+   * but a system crash can corrupt the database until {@link LMDBEnv#sync}
+   * has been called.  Nested read-write transactions are not supported.
+   */
+  BULK_LOAD(LMDBEnvFlag.WRITE_MAP, LMDBEnvFlag.MAP_ASYNC, LMDBEnvFlag.NO_SYNC),
+  
+  /**
+   * Durable commits with readahead turned off which helps random reads when
+   * the database is larger than RAM.
+   */
+  READ_MOSTLY(LMDBEnvFlag.NO_READAHEAD);
+  
+  private final Set<LMDBEnvFlag> flags;
+  
+  private LMDBEnvProfile(LMDBEnvFlag... flags) {
+    final EnumSet<LMDBEnvFlag> set = EnumSet.noneOf(LMDBEnvFlag.class);
+    Collections.addAll(set, flags);
+    this.flags = Collections.unmodifiableSet(set);
+  }
+  
+  /**
+   * @return the flags of this profile
+   */
+  public Set<LMDBEnvFlag> flags() {
+    return flags;
+  }
+  
+  /**
+   * @return the LMDB flags of this profile
+   */
+  public int lmdbFlags() {
+    return LMDBEnvFlag.toLMDBFlags(flags);
+  }
+}
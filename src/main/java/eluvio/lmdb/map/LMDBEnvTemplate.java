@@ -52,12 +52,24 @@ public abstract class LMDBEnvTemplate implements LMDBEnv {
     this(path, readOnly, mapsize, maxdbs, maxReaders, 0);
   }
 
+  public LMDBEnvTemplate(File path, LMDBEnvProfile profile) {
+    this(path, false /* readOnly */, LMDBEnv.DEFAULT_MAPSIZE, DEFAULT_MAX_DBS, LMDBEnv.DEFAULT_MAXREADERS, profile);
+  }
+
+  public LMDBEnvTemplate(File path, boolean readOnly, long mapsize, int maxdbs, int maxReaders, LMDBEnvProfile profile) {
+    this(path, readOnly, mapsize, maxdbs, maxReaders, profile.lmdbFlags());
+  }
+
   public LMDBEnvTemplate(File path, boolean readOnly, long mapsize, int maxdbs, int maxReaders, int flags) {
     this.env = new LMDBEnvImpl(path, readOnly, mapsize, maxdbs, maxReaders, flags);
     this.maps = Collections.synchronizedSet(new HashSet<LMDBMap<?,?>>());
     this.multiMaps = Collections.synchronizedSet(new HashSet<LMDBMultiMap<?,?>>());
   }
   
+  LMDBEnvInternal env() {
+    return env;
+  }
+  
   protected class LMDBMapTemplate<K,V> extends LMDBMapImpl<K,V> {
     public LMDBMapTemplate(String name, LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer) {
       this(name, keySerializer, valueSerializer, null);
@@ -85,7 +97,7 @@ public abstract class LMDBEnvTemplate implements LMDBEnv {
   }
 
   @Override
-  final public void close() {
+  public void close() {
     env.closeTransactions();
     
     for(LMDBMap<?,?> map : maps){
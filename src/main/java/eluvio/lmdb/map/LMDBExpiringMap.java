@@ -0,0 +1,345 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A key/value map where each entry can optionally expire after a deadline.
+ * <p>
+ * The deadline is stored alongside each value so reads can treat expired
+ * (but not yet swept) entries as absent using a single lookup.  An
+ * {@link eluvio.lmdb.api.Api#MDB_INTEGERKEY} expiry-time&rarr;key multimap
+ * is maintained in the same environment so expired entries can be removed by
+ * range scanning the index with {@link #sweep()} or periodically with
+ * {@link #startSweeper}.
+ * @param <K> map key
+ * @param <V> map value
+ */
+public class LMDBExpiringMap<K,V> extends LMDBEnvTemplate {
+  /** Deadline used for entries that never expire */
+  public static final long NO_EXPIRY = 0L;
+
+  /** The default maximum number of entries removed per write transaction by {@link #sweep()} */
+  public static final int DEFAULT_SWEEP_BATCH_SIZE = 1000;
+
+  /**
+   * A value along with the time (in milliseconds since the epoch) that it
+   * expires at
+   */
+  static final class Expiring<V> {
+    final long expiresAt;
+    final V value;
+
+    Expiring(long expiresAt, V value) {
+      this.expiresAt = expiresAt;
+      this.value = value;
+    }
+
+    boolean isExpired(long now) {
+      return NO_EXPIRY != expiresAt && expiresAt <= now;
+    }
+  }
+
+  /**
+   * Prefixes the serialized value with its 8 byte deadline
+   */
+  static final class ExpiringSerializer<V> extends LMDBSerializer<Expiring<V>> {
+    /** Larger scratch buffers are not kept around per-thread */
+    private static final int MAX_SCRATCH_SIZE = 64 * 1024;
+
+    private final LMDBSerializer<V> valueSerializer;
+
+    /** Values of unknown size are serialized into this before being copied */
+    private final ThreadLocal<ByteBuffer> scratch = new ThreadLocal<ByteBuffer>() {
+      @Override
+      protected ByteBuffer initialValue() {
+        return ByteBuffer.allocateDirect(Math.max(valueSerializer.cachedBufferSize(), 256));
+      }
+    };
+
+    ExpiringSerializer(LMDBSerializer<V> valueSerializer) {
+      this.valueSerializer = valueSerializer;
+    }
+
+    public int cachedBufferSize() {
+      final int size = valueSerializer.cachedBufferSize();
+      return size > 0 ? size + 8 : size;
+    }
+
+    public boolean integerKeys() { return false; }
+    public boolean fixedSize() { return valueSerializer.fixedSize(); }
+
+    public int serializedSize(Expiring<V> data) {
+      final int size = valueSerializer.serializedSize(data.value);
+      return size >= 0 ? size + 8 : -1;
+    }
+
+    public ByteBuffer serialize(Expiring<V> data, ByteBuffer buf) {
+      final int size = serializedSize(data);
+
+      // The value is serialized in place right after the deadline
+      if (size >= 0) {
+        if (null == buf || buf.remaining() < size) buf = ByteBuffer.allocateDirect(size);
+        buf.order(ByteOrder.BIG_ENDIAN);
+        buf.putLong(data.expiresAt);
+
+        final ByteBuffer slice = buf.slice();
+        final ByteBuffer valueBuf = valueSerializer.serialize(data.value, slice);
+
+        if (valueBuf == slice) buf.position(buf.position() + valueBuf.remaining());
+        else buf.put(valueBuf);
+
+        buf.flip();
+        return buf;
+      }
+
+      final ByteBuffer cached = scratch.get();
+      cached.clear();
+      final ByteBuffer valueBuf = valueSerializer.serialize(data.value, cached);
+      if (valueBuf != cached && valueBuf.capacity() > cached.capacity() && valueBuf.capacity() <= MAX_SCRATCH_SIZE) scratch.set(valueBuf);
+
+      if (null == buf || buf.remaining() < 8 + valueBuf.remaining()) buf = ByteBuffer.allocateDirect(8 + valueBuf.remaining());
+      buf.order(ByteOrder.BIG_ENDIAN);
+      buf.putLong(data.expiresAt);
+      buf.put(valueBuf);
+      buf.flip();
+      return buf;
+    }
+
+    public Expiring<V> deserialize(ByteBuffer buf) {
+      buf.order(ByteOrder.BIG_ENDIAN);
+      final long expiresAt = buf.getLong();
+      return new Expiring<V>(expiresAt, valueSerializer.deserialize(buf));
+    }
+  }
+
+  private static final Logger logger = Logger.getLogger(LMDBExpiringMap.class.getName());
+
+  private final LMDBMapTemplate<K,Expiring<V>> data;
+  private final LMDBMultiMapTemplate<Long,K> expiryIndex;
+  private ScheduledExecutorService sweeper;
+
+  public LMDBExpiringMap(LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer) {
+    this(null, keySerializer, valueSerializer);
+  }
+
+  public LMDBExpiringMap(File path, LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer) {
+    this(path, keySerializer, valueSerializer, LMDBEnv.DEFAULT_MAPSIZE);
+  }
+
+  public LMDBExpiringMap(File path, LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer, long mapsize) {
+    super(path, false /* readOnly */, mapsize);
+    data = new LMDBMapTemplate<K,Expiring<V>>("data", keySerializer, new ExpiringSerializer<V>(valueSerializer));
+    expiryIndex = new LMDBMultiMapTemplate<Long,K>("expiry", LMDBSerializer.Long, keySerializer);
+  }
+
+  /**
+   * Associate the value with the key without an expiry.
+   */
+  public void put(K key, V value) {
+    putExpiringAt(key, value, NO_EXPIRY);
+  }
+
+  /**
+   * Associate the value with the key and expire it after the ttl has elapsed.
+   */
+  public void put(K key, V value, long ttl, TimeUnit unit) {
+    if (ttl <= 0) throw new IllegalArgumentException("ttl must be positive: " + ttl);
+    putExpiringAt(key, value, currentTimeMillis() + unit.toMillis(ttl));
+  }
+
+  /**
+   * Associate the value with the key and expire it at the specified time.
+   * @param expiresAt milliseconds since the epoch or {@link #NO_EXPIRY}
+   */
+  public void putExpiringAt(K key, V value, long expiresAt) {
+    if (expiresAt < 0) throw new IllegalArgumentException("Invalid expiresAt: " + expiresAt);
+
+    try (LMDBTxn txn = withReadWriteTxn()) {
+      final Expiring<V> prev = data.put(key, new Expiring<V>(expiresAt, value));
+      if (null != prev && NO_EXPIRY != prev.expiresAt) expiryIndex.remove(prev.expiresAt, key);
+      if (NO_EXPIRY != expiresAt) expiryIndex.add(expiresAt, key);
+    }
+  }
+
+  /**
+   * @return the value for the key or null if it does not exist or has expired
+   */
+  public V get(K key) {
+    final Expiring<V> entry = data.get(key);
+    return null == entry || entry.isExpired(currentTimeMillis()) ? null : entry.value;
+  }
+
+  /**
+   * @return true if the key exists and has not expired
+   */
+  public boolean containsKey(K key) {
+    final Expiring<V> entry = data.get(key);
+    return null != entry && !entry.isExpired(currentTimeMillis());
+  }
+
+  /**
+   * @return the time (in milliseconds since the epoch) that the key expires
+   *         at, {@link #NO_EXPIRY} if it does not expire, or -1 if the key
+   *         does not exist or has already expired
+   */
+  public long expiresAt(K key) {
+    final Expiring<V> entry = data.get(key);
+    return null == entry || entry.isExpired(currentTimeMillis()) ? -1 : entry.expiresAt;
+  }
+
+  /**
+   * Remove the key
+   * @return true if the key existed (even if it had expired but was not yet swept)
+   */
+  public boolean remove(K key) {
+    try (LMDBTxn txn = withReadWriteTxn()) {
+      final Expiring<V> prev = data.remove(key);
+      if (null == prev) return false;
+      if (NO_EXPIRY != prev.expiresAt) expiryIndex.remove(prev.expiresAt, key);
+      return true;
+    }
+  }
+
+  /**
+   * The number of keys in the map <b>including</b> expired keys that have not
+   * been swept yet
+   */
+  public long keyCount() {
+    return data.keyCount();
+  }
+
+  /**
+   * Remove the entire contents of the map
+   */
+  public void clear() {
+    try (LMDBTxn txn = withReadWriteTxn()) {
+      data.clear();
+      expiryIndex.clear();
+    }
+  }
+
+  /**
+   * Remove all expired entries using write transactions of at most
+   * {@link #DEFAULT_SWEEP_BATCH_SIZE} entries.
+   * @return the number of entries removed
+   */
+  public long sweep() {
+    return sweep(DEFAULT_SWEEP_BATCH_SIZE);
+  }
+
+  /**
+   * Remove all expired entries using write transactions of at most batchSize
+   * entries.
+   * @param batchSize the maximum number of entries to remove per write transaction
+   * @return the number of entries removed
+   */
+  public long sweep(int batchSize) {
+    if (batchSize <= 0) throw new IllegalArgumentException("batchSize must be positive: " + batchSize);
+
+    final long now = currentTimeMillis();
+    long total = 0;
+    int removed;
+
+    do {
+      removed = 0;
+
+      try (LMDBTxn txn = withReadWriteTxn()) {
+        final List<Map.Entry<Long,K>> batch = new ArrayList<Map.Entry<Long,K>>(Math.min(batchSize, 1024));
+
+        try (LMDBIterator<Map.Entry<Long,K>> it = expiryIndex.headMap(now, true).entrySet().lmdbIterator()) {
+          while (batch.size() < batchSize && it.hasNext()) batch.add(it.next());
+        }
+
+        for (Map.Entry<Long,K> entry : batch) {
+          expiryIndex.remove(entry.getKey(), entry.getValue());
+          data.removeNoPrev(entry.getValue());
+          removed++;
+        }
+      }
+
+      total += removed;
+    } while (removed == batchSize);
+
+    return total;
+  }
+
+  /**
+   * Start a background thread that calls {@link #sweep()} every period.  A
+   * sweep that fails is logged and the next one still runs.
+   */
+  public synchronized void startSweeper(long period, TimeUnit unit) {
+    if (null != sweeper) throw new IllegalStateException("Sweeper has already been started");
+
+    sweeper = Executors.newSingleThreadScheduledExecutor(r -> {
+      final Thread t = new Thread(r, "LMDBExpiringMap-sweeper");
+      t.setDaemon(true);
+      return t;
+    });
+
+    sweeper.scheduleWithFixedDelay(this::backgroundSweep, period, period, unit);
+  }
+
+  private void backgroundSweep() {
+    // An exception would cancel all future runs of the scheduled task
+    try {
+      sweep();
+    } catch (RuntimeException ex) {
+      logger.log(Level.WARNING, "LMDBExpiringMap sweep failed", ex);
+    }
+  }
+
+  /**
+   * Stop the background sweeper thread (if it was started)
+   */
+  public synchronized void stopSweeper() {
+    if (null == sweeper) return;
+
+    sweeper.shutdown();
+
+    try {
+      sweeper.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+
+    sweeper = null;
+  }
+
+  /**
+   * The current time in milliseconds.  Overridable for testing.
+   */
+  protected long currentTimeMillis() {
+    return System.currentTimeMillis();
+  }
+
+  @Override
+  public void close() {
+    stopSweeper();
+    super.close();
+  }
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * An {@link LMDBMap} decorator that maintains secondary indexes of its
+ * values.  Each index is an {@link LMDBMultiMap} (in the same environment)
+ * from the key extracted from a value to the primary keys with that value.
+ * <p>
+ * Every write through this map updates the indexes in the same write
+ * transaction so the indexes only ever see committed (and consistent) data.
+ * The extracted index keys of the previous and new value are compared by
+ * their serialized bytes and the index is only written to if they differ.
+ * Writes made directly to the underlying map (or through the views, key sets
+ * or iterators of either map) are not indexed.  Use {@link Index#rebuild()}
+ * if that has happened.
+ * <p>
+ * For example (replacing a hand maintained main map and index multimap):
+ * <pre>
+ * class Env extends LMDBEnvTemplate {
+ *   final LMDBIndexedMap&lt;String,Person&gt; people = new LMDBIndexedMap&lt;&gt;(new LMDBMapTemplate&lt;&gt;("people", ...));
+ *   final LMDBIndexedMap.Index&lt;String,String,Person&gt; byCity = people.addIndex(new LMDBMultiMapTemplate&lt;&gt;("people_by_city", ...), Person::city);
+ * }
+ * </pre>
+ * @param <K> map key
+ * @param <V> map value
+ */
+public class LMDBIndexedMap<K,V> extends LMDBMapProxy<K,V> {
+  /**
+   * A secondary index of an {@link LMDBIndexedMap}
+   * @param <I> index key
+   * @param <K> primary map key
+   * @param <V> primary map value
+   */
+  public static final class Index<I,K,V> {
+    private final LMDBIndexedMap<K,V> owner;
+    private final LMDBMultiMapImpl<I,K> index;
+    private final Function<? super V, ? extends I> extractor;
+    
+    private Index(LMDBIndexedMap<K,V> owner, LMDBMultiMapImpl<I,K> index, Function<? super V, ? extends I> extractor) {
+      this.owner = owner;
+      this.index = index;
+      this.extractor = extractor;
+    }
+    
+    /**
+     * @return the multimap from index keys to primary keys (which should not
+     *         be written to directly)
+     */
+    public LMDBMultiMap<I,K> map() {
+      return index;
+    }
+    
+    /**
+     * @param indexKey the index key
+     * @return the primary keys with the index key (in primary key order)
+     */
+    public List<K> keys(I indexKey) {
+      return LMDBIteratorImpl.drain(index.get(indexKey).lmdbIterator());
+    }
+    
+    /**
+     * @param indexKey the index key
+     * @return the values with the index key (in primary key order)
+     */
+    public List<V> get(I indexKey) {
+      try (LMDBTxnInternal txn = owner.env().withReadOnlyTxn()) {
+        return owner.getAll(keys(indexKey));
+      }
+    }
+    
+    /**
+     * The values whose index keys are within the range (in index key order)
+     * which are looked up using a single sorted {@link LMDBMap#getAll}.
+     * @param fromKey the low end of the range (or null for no lower bound)
+     * @param fromInclusive true if the low end of the range is included
+     * @param toKey the high end of the range (or null for no upper bound)
+     * @param toInclusive true if the high end of the range is included
+     * @return the values
+     */
+    public List<V> range(I fromKey, boolean fromInclusive, I toKey, boolean toInclusive) {
+      final LMDBMultiMap<I,K> range;
+      
+      if (null != fromKey && null != toKey) range = index.subMap(fromKey, fromInclusive, toKey, toInclusive);
+      else if (null != fromKey) range = index.tailMap(fromKey, fromInclusive);
+      else if (null != toKey) range = index.headMap(toKey, toInclusive);
+      else range = index;
+      
+      try (LMDBTxnInternal txn = owner.env().withReadOnlyTxn()) {
+        return owner.getAll(LMDBIteratorImpl.drain(range.values().lmdbIterator()));
+      }
+    }
+    
+    /**
+     * Re-create the index from every entry of the map in a single write
+     * transaction
+     * @return the number of indexed entries
+     */
+    public long rebuild() {
+      long count = 0;
+      
+      try (LMDBTxnInternal txn = owner.env().withNestedReadWriteTxn()) {
+        try {
+          index.clear();
+          
+          try (LMDBIterator<Map.Entry<K,V>> it = owner.self.entrySet().lmdbIterator()) {
+            while (it.hasNext()) {
+              final Map.Entry<K,V> e = it.next();
+              final I indexKey = extractor.apply(e.getValue());
+              
+              if (null != indexKey) {
+                index.add(indexKey, e.getKey());
+                count++;
+              }
+            }
+          }
+        } catch (RuntimeException ex) {
+          txn.abort();
+          throw ex;
+        }
+      }
+      
+      return count;
+    }
+    
+    private I extract(V value) {
+      return null != value ? extractor.apply(value) : null;
+    }
+    
+    /**
+     * @param nextKey the index key (from {@link #extract}) of the new value
+     */
+    @SuppressWarnings("unchecked")
+    private void update(K key, V prev, Object next) {
+      final I prevKey = extract(prev);
+      final I nextKey = (I)next;
+      
+      if (sameSerializedKey(prevKey, nextKey)) return;
+      
+      if (null != prevKey) index.remove(prevKey, key);
+      if (null != nextKey) index.add(nextKey, key);
+    }
+    
+    private boolean sameSerializedKey(I a, I b) {
+      if (null == a || null == b) return a == b;
+      
+      final ByteBuffer[] bufs = owner.diffBufs.get();
+      final LMDBSerializer<I> serializer = index.map.keySerializer();
+      
+      bufs[0].clear();
+      bufs[1].clear();
+      
+      return serializer.serialize(a, bufs[0]).equals(serializer.serialize(b, bufs[1]));
+    }
+  }
+  
+  private final LMDBMapImpl<K,V> map;
+  private final List<Index<?,K,V>> indexes = new CopyOnWriteArrayList<Index<?,K,V>>();
+  
+  /**
+   * Scratch buffers for comparing the serialized index keys of the previous
+   * and new values
+   */
+  private final ThreadLocal<ByteBuffer[]> diffBufs;
+  
+  /**
+   * @param map the map whose values are indexed
+   */
+  @SuppressWarnings("unchecked")
+  public LMDBIndexedMap(LMDBMap<K,V> map) {
+    super(impl(map));
+    this.map = (LMDBMapImpl<K,V>)self;
+    
+    final int size = this.map.env.env().maxKeySize();
+    diffBufs = ThreadLocal.withInitial(() -> new ByteBuffer[]{ ByteBuffer.allocate(size), ByteBuffer.allocate(size) });
+  }
+  
+  @SuppressWarnings("unchecked")
+  private static <K,V> LMDBMapImpl<K,V> impl(LMDBMap<K,V> map) {
+    if (!(map instanceof LMDBMapImpl)) throw new IllegalArgumentException("Unsupported LMDBMap implementation: " + map.getClass());
+    final LMDBMapImpl<K,V> impl = (LMDBMapImpl<K,V>)map;
+    if (impl.dup) throw new IllegalArgumentException("LMDBIndexedMap does not support maps with multiple values per key");
+    return impl;
+  }
+  
+  /**
+   * Add a secondary index.  If the index is empty (e.g. it was just created)
+   * but the map is not then the index is built from the existing entries.
+   * @param index the multimap (in the same environment) from index keys to
+   *        primary keys
+   * @param extractor the index key of a value (or null to not index it)
+   * @return the index
+   */
+  public <I> Index<I,K,V> addIndex(LMDBMultiMap<I,K> index, Function<? super V, ? extends I> extractor) {
+    if (!(index instanceof LMDBMultiMapImpl)) throw new IllegalArgumentException("Unsupported LMDBMultiMap implementation: " + index.getClass());
+    
+    final LMDBMultiMapImpl<I,K> impl = (LMDBMultiMapImpl<I,K>)index;
+    if (impl.map.env() != map.env) throw new IllegalArgumentException("The index must be in the same environment as the map");
+    
+    final Index<I,K,V> res = new Index<I,K,V>(this, impl, extractor);
+    
+    // Writes made through this map wait for the write lock so none of them
+    // can be committed between building the index and adding it
+    try (LMDBTxnInternal txn = map.env.withNestedReadWriteTxn()) {
+      try {
+        if (impl.isEmpty() && !map.isEmpty()) res.rebuild();
+        indexes.add(res);
+      } catch (RuntimeException ex) {
+        txn.abort();
+        throw ex;
+      }
+    }
+    
+    return res;
+  }
+  
+  /**
+   * @return the indexes of this map
+   */
+  public List<Index<?,K,V>> indexes() {
+    return Collections.unmodifiableList(indexes);
+  }
+  
+  /**
+   * @return the index key of the value for each index (which is done before
+   *         writing anything so an extractor failing does not need to undo
+   *         any writes)
+   */
+  private Object[] extract(V value) {
+    final Object[] res = new Object[indexes.size()];
+    int i = 0;
+    for (Index<?,K,V> index : indexes) res[i++] = index.extract(value);
+    return res;
+  }
+  
+  /**
+   * @param nextKeys the index keys of the new value (from {@link #extract})
+   *        or null if the key was removed
+   */
+  private void reindex(K key, V prev, Object[] nextKeys) {
+    int i = 0;
+    for (Index<?,K,V> index : indexes) index.update(key, prev, null != nextKeys ? nextKeys[i++] : null);
+  }
+  
+  /**
+   * Run the write (and the index updates it makes) in a single write
+   * transaction (nested if there is already one so that a failure only
+   * undoes this write)
+   */
+  private <T> T write(Supplier<T> op) {
+    try (LMDBTxnInternal txn = map.env.withNestedReadWriteTxn()) {
+      try {
+        return op.get();
+      } catch (RuntimeException ex) {
+        txn.abort();
+        throw ex;
+      }
+    }
+  }
+  
+  /**
+   * A write whose new value isn't known up front so the value is read before
+   * and after it
+   */
+  private <T> T update(K key, Supplier<T> op) {
+    if (indexes.isEmpty()) return op.get();
+    
+    return write(() -> {
+      final V prev = self.get(key);
+      final T res = op.get();
+      reindex(key, prev, extract(self.get(key)));
+      return res;
+    });
+  }
+  
+  @Override
+  boolean add(K key, ByteBuffer keyBuf, V value) {
+    return add(key, value);
+  }
+  
+  @Override
+  public boolean add(K key, V value) {
+    if (indexes.isEmpty()) return self.add(key, value);
+    
+    return write(() -> {
+      final Object[] nextKeys = extract(value);
+      final boolean res = self.add(key, value);
+      if (res) reindex(key, null, nextKeys);
+      return res;
+    });
+  }
+  
+  @Override
+  public boolean append(K key, V value) {
+    if (indexes.isEmpty()) return self.append(key, value);
+    
+    return write(() -> {
+      final Object[] nextKeys = extract(value);
+      final boolean res = self.append(key, value);
+      if (res) reindex(key, null, nextKeys);
+      return res;
+    });
+  }
+  
+  @Override
+  public boolean prepend(K key, V value) {
+    if (indexes.isEmpty()) return self.prepend(key, value);
+    
+    return write(() -> {
+      final Object[] nextKeys = extract(value);
+      final boolean res = self.prepend(key, value);
+      if (res) reindex(key, null, nextKeys);
+      return res;
+    });
+  }
+  
+  @Override
+  public void clear() {
+    write(() -> {
+      self.clear();
+      for (Index<?,K,V> index : indexes) index.index.clear();
+      return null;
+    });
+  }
+  
+  @Override
+  public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    return update(key, () -> self.compute(key, remappingFunction));
+  }
+  
+  @Override
+  public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+    return update(key, () -> self.computeIfAbsent(key, mappingFunction));
+  }
+  
+  @Override
+  public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    return update(key, () -> self.computeIfPresent(key, remappingFunction));
+  }
+  
+  @Override
+  public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    return update(key, () -> self.merge(key, value, remappingFunction));
+  }
+  
+  @Override
+  public Map.Entry<K,V> pollFirstEntry() {
+    if (indexes.isEmpty()) return self.pollFirstEntry();
+    
+    return write(() -> {
+      final Map.Entry<K,V> res = self.pollFirstEntry();
+      if (null != res) reindex(res.getKey(), res.getValue(), null);
+      return res;
+    });
+  }
+  
+  @Override
+  public K pollFirstKey() {
+    final Map.Entry<K,V> res = pollFirstEntry();
+    return null != res ? res.getKey() : null;
+  }
+  
+  @Override
+  public V pollFirstValue() {
+    final Map.Entry<K,V> res = pollFirstEntry();
+    return null != res ? res.getValue() : null;
+  }
+  
+  @Override
+  public Map.Entry<K,V> pollLastEntry() {
+    if (indexes.isEmpty()) return self.pollLastEntry();
+    
+    return write(() -> {
+      final Map.Entry<K,V> res = self.pollLastEntry();
+      if (null != res) reindex(res.getKey(), res.getValue(), null);
+      return res;
+    });
+  }
+  
+  @Override
+  public K pollLastKey() {
+    final Map.Entry<K,V> res = pollLastEntry();
+    return null != res ? res.getKey() : null;
+  }
+  
+  @Override
+  public V pollLastValue() {
+    final Map.Entry<K,V> res = pollLastEntry();
+    return null != res ? res.getValue() : null;
+  }
+  
+  @Override
+  public V put(K key, V value) {
+    if (indexes.isEmpty()) return self.put(key, value);
+    
+    return write(() -> putIndexed(key, value));
+  }
+  
+  private V putIndexed(K key, V value) {
+    final Object[] nextKeys = extract(value);
+    final V prev = self.put(key, value);
+    reindex(key, prev, nextKeys);
+    return prev;
+  }
+  
+  @Override
+  public void putAll(Map<? extends K, ? extends V> m) {
+    if (indexes.isEmpty()) {
+      self.putAll(m);
+      return;
+    }
+    
+    write(() -> {
+      for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) putIndexed(e.getKey(), e.getValue());
+      return null;
+    });
+  }
+  
+  @Override
+  public V putIfAbsent(K key, V value) {
+    if (indexes.isEmpty()) return self.putIfAbsent(key, value);
+    
+    return write(() -> {
+      final Object[] nextKeys = extract(value);
+      final V prev = self.putIfAbsent(key, value);
+      if (null == prev) reindex(key, null, nextKeys);
+      return prev;
+    });
+  }
+  
+  @Override
+  public void putNoPrev(K key, V value) {
+    if (indexes.isEmpty()) self.putNoPrev(key, value);
+    else put(key, value);
+  }
+  
+  @Override
+  boolean remove(K key, ByteBuffer keyBuf, V value) {
+    return remove(key, value);
+  }
+  
+  @SuppressWarnings("unchecked")
+  @Override
+  public V remove(Object key) {
+    if (indexes.isEmpty()) return self.remove(key);
+    
+    return write(() -> {
+      final V prev = self.remove(key);
+      if (null != prev) reindex((K)key, prev, null);
+      return prev;
+    });
+  }
+  
+  @SuppressWarnings("unchecked")
+  @Override
+  public boolean remove(Object key, Object value) {
+    if (indexes.isEmpty()) return self.remove(key, value);
+    
+    return write(() -> {
+      final boolean res = self.remove(key, value);
+      if (res) reindex((K)key, (V)value, null);
+      return res;
+    });
+  }
+  
+  @Override
+  public boolean removeNoPrev(K key) {
+    if (indexes.isEmpty()) return self.removeNoPrev(key);
+    return null != remove(key);
+  }
+  
+  @Override
+  boolean removeNoPrev(K key, ByteBuffer keyBuf) {
+    return removeNoPrev(key);
+  }
+  
+  @Override
+  public V replace(K key, V value) {
+    if (indexes.isEmpty()) return self.replace(key, value);
+    
+    return write(() -> {
+      final Object[] nextKeys = extract(value);
+      final V prev = self.replace(key, value);
+      if (null != prev) reindex(key, prev, nextKeys);
+      return prev;
+    });
+  }
+  
+  @Override
+  public boolean replace(K key, V oldValue, V newValue) {
+    if (indexes.isEmpty()) return self.replace(key, oldValue, newValue);
+    
+    return write(() -> {
+      final Object[] nextKeys = extract(newValue);
+      final boolean res = self.replace(key, oldValue, newValue);
+      if (res) reindex(key, oldValue, nextKeys);
+      return res;
+    });
+  }
+  
+  @Override
+  public void replaceAll(BiFunction<? super K, ? super V, ? extends V> function) {
+    if (indexes.isEmpty()) {
+      self.replaceAll(function);
+      return;
+    }
+    
+    write(() -> {
+      self.replaceAll((k, v) -> {
+        final V next = function.apply(k, v);
+        reindex(k, v, extract(next));
+        return next;
+      });
+      
+      return null;
+    });
+  }
+}
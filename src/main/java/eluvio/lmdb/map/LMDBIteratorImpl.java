@@ -16,6 +16,8 @@
 package eluvio.lmdb.map;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
 
@@ -25,6 +27,19 @@ class LMDBIteratorImpl<T> implements LMDBIterator<T> {
   private boolean first = true;
   private boolean closed = false;
   
+  /**
+   * Read the remaining elements into a list and close the iterator
+   */
+  static <T> List<T> drain(LMDBIterator<T> it) {
+    try {
+      final List<T> res = new ArrayList<T>();
+      while (it.hasNext()) res.add(it.next());
+      return res;
+    } finally {
+      it.close();
+    }
+  }
+  
   public static <K,V> LMDBIterator<Map.Entry<K,V>> forEntries(LMDBMapInternal<K,V> map, LMDBCursor.Mode mode) {
     return forEntries(map.openCursor(mode));
   }
@@ -19,6 +19,7 @@ import java.util.Collection;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.NavigableSet;
+import java.util.Spliterator;
 
 public class LMDBKeySet<K> implements NavigableSet<K>, LMDBSet<K> {
   private final LMDBMapInternal<K,?> map;
@@ -194,6 +195,11 @@ public class LMDBKeySet<K> implements NavigableSet<K>, LMDBSet<K> {
     return map.tailMap(fromKey, fromInclusive).keySet();
   }
   
+  @Override
+  public Spliterator<K> spliterator() {
+    return LMDBSpliterator.forKeys(map);
+  }
+  
   @Override
   public Object[] toArray() {
     try (LMDBTxnInternal txn = map.withReadOnlyTxn()) {
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free log-linear latency histogram (similar in spirit to
+ * HdrHistogram) covering the full range of positive long values.
+ * <p>
+ * Values are bucketed by their power of 2 magnitude and each magnitude is
+ * split into {@link #SUB_BUCKETS} linear sub-buckets so reported percentiles
+ * are within 12.5% of the actual value.  Values below {@link #SUB_BUCKETS}
+ * are recorded exactly.
+ */
+final class LMDBLatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(64 << SUB_BUCKET_BITS);
+  private final LongAdder count = new LongAdder();
+  private final LongAdder sum = new LongAdder();
+  private final LongAccumulator max = new LongAccumulator(Math::max, 0L);
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) return (int)Math.max(value, 0L);
+    final int magnitude = 63 - Long.numberOfLeadingZeros(value);
+    final int subBucket = (int)(value >>> (magnitude - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return ((magnitude - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+  }
+
+  /**
+   * @return the largest value that is recorded in the bucket
+   */
+  static long highestEquivalentValue(int index) {
+    if (index < SUB_BUCKETS) return index;
+    final int shift = (index >>> SUB_BUCKET_BITS) - 1;
+    final long next = (long)(SUB_BUCKETS + (index & (SUB_BUCKETS - 1)) + 1) << shift;
+    return next < 0 ? Long.MAX_VALUE : next - 1;
+  }
+
+  void record(long value) {
+    counts.incrementAndGet(index(value));
+    count.increment();
+    sum.add(value);
+    max.accumulate(value);
+  }
+
+  long count() {
+    return count.sum();
+  }
+
+  long max() {
+    return max.get();
+  }
+
+  long mean() {
+    final long n = count.sum();
+    return 0 == n ? 0 : sum.sum() / n;
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the (highest equivalent) value at the percentile or 0 if nothing has been recorded
+   */
+  long percentile(double percentile) {
+    final long n = count.sum();
+    if (0 == n) return 0;
+
+    final long target = Math.max(1L, (long)Math.ceil(percentile / 100.0 * n));
+    long seen = 0;
+
+    for (int i = 0; i < counts.length(); i++) {
+      seen += counts.get(i);
+      if (seen >= target) return Math.min(highestEquivalentValue(i), max());
+    }
+
+    return max();
+  }
+
+  void reset() {
+    for (int i = 0; i < counts.length(); i++) counts.set(i, 0);
+    count.reset();
+    sum.reset();
+    max.reset();
+  }
+}
@@ -15,7 +15,10 @@
  */
 package eluvio.lmdb.map;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentNavigableMap;
 
@@ -64,6 +67,17 @@ public interface LMDBMap<K, V> extends LMDBEnv, ConcurrentNavigableMap<K, V>, Co
   @Override
   LMDBSet<Map.Entry<K, V>> entrySet();
 
+  /**
+   * Look up many keys at once using a single read transaction and cursor.
+   * The keys are visited in the order of the database so lookups of nearby
+   * keys mostly avoid searching the B-tree from the root.
+   * 
+   * @param keys the keys to look up
+   * @return the value (or null) of each key in the iteration order of keys
+   * @see #get
+   */
+  List<V> getAll(Collection<? extends K> keys);
+
   @Override
   LMDBMap<K, V> headMap(K toKey);
 
@@ -118,6 +132,68 @@ public interface LMDBMap<K, V> extends LMDBEnv, ConcurrentNavigableMap<K, V>, Co
    */
   V pollLastValue();
 
+  /**
+   * Iterate over the entries whose serialized key starts with the serialized
+   * prefix (e.g. the "tenant/" in "tenant/object/part").  The cursor is
+   * positioned with MDB_SET_RANGE and each key's raw bytes are compared to
+   * the prefix so keys are only deserialized if they match.  The iterator
+   * closes itself once it moves past the last matching key.
+   * <p>
+   * This only works for maps ordered by the bytes of their keys (i.e. not
+   * with a custom comparator or integer keys).
+   * <p>
+   * <b>Note: This iterator <b>MUST BE CLOSED</b> by the user if it is not
+   * exhausted</b>
+   * 
+   * @param prefix the prefix to match
+   * @return the matching entries in the order of this map
+   * @throws IllegalStateException if the keys are not ordered by their bytes
+   */
+  LMDBIterator<Map.Entry<K, V>> prefixScan(K prefix);
+
+  /**
+   * Same as {@link #prefixScan(Object)} but using the raw bytes of the prefix
+   * (from its position to its limit)
+   * 
+   * @param prefix the raw bytes to match
+   * @return the matching entries in the order of this map
+   */
+  LMDBIterator<Map.Entry<K, V>> prefixScan(ByteBuffer prefix);
+
+  /**
+   * Same as {@link #prefixScan(Object)} but only for the keys
+   * 
+   * @param prefix the prefix to match
+   * @return the matching keys in the order of this map
+   */
+  LMDBIterator<K> prefixScanKeys(K prefix);
+
+  /**
+   * Same as {@link #prefixScanKeys(Object)} but using the raw bytes of the
+   * prefix
+   * 
+   * @param prefix the raw bytes to match
+   * @return the matching keys in the order of this map
+   */
+  LMDBIterator<K> prefixScanKeys(ByteBuffer prefix);
+
+  /**
+   * Same as {@link #prefixScan(Object)} but only for the values
+   * 
+   * @param prefix the prefix to match
+   * @return the values of the matching keys in the order of this map
+   */
+  LMDBIterator<V> prefixScanValues(K prefix);
+
+  /**
+   * Same as {@link #prefixScanValues(Object)} but using the raw bytes of the
+   * prefix
+   * 
+   * @param prefix the raw bytes to match
+   * @return the values of the matching keys in the order of this map
+   */
+  LMDBIterator<V> prefixScanValues(ByteBuffer prefix);
+
   /**
    * A possibly optimized {@link #putNoPrev} operation when you know they key is
    * less than than all other keys in the map.
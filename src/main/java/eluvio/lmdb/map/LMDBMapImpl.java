@@ -16,20 +16,33 @@
 package eluvio.lmdb.map;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
 
 import eluvio.lmdb.api.Api;
 import eluvio.lmdb.api.Cursor;
+import eluvio.lmdb.api.CursorOp;
 import eluvio.lmdb.api.DB;
+import eluvio.lmdb.api.Env;
 import eluvio.lmdb.api.Txn;
+import eluvio.lmdb.api.Stat;
 import eluvio.lmdb.api.Cursor.KeyAndData;
 
 class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
   
   final boolean dup;
   final LMDBEnvInternal env;
-  private DB db;
+  /** Replaced (with a handle to the same dbi) if the environment is compacted */
+  private volatile DB db;
+  private final int dbFlags;
+  private final Comparator<ByteBuffer> dbComparator;
+  private final Comparator<ByteBuffer> dbDupComparator;
   final LMDBSerializer<K> keySerializer;
   final LMDBSerializer<V> valueSerializer;
   private final Comparator<K> keyComparator;
@@ -40,6 +53,30 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
   private final LMDBEntrySet<K,V> entrySet;
   private final LMDBValuesCollection<V> values;
   private final String name;
+  private final LMDBMetrics metrics;
+  /** Known serialized value sizes at least this big are written using MDB_RESERVE (see {@link #putValue}) */
+  static final int RESERVE_MIN_SIZE = 512;
+  
+  /** False for the databases used by the {@link LMDBChangeLog} itself */
+  private boolean changeLogged = true;
+  private final List<WriteListener> writeListeners = new CopyOnWriteArrayList<WriteListener>();
+  private volatile LMDBBloomFilter bloomFilter = null;
+  
+  /**
+   * Notified (from within the write transaction) of the keys written to or
+   * removed through this map (see {@link LMDBCachedMap})
+   */
+  interface WriteListener {
+    /**
+     * @param keyBuf the serialized key which is only valid during the call
+     */
+    void keyWritten(Txn txn, ByteBuffer keyBuf);
+    
+    /**
+     * Any key may have been written to or removed
+     */
+    void allWritten(Txn txn);
+  }
   
   private final Comparator<V> externalValueComparator = new Comparator<V>() {
     @Override
@@ -130,18 +167,15 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
   LMDBMapImpl(LMDBEnvInternal env, String name, LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer, Comparator<K> keyComparator, Comparator<V> valueComparator, boolean dup) {
     this.dup = dup;
     this.env = env;
-    this.keySerializer = keySerializer;
-    this.valueSerializer = valueSerializer;
+    this.metrics = null != env.metrics() ? env.metrics().forMap(name) : null;
+    this.keySerializer = null != metrics ? new LMDBMeteredSerializer<K>(keySerializer, metrics) : keySerializer;
+    this.valueSerializer = null != metrics ? new LMDBMeteredSerializer<V>(valueSerializer, metrics) : valueSerializer;
     this.keyComparator = keyComparator;
     this.valueComparator = valueComparator;
     this.name = name;
     
-    final int readOnlyFlag = env.readOnly() ? Api.MDB_RDONLY : 0;
-        
-    Txn txn = env.env().beginTxn(readOnlyFlag);
-    
-    final Comparator<ByteBuffer> comparator = null != keyComparator ? keyComparator instanceof LMDBComparator ? new ByteBufferComparator((LMDBComparator)keyComparator) : new WrappedByteBufferComparator<K>(keyComparator, keySerializer) : null;
-    final Comparator<ByteBuffer> dupComparator = null != valueComparator ? valueComparator instanceof LMDBComparator ? new ByteBufferComparator((LMDBComparator)valueComparator) : new WrappedByteBufferComparator<V>(valueComparator, valueSerializer) : null;
+    this.dbComparator = null != keyComparator ? keyComparator instanceof LMDBComparator ? new ByteBufferComparator((LMDBComparator)keyComparator) : new WrappedByteBufferComparator<K>(keyComparator, keySerializer) : null;
+    this.dbDupComparator = null != valueComparator ? valueComparator instanceof LMDBComparator ? new ByteBufferComparator((LMDBComparator)valueComparator) : new WrappedByteBufferComparator<V>(valueComparator, valueSerializer) : null;
     
     int dbFlags = keySerializer.integerKeys() ? Api.MDB_INTEGERKEY : 0;
     
@@ -155,19 +189,254 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
       // Create the named database if it doesn't exist. This option is not allowed in a read-only transaction or a read-only environment.
       dbFlags = dbFlags | Api.MDB_CREATE;
     }
+    
+    this.dbFlags = dbFlags;
+    
+    env.register(this);
 
+    reversed = new LMDBMapReversed<K,V>(this);
+    keySet = new LMDBKeySet<K>(this);
+    entrySet = new LMDBEntrySet<K,V>(this);
+    values = new LMDBValuesCollection<V>(this);
+  }
+  
+  /**
+   * Open (or re-open) the DB in the env.  Called by {@link LMDBEnvInternal#register}.
+   */
+  void open(Env env) {
+    final int readOnlyFlag = this.env.readOnly() ? Api.MDB_RDONLY : 0;
+    
+    Txn txn = env.beginTxn(readOnlyFlag);
+    
     // We need to make sure the transaction either commits or aborts, so we trigger unlocking of our DB.pendingOpeningLock
     try {
-      db = new DB(txn, name, dbFlags, comparator, dupComparator);
+      db = new DB(txn, name, dbFlags, dbComparator, dbDupComparator);
       txn.commit();
     } catch (Throwable ex) {
       txn.abort();
     }
-
-    reversed = new LMDBMapReversed<K,V>(this);
-    keySet = new LMDBKeySet<K>(this);
-    entrySet = new LMDBEntrySet<K,V>(this);
-    values = new LMDBValuesCollection<V>(this);
+  }
+  
+  /**
+   * Open this map's DB in a (compacted copy of the) environment.  The dbi
+   * must be the same as the current one since transactions that were
+   * already open on the old environment keep using it after the DB handle
+   * has been swapped.
+   */
+  DB openIn(Txn txn) {
+    final DB res = new DB(txn, name, dbFlags, dbComparator, dbDupComparator);
+    if (res.dbi() != db.dbi()) throw new IllegalStateException("Database '" + name + "' has dbi " + db.dbi() + " but was re-opened as dbi " + res.dbi());
+    return res;
+  }
+  
+  int dbi() {
+    return db.dbi();
+  }
+  
+  boolean isOpen() {
+    return !closed.get() && null != db;
+  }
+  
+  /**
+   * Swap in the DB returned by {@link #openIn(Txn)}
+   */
+  void swapDB(DB db) {
+    this.db = db;
+  }
+  
+  /**
+   * Copy the current value(s) of the (serialized) keys from this map's DB
+   * (using src) into the DB of the same map in another environment (using
+   * dst), replacing whatever is there.  If keys is null then every key is
+   * copied.
+   * @return the number of keys copied (or deleted)
+   */
+  long copyTo(Txn src, DB dstDb, Txn dst, Collection<ByteBuffer> keys) {
+    long count = 0;
+    
+    try (Cursor cursor = db.openCursor(src)) {
+      if (null == keys) {
+        dstDb.truncateDatabase(dst);
+        
+        for (KeyAndData kd = cursor.first(); null != kd; kd = cursor.next()) {
+          dstDb.put(dst, kd.key, kd.data);
+          count++;
+        }
+      } else {
+        for (ByteBuffer key : keys) {
+          dstDb.delete(dst, key);
+          
+          if (cursor.moveTo(key)) {
+            for (KeyAndData kd = cursor.get(CursorOp.MDB_GET_CURRENT); null != kd; kd = dup ? cursor.nextDup() : null) {
+              dstDb.put(dst, kd.key, kd.data);
+            }
+          }
+          
+          count++;
+        }
+      }
+    }
+    
+    return count;
+  }
+  
+  /**
+   * Stop recording writes to this map in the {@link LMDBChangeLog}.  Only
+   * used for the change log's own databases.
+   */
+  void excludeFromChangeLog() {
+    changeLogged = false;
+  }
+  
+  private LMDBChangeLog changeLog() {
+    return changeLogged ? env.changeLog() : null;
+  }
+  
+  void addWriteListener(WriteListener listener) {
+    writeListeners.add(listener);
+  }
+  
+  void removeWriteListener(WriteListener listener) {
+    writeListeners.remove(listener);
+  }
+  
+  /**
+   * Called by {@link LMDBEnvInternal#attachBloomFilter} for every open map
+   * using the filter's database
+   */
+  synchronized void attachBloomFilter(LMDBBloomFilter filter) {
+    if (null != bloomFilter) throw new IllegalStateException("A LMDBBloomFilter is already attached to this map");
+    bloomFilter = filter;
+  }
+  
+  synchronized void detachBloomFilter(LMDBBloomFilter filter) {
+    if (bloomFilter == filter) bloomFilter = null;
+  }
+  
+  /**
+   * @return false if the (serialized) key is definitely not in the map
+   *         according to the {@link LMDBBloomFilter} (which is only used
+   *         when the current thread has no open transaction)
+   */
+  private boolean mightContain(ByteBuffer keyBuf) {
+    final LMDBBloomFilter filter = bloomFilter;
+    return null == filter || env.hasOpenTxn() || filter.mightContain(keyBuf);
+  }
+  
+  /**
+   * Call the action with each (serialized) key in the map
+   */
+  void forEachKey(Txn txn, Consumer<ByteBuffer> action) {
+    try (Cursor cursor = db.openCursor(txn)) {
+      for (KeyAndData kd = cursor.first(); null != kd; kd = cursor.nextNoDup()) action.accept(kd.key);
+    }
+  }
+  
+  /**
+   * Record that the (serialized) value has been written to the key: in the
+   * {@link LMDBChangeTracker} if the environment is being compacted and in
+   * the {@link LMDBChangeLog} if one is open.  Must be called from within
+   * the write transaction, after the write succeeded.
+   */
+  private void written(Txn txn, ByteBuffer keyBuf, ByteBuffer valueBuf) {
+    env.mapWritten();
+    final LMDBChangeTracker tracker = env.changeTracker();
+    if (null != tracker) tracker.changed(this, keyBuf);
+    final LMDBBloomFilter filter = bloomFilter;
+    if (null != filter) filter.add(keyBuf);
+    for (WriteListener listener : writeListeners) listener.keyWritten(txn, keyBuf);
+    final LMDBChangeLog log = changeLog();
+    if (null != log) log.append(txn, this, LMDBChangeLog.Op.PUT, keyBuf, valueBuf);
+    final LMDBSyncScheduler scheduler = env.syncScheduler();
+    if (null != scheduler) scheduler.written(keyBuf.remaining() + valueBuf.remaining());
+  }
+  
+  /**
+   * Same as {@link #written} for removing the value (or every value if
+   * valueBuf is null) of the key
+   */
+  private void deleted(Txn txn, ByteBuffer keyBuf, ByteBuffer valueBuf) {
+    env.mapWritten();
+    final LMDBChangeTracker tracker = env.changeTracker();
+    if (null != tracker) tracker.changed(this, keyBuf);
+    for (WriteListener listener : writeListeners) listener.keyWritten(txn, keyBuf);
+    final LMDBChangeLog log = changeLog();
+    if (null != log) log.append(txn, this, LMDBChangeLog.Op.DELETE, keyBuf, valueBuf);
+    final LMDBSyncScheduler scheduler = env.syncScheduler();
+    if (null != scheduler) scheduler.written(keyBuf.remaining() + (null != valueBuf ? valueBuf.remaining() : 0));
+  }
+  
+  /**
+   * Same as {@link #deleted(Txn, ByteBuffer, ByteBuffer)} for the key/value
+   * the cursor is positioned at.  Must be called <b>before</b> deleting it.
+   */
+  private void deleted(Txn txn, Cursor cursor) {
+    env.mapWritten();
+    if (null == env.changeTracker() && null == changeLog() && writeListeners.isEmpty() && null == env.syncScheduler()) return;
+    final KeyAndData current = cursor.get(CursorOp.MDB_GET_CURRENT);
+    if (null != current) deleted(txn, current.key, dup ? current.data : null);
+  }
+  
+  /**
+   * Same as {@link #written} for when every key has been removed
+   */
+  private void cleared(Txn txn) {
+    env.mapWritten();
+    final LMDBChangeTracker tracker = env.changeTracker();
+    if (null != tracker) tracker.changedAll(this);
+    for (WriteListener listener : writeListeners) listener.allWritten(txn);
+    final LMDBChangeLog log = changeLog();
+    if (null != log) log.append(txn, this, LMDBChangeLog.Op.CLEAR, null, null);
+  }
+  
+  /**
+   * Same as {@link #written} for a range of keys about to be deleted by
+   * {@link Cursor#deleteRange}.  The change log gets a record for each key
+   * (up to the limit) so the cursor is used to walk them.
+   */
+  private void rangeDeleted(Txn txn, Cursor cursor, ByteBuffer fromKeyBuf, boolean fromInclusive, ByteBuffer toKeyBuf, boolean toInclusive, long limit) {
+    env.mapWritten();
+    final LMDBChangeTracker tracker = env.changeTracker();
+    if (null != tracker) tracker.changedAll(this);
+    for (WriteListener listener : writeListeners) listener.allWritten(txn);
+    
+    final LMDBChangeLog log = changeLog();
+    if (null == log) return;
+    
+    KeyAndData kd = null == fromKeyBuf ? cursor.first() : fromInclusive ? cursor.ceiling(fromKeyBuf) : cursor.higher(fromKeyBuf);
+    
+    for (long i = 0; null != kd && i < limit; i++, kd = cursor.nextNoDup()) {
+      if (null != toKeyBuf) {
+        final int cmp = db.compare(txn, kd.key, toKeyBuf);
+        if (cmp > 0 || (0 == cmp && !toInclusive)) break;
+      }
+      
+      log.append(txn, this, LMDBChangeLog.Op.DELETE, kd.key, null);
+    }
+  }
+  
+  /**
+   * Apply a (serialized) change recorded by the {@link LMDBChangeLog} of
+   * another environment (see {@link LMDBReplicationFollower}).  The change
+   * is recorded the same way as if it had been made through this map.
+   * @param keyBuf a direct ByteBuffer with the key (null for {@link LMDBChangeLog.Op#CLEAR})
+   * @param valueBuf a direct ByteBuffer with the value (or null)
+   */
+  void apply(Txn txn, LMDBChangeLog.Op op, ByteBuffer keyBuf, ByteBuffer valueBuf) {
+    switch (op) {
+      case PUT:
+        if (db.put(txn, keyBuf, valueBuf, dup ? Api.MDB_NODUPDATA : 0)) written(txn, keyBuf, valueBuf);
+        break;
+      case DELETE:
+        if (db.delete(txn, keyBuf, dup ? valueBuf : null)) deleted(txn, keyBuf, dup ? valueBuf : null);
+        break;
+      case CLEAR:
+        db.truncateDatabase(txn);
+        cleared(txn);
+        break;
+      default:
+        throw new IllegalArgumentException("Unknown op: " + op);
+    }
   }
   
   boolean dup() {
@@ -256,14 +525,25 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
   }
   
   private Map.Entry<K,V> toMapEntry(KeyAndData pair) {
-    return null != pair ? new AbstractMap.SimpleImmutableEntry<K,V>(toKey(pair), toValue(pair)) : null;
+    if (null != metrics) metrics.recordCursorStep();
+    return null != pair ? new AbstractMap.SimpleImmutableEntry<K,V>(key(pair), value(pair)) : null;
   }
   
   private K toKey(KeyAndData pair) {
-    return null != pair && null != pair.key ? keySerializer.deserialize(pair.key) : null;
+    if (null != metrics) metrics.recordCursorStep();
+    return key(pair);
   }
   
   private V toValue(KeyAndData pair) {
+    if (null != metrics) metrics.recordCursorStep();
+    return value(pair);
+  }
+  
+  private K key(KeyAndData pair) {
+    return null != pair && null != pair.key ? keySerializer.deserialize(pair.key) : null;
+  }
+  
+  private V value(KeyAndData pair) {
     return null != pair && null != pair.data ? valueSerializer.deserialize(pair.data) : null;
   }
   
@@ -274,7 +554,7 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
   
   class CursorImpl implements LMDBCursor<K,V> {
     private final LMDBTxnInternal txn;
-    private final Cursor cursor;
+    final Cursor cursor;
     private final AtomicBoolean cursorClosed = new AtomicBoolean(false);
     
     public CursorImpl(LMDBCursor.Mode mode) {
@@ -310,6 +590,7 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
     
     @Override
     public void delete() {
+      deleted(txn.txn(), cursor);
       cursor.delete();
     }
     
@@ -333,19 +614,19 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
     
     public Map.Entry<K,V> higher(K key) {
       try (ReusableBuf cachedKeyBuf = withCachedKeyBuf()) {
-        return toMapEntry(cursor.higher(keySerializer.serialize(key, cachedKeyBuf.buf)));
+        return higher(keySerializer.serialize(key, cachedKeyBuf.buf));
       }
     }
     
     public Map.Entry<K,V> floor(K key) {
       try (ReusableBuf cachedKeyBuf = withCachedKeyBuf()) {
-        return toMapEntry(cursor.floor(keySerializer.serialize(key, cachedKeyBuf.buf)));
+        return floor(keySerializer.serialize(key, cachedKeyBuf.buf));
       }
     }
     
     public Map.Entry<K,V> lower(K key) {
       try (ReusableBuf cachedKeyBuf = withCachedKeyBuf()) {
-        return toMapEntry(cursor.lower(keySerializer.serialize(key, cachedKeyBuf.buf)));
+        return lower(keySerializer.serialize(key, cachedKeyBuf.buf));
       }
     }
     
@@ -474,6 +755,150 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
     }
   }
 
+  @Override
+  PrefixCursorImpl openPrefixCursor(ByteBuffer prefixBuf) {
+    if (null != dbComparator || keySerializer.integerKeys()) throw new IllegalStateException("Prefix scans require keys that are ordered by their bytes (i.e. no custom comparator or integer keys)");
+    return new PrefixCursorImpl(prefixBuf);
+  }
+  
+  /**
+   * A read-only cursor that only sees the keys starting with a prefix.  The
+   * raw bytes of each key are checked against the prefix before the key is
+   * deserialized and moving outside of the matching keys returns null.
+   */
+  class PrefixCursorImpl extends CursorImpl {
+    private final ByteBuffer prefix;
+    
+    // The first possible key after all of the matching keys (or null if the
+    // prefix is empty or all 0xff bytes)
+    private final ByteBuffer end;
+    
+    PrefixCursorImpl(ByteBuffer prefix) {
+      super(LMDBCursor.Mode.READ_ONLY);
+      this.prefix = prefix;
+      this.end = prefixEnd(prefix);
+    }
+    
+    private KeyAndData matching(KeyAndData pair) {
+      return null != pair && hasPrefix(pair.key, prefix) ? pair : null;
+    }
+    
+    private KeyAndData seekFirst() {
+      return matching(prefix.hasRemaining() ? cursor.ceiling(prefix) : cursor.first());
+    }
+    
+    private KeyAndData seekLast() {
+      return matching(null != end ? lowerThan(end) : cursor.last());
+    }
+    
+    private KeyAndData seekCeiling(ByteBuffer key) {
+      return compareKeys(key, prefix) <= 0 ? seekFirst() : matching(cursor.ceiling(key));
+    }
+    
+    private KeyAndData seekHigher(ByteBuffer key) {
+      if (compareKeys(key, prefix) < 0) return seekFirst();
+      final KeyAndData res = cursor.ceiling(key);
+      if (null == res) return null;
+      return matching(0 == compareKeys(key, res.key) ? cursor.nextNoDup() : res);
+    }
+    
+    private KeyAndData seekFloor(ByteBuffer key) {
+      if (null != end && compareKeys(key, end) >= 0) return seekLast();
+      final KeyAndData res = cursor.ceiling(key);
+      if (null == res) return matching(cursor.last());
+      return matching(0 == compareKeys(key, res.key) ? res : cursor.prevNoDup());
+    }
+    
+    private KeyAndData seekLower(ByteBuffer key) {
+      if (compareKeys(key, prefix) <= 0) return null;
+      if (null != end && compareKeys(key, end) > 0) return seekLast();
+      return matching(lowerThan(key));
+    }
+    
+    private KeyAndData lowerThan(ByteBuffer key) {
+      return null == cursor.ceiling(key) ? cursor.last() : cursor.prevNoDup();
+    }
+    
+    @Override
+    public Map.Entry<K,V> first() { return toMapEntry(seekFirst()); }
+    
+    @Override
+    public Map.Entry<K,V> last()  { return toMapEntry(seekLast());  }
+    
+    @Override
+    public Map.Entry<K,V> next()  { return toMapEntry(matching(cursor.next()));  }
+    
+    @Override
+    public Map.Entry<K,V> prev()  { return toMapEntry(matching(cursor.prev()));  }
+    
+    @Override
+    public Map.Entry<K,V> ceiling(ByteBuffer key) { return toMapEntry(seekCeiling(key)); }
+    @Override
+    public Map.Entry<K,V> higher(ByteBuffer key)  { return toMapEntry(seekHigher(key));  }
+    @Override
+    public Map.Entry<K,V> floor(ByteBuffer key)   { return toMapEntry(seekFloor(key));   }
+    @Override
+    public Map.Entry<K,V> lower(ByteBuffer key)   { return toMapEntry(seekLower(key));   }
+    
+    @Override
+    public K firstKey() { return toKey(seekFirst()); }
+    
+    @Override
+    public K lastKey()  { return toKey(seekLast());  }
+    
+    @Override
+    public K nextKey()  { return toKey(matching(cursor.nextNoDup()));  }
+    
+    @Override
+    public K prevKey()  { return toKey(matching(cursor.prevNoDup()));  }
+    
+    @Override
+    public K ceilingKey(ByteBuffer key) { return toKey(seekCeiling(key)); }
+    @Override
+    public K higherKey(ByteBuffer key)  { return toKey(seekHigher(key));  }
+    @Override
+    public K floorKey(ByteBuffer key)   { return toKey(seekFloor(key));   }
+    @Override
+    public K lowerKey(ByteBuffer key)   { return toKey(seekLower(key));   }
+    
+    @Override
+    public V firstValue() { return toValue(seekFirst()); }
+    @Override
+    public V lastValue()  { return toValue(seekLast());  }
+    @Override
+    public V nextValue()  { return toValue(matching(cursor.next()));  }
+    @Override
+    public V prevValue()  { return toValue(matching(cursor.prev()));  }
+  }
+  
+  /**
+   * The first key after every key starting with the prefix (i.e. the prefix
+   * without any trailing 0xff bytes and its last byte incremented) or null
+   * if there is no such key
+   */
+  private static ByteBuffer prefixEnd(ByteBuffer prefix) {
+    int len = prefix.remaining();
+    while (len > 0 && (byte)0xff == prefix.get(prefix.position() + len - 1)) len--;
+    if (0 == len) return null;
+    
+    final ByteBuffer end = ByteBuffer.allocateDirect(len);
+    for (int i = 0; i < len; i++) end.put(prefix.get(prefix.position() + i));
+    end.put(len - 1, (byte)(end.get(len - 1) + 1));
+    end.flip();
+    return end;
+  }
+  
+  private static boolean hasPrefix(ByteBuffer key, ByteBuffer prefix) {
+    final int len = prefix.remaining();
+    if (key.remaining() < len) return false;
+    
+    for (int i = 0; i < len; i++) {
+      if (key.get(key.position() + i) != prefix.get(prefix.position() + i)) return false;
+    }
+    
+    return true;
+  }
+
   ///////////////////////////////////////////////////////////////////////////
   //
   // LMDBMap implementation
@@ -494,6 +919,7 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
       KeyAndData res = cursor.first();
       if (null == res) return null;
       K key = toKey(res);
+      deleted(txn.txn(), cursor);
       cursor.delete();
       return key;
     }
@@ -508,6 +934,7 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
       KeyAndData res = cursor.last();
       if (null == res) return null;
       K key = toKey(res);
+      deleted(txn.txn(), cursor);
       cursor.delete();
       return key;
     }
@@ -610,14 +1037,16 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
     try (
       LMDBTxnInternal txn = withReadWriteTxn();
       ReusableBuf cachedKeyBuf = withCachedKeyBuf();
-      ReusableBuf cachedValueBuf = withCachedValueBuf()
+      ReusableBuf cachedValueBuf = withCachedValueBuf();
+      Cursor cursor = db.openCursor(txn.txn())
     ) {
       final ByteBuffer keyBuf = keySerializer.serialize(key, cachedKeyBuf.buf);
-      final ByteBuffer existingValueBuf = db.get(txn.txn(), keyBuf);
+      final ByteBuffer existingValueBuf = seek(cursor, keyBuf);
       
       if (null != existingValueBuf) return valueSerializer.deserialize(existingValueBuf);
       
-      db.put(txn.txn(), keyBuf, valueSerializer.serialize(value, cachedValueBuf.buf));
+      final ByteBuffer valueBuf = store(txn, cursor, keyBuf, value, cachedValueBuf, false);
+      written(txn.txn(), keyBuf, valueBuf);
       
       return null;
     }
@@ -646,6 +1075,7 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
       final V existing = get(txn.txn(), keyBuf);
       if (null != existing && Objects.equals(existing, value)) {
         db.delete(txn.txn(), keyBuf);
+        deleted(txn.txn(), keyBuf, null);
         return true;
       } else {
         return false;
@@ -681,18 +1111,20 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
     try (
       LMDBTxnInternal txn = withReadWriteTxn();
       ReusableBuf cachedKeyBuf = withCachedKeyBuf();
-      ReusableBuf cachedValueBuf = withCachedValueBuf()
+      ReusableBuf cachedValueBuf = withCachedValueBuf();
+      Cursor cursor = db.openCursor(txn.txn())
     ) {
       final ByteBuffer keyBuf = keySerializer.serialize(key, cachedKeyBuf.buf);
-      final ByteBuffer existingValueBuf = db.get(txn.txn(), keyBuf);
+      final ByteBuffer existingValueBuf = seek(cursor, keyBuf);
       
       if (null == existingValueBuf) return null;
       
-      // Must call *before* we call db.put since it might overwrite
+      // Must call *before* we call store since it might overwrite
       // the existingValueBuf data.
       final V existingValue = valueSerializer.deserialize(existingValueBuf);
       
-      db.put(txn.txn(), keyBuf, valueSerializer.serialize(value, cachedValueBuf.buf));
+      final ByteBuffer valueBuf = store(txn, cursor, keyBuf, value, cachedValueBuf, true);
+      written(txn.txn(), keyBuf, valueBuf);
       
       return existingValue;
     }
@@ -703,17 +1135,19 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
     try (
       LMDBTxnInternal txn = withReadWriteTxn();
       ReusableBuf cachedKeyBuf = withCachedKeyBuf();
-      ReusableBuf cachedValueBuf = withCachedValueBuf()
+      ReusableBuf cachedValueBuf = withCachedValueBuf();
+      Cursor cursor = db.openCursor(txn.txn())
     ) {
       final ByteBuffer keyBuf = keySerializer.serialize(key, cachedKeyBuf.buf);
-      final ByteBuffer existingValueBuf = db.get(txn.txn(), keyBuf);
+      final ByteBuffer existingValueBuf = seek(cursor, keyBuf);
           
       if (null == existingValueBuf) return false;
       
       final V existingValue = valueSerializer.deserialize(existingValueBuf);
       
       if (Objects.equals(existingValue, oldValue)) {
-        db.put(txn.txn(), keyBuf, valueSerializer.serialize(newValue, cachedValueBuf.buf));
+        final ByteBuffer valueBuf = store(txn, cursor, keyBuf, newValue, cachedValueBuf, true);
+        written(txn.txn(), keyBuf, valueBuf);
         return true;
       } else {
         return false;
@@ -721,6 +1155,64 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
     }
   }
   
+  @Override
+  public V compute(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    Objects.requireNonNull(remappingFunction);
+    return update(key, prev -> remappingFunction.apply(key, prev));
+  }
+  
+  @Override
+  public V computeIfAbsent(K key, Function<? super K, ? extends V> mappingFunction) {
+    Objects.requireNonNull(mappingFunction);
+    return update(key, prev -> null != prev ? prev : mappingFunction.apply(key));
+  }
+  
+  @Override
+  public V computeIfPresent(K key, BiFunction<? super K, ? super V, ? extends V> remappingFunction) {
+    Objects.requireNonNull(remappingFunction);
+    return update(key, prev -> null != prev ? remappingFunction.apply(key, prev) : null);
+  }
+  
+  @Override
+  public V merge(K key, V value, BiFunction<? super V, ? super V, ? extends V> remappingFunction) {
+    Objects.requireNonNull(value);
+    Objects.requireNonNull(remappingFunction);
+    return update(key, prev -> null != prev ? remappingFunction.apply(prev, value) : value);
+  }
+  
+  /**
+   * Atomically (in one write transaction with a single B-tree descent)
+   * replace the value of the key with the result of the function, which is
+   * called with the current value (or null).  If the function returns null
+   * the key is removed and if it returns the current value (the same
+   * instance) nothing is written.  The function must not modify this map.
+   * @return the new value
+   */
+  private V update(K key, UnaryOperator<V> fn) {
+    try (
+      LMDBTxnInternal txn = withReadWriteTxn();
+      ReusableBuf cachedKeyBuf = withCachedKeyBuf();
+      ReusableBuf cachedValueBuf = withCachedValueBuf();
+      Cursor cursor = db.openCursor(txn.txn())
+    ) {
+      final ByteBuffer keyBuf = keySerializer.serialize(key, cachedKeyBuf.buf);
+      final ByteBuffer prevBuf = seek(cursor, keyBuf);
+      final V prev = null != prevBuf ? valueSerializer.deserialize(prevBuf) : null;
+      final V value = fn.apply(prev);
+      
+      if (value == prev) return value;
+      
+      if (null == value) {
+        erase(txn.txn(), cursor, keyBuf);
+      } else {
+        final ByteBuffer valueBuf = store(txn, cursor, keyBuf, value, cachedValueBuf, null != prevBuf);
+        written(txn.txn(), keyBuf, valueBuf);
+      }
+      
+      return value;
+    }
+  }
+  
   ///////////////////////////////////////////////////////////////////////////
   //
   // NavigableMap Implementation
@@ -970,6 +1462,7 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
       KeyAndData res = cursor.first();
       if (null == res) return null;
       Map.Entry<K,V> entry = toMapEntry(res);
+      deleted(txn.txn(), cursor);
       cursor.delete();
       return entry;
     }
@@ -984,6 +1477,7 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
       KeyAndData res = cursor.first();
       if (null == res) return null;
       V value = toValue(res);
+      deleted(txn.txn(), cursor);
       cursor.delete();
       return value;
     }
@@ -998,6 +1492,7 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
       KeyAndData res = cursor.last();
       if (null == res) return null;
       Map.Entry<K,V> entry = toMapEntry(res);
+      deleted(txn.txn(), cursor);
       cursor.delete();
       return entry;
     }
@@ -1012,6 +1507,7 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
       KeyAndData res = cursor.last();
       if (null == res) return null;
       V value = toValue(res);
+      deleted(txn.txn(), cursor);
       cursor.delete();
       return value;
     }
@@ -1071,18 +1567,21 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
   public void clear() {
     try (LMDBTxnInternal txn = withReadWriteTxn()) {
       db.truncateDatabase(txn.txn());
+      cleared(txn.txn());
     }
   }
   
   @Override
   @SuppressWarnings("unchecked")
   public boolean containsKey(Object key) {    
-    try (
-      LMDBTxnInternal txn = withReadOnlyTxn();
-      ReusableBuf cachedKeyBuf = withCachedKeyBuf()
-    ) {
-      final ByteBuffer buf = db.get(txn.txn(), keySerializer.serialize((K)key, cachedKeyBuf.buf));
-      return null != buf;
+    try (ReusableBuf cachedKeyBuf = withCachedKeyBuf()) {
+      final ByteBuffer keyBuf = keySerializer.serialize((K)key, cachedKeyBuf.buf);
+      if (!mightContain(keyBuf)) return false;
+      
+      try (LMDBTxnInternal txn = withReadOnlyTxn()) {
+        final ByteBuffer buf = db.get(txn.txn(), keyBuf);
+        return null != buf;
+      }
     }
   }
   
@@ -1101,20 +1600,236 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
   @Override
   @SuppressWarnings("unchecked")
   public V get(Object key) {
-    try (
-      LMDBTxnInternal txn = withReadOnlyTxn();
-      ReusableBuf cachedKeyBuf = withCachedKeyBuf()
-    ) {
+    final long start = null != metrics ? System.nanoTime() : 0L;
+    
+    try (ReusableBuf cachedKeyBuf = withCachedKeyBuf()) {
       final ByteBuffer keyBuf = keySerializer.serialize((K)key, cachedKeyBuf.buf);
-      return get(txn.txn(), keyBuf);
+      
+      if (!mightContain(keyBuf)) {
+        if (null != metrics) {
+          metrics.recordNotFound();
+          metrics.record(LMDBMetrics.Op.GET, start);
+        }
+        
+        return null;
+      }
+      
+      try (LMDBTxnInternal txn = withReadOnlyTxn()) {
+        final V value = get(txn.txn(), keyBuf);
+        if (null != metrics) metrics.record(LMDBMetrics.Op.GET, start);
+        return value;
+      }
     }
   }
   
   V get(Txn txn, ByteBuffer keyBuf) {
     final ByteBuffer buf = db.get(txn, keyBuf);
+    if (null != metrics) recordRead(buf);
     return null != buf ? valueSerializer.deserialize(buf) : null;
   }
   
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<V> getAll(Collection<? extends K> keys) {
+    final int count = keys.size();
+    if (0 == count) return Collections.emptyList();
+    
+    // Serialize every key into a single direct buffer
+    final int[] offsets = new int[count + 1];
+    ByteBuffer arena = ByteBuffer.allocateDirect(count * 16);
+    
+    int n = 0;
+    
+    for (K key : keys) {
+      try (ReusableBuf cachedKeyBuf = withCachedKeyBuf()) {
+        final ByteBuffer keyBuf = keySerializer.serialize(key, cachedKeyBuf.buf);
+        
+        if (arena.remaining() < keyBuf.remaining()) {
+          final ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(arena.capacity() * 2, arena.position() + keyBuf.remaining()));
+          arena.flip();
+          grown.put(arena);
+          arena = grown;
+        }
+        
+        arena.put(keyBuf);
+        offsets[++n] = arena.position();
+      }
+    }
+    
+    final ByteBuffer[] keyBufs = new ByteBuffer[count];
+    final Integer[] order = new Integer[count];
+    
+    // Keys ruled out by the bloom filter are dropped here since the filter
+    // is not used once the read-only txn below is open
+    int lookups = 0;
+    
+    for (int i = 0; i < count; i++) {
+      arena.limit(offsets[i + 1]).position(offsets[i]);
+      keyBufs[i] = arena.slice();
+      
+      if (mightContain(keyBufs[i])) order[lookups++] = i;
+      else if (null != metrics) metrics.recordNotFound();
+    }
+    
+    final Object[] values = new Object[count];
+    if (0 == lookups) return (List<V>)Arrays.asList(values);
+    
+    // Visit the keys in the DB's order so that each MDB_SET_RANGE usually
+    // only has to search the leaf page the cursor is already on
+    Arrays.sort(order, 0, lookups, (a, b) -> compareKeys(keyBufs[a], keyBufs[b]));
+    
+    try (
+      LMDBTxnInternal txn = withReadOnlyTxn();
+      Cursor cursor = db.openCursor(txn.txn())
+    ) {
+      KeyAndData current = null;
+      
+      for (int i = 0; i < lookups; i++) {
+        final int idx = order[i];
+        final ByteBuffer keyBuf = keyBufs[idx];
+        
+        // Already positioned at or after the key (e.g. a repeated key)
+        if (null == current || compareKeys(current.key, keyBuf) < 0) current = cursor.get(keyBuf, null, CursorOp.MDB_SET_RANGE);
+        
+        // Every remaining key is after the last key in the DB
+        if (null == current) break;
+        
+        if (0 == compareKeys(current.key, keyBuf)) {
+          if (null != metrics) metrics.recordBytesRead(current.data.remaining());
+          // Duplicated since the same entry is deserialized again for a repeated key
+          values[idx] = valueSerializer.deserialize(current.data.duplicate());
+        } else if (null != metrics) {
+          metrics.recordNotFound();
+        }
+      }
+    }
+    
+    return (List<V>)Arrays.asList(values);
+  }
+  
+  /**
+   * Compare serialized keys in the same order as the DB (without calling
+   * mdb_cmp for keys that use the default LMDB comparison)
+   */
+  int compareKeys(ByteBuffer a, ByteBuffer b) {
+    if (null != dbComparator) return dbComparator.compare(a.duplicate(), b.duplicate());
+    
+    final int aLen = a.remaining();
+    final int bLen = b.remaining();
+    
+    if (keySerializer.integerKeys() && aLen == bLen) {
+      final ByteOrder order = ByteOrder.nativeOrder();
+      if (4 == aLen) return Integer.compareUnsigned(a.duplicate().order(order).getInt(), b.duplicate().order(order).getInt());
+      if (8 == aLen) return Long.compareUnsigned(a.duplicate().order(order).getLong(), b.duplicate().order(order).getLong());
+    }
+    
+    // memcmp with shorter keys first (mdb_cmp_memn)
+    final int len = Math.min(aLen, bLen);
+    
+    for (int i = 0; i < len; i++) {
+      final int cmp = (a.get(a.position() + i) & 0xff) - (b.get(b.position() + i) & 0xff);
+      if (0 != cmp) return cmp;
+    }
+    
+    return aLen - bLen;
+  }
+  
+  private void recordRead(ByteBuffer buf) {
+    if (null == buf) metrics.recordNotFound();
+    else metrics.recordBytesRead(buf.remaining());
+  }
+  
+  /**
+   * mdb_put the value.  If the map isn't MDB_DUPSORT and the serializer knows
+   * the exact serialized size of a large enough value then the value is
+   * serialized directly into the page memory reserved with MDB_RESERVE
+   * instead of into a scratch buffer that LMDB then copies.
+   * @return the serialized value (which might point into the page) or null
+   *         if the value was not written (because of MDB_NOOVERWRITE,
+   *         MDB_NODUPDATA or MDB_APPEND)
+   */
+  private ByteBuffer putValue(LMDBTxnInternal txn, ByteBuffer keyBuf, V value, ReusableBuf cachedValueBuf, int flags) {
+    return putValue(txn, null, keyBuf, value, cachedValueBuf, flags);
+  }
+  
+  /**
+   * Same as {@link #putValue(LMDBTxnInternal, ByteBuffer, Object, ReusableBuf, int)}
+   * but using mdb_cursor_put if the cursor isn't null (in which case the
+   * flags must not be able to cause an MDB_KEYEXIST error)
+   */
+  private ByteBuffer putValue(LMDBTxnInternal txn, Cursor cursor, ByteBuffer keyBuf, V value, ReusableBuf cachedValueBuf, int flags) {
+    // A partially written reservation can only be undone by aborting the
+    // transaction so MDB_RESERVE is only used if the transaction belongs to
+    // this operation (and not to a caller's enclosing write transaction)
+    final int size = dup || !txn.ownsTxn() ? -1 : valueSerializer.serializedSize(value);
+    
+    if (size < RESERVE_MIN_SIZE) {
+      final ByteBuffer valueBuf = valueSerializer.serialize(value, cachedValueBuf.buf);
+      if (null == cursor) return db.put(txn.txn(), keyBuf, valueBuf, flags) ? valueBuf : null;
+      cursor.put(keyBuf, valueBuf, flags);
+      return valueBuf;
+    }
+    
+    final ByteBuffer page = null == cursor ? db.reserve(txn.txn(), keyBuf, size, flags) : cursor.reserve(keyBuf, size, flags);
+    if (null == page) return null;
+    
+    final ByteBuffer valueBuf;
+    
+    try {
+      valueBuf = valueSerializer.serialize(value, page);
+    } catch (RuntimeException ex) {
+      // Don't let the partially written reservation be committed
+      txn.txn().abort();
+      throw ex;
+    }
+    
+    if (valueBuf == page && page.remaining() == size) return page;
+    
+    // The serializer didn't fill the reservation (e.g. serializedSize() was
+    // wrong) so overwrite it.  The value is serialized again since valueBuf
+    // might point into the reserved memory.
+    final ByteBuffer copyBuf = valueSerializer.serialize(value, cachedValueBuf.buf);
+    if (!db.put(txn.txn(), keyBuf, copyBuf, 0)) throw new IllegalStateException("Expected put to succeed");
+    return copyBuf;
+  }
+  
+  /**
+   * Position the cursor at the key (a single B-tree descent) so that the
+   * value can then be replaced using {@link #store} or removed using
+   * {@link #erase} without searching for the key again
+   * @return the current value (only valid until the next write) or null if
+   *         the key isn't in the map
+   */
+  private static ByteBuffer seek(Cursor cursor, ByteBuffer keyBuf) {
+    final KeyAndData kd = cursor.get(keyBuf, null, CursorOp.MDB_SET_KEY);
+    return null != kd ? kd.data : null;
+  }
+  
+  /**
+   * Write the value of the key the cursor was positioned at by {@link #seek}
+   * @param exists true if {@link #seek} found the key
+   * @return the serialized value
+   */
+  private ByteBuffer store(LMDBTxnInternal txn, Cursor cursor, ByteBuffer keyBuf, V value, ReusableBuf cachedValueBuf, boolean exists) {
+    if (!dup) return putValue(txn, cursor, keyBuf, value, cachedValueBuf, exists ? Api.MDB_CURRENT : 0);
+    
+    // MDB_CURRENT can't change the sort position of a duplicate so the value
+    // is added as another duplicate (the same as db.put)
+    final ByteBuffer valueBuf = valueSerializer.serialize(value, cachedValueBuf.buf);
+    db.put(txn.txn(), keyBuf, valueBuf);
+    return valueBuf;
+  }
+  
+  /**
+   * Remove the key (and all of its values) the cursor was positioned at by
+   * {@link #seek}
+   */
+  private void erase(Txn txn, Cursor cursor, ByteBuffer keyBuf) {
+    if (dup) db.delete(txn, keyBuf);
+    else cursor.delete();
+    deleted(txn, keyBuf, null);
+  }
+  
   @Override
   public boolean isEmpty() {
     return 0 == size();
@@ -1135,12 +1850,22 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
   
   @Override
   boolean add(K key, ByteBuffer keyBuf, V value) {
+    final long start = null != metrics ? System.nanoTime() : 0L;
+    
     try (
       LMDBTxnInternal txn = withReadWriteTxn();
       ReusableBuf cachedValueBuf = withCachedValueBuf()
     ) {
-      final ByteBuffer valueBuf = valueSerializer.serialize(value, cachedValueBuf.buf);
-      return db.put(txn.txn(), keyBuf, valueBuf, dup ? Api.MDB_NODUPDATA : Api.MDB_NOOVERWRITE);
+      final ByteBuffer valueBuf = putValue(txn, keyBuf, value, cachedValueBuf, dup ? Api.MDB_NODUPDATA : Api.MDB_NOOVERWRITE);
+      final boolean res = null != valueBuf;
+      
+      if (res) {
+        if (null != metrics) metrics.recordBytesWritten(keyBuf.remaining() + valueBuf.remaining());
+        written(txn.txn(), keyBuf, valueBuf);
+      }
+      
+      if (null != metrics) metrics.record(LMDBMetrics.Op.PUT, start);
+      return res;
     }
   }
   
@@ -1160,25 +1885,34 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
    * @return The previous value if returnPrevious is true otherwise always null
    */
   V put(K key, V value, boolean returnPrevious) {  
+    final long start = null != metrics ? System.nanoTime() : 0L;
+    
     try (
       LMDBTxnInternal txn = withReadWriteTxn();
       ReusableBuf cachedKeyBuf = withCachedKeyBuf();
       ReusableBuf cachedValueBuf = withCachedValueBuf()
     ) {
       final ByteBuffer keyBuf = keySerializer.serialize(key, cachedKeyBuf.buf);
-      final ByteBuffer valueBuf = valueSerializer.serialize(value, cachedValueBuf.buf);
       
       V prev = null;
+      final ByteBuffer valueBuf;
       
       if (returnPrevious) {
-        final ByteBuffer prevBuf = db.get(txn.txn(), keyBuf);
-        
-        // Must deserialize this *before* the db.put command since db.put might
-        // overwrite the memory location that prevBuf points to
-        prev = null != prevBuf ? valueSerializer.deserialize(prevBuf) : null;
+        try (Cursor cursor = db.openCursor(txn.txn())) {
+          final ByteBuffer prevBuf = seek(cursor, keyBuf);
+          
+          // Must deserialize this *before* the store since it might overwrite
+          // the memory location that prevBuf points to
+          prev = null != prevBuf ? valueSerializer.deserialize(prevBuf) : null;
+          valueBuf = store(txn, cursor, keyBuf, value, cachedValueBuf, null != prevBuf);
+        }
+      } else {
+        valueBuf = putValue(txn, keyBuf, value, cachedValueBuf, 0);
       }
-      
-      db.put(txn.txn(), keyBuf, valueBuf);
+
+      if (null != metrics) metrics.recordBytesWritten(keyBuf.remaining() + valueBuf.remaining());
+      written(txn.txn(), keyBuf, valueBuf);
+      if (null != metrics) metrics.record(LMDBMetrics.Op.PUT, start);
       
       return prev;
     }
@@ -1198,9 +1932,11 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
       ReusableBuf cachedValueBuf = withCachedValueBuf()
     ) {
       final ByteBuffer keyBuf = keySerializer.serialize(key, cachedKeyBuf.buf);
-      final ByteBuffer valueBuf = valueSerializer.serialize(value, cachedValueBuf.buf);
+      final ByteBuffer valueBuf = putValue(txn, keyBuf, value, cachedValueBuf, Api.MDB_APPEND);
 
-      return db.append(txn.txn(), keyBuf, valueBuf);
+      if (null == valueBuf) return false;
+      written(txn.txn(), keyBuf, valueBuf);
+      return true;
     }
   }
   
@@ -1212,7 +1948,9 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
           ReusableBuf cachedKeyBuf = withCachedKeyBuf();
           ReusableBuf cachedValueBuf = withCachedValueBuf()
         ) {
-          db.put(txn.txn(), keySerializer.serialize(entry.getKey(), cachedKeyBuf.buf), valueSerializer.serialize(entry.getValue(), cachedValueBuf.buf));
+          final ByteBuffer keyBuf = keySerializer.serialize(entry.getKey(), cachedKeyBuf.buf);
+          final ByteBuffer valueBuf = putValue(txn, keyBuf, entry.getValue(), cachedValueBuf, 0);
+          written(txn.txn(), keyBuf, valueBuf);
         }
       }
     }
@@ -1221,21 +1959,32 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
   @Override
   @SuppressWarnings("unchecked")
   public V remove(Object key) {
+    final long start = null != metrics ? System.nanoTime() : 0L;
+    
     try (
      LMDBTxnInternal txn = withReadWriteTxn();
-     ReusableBuf cachedKeyBuf = withCachedKeyBuf()
+     ReusableBuf cachedKeyBuf = withCachedKeyBuf();
+     Cursor cursor = db.openCursor(txn.txn())
     ) {
       final ByteBuffer keyBuf = keySerializer.serialize((K)key, cachedKeyBuf.buf);
-      final ByteBuffer prevBuf = db.get(txn.txn(), keyBuf);
+      final ByteBuffer prevBuf = seek(cursor, keyBuf);
       
-      if (null == prevBuf) return null;
+      if (null == prevBuf) {
+        if (null != metrics) {
+          metrics.recordNotFound();
+          metrics.record(LMDBMetrics.Op.REMOVE, start);
+        }
+        
+        return null;
+      }
       
-      // Must deserialize *before* the db.delete call since after
+      // Must deserialize *before* the erase call since after
       // delete we are not guaranteed that prevBuf still points to 
       // value data.
       final V prev = valueSerializer.deserialize(prevBuf);
       
-      db.delete(txn.txn(), keyBuf);
+      erase(txn.txn(), cursor, keyBuf);
+      if (null != metrics) metrics.record(LMDBMetrics.Op.REMOVE, start);
       return prev;
     }
   }
@@ -1250,8 +1999,18 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
   
   @Override
   boolean removeNoPrev(K key, ByteBuffer keyBuf) {
+    final long start = null != metrics ? System.nanoTime() : 0L;
+    
     try (LMDBTxnInternal txn = withReadWriteTxn()) {
-      return db.delete(txn.txn(), keyBuf);
+      final boolean res = db.delete(txn.txn(), keyBuf);
+      if (res) deleted(txn.txn(), keyBuf, null);
+      
+      if (null != metrics) {
+        if (!res) metrics.recordNotFound();
+        metrics.record(LMDBMetrics.Op.REMOVE, start);
+      }
+      
+      return res;
     }
   }
   
@@ -1282,6 +2041,86 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
     }
   }
   
+  /**
+   * The number of unique keys within a range of (already serialized) keys.
+   * The range is counted by the underlying cursor without deserializing keys.
+   */
+  long keyCount(ByteBuffer fromKeyBuf, boolean fromInclusive, ByteBuffer toKeyBuf, boolean toInclusive) {
+    return rangeCount(fromKeyBuf, fromInclusive, toKeyBuf, toInclusive, false);
+  }
+  
+  /**
+   * The number of values within a range of (already serialized) keys.
+   * The range is counted by the underlying cursor without deserializing keys.
+   */
+  long valueCount(ByteBuffer fromKeyBuf, boolean fromInclusive, ByteBuffer toKeyBuf, boolean toInclusive) {
+    return rangeCount(fromKeyBuf, fromInclusive, toKeyBuf, toInclusive, dup);
+  }
+  
+  private long rangeCount(ByteBuffer fromKeyBuf, boolean fromInclusive, ByteBuffer toKeyBuf, boolean toInclusive, boolean dups) {
+    try (
+      final LMDBTxnInternal txn = withReadOnlyTxn();
+      final Cursor cursor = db.openCursor(txn.txn())
+    ) {
+      return cursor.count(fromKeyBuf, fromInclusive, toKeyBuf, toInclusive, dups);
+    }
+  }
+  
+  @Override
+  List<K> splitKeys(int partitions) {
+    return splitKeys(null, false, null, false, partitions);
+  }
+  
+  /**
+   * Keys that divide a range of (already serialized) keys into (up to) the
+   * specified number of roughly equal partitions.  Only the returned keys
+   * are deserialized.
+   */
+  List<K> splitKeys(ByteBuffer fromKeyBuf, boolean fromInclusive, ByteBuffer toKeyBuf, boolean toInclusive, int partitions) {
+    try (
+      final LMDBTxnInternal txn = withReadOnlyTxn();
+      final Cursor cursor = db.openCursor(txn.txn())
+    ) {
+      final List<ByteBuffer> bufs = cursor.splitKeys(fromKeyBuf, fromInclusive, toKeyBuf, toInclusive, partitions);
+      final List<K> keys = new ArrayList<K>(bufs.size());
+      for (ByteBuffer buf : bufs) keys.add(keySerializer.deserialize(buf));
+      return keys;
+    }
+  }
+  
+  /**
+   * The maximum number of keys deleted per transaction by {@link #clear(ByteBuffer, boolean, ByteBuffer, boolean)}
+   */
+  static final long CLEAR_RANGE_CHUNK_SIZE = 10_000;
+  
+  /**
+   * Delete every key (and all duplicate values) within a range of (already
+   * serialized) keys without deserializing anything.
+   * <p>
+   * When not already inside a read/write transaction each chunk of
+   * {@link #CLEAR_RANGE_CHUNK_SIZE} keys is committed separately so clearing
+   * a huge range does not build up one giant dirty transaction.
+   * @return the number of keys deleted
+   */
+  long clear(ByteBuffer fromKeyBuf, boolean fromInclusive, ByteBuffer toKeyBuf, boolean toInclusive) {
+    long total = 0;
+    long deleted;
+    
+    do {
+      try (
+        final LMDBTxnInternal txn = withReadWriteTxn();
+        final Cursor cursor = db.openCursor(txn.txn())
+      ) {
+        rangeDeleted(txn.txn(), cursor, fromKeyBuf, fromInclusive, toKeyBuf, toInclusive, CLEAR_RANGE_CHUNK_SIZE);
+        deleted = cursor.deleteRange(fromKeyBuf, fromInclusive, toKeyBuf, toInclusive, dup, CLEAR_RANGE_CHUNK_SIZE);
+      }
+      
+      total += deleted;
+    } while (deleted == CLEAR_RANGE_CHUNK_SIZE);
+    
+    return total;
+  }
+  
   void assertOpen() {
     if (closed.get()) throw new IllegalStateException("Database has been closed!");
   }
@@ -1293,11 +2132,21 @@ class LMDBMapImpl<K,V> extends LMDBMapInternal<K,V> {
   public String getName() {
     return name;
   }
+  
+  /**
+   * @return the mdb_stat statistics for this database
+   */
+  Stat stat() {
+    try (LMDBTxnInternal txn = withReadOnlyTxn()) {
+      return db.stat(txn.txn());
+    }
+  }
 
   @Override
   public void close() {
     if (closed.compareAndSet(false, true)) {
       db.close();
+      if (null != metrics) metrics.unregister();
     }
   }
   
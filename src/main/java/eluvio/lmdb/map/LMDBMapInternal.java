@@ -16,7 +16,10 @@
 package eluvio.lmdb.map;
 
 import java.nio.ByteBuffer;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 
 abstract class LMDBMapInternal<K, V> implements LMDBMap<K, V> {
   @Override
@@ -90,6 +93,18 @@ abstract class LMDBMapInternal<K, V> implements LMDBMap<K, V> {
 
   abstract LMDBSerializer<K> keySerializer();
 
+  /**
+   * Keys that divide this map into (up to) the specified number of roughly
+   * equal partitions.  Implementations that cannot do this efficiently may
+   * return an empty list (i.e. a single partition).
+   * 
+   * @param partitions the desired number of partitions
+   * @return the (increasing) keys that start each partition after the first
+   */
+  List<K> splitKeys(int partitions) {
+    return Collections.emptyList();
+  }
+
   final LMDBCursor<K, V> openReadOnlyCursor() {
     return openCursor(LMDBCursor.Mode.READ_ONLY);
   }
@@ -104,6 +119,51 @@ abstract class LMDBMapInternal<K, V> implements LMDBMap<K, V> {
 
   abstract LMDBCursor<K, V> openCursor(LMDBCursor.Mode mode);
 
+  /**
+   * A read-only cursor over only the keys starting with the prefix
+   * 
+   * @param prefixBuf a direct buffer with the raw prefix bytes
+   * @return the cursor
+   */
+  abstract LMDBCursor<K, V> openPrefixCursor(ByteBuffer prefixBuf);
+
+  @Override
+  final public LMDBIterator<Map.Entry<K, V>> prefixScan(K prefix) {
+    return LMDBIteratorImpl.forEntries(openPrefixCursor(keySerializer().serialize(prefix, null)));
+  }
+
+  @Override
+  final public LMDBIterator<Map.Entry<K, V>> prefixScan(ByteBuffer prefix) {
+    return LMDBIteratorImpl.forEntries(openPrefixCursor(directCopy(prefix)));
+  }
+
+  @Override
+  final public LMDBIterator<K> prefixScanKeys(K prefix) {
+    return LMDBIteratorImpl.forKeys(openPrefixCursor(keySerializer().serialize(prefix, null)));
+  }
+
+  @Override
+  final public LMDBIterator<K> prefixScanKeys(ByteBuffer prefix) {
+    return LMDBIteratorImpl.forKeys(openPrefixCursor(directCopy(prefix)));
+  }
+
+  @Override
+  final public LMDBIterator<V> prefixScanValues(K prefix) {
+    return LMDBIteratorImpl.forValues(openPrefixCursor(keySerializer().serialize(prefix, null)));
+  }
+
+  @Override
+  final public LMDBIterator<V> prefixScanValues(ByteBuffer prefix) {
+    return LMDBIteratorImpl.forValues(openPrefixCursor(directCopy(prefix)));
+  }
+
+  private static ByteBuffer directCopy(ByteBuffer buf) {
+    final ByteBuffer res = ByteBuffer.allocateDirect(buf.remaining());
+    res.put(buf.duplicate());
+    res.flip();
+    return res;
+  }
+
   @Override
   final public boolean readOnly() {
     return env().readOnly();
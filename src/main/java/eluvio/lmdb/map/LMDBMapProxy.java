@@ -16,7 +16,9 @@
 package eluvio.lmdb.map;
 
 import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
@@ -218,6 +220,11 @@ class LMDBMapProxy<K, V> extends LMDBMapInternal<K, V> {
     return self.get(key);
   }
 
+  @Override
+  public List<V> getAll(Collection<? extends K> keys) {
+    return self.getAll(keys);
+  }
+
   @Override
   public V getOrDefault(Object key, V defaultValue) {
     return self.getOrDefault(key, defaultValue);
@@ -263,6 +270,11 @@ class LMDBMapProxy<K, V> extends LMDBMapInternal<K, V> {
     return self.keySerializer();
   }
 
+  @Override
+  List<K> splitKeys(int partitions) {
+    return self.splitKeys(partitions);
+  }
+
   @Override
   public LMDBKeySet<K> keySet() {
     return self.keySet();
@@ -303,6 +315,11 @@ class LMDBMapProxy<K, V> extends LMDBMapInternal<K, V> {
     return self.openCursor(mode);
   }
 
+  @Override
+  LMDBCursor<K, V> openPrefixCursor(ByteBuffer prefixBuf) {
+    return self.openPrefixCursor(prefixBuf);
+  }
+
   @Override
   public java.util.Map.Entry<K, V> pollFirstEntry() {
     return self.pollFirstEntry();
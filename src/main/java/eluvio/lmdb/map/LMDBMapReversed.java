@@ -16,7 +16,9 @@
 package eluvio.lmdb.map;
 
 import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 
 class LMDBMapReversed<K, V> extends LMDBMapInternal<K, V> {
@@ -334,6 +336,11 @@ class LMDBMapReversed<K, V> extends LMDBMapInternal<K, V> {
     return map.get(key);
   }
 
+  @Override
+  public List<V> getAll(Collection<? extends K> keys) {
+    return map.getAll(keys);
+  }
+
   @Override
   public LMDBMapInternal<K, V> headMap(K toKey) {
     return map.tailMap(toKey).descendingMap();
@@ -404,6 +411,11 @@ class LMDBMapReversed<K, V> extends LMDBMapInternal<K, V> {
     return new CursorImpl(map.openCursor(mode));
   }
 
+  @Override
+  LMDBCursor<K, V> openPrefixCursor(ByteBuffer prefixBuf) {
+    return new CursorImpl(map.openPrefixCursor(prefixBuf));
+  }
+
   @Override
   public Map.Entry<K, V> pollFirstEntry() {
     return map.pollLastEntry();
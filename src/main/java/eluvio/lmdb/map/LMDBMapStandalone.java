@@ -46,6 +46,13 @@ public class LMDBMapStandalone<K,V> extends LMDBMapImpl<K,V> implements LMDBEnv
     super(new LMDBEnvImpl(path, readOnly, mapsize), keySerializer, valueSerializer, keyComparator);
   }
   
+  /**
+   * A named database in its own environment (which is closed along with it)
+   */
+  LMDBMapStandalone(LMDBEnvImpl env, String name, LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer) {
+    super(env, name, keySerializer, valueSerializer, null, null, false);
+  }
+  
   public LMDBMapStandalone(LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer) {
     this(null, keySerializer, valueSerializer);
   }
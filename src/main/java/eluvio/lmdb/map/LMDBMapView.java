@@ -17,7 +17,9 @@ package eluvio.lmdb.map;
 
 import java.nio.ByteBuffer;
 import java.util.AbstractMap;
+import java.util.Collection;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 
@@ -308,7 +310,7 @@ class LMDBMapView<K, V> extends LMDBMapInternal<K, V> {
 
   @Override
   public void clear() {
-    throw new UnsupportedOperationException("Not currently supported for submaps");
+    map.clear(fromKeyBuf, fromInclusive, toKeyBuf, toInclusive);
   }
 
   @Override
@@ -486,6 +488,19 @@ class LMDBMapView<K, V> extends LMDBMapInternal<K, V> {
     return map.get(key);
   }
 
+  @Override
+  public List<V> getAll(Collection<? extends K> keys) {
+    final List<V> res = map.getAll(keys);
+    int i = 0;
+    
+    for (K key : keys) {
+      if (!withinRange(key)) res.set(i, null);
+      i++;
+    }
+    
+    return res;
+  }
+
   private Map.Entry<K, V> handleNavigableEntryResult(Map.Entry<K, V> entry) {
     return null != entry && withinRange(entry.getKey()) ? entry : null;
   }
@@ -520,23 +535,17 @@ class LMDBMapView<K, V> extends LMDBMapInternal<K, V> {
 
   @Override
   public boolean isEmpty() {
-    try (LMDBIterator<K> it = keySet.lmdbIterator()) {
-      return it.hasNext();
-    }
+    return null == firstKey();
   }
 
   @Override
   public long keyCount() {
-    int i = 0;
-
-    try (LMDBIterator<K> it = keySet.lmdbIterator()) {
-      while (it.hasNext()) {
-        it.next();
-        i++;
-      }
-    }
+    return map.keyCount(fromKeyBuf, fromInclusive, toKeyBuf, toInclusive);
+  }
 
-    return i;
+  @Override
+  List<K> splitKeys(int partitions) {
+    return map.splitKeys(fromKeyBuf, fromInclusive, toKeyBuf, toInclusive, partitions);
   }
 
   @Override
@@ -589,6 +598,11 @@ class LMDBMapView<K, V> extends LMDBMapInternal<K, V> {
     return new CursorImpl(map.openCursor(mode));
   }
 
+  @Override
+  LMDBCursor<K, V> openPrefixCursor(ByteBuffer prefixBuf) {
+    return new CursorImpl(map.openPrefixCursor(prefixBuf));
+  }
+
   @Override
   public Map.Entry<K, V> pollFirstEntry() {
     if (null == fromKey) return map.pollFirstEntry();
@@ -743,7 +757,22 @@ class LMDBMapView<K, V> extends LMDBMapInternal<K, V> {
   @Override
   public LMDBMapInternal<K, V> subMap(K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
     if (null != fromKey && null != toKey && compare(fromKey, toKey) >= 0) throw new IllegalArgumentException("Expected fromKey to be less than toKey");
-    return new LMDBMapView<K, V>(map, adjustKey(fromKey), fromInclusive && (null == fromKey || this.fromInclusive), adjustKey(toKey), toInclusive && (null == toKey || this.toInclusive));
+
+    // Narrow our own bounds by the requested ones.  Our inclusive flags only
+    // matter when the resulting bound is our own fromKey/toKey.
+    if (null != this.fromKey) {
+      final int cmp = null == fromKey ? -1 : compare(fromKey, this.fromKey);
+      if (cmp < 0) fromInclusive = this.fromInclusive;
+      else if (0 == cmp) fromInclusive = fromInclusive && this.fromInclusive;
+    }
+
+    if (null != this.toKey) {
+      final int cmp = null == toKey ? 1 : compare(toKey, this.toKey);
+      if (cmp > 0) toInclusive = this.toInclusive;
+      else if (0 == cmp) toInclusive = toInclusive && this.toInclusive;
+    }
+
+    return new LMDBMapView<K, V>(map, null == fromKey ? this.fromKey : adjustKey(fromKey), fromInclusive, null == toKey ? this.toKey : adjustKey(toKey), toInclusive);
   }
 
   @Override
@@ -778,16 +807,7 @@ class LMDBMapView<K, V> extends LMDBMapInternal<K, V> {
 
   @Override
   public long valueCount() {
-    int i = 0;
-
-    try (LMDBIterator<V> it = values.lmdbIterator()) {
-      while (it.hasNext()) {
-        it.next();
-        i++;
-      }
-    }
-
-    return i;
+    return map.valueCount(fromKeyBuf, fromInclusive, toKeyBuf, toInclusive);
   }
 
   @Override
@@ -0,0 +1,51 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Wraps a serializer to record serialize/deserialize latencies.  Only used
+ * when {@link LMDBMetrics#ENABLED} is set.
+ */
+final class LMDBMeteredSerializer<T> extends LMDBSerializer<T> {
+  private final LMDBSerializer<T> serializer;
+  private final LMDBMetrics metrics;
+
+  LMDBMeteredSerializer(LMDBSerializer<T> serializer, LMDBMetrics metrics) {
+    this.serializer = serializer;
+    this.metrics = metrics;
+  }
+
+  public int cachedBufferSize() { return serializer.cachedBufferSize(); }
+  public boolean integerKeys() { return serializer.integerKeys(); }
+  public boolean fixedSize() { return serializer.fixedSize(); }
+  public int serializedSize(T data) { return serializer.serializedSize(data); }
+
+  public ByteBuffer serialize(T data, ByteBuffer buf) {
+    final long start = System.nanoTime();
+    final ByteBuffer res = serializer.serialize(data, buf);
+    metrics.record(LMDBMetrics.Op.SERIALIZE, start);
+    return res;
+  }
+
+  public T deserialize(ByteBuffer buf) {
+    final long start = System.nanoTime();
+    final T res = serializer.deserialize(buf);
+    metrics.record(LMDBMetrics.Op.DESERIALIZE, start);
+    return res;
+  }
+}
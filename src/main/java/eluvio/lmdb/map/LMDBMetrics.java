@@ -0,0 +1,220 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Optional operation level metrics (counts, bytes and latency histograms)
+ * for an LMDB environment and each of its maps, exposed as JMX MBeans under
+ * the "eluvio.lmdb" domain.
+ * <p>
+ * Metrics are disabled by default and can be enabled by setting either an
+ * environment variable (LMDB_METRICS=true) or a Java System Property
+ * (lmdb_metrics=true) before the first environment is opened.  When disabled
+ * no LMDBMetrics instances are created and the instrumented code paths skip
+ * all timer reads and allocations.
+ */
+public final class LMDBMetrics implements LMDBMetricsMXBean {
+  final private static String ENV_VARIABLE_NAME = "LMDB_METRICS";
+  final private static String PROPERTY_NAME = "lmdb_metrics";
+
+  /** Whether metrics are collected for newly opened environments and maps */
+  public static final boolean ENABLED = Boolean.parseBoolean(System.getProperty(PROPERTY_NAME, System.getenv(ENV_VARIABLE_NAME)));
+
+  public static final String JMX_DOMAIN = "eluvio.lmdb";
+
+  public enum Op {
+    /** Beginning (or renewing) a transaction */
+    TXN_BEGIN,
+    /** Committing a read/write transaction (including any fsync) */
+    TXN_COMMIT,
+    GET,
+    PUT,
+    REMOVE,
+    SERIALIZE,
+    DESERIALIZE
+  }
+
+  private static final double[] PERCENTILES = { 50.0, 90.0, 99.0, 99.9 };
+  private static final String[] PERCENTILE_NAMES = { "p50", "p90", "p99", "p999" };
+
+  private final LMDBLatencyHistogram[] latencies = new LMDBLatencyHistogram[Op.values().length];
+  private final LongAdder notFound = new LongAdder();
+  private final LongAdder bytesRead = new LongAdder();
+  private final LongAdder bytesWritten = new LongAdder();
+  private final LongAdder cursorSteps = new LongAdder();
+  private final String path;
+  private ObjectName objectName = null;
+
+  LMDBMetrics(String path) {
+    this.path = path;
+    for (int i = 0; i < latencies.length; i++) latencies[i] = new LMDBLatencyHistogram();
+  }
+
+  /**
+   * Create metrics for an environment and register them with the platform
+   * MBeanServer
+   */
+  static LMDBMetrics forEnv(String path) {
+    final LMDBMetrics metrics = new LMDBMetrics(path);
+    metrics.register("type=Env,path=" + ObjectName.quote(path));
+    return metrics;
+  }
+
+  /**
+   * Create metrics for a map (i.e. named database) in this environment and
+   * register them with the platform MBeanServer
+   */
+  LMDBMetrics forMap(String name) {
+    final LMDBMetrics metrics = new LMDBMetrics(path);
+    metrics.register("type=Map,path=" + ObjectName.quote(path) + ",name=" + ObjectName.quote(null == name ? "" : name));
+    return metrics;
+  }
+
+  private void register(String properties) {
+    try {
+      final ObjectName name = new ObjectName(JMX_DOMAIN + ":" + properties);
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+
+      // If the same env/map is opened more than once only the first one is registered
+      if (!server.isRegistered(name)) {
+        server.registerMBean(this, name);
+        objectName = name;
+      }
+    } catch (JMException ex) {
+      // Metrics are still collected even if they cannot be exposed
+    }
+  }
+
+  /**
+   * Unregister the MBean (if it was registered)
+   */
+  void unregister() {
+    if (null == objectName) return;
+
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    } catch (JMException ex) {
+      // Already unregistered
+    }
+
+    objectName = null;
+  }
+
+  /**
+   * Record the latency of an operation that started at startNanos (from {@link System#nanoTime()})
+   */
+  void record(Op op, long startNanos) {
+    latencies[op.ordinal()].record(System.nanoTime() - startNanos);
+  }
+
+  void recordNotFound() {
+    notFound.increment();
+  }
+
+  void recordBytesRead(long bytes) {
+    bytesRead.add(bytes);
+  }
+
+  void recordBytesWritten(long bytes) {
+    bytesWritten.add(bytes);
+  }
+
+  void recordCursorStep() {
+    cursorSteps.increment();
+  }
+
+  /**
+   * @return the number of times the operation was recorded
+   */
+  public long count(Op op) {
+    return latencies[op.ordinal()].count();
+  }
+
+  /**
+   * @param percentile between 0 and 100
+   * @return the latency (in nanoseconds) of the operation at the percentile
+   */
+  public long latencyNanos(Op op, double percentile) {
+    return latencies[op.ordinal()].percentile(percentile);
+  }
+
+  /**
+   * @return the number of get/remove operations that did not find the key
+   */
+  public long notFoundCount() {
+    return notFound.sum();
+  }
+
+  public long bytesRead() {
+    return bytesRead.sum();
+  }
+
+  public long bytesWritten() {
+    return bytesWritten.sum();
+  }
+
+  public long cursorSteps() {
+    return cursorSteps.sum();
+  }
+
+  @Override
+  public Map<String,Long> getCounts() {
+    final Map<String,Long> res = new LinkedHashMap<String,Long>();
+    for (Op op : Op.values()) res.put(name(op), count(op));
+    res.put("not_found", notFoundCount());
+    res.put("bytes_read", bytesRead());
+    res.put("bytes_written", bytesWritten());
+    res.put("cursor_steps", cursorSteps());
+    return res;
+  }
+
+  @Override
+  public Map<String,Long> getLatencyNanos() {
+    final Map<String,Long> res = new LinkedHashMap<String,Long>();
+
+    for (Op op : Op.values()) {
+      final LMDBLatencyHistogram histogram = latencies[op.ordinal()];
+      final String name = name(op);
+      res.put(name + ".mean", histogram.mean());
+      for (int i = 0; i < PERCENTILES.length; i++) res.put(name + "." + PERCENTILE_NAMES[i], histogram.percentile(PERCENTILES[i]));
+      res.put(name + ".max", histogram.max());
+    }
+
+    return res;
+  }
+
+  @Override
+  public void reset() {
+    for (LMDBLatencyHistogram histogram : latencies) histogram.reset();
+    notFound.reset();
+    bytesRead.reset();
+    bytesWritten.reset();
+    cursorSteps.reset();
+  }
+
+  private static String name(Op op) {
+    return op.name().toLowerCase(Locale.ROOT);
+  }
+}
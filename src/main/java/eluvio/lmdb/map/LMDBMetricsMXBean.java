@@ -0,0 +1,40 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.util.Map;
+
+/**
+ * The JMX interface for {@link LMDBMetrics}
+ */
+public interface LMDBMetricsMXBean {
+  /**
+   * @return the number of operations of each type along with the not found,
+   *         bytes read/written and cursor step counters
+   */
+  Map<String,Long> getCounts();
+
+  /**
+   * @return the mean, p50, p90, p99, p999 and max latency (in nanoseconds)
+   *         of each operation type (e.g. "get.p99")
+   */
+  Map<String,Long> getLatencyNanos();
+
+  /**
+   * Reset all counters and latency histograms
+   */
+  void reset();
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Collector;
+
+/**
+ * Scans an {@link LMDBMap} (or a sub-map view of one) in parallel by dividing
+ * it into key range partitions that are scanned by worker tasks (each with
+ * its own read-only transaction) on a {@link ForkJoinPool}.
+ * <p>
+ * Partition boundaries are picked by natively walking the keys (without
+ * deserializing them) so each partition has roughly the same number of keys.
+ * <p>
+ * All of the partitions are read from the same snapshot without blocking
+ * writers: the partitions are picked in a read-only transaction on the
+ * calling thread, which then scans partitions itself alongside the workers.
+ * A worker whose read-only transaction sees a different snapshot (because a
+ * write was committed in between) or whose pool thread already has a
+ * transaction open leaves its partitions to the calling thread, so at worst
+ * the whole scan runs on the calling thread.
+ * <p>
+ * If the calling thread already has a transaction open then the worker
+ * threads could not see the same data (it may be an older snapshot or
+ * include uncommitted writes) so the partitions are instead scanned one
+ * after the other on the calling thread using that transaction.
+ *
+ * @param <K> map key
+ * @param <V> map value
+ */
+public class LMDBParallelScanner<K,V> {
+  private final LMDBMapInternal<K,V> map;
+  private final ForkJoinPool pool;
+  private final int partitions;
+
+  public LMDBParallelScanner(LMDBMap<K,V> map) {
+    this(map, ForkJoinPool.commonPool());
+  }
+
+  public LMDBParallelScanner(LMDBMap<K,V> map, ForkJoinPool pool) {
+    this(map, pool, pool.getParallelism() * 4);
+  }
+
+  /**
+   * @param map the map to scan
+   * @param pool the pool to run the partition scans on
+   * @param partitions the (maximum) number of key range partitions to use
+   */
+  public LMDBParallelScanner(LMDBMap<K,V> map, ForkJoinPool pool, int partitions) {
+    if (!(map instanceof LMDBMapInternal)) throw new IllegalArgumentException("Unsupported LMDBMap implementation: " + map.getClass());
+    if (partitions <= 0) throw new IllegalArgumentException("Partitions must be positive: " + partitions);
+    this.map = (LMDBMapInternal<K,V>)map;
+    this.pool = pool;
+    this.partitions = partitions;
+  }
+
+  /**
+   * Scan every entry in the map and reduce them with the collector.  Each
+   * partition gets its own result container and the containers are combined
+   * in key order.
+   */
+  public <A,R> R collect(Collector<? super Map.Entry<K,V>, A, R> collector) {
+    return scan(collector);
+  }
+
+  /**
+   * Call the action for every entry in the map.  The action is called
+   * concurrently from multiple threads and in no particular order.
+   */
+  public void forEach(Consumer<? super Map.Entry<K,V>> action) {
+    scan(Collector.<Map.Entry<K,V>, Void>of(() -> null, (ignored, entry) -> action.accept(entry), (a, b) -> null));
+  }
+
+  private <A,R> R scan(Collector<? super Map.Entry<K,V>, A, R> collector) {
+    final LMDBEnvInternal env = map.env();
+
+    if (env.hasOpenTxn()) {
+      try (LMDBTxnInternal txn = map.withExistingTxn()) {
+        final List<LMDBMapInternal<K,V>> ranges = ranges(map.splitKeys(partitions));
+        final List<A> containers = new ArrayList<A>(ranges.size());
+        for (LMDBMapInternal<K,V> range : ranges) containers.add(scanRange(range, collector));
+        return combine(containers, collector);
+      }
+    }
+
+    final Worker<A> worker;
+    final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+
+    try (LMDBTxnInternal txn = map.withReadOnlyTxn()) {
+      worker = new Worker<A>(ranges(map.splitKeys(partitions)), collector, txn.txn().id());
+      worker.submit(tasks);
+      worker.scanRemaining();
+    }
+
+    try {
+      // Only ranges that a worker has already started on are left
+      worker.awaitFinished();
+    } finally {
+      // Workers that have not started yet have nothing left to do
+      for (ForkJoinTask<?> task : tasks) task.cancel(false);
+    }
+
+    return combine(worker.containers, collector);
+  }
+
+  private <A,R> R combine(List<A> containers, Collector<? super Map.Entry<K,V>, A, R> collector) {
+    A result = null;
+
+    for (A partial : containers) {
+      result = null == result ? partial : collector.combiner().apply(result, partial);
+    }
+
+    return collector.finisher().apply(result);
+  }
+
+  private <A> A scanRange(LMDBMapInternal<K,V> range, Collector<? super Map.Entry<K,V>, A, ?> collector) {
+    final A container = collector.supplier().get();
+
+    try (LMDBIterator<Map.Entry<K,V>> it = range.entrySet().lmdbIterator()) {
+      while (it.hasNext()) collector.accumulator().accept(container, it.next());
+    }
+
+    return container;
+  }
+
+  /**
+   * The state shared by the calling thread and the worker tasks of a single
+   * scan.  There is one task per pool thread (or range if there are fewer)
+   * and each one (like the calling thread) takes the next unscanned range
+   * until there are none left so every worker only has to begin a single
+   * read-only transaction.
+   */
+  private final class Worker<A> {
+    final List<LMDBMapInternal<K,V>> ranges;
+    final Collector<? super Map.Entry<K,V>, A, ?> collector;
+    final long snapshotId;
+    final List<A> containers;
+    final AtomicInteger next = new AtomicInteger();
+    final CountDownLatch finished;
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+    Worker(List<LMDBMapInternal<K,V>> ranges, Collector<? super Map.Entry<K,V>, A, ?> collector, long snapshotId) {
+      this.ranges = ranges;
+      this.collector = collector;
+      this.snapshotId = snapshotId;
+      this.containers = new ArrayList<A>(ranges.size());
+      for (int i = 0; i < ranges.size(); i++) containers.add(null);
+      this.finished = new CountDownLatch(ranges.size());
+    }
+
+    void submit(List<ForkJoinTask<?>> tasks) {
+      // The calling thread scans ranges too
+      for (int i = Math.min(ranges.size() - 1, pool.getParallelism()); i > 0; i--) tasks.add(pool.submit(this::run));
+    }
+
+    /** Scan ranges until there are none left (in the current thread's read-only txn at snapshotId) */
+    void scanRemaining() {
+      for (int i = next.getAndIncrement(); i < ranges.size(); i = next.getAndIncrement()) {
+        try {
+          if (null == failure.get()) containers.set(i, scanRange(ranges.get(i), collector));
+        } catch (RuntimeException | Error ex) {
+          failure.compareAndSet(null, ex);
+        } finally {
+          finished.countDown();
+        }
+      }
+    }
+
+    void awaitFinished() {
+      try {
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+          @Override public boolean block() throws InterruptedException {
+            finished.await();
+            return true;
+          }
+
+          @Override public boolean isReleasable() {
+            return 0 == finished.getCount();
+          }
+        });
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for the parallel scan", ex);
+      }
+
+      final Throwable ex = failure.get();
+      if (ex instanceof Error) throw (Error)ex;
+      if (null != ex) throw (RuntimeException)ex;
+    }
+
+    void run() {
+      // This pool thread is already in a transaction (e.g. it picked this
+      // task up while joining another one) so leave the ranges to the others
+      if (map.env().hasOpenTxn()) return;
+
+      try (LMDBTxnInternal txn = map.withReadOnlyTxn()) {
+        // A write was committed after the partitions were picked
+        if (txn.txn().id() != snapshotId) return;
+
+        scanRemaining();
+      }
+    }
+  }
+
+  private List<LMDBMapInternal<K,V>> ranges(List<K> splitKeys) {
+    final List<LMDBMapInternal<K,V>> ranges = new ArrayList<LMDBMapInternal<K,V>>(splitKeys.size() + 1);
+
+    if (splitKeys.isEmpty()) {
+      ranges.add(map);
+      return ranges;
+    }
+
+    ranges.add(map.headMap(splitKeys.get(0), false));
+
+    for (int i = 1; i < splitKeys.size(); i++) {
+      ranges.add(map.subMap(splitKeys.get(i - 1), true, splitKeys.get(i), false));
+    }
+
+    ranges.add(map.tailMap(splitKeys.get(splitKeys.size() - 1), true));
+
+    return ranges;
+  }
+}
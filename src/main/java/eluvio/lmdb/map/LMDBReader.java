@@ -0,0 +1,144 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import eluvio.lmdb.api.ReaderInfo;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A reader lock table entry (from any process using the environment) along
+ * with the Java thread that opened it and how long it has been open when it
+ * is a read-only transaction from this process.
+ * <p>
+ * Long-lived read-only transactions prevent LMDB from reusing any pages freed
+ * after the snapshot they are reading which causes the data file to grow.  Use
+ * {@link #list} to find the oldest readers and {@link #stackTrace()} to see
+ * what they are doing.
+ * <p>
+ * The thread and age are only known for transactions begun after the
+ * environment started tracking readers (which is off by default so
+ * beginning a transaction doesn't have to read the clock).  Tracking is
+ * started by {@link #track}, the first call to {@link #list} or creating an
+ * {@link LMDBEnvMonitor} and stays on until the environment is closed.
+ */
+public final class LMDBReader {
+  private static final long CURRENT_PID = currentPid();
+
+  public final long pid;
+  /** The native (e.g. pthread) thread id */
+  public final long nativeThread;
+  /** The txn id of the snapshot being read or {@link ReaderInfo#NO_TXN} */
+  public final long txnId;
+  /** How many txn ids behind the latest committed transaction this reader is (0 if not in a transaction) */
+  public final long lag;
+  /** The Java thread that opened the transaction (null if unknown or from another process) */
+  public final Thread thread;
+  /** How long the transaction has been open (-1 if unknown or from another process) */
+  public final long ageMillis;
+
+  private LMDBReader(ReaderInfo info, long lastTxnId, Thread thread, long ageMillis) {
+    this.pid = info.pid;
+    this.nativeThread = info.thread;
+    this.txnId = info.txnId;
+    this.lag = ReaderInfo.NO_TXN == info.txnId ? 0 : Math.max(0, lastTxnId - info.txnId);
+    this.thread = thread;
+    this.ageMillis = ageMillis;
+  }
+
+  /**
+   * @return true if this reader is from the current process
+   */
+  public boolean isCurrentProcess() {
+    return CURRENT_PID == pid;
+  }
+
+  /**
+   * @return the current stack trace of the thread that opened the transaction
+   *         (or an empty array if the thread is unknown)
+   */
+  public StackTraceElement[] stackTrace() {
+    return null == thread ? new StackTraceElement[0] : thread.getStackTrace();
+  }
+
+  /**
+   * Start recording which thread opened each transaction (and when) so that
+   * {@link #list} can report them for transactions begun from now on
+   * @param env an {@link LMDBMap}, {@link LMDBMultiMap} or {@link LMDBEnvTemplate}
+   */
+  public static void track(LMDBEnv env) {
+    LMDBEnvInternal.of(env).trackReaders();
+  }
+
+  /**
+   * List the readers of the environment with the oldest (i.e. largest lag)
+   * first and readers that are not currently in a transaction last.
+   * @param env an {@link LMDBMap}, {@link LMDBMultiMap} or {@link LMDBEnvTemplate}
+   */
+  public static List<LMDBReader> list(LMDBEnv env) {
+    final LMDBEnvInternal internal = LMDBEnvInternal.of(env);
+    internal.trackReaders();
+    final long lastTxnId = internal.env().info().lastTxnId;
+    final long now = System.nanoTime();
+
+    final List<ReusableTxn> openTxns = internal.openReadOnlyTxns();
+    final List<LMDBReader> res = new ArrayList<LMDBReader>();
+
+    for (ReaderInfo info : internal.env().readers()) {
+      Thread thread = null;
+      long ageMillis = -1;
+
+      if (CURRENT_PID == info.pid && ReaderInfo.NO_TXN != info.txnId) {
+        // Match up with one of our open read-only transactions reading the same snapshot
+        for (int i = 0; i < openTxns.size(); i++) {
+          final ReusableTxn txn = openTxns.get(i);
+          final long openedAt = txn.readOnlyOpenedAtNanos();
+
+          if (0 != openedAt && txn.readOnlyTxnId() == info.txnId) {
+            thread = txn.readOnlyOpenedBy();
+            ageMillis = (now - openedAt) / 1_000_000L;
+            openTxns.remove(i);
+            break;
+          }
+        }
+      }
+
+      res.add(new LMDBReader(info, lastTxnId, thread, ageMillis));
+    }
+
+    res.sort(Comparator.comparingLong((LMDBReader r) -> ReaderInfo.NO_TXN == r.txnId ? Long.MAX_VALUE : r.txnId));
+
+    return res;
+  }
+
+  private static long currentPid() {
+    // The RuntimeMXBean name is "pid@hostname" on all common JVMs
+    final String name = ManagementFactory.getRuntimeMXBean().getName();
+
+    try {
+      return Long.parseLong(name.substring(0, name.indexOf('@')));
+    } catch (RuntimeException ex) {
+      return -1;
+    }
+  }
+
+  public String toString() {
+    return "LMDBReader(pid: "+pid+", nativeThread: "+Long.toHexString(nativeThread)+", txnId: "+txnId+", lag: "+lag+", thread: "+(null == thread ? null : thread.getName())+", ageMillis: "+ageMillis+")";
+  }
+}
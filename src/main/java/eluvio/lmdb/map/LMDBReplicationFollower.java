@@ -0,0 +1,376 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps an environment (a read replica) in sync with the environment of a
+ * {@link LMDBReplicationLeader} by applying its change log records.
+ * <p>
+ * A new replica is created with {@link #bootstrap} which copies the
+ * leader's environment into an empty directory.  The environment is then
+ * opened (with the same maps as the leader) and {@link #start} connects to
+ * the leader and applies each batch of records in a single write
+ * transaction, reconnecting if the connection is lost.
+ * <p>
+ * While following, the environment is switched to MDB_NOSYNC and is synced
+ * every syncIntervalMillis instead.  The sequence number of the last applied
+ * record is stored in the {@value #STATE_NAME} database (in the same
+ * transaction as the records) and the leader is told about it once it has
+ * been synced.
+ * <p>
+ * Every map the leader writes to must be open in the follower's environment
+ * and the environment needs room (maxdbs) for the {@value #STATE_NAME}
+ * database plus the two databases of the {@link LMDBChangeLog} (which are
+ * part of the copy made by {@link #bootstrap}).
+ */
+public final class LMDBReplicationFollower implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(LMDBReplicationFollower.class.getName());
+
+  /** The name of the database holding the applied sequence number */
+  public static final String STATE_NAME = "__lmdb_replication";
+
+  public static final long DEFAULT_SYNC_INTERVAL_MILLIS = 1000;
+
+  /** How long to wait before reconnecting to the leader */
+  public static final long RECONNECT_DELAY_MILLIS = 1000;
+
+  private static final String APPLIED_KEY = "applied";
+
+  /**
+   * Copy the leader's environment into a {@value LMDBBackup#DATA_FILE_NAME}
+   * file in the directory (which can then be opened as the follower's
+   * environment)
+   * @param leader the address of the {@link LMDBReplicationLeader}
+   * @param name the name of the follower (used by {@link #start})
+   * @param dir an existing directory that does not already contain a data file
+   * @return the size of the copy
+   */
+  public static long bootstrap(InetSocketAddress leader, String name, File dir) {
+    if (!dir.isDirectory()) throw new IllegalArgumentException("Path must be a directory: " + dir);
+
+    try (Socket socket = new Socket()) {
+      socket.connect(leader);
+
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+      LMDBReplicationProtocol.writeHandshake(out, name, LMDBReplicationProtocol.FULL_COPY);
+
+      if (LMDBReplicationProtocol.COPY != LMDBReplicationProtocol.readStatus(in)) throw new IllegalStateException("Expected a copy of the environment from the leader");
+
+      try (FileChannel channel = FileChannel.open(new File(dir, LMDBBackup.DATA_FILE_NAME).toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+        final long bytes = LMDBReplicationProtocol.readChunks(in, channel);
+        channel.force(true);
+        return bytes;
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * Start following the leader
+   * @param env an {@link LMDBMap}, {@link LMDBMultiMap} or {@link LMDBEnvTemplate}
+   * @param name the name of the follower (which should be the same every time
+   *             the follower is started)
+   * @param leader the address of the {@link LMDBReplicationLeader}
+   */
+  public static LMDBReplicationFollower start(LMDBEnv env, String name, InetSocketAddress leader) {
+    return start(env, name, leader, DEFAULT_SYNC_INTERVAL_MILLIS);
+  }
+
+  public static LMDBReplicationFollower start(LMDBEnv env, String name, InetSocketAddress leader, long syncIntervalMillis) {
+    return new LMDBReplicationFollower(LMDBEnvInternal.of(env), name, leader, syncIntervalMillis);
+  }
+
+  private final LMDBEnvInternal env;
+  private final String name;
+  private final InetSocketAddress leader;
+  private final long syncIntervalMillis;
+  private final LMDBMapImpl<String,Long> state;
+  private final boolean wasNoSync;
+  private final Thread thread;
+
+  private final Object appliedSignal = new Object();
+  private volatile long appliedSeq;
+  private volatile long syncedSeq;
+  private volatile boolean connected = false;
+  private volatile boolean closed = false;
+  private volatile Throwable failure = null;
+  private volatile Socket socket = null;
+
+  /** Re-used direct buffers for the serialized keys and values */
+  private ByteBuffer keyBuf = ByteBuffer.allocateDirect(512);
+  private ByteBuffer valueBuf = ByteBuffer.allocateDirect(4096);
+
+  private LMDBReplicationFollower(LMDBEnvInternal env, String name, InetSocketAddress leader, long syncIntervalMillis) {
+    if (env.readOnly()) throw new IllegalArgumentException("The follower's environment cannot be read-only");
+
+    this.env = env;
+    this.name = name;
+    this.leader = leader;
+    this.syncIntervalMillis = syncIntervalMillis;
+
+    state = new LMDBMapImpl<String,Long>(env, STATE_NAME, LMDBSerializer.String, LMDBSerializer.Long, null, null, false);
+    state.excludeFromChangeLog();
+
+    final Long applied = state.get(APPLIED_KEY);
+
+    if (null != applied) {
+      appliedSeq = applied;
+    } else {
+      // A fresh copy from bootstrap() has applied everything in the copied change log
+      final LMDBMapImpl<Long,byte[]> copiedLog = new LMDBMapImpl<Long,byte[]>(env, LMDBChangeLog.LOG_NAME, LMDBSerializer.UnsignedLong, LMDBSerializer.ByteArray, null, null, false);
+      copiedLog.excludeFromChangeLog();
+      final Long last = copiedLog.lastKey();
+      appliedSeq = null != last ? last : 0L;
+      state.put(APPLIED_KEY, appliedSeq);
+    }
+
+    syncedSeq = appliedSeq;
+
+    wasNoSync = env.env().isNoSync();
+    env.disableSync();
+
+    thread = new Thread(this::run, "LMDBReplicationFollower-" + name);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * @return the sequence number of the last applied record
+   */
+  public long appliedSeq() {
+    return appliedSeq;
+  }
+
+  /**
+   * @return the sequence number of the last applied record that has been
+   *         synced to disk
+   */
+  public long syncedSeq() {
+    return syncedSeq;
+  }
+
+  public boolean isConnected() {
+    return connected;
+  }
+
+  /**
+   * @return the error that stopped the follower (e.g. the leader refused it
+   *         because it needs a new copy) or null
+   */
+  public Throwable failure() {
+    return failure;
+  }
+
+  /**
+   * Wait for the record with the sequence number to be applied
+   * @return true if it has been applied, false if the timeout expired (or
+   *         the follower stopped)
+   */
+  public boolean awaitApplied(long seq, long timeout, TimeUnit unit) throws InterruptedException {
+    final long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+    synchronized (appliedSignal) {
+      while (appliedSeq < seq) {
+        final long remaining = deadline - System.nanoTime();
+        if (remaining <= 0 || closed || null != failure) return false;
+        TimeUnit.NANOSECONDS.timedWait(appliedSignal, remaining);
+      }
+    }
+
+    return true;
+  }
+
+  private void run() {
+    while (!closed) {
+      try (Socket s = new Socket()) {
+        socket = s;
+        if (closed) break;
+
+        s.connect(leader);
+        s.setTcpNoDelay(true);
+
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+        LMDBReplicationProtocol.writeHandshake(out, name, appliedSeq);
+
+        if (LMDBReplicationProtocol.STREAM != LMDBReplicationProtocol.readStatus(in)) throw new IllegalStateException("Expected a stream of changes from the leader");
+
+        connected = true;
+        logger.info("Following " + leader + " from seq " + appliedSeq);
+
+        long lastSync = System.nanoTime();
+
+        while (!closed) {
+          final int count = in.readInt();
+          if (count > 0) apply(read(in, count));
+
+          if (syncedSeq < appliedSeq && System.nanoTime() - lastSync >= TimeUnit.MILLISECONDS.toNanos(syncIntervalMillis)) {
+            sync();
+            out.writeLong(syncedSeq);
+            out.flush();
+            lastSync = System.nanoTime();
+          }
+        }
+      } catch (IOException ex) {
+        if (closed) break;
+        logger.log(Level.WARNING, "Lost the connection to replication leader " + leader + " (reconnecting in " + RECONNECT_DELAY_MILLIS + " ms)", ex);
+      } catch (Throwable ex) {
+        if (!closed) {
+          logger.log(Level.SEVERE, "Replication from " + leader + " failed", ex);
+          failure = ex;
+        }
+        break;
+      } finally {
+        connected = false;
+        socket = null;
+      }
+
+      try {
+        Thread.sleep(RECONNECT_DELAY_MILLIS);
+      } catch (InterruptedException ex) {
+        break;
+      }
+    }
+
+    synchronized (appliedSignal) {
+      appliedSignal.notifyAll();
+    }
+  }
+
+  private static List<LMDBChangeLog.Record> read(DataInputStream in, int count) throws IOException {
+    final List<LMDBChangeLog.Record> records = new ArrayList<LMDBChangeLog.Record>(count);
+
+    for (int i = 0; i < count; i++) {
+      final long seq = in.readLong();
+      final byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      records.add(LMDBChangeLog.decode(seq, bytes));
+    }
+
+    return records;
+  }
+
+  /**
+   * Apply a batch of records in a single write transaction
+   */
+  private void apply(List<LMDBChangeLog.Record> records) {
+    long seq = appliedSeq;
+
+    try (LMDBTxnInternal txn = env.withReadWriteTxn()) {
+      try {
+        for (LMDBChangeLog.Record record : records) {
+          if (record.seq != seq + 1) throw new IllegalStateException("Expected change log record " + (seq + 1) + " but got " + record.seq);
+
+          final LMDBMapImpl<?,?> map = env.map(record.map);
+          if (null == map) throw new IllegalStateException("The map " + record.map + " is not open in the follower's environment");
+
+          keyBuf = copy(record.keyBytes(), keyBuf);
+          valueBuf = copy(record.valueBytes(), valueBuf);
+          map.apply(txn.txn(), record.op, null != record.keyBytes() ? keyBuf : null, null != record.valueBytes() ? valueBuf : null);
+
+          seq = record.seq;
+        }
+
+        state.put(APPLIED_KEY, seq);
+      } catch (RuntimeException ex) {
+        txn.abort();
+        throw ex;
+      }
+    }
+
+    synchronized (appliedSignal) {
+      appliedSeq = seq;
+      appliedSignal.notifyAll();
+    }
+  }
+
+  /**
+   * Copy the bytes into the direct buffer (or a bigger one if they don't fit)
+   */
+  private static ByteBuffer copy(byte[] bytes, ByteBuffer buf) {
+    if (null == bytes) return buf;
+    if (buf.capacity() < bytes.length) buf = ByteBuffer.allocateDirect(Math.max(bytes.length, buf.capacity() * 2));
+    buf.clear();
+    buf.put(bytes);
+    buf.flip();
+    return buf;
+  }
+
+  private void sync() {
+    final long seq = appliedSeq;
+    env.sync(true);
+    syncedSeq = seq;
+  }
+
+  /**
+   * Stop following the leader, sync the environment and restore its
+   * MDB_NOSYNC setting
+   */
+  @Override
+  public void close() {
+    if (closed) return;
+    closed = true;
+
+    final Socket s = socket;
+
+    if (null != s) {
+      try {
+        s.close();
+      } catch (IOException ex) {
+        // Ignore
+      }
+    }
+
+    thread.interrupt();
+
+    boolean interrupted = false;
+
+    while (thread.isAlive()) {
+      try {
+        thread.join();
+      } catch (InterruptedException ex) {
+        interrupted = true;
+      }
+    }
+
+    sync();
+    if (!wasNoSync) env.enableSync();
+
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Serves the {@link LMDBChangeLog} of an environment to
+ * {@link LMDBReplicationFollower}s (read replicas, typically in other
+ * processes on the same host) over TCP.
+ * <p>
+ * A follower is initially synced with a compacted copy of the environment
+ * (streamed using mdb_env_copyfd2) and from then on receives the change log
+ * records committed after the sequence number it has applied.  Each
+ * follower has a {@link LMDBChangeLog.Subscriber} (named
+ * {@code "replica:<name>"}) whose checkpoint is the sequence number the
+ * follower has durably applied so {@link LMDBChangeLog#prune()} keeps the
+ * records it still needs.
+ */
+public final class LMDBReplicationLeader implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(LMDBReplicationLeader.class.getName());
+
+  /**
+   * Start accepting followers
+   * @param log the change log to replicate (which must stay open while the
+   *            leader is running)
+   * @param address the address to listen on (e.g. 127.0.0.1 with port 0 to
+   *                pick a free port, see {@link #address()})
+   */
+  public static LMDBReplicationLeader start(LMDBChangeLog log, InetSocketAddress address) throws IOException {
+    return new LMDBReplicationLeader(log, address);
+  }
+
+  private final LMDBChangeLog log;
+  private final ServerSocket server;
+  private final Thread acceptor;
+  private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+  /** The threads serving followers (which use the environment so must be stopped before it is closed) */
+  private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+  private volatile boolean closed = false;
+
+  private LMDBReplicationLeader(LMDBChangeLog log, InetSocketAddress address) throws IOException {
+    this.log = log;
+    this.server = new ServerSocket();
+    server.bind(address);
+
+    acceptor = new Thread(this::accept, "LMDBReplicationLeader");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /**
+   * @return the address the leader is listening on
+   */
+  public InetSocketAddress address() {
+    return (InetSocketAddress)server.getLocalSocketAddress();
+  }
+
+  /**
+   * @return the number of connected followers
+   */
+  public int followerCount() {
+    return connections.size();
+  }
+
+  private void accept() {
+    while (!closed) {
+      try {
+        final Socket socket = server.accept();
+        socket.setTcpNoDelay(true);
+        connections.add(socket);
+
+        final Thread thread = new Thread(() -> serve(socket), "LMDBReplicationLeader-" + socket.getRemoteSocketAddress());
+        thread.setDaemon(true);
+        threads.add(thread);
+        thread.start();
+      } catch (IOException ex) {
+        if (!closed) logger.log(Level.WARNING, "Failed to accept a replication follower", ex);
+      }
+    }
+  }
+
+  private void serve(Socket socket) {
+    try (Socket s = socket) {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+      final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+
+      final int version = in.readInt();
+      final String name = in.readUTF();
+      final long applied = in.readLong();
+
+      if (LMDBReplicationProtocol.VERSION != version) {
+        refuse(out, "Unsupported protocol version: " + version);
+        return;
+      }
+
+      final LMDBChangeLog.Subscriber subscriber = log.subscribe(LMDBReplicationProtocol.SUBSCRIBER_PREFIX + name);
+
+      if (LMDBReplicationProtocol.FULL_COPY == applied) {
+        copy(subscriber, out);
+        return;
+      }
+
+      final long first = log.firstSeq();
+      final long last = log.lastSeq();
+
+      if (applied > last) {
+        refuse(out, "Follower " + name + " has applied seq " + applied + " but the latest seq is " + last);
+        return;
+      }
+
+      if (applied < first - 1) {
+        refuse(out, "Follower " + name + " has applied seq " + applied + " but the change log has been pruned up to seq " + (first - 1) + " (a full copy is needed)");
+        return;
+      }
+
+      if (applied > subscriber.checkpoint()) subscriber.acknowledge(applied);
+      subscriber.seek(applied);
+
+      out.writeByte(LMDBReplicationProtocol.STREAM);
+      out.flush();
+
+      logger.info("Streaming changes after seq " + applied + " to follower " + name + " (" + s.getRemoteSocketAddress() + ")");
+
+      stream(s, subscriber, in, out);
+    } catch (IOException ex) {
+      if (!closed) logger.log(Level.INFO, "Replication follower " + socket.getRemoteSocketAddress() + " disconnected", ex);
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException ex) {
+      logger.log(Level.SEVERE, "Replicating to follower " + socket.getRemoteSocketAddress() + " failed", ex);
+    } finally {
+      connections.remove(socket);
+      threads.remove(Thread.currentThread());
+    }
+  }
+
+  private static void refuse(DataOutputStream out, String message) throws IOException {
+    logger.warning(message);
+    out.writeByte(LMDBReplicationProtocol.ERROR);
+    out.writeUTF(message);
+    out.flush();
+  }
+
+  /**
+   * Send a compacted copy of the environment
+   */
+  private void copy(LMDBChangeLog.Subscriber subscriber, DataOutputStream out) throws IOException {
+    // The copy includes every record up to at least the current seq so that
+    // is where the follower will continue from (and the records after it
+    // must be kept until the follower catches up)
+    final long seq = log.lastSeq();
+    if (seq > subscriber.checkpoint()) subscriber.acknowledge(seq);
+
+    out.writeByte(LMDBReplicationProtocol.COPY);
+
+    final long start = System.nanoTime();
+
+    try (LMDBReplicationProtocol.ChunkedOutput chunks = new LMDBReplicationProtocol.ChunkedOutput(out)) {
+      final long bytes = log.env().env().copyTo(chunks, true);
+      logger.info("Sent a copy of the environment (" + bytes + " bytes) to follower " + subscriber.name() + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+    }
+  }
+
+  private void stream(Socket socket, LMDBChangeLog.Subscriber subscriber, DataInputStream in, DataOutputStream out) throws IOException, InterruptedException {
+    final AtomicLong acked = new AtomicLong(subscriber.checkpoint());
+
+    // The follower writes back the seq it has durably applied after each sync
+    final Thread ackReader = new Thread(() -> {
+      try {
+        while (true) acked.set(in.readLong());
+      } catch (IOException ex) {
+        // The connection was closed (which the streaming side notices on its next write)
+      }
+    }, "LMDBReplicationLeader-acks-" + subscriber.name());
+
+    ackReader.setDaemon(true);
+    ackReader.start();
+
+    while (!closed && !log.isClosed() && !socket.isClosed()) {
+      final List<LMDBChangeLog.Record> batch = subscriber.await(LMDBReplicationProtocol.MAX_BATCH_SIZE, LMDBReplicationProtocol.HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+
+      out.writeInt(batch.size());
+
+      for (LMDBChangeLog.Record record : batch) {
+        final byte[] bytes = LMDBChangeLog.encode(record);
+        out.writeLong(record.seq);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+      }
+
+      out.flush();
+
+      final long ack = acked.get();
+      if (ack > subscriber.checkpoint()) subscriber.acknowledge(ack);
+    }
+  }
+
+  /**
+   * Stop accepting followers and disconnect the connected ones.  Returns once
+   * the threads serving them have stopped using the environment.
+   */
+  @Override
+  public void close() {
+    if (closed) return;
+    closed = true;
+
+    try {
+      server.close();
+    } catch (IOException ex) {
+      logger.log(Level.WARNING, "Failed to close the replication server socket", ex);
+    }
+
+    boolean interrupted = false;
+
+    // No more threads are started once the acceptor has stopped
+    while (acceptor.isAlive()) {
+      try {
+        acceptor.join();
+      } catch (InterruptedException ex) {
+        interrupted = true;
+      }
+    }
+
+    for (Socket socket : connections) {
+      try {
+        socket.close();
+      } catch (IOException ex) {
+        // Ignore
+      }
+    }
+
+    for (Thread thread : threads) thread.interrupt();
+
+    for (Thread thread : threads) {
+      while (thread.isAlive()) {
+        try {
+          thread.join();
+        } catch (InterruptedException ex) {
+          interrupted = true;
+        }
+      }
+    }
+
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The wire protocol between a {@link LMDBReplicationLeader} and its
+ * {@link LMDBReplicationFollower}s.
+ * <p>
+ * The follower starts with a handshake (version, name and the sequence
+ * number it has applied or {@link #FULL_COPY}) and the leader answers with
+ * a status byte:
+ * <ul>
+ *   <li>{@link #COPY}: a compacted copy of the environment follows as a
+ *   series of length prefixed chunks ending with a zero length chunk.</li>
+ *   <li>{@link #STREAM}: batches of change log records follow, each as a
+ *   record count followed by (seq, length, encoded record) for each record.
+ *   An empty batch is sent as a heartbeat.  The follower writes back the
+ *   sequence number it has durably applied (a long) after each sync.</li>
+ *   <li>{@link #ERROR}: followed by a message.</li>
+ * </ul>
+ */
+final class LMDBReplicationProtocol {
+  static final int VERSION = 1;
+
+  /** The applied seq a follower sends to request a copy of the environment */
+  static final long FULL_COPY = -1;
+
+  static final byte COPY = 'C';
+  static final byte STREAM = 'S';
+  static final byte ERROR = 'E';
+
+  /** How long the leader waits for new records before sending an empty batch */
+  static final long HEARTBEAT_MILLIS = 1000;
+
+  /** The maximum number of records sent in one batch */
+  static final int MAX_BATCH_SIZE = 1000;
+
+  /** The prefix of the {@link LMDBChangeLog.Subscriber} names used for followers */
+  static final String SUBSCRIBER_PREFIX = "replica:";
+
+  private LMDBReplicationProtocol() {}
+
+  /**
+   * Writes everything written to it as length prefixed chunks.  Closing it
+   * writes the terminating zero length chunk (and does not close the
+   * underlying stream).
+   */
+  static final class ChunkedOutput implements WritableByteChannel {
+    private final DataOutputStream out;
+    private final byte[] bytes = new byte[64 * 1024];
+    private boolean open = true;
+
+    ChunkedOutput(DataOutputStream out) {
+      this.out = out;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      final int written = src.remaining();
+
+      while (src.hasRemaining()) {
+        final int size = Math.min(src.remaining(), bytes.length);
+        src.get(bytes, 0, size);
+        out.writeInt(size);
+        out.write(bytes, 0, size);
+      }
+
+      return written;
+    }
+
+    @Override
+    public boolean isOpen() {
+      return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+      if (!open) return;
+      open = false;
+      out.writeInt(0);
+      out.flush();
+    }
+  }
+
+  /**
+   * Read the chunks written by a {@link ChunkedOutput}
+   * @return the number of bytes read
+   */
+  static long readChunks(DataInputStream in, WritableByteChannel dst) throws IOException {
+    final byte[] bytes = new byte[64 * 1024];
+    long total = 0;
+
+    for (int size = in.readInt(); size > 0; size = in.readInt()) {
+      if (size > bytes.length) throw new IOException("Invalid chunk size: " + size);
+      in.readFully(bytes, 0, size);
+
+      final ByteBuffer buf = ByteBuffer.wrap(bytes, 0, size);
+      while (buf.hasRemaining()) dst.write(buf);
+
+      total += size;
+    }
+
+    return total;
+  }
+
+  static void writeHandshake(DataOutputStream out, String name, long appliedSeq) throws IOException {
+    out.writeInt(VERSION);
+    out.writeUTF(name);
+    out.writeLong(appliedSeq);
+    out.flush();
+  }
+
+  /**
+   * Read the leader's answer to the handshake
+   * @return {@link #COPY} or {@link #STREAM}
+   * @throws IllegalStateException if the leader answered with an error
+   */
+  static byte readStatus(DataInputStream in) throws IOException {
+    final byte status = in.readByte();
+    if (ERROR == status) throw new IllegalStateException("Replication leader refused the connection: " + in.readUTF());
+    if (COPY != status && STREAM != status) throw new IOException("Unknown replication status: " + status);
+    return status;
+  }
+}
@@ -52,6 +52,21 @@ public abstract class LMDBSerializer<T> {
    */
   public abstract ByteBuffer serialize(T data, ByteBuffer buf);
   
+  /**
+   * The exact number of bytes that {@link #serialize} will write for the
+   * data.  If known, large values are serialized directly into the memory
+   * reserved for them in the database page (using
+   * {@link eluvio.lmdb.api.Api#MDB_RESERVE}) instead of into a scratch
+   * buffer that then has to be copied.  Since a reservation can't be shrunk
+   * this must not be an estimate.
+   * @param data The object that will be serialized
+   * @return The exact serialized size or -1 if it isn't known without
+   *         serializing the data (the default)
+   */
+  public int serializedSize(T data) {
+    return -1;
+  }
+  
   /**
    * Deserialize data from a ByteBuffer
    * @param buf The ByteBuffer that contains the data.  Note: DO NOT WRITE TO
@@ -88,6 +103,29 @@ public abstract class LMDBSerializer<T> {
       return buf;
     }
     
+    // Same as s.getBytes(StandardCharsets.UTF_8).length (unpaired surrogates are encoded as '?')
+    public int serializedSize(String s) {
+      final int len = s.length();
+      int size = len;
+      
+      for (int i = 0; i < len; i++) {
+        final char c = s.charAt(i);
+        
+        if (c >= 0x80) {
+          if (c < 0x800) {
+            size += 1;
+          } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+            size += 2;
+            i++;
+          } else if (!Character.isSurrogate(c)) {
+            size += 2;
+          }
+        }
+      }
+      
+      return size;
+    }
+    
     public String deserialize(ByteBuffer buf) {
       final byte[] bytes = new byte[buf.remaining()];
       buf.get(bytes);
@@ -128,6 +166,8 @@ public abstract class LMDBSerializer<T> {
     protected abstract int write(int i);
     protected abstract int read(int i);
     
+    public int serializedSize(Integer i) { return size; }
+    
     public ByteBuffer serialize(Integer i, ByteBuffer buf) {
       if (null == buf || buf.remaining() < size) buf = ByteBuffer.allocateDirect(size);
       setByteOrder(buf);
@@ -180,6 +220,8 @@ public abstract class LMDBSerializer<T> {
     protected abstract long write(long i);
     protected abstract long read(long i);
     
+    public int serializedSize(Long i) { return size; }
+    
     public ByteBuffer serialize(Long i, ByteBuffer buf) {
       if (null == buf || buf.remaining() < size) buf = ByteBuffer.allocateDirect(size);
       setByteOrder(buf);
@@ -207,6 +249,8 @@ public abstract class LMDBSerializer<T> {
     public boolean integerKeys() { return false; }
     public boolean fixedSize() { return false; }
 
+    public int serializedSize(byte[] b) { return b.length; }
+    
     public ByteBuffer serialize(byte[] b, ByteBuffer buf) {
       if (null == buf || buf.remaining() < b.length) buf = ByteBuffer.allocateDirect(b.length);
       buf.put(b);
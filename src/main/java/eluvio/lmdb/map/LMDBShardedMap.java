@@ -0,0 +1,507 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import eluvio.lmdb.api.Cursor.KeyAndData;
+
+/**
+ * A map whose keys are partitioned across several independent environments
+ * (shards), each in its own directory with its own write lock, so writes to
+ * different shards do not wait for each other.
+ * <p>
+ * Keys are either hash partitioned (by a hash of their serialized bytes) or
+ * range partitioned (by a sorted list of split keys).  Batch writes are
+ * grouped by shard and each shard's batch is committed in its own write
+ * transaction in parallel.  Batch reads are fanned out to the shards in
+ * parallel.  {@link #lmdbIterator()} iterates over every entry in key order
+ * by merging a cursor of each shard.
+ * <p>
+ * Transactions never span shards so a batch write that fails may have been
+ * committed to some of the shards.  Only maps with a single value per key
+ * are supported.
+ * <p>
+ * The layout (the number of shards, how keys are partitioned and the split
+ * keys) is persisted in a dedicated database in the first shard when the
+ * shards are created.  Opening existing shards with a different layout
+ * fails (before any other shard is opened) since keys would be looked up
+ * in the wrong shard.  Each shard's entries are kept in a named database so
+ * it is not mixed up with the layout.
+ *
+ * @param <K> map key
+ * @param <V> map value
+ */
+public class LMDBShardedMap<K,V> implements AutoCloseable {
+  static final String DATA_NAME = "data";
+  static final String LAYOUT_NAME = "__lmdb_sharded_layout";
+  
+  /** Identifies the hash partitioning function ({@link LMDBBloomFilter#hash}) */
+  static final String HASH_PARTITIONING = "hash:fnv1a-murmur3";
+  static final String RANGE_PARTITIONING = "range";
+  
+  private static final String SHARD_COUNT_KEY = "shardCount";
+  private static final String PARTITIONING_KEY = "partitioning";
+  private static final String SPLIT_KEYS_KEY = "splitKeys";
+  
+  private final LMDBMapStandalone<K,V>[] shards;
+  
+  /** The persisted layout (in the first shard's environment) */
+  private final LMDBMapImpl<String,byte[]> layout;
+  
+  /** The serialized split keys (range partitioning) or null (hash partitioning) */
+  private final ByteBuffer[] splitKeyBufs;
+  
+  private final ForkJoinPool pool;
+  
+  /**
+   * Hash partition keys across the shards
+   * @param dir the directory containing a "shard-N" directory for each shard
+   *        (or null to use temporary environments)
+   * @param shardCount the number of shards
+   * @param keySerializer the key serializer
+   * @param valueSerializer the value serializer
+   * @return the map
+   */
+  public static <K,V> LMDBShardedMap<K,V> hashPartitioned(File dir, int shardCount, LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer) {
+    return hashPartitioned(dir, shardCount, keySerializer, valueSerializer, LMDBEnv.DEFAULT_MAPSIZE, ForkJoinPool.commonPool());
+  }
+  
+  /**
+   * Hash partition keys across the shards
+   * @param dir the directory containing a "shard-N" directory for each shard
+   *        (or null to use temporary environments)
+   * @param shardCount the number of shards
+   * @param keySerializer the key serializer
+   * @param valueSerializer the value serializer
+   * @param mapsize the mapsize of each shard
+   * @param pool the pool parallel batch reads and writes run on
+   * @return the map
+   */
+  public static <K,V> LMDBShardedMap<K,V> hashPartitioned(File dir, int shardCount, LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer, long mapsize, ForkJoinPool pool) {
+    if (shardCount <= 0) throw new IllegalArgumentException("Invalid shardCount: " + shardCount);
+    return new LMDBShardedMap<K,V>(dir, shardCount, null, keySerializer, valueSerializer, mapsize, pool);
+  }
+  
+  /**
+   * Range partition keys across the shards.  The first shard holds the keys
+   * less than the first split key, the second shard holds the keys from the
+   * first split key (inclusive) to the second split key (exclusive), etc...
+   * @param dir the directory containing a "shard-N" directory for each shard
+   *        (or null to use temporary environments)
+   * @param splitKeys the (increasing) keys that start each shard after the
+   *        first one
+   * @param keySerializer the key serializer
+   * @param valueSerializer the value serializer
+   * @return the map
+   */
+  public static <K,V> LMDBShardedMap<K,V> rangePartitioned(File dir, List<K> splitKeys, LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer) {
+    return rangePartitioned(dir, splitKeys, keySerializer, valueSerializer, LMDBEnv.DEFAULT_MAPSIZE, ForkJoinPool.commonPool());
+  }
+  
+  /**
+   * Range partition keys across the shards (see
+   * {@link #rangePartitioned(File, List, LMDBSerializer, LMDBSerializer)})
+   * @param dir the directory containing a "shard-N" directory for each shard
+   *        (or null to use temporary environments)
+   * @param splitKeys the (increasing) keys that start each shard after the
+   *        first one
+   * @param keySerializer the key serializer
+   * @param valueSerializer the value serializer
+   * @param mapsize the mapsize of each shard
+   * @param pool the pool parallel batch reads and writes run on
+   * @return the map
+   */
+  public static <K,V> LMDBShardedMap<K,V> rangePartitioned(File dir, List<K> splitKeys, LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer, long mapsize, ForkJoinPool pool) {
+    if (splitKeys.isEmpty()) throw new IllegalArgumentException("At least one split key is needed");
+    return new LMDBShardedMap<K,V>(dir, splitKeys.size() + 1, splitKeys, keySerializer, valueSerializer, mapsize, pool);
+  }
+  
+  @SuppressWarnings("unchecked")
+  private LMDBShardedMap(File dir, int shardCount, List<K> splitKeys, LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer, long mapsize, ForkJoinPool pool) {
+    this.shards = (LMDBMapStandalone<K,V>[])new LMDBMapStandalone<?,?>[shardCount];
+    this.pool = pool;
+    
+    try {
+      shards[0] = openShard(dir, 0, keySerializer, valueSerializer, mapsize);
+      
+      if (null != splitKeys) {
+        splitKeyBufs = new ByteBuffer[splitKeys.size()];
+        
+        for (int i = 0; i < splitKeyBufs.length; i++) {
+          splitKeyBufs[i] = keySerializer.serialize(splitKeys.get(i), null);
+          if (i > 0 && shards[0].compareKeys(splitKeyBufs[i - 1], splitKeyBufs[i]) >= 0) throw new IllegalArgumentException("Split keys must be increasing: " + splitKeys);
+        }
+      } else {
+        splitKeyBufs = null;
+      }
+      
+      layout = new LMDBMapImpl<String,byte[]>(shards[0].env, LAYOUT_NAME, LMDBSerializer.String, LMDBSerializer.ByteArray, null, null, false);
+      checkLayout();
+      
+      for (int i = 1; i < shardCount; i++) shards[i] = openShard(dir, i, keySerializer, valueSerializer, mapsize);
+    } catch (RuntimeException ex) {
+      close();
+      throw ex;
+    }
+  }
+  
+  private static <K,V> LMDBMapStandalone<K,V> openShard(File dir, int index, LMDBSerializer<K> keySerializer, LMDBSerializer<V> valueSerializer, long mapsize) {
+    final File shardDir = null == dir ? null : new File(dir, "shard-" + index);
+    if (null != shardDir && !shardDir.isDirectory() && !shardDir.mkdirs()) throw new IllegalStateException("Unable to create directory: " + shardDir);
+    
+    // Room for the data and layout databases
+    final LMDBEnvImpl env = new LMDBEnvImpl(shardDir, false, mapsize, 2);
+    
+    try {
+      return new LMDBMapStandalone<K,V>(env, DATA_NAME, keySerializer, valueSerializer);
+    } catch (RuntimeException ex) {
+      env.close();
+      throw ex;
+    }
+  }
+  
+  /**
+   * Persist the layout if the shards are new or make sure it matches the
+   * persisted one
+   */
+  private void checkLayout() {
+    final String partitioning = null == splitKeyBufs ? HASH_PARTITIONING : RANGE_PARTITIONING;
+    final byte[] shardCount = ByteBuffer.allocate(4).putInt(shards.length).array();
+    final byte[] splitKeys = encodeSplitKeys();
+    
+    try (LMDBTxnInternal txn = layout.withReadWriteTxn()) {
+      try {
+        final byte[] persistedCount = layout.get(SHARD_COUNT_KEY);
+        
+        if (null == persistedCount) {
+          layout.putNoPrev(SHARD_COUNT_KEY, shardCount);
+          layout.putNoPrev(PARTITIONING_KEY, partitioning.getBytes(StandardCharsets.UTF_8));
+          layout.putNoPrev(SPLIT_KEYS_KEY, splitKeys);
+          return;
+        }
+        
+        if (!Arrays.equals(shardCount, persistedCount)) {
+          throw new IllegalArgumentException("The shards were created with " + ByteBuffer.wrap(persistedCount).getInt() + " shards but " + shards.length + " were requested");
+        }
+        
+        final String persistedPartitioning = new String(layout.get(PARTITIONING_KEY), StandardCharsets.UTF_8);
+        
+        if (!partitioning.equals(persistedPartitioning)) {
+          throw new IllegalArgumentException("The shards were created with " + persistedPartitioning + " partitioning but " + partitioning + " was requested");
+        }
+        
+        if (!Arrays.equals(splitKeys, layout.get(SPLIT_KEYS_KEY))) {
+          throw new IllegalArgumentException("The shards were created with different split keys than the ones requested");
+        }
+      } catch (RuntimeException ex) {
+        txn.abort();
+        throw ex;
+      }
+    }
+  }
+  
+  /**
+   * @return the length and bytes of each serialized split key (or an empty
+   *         array for hash partitioning)
+   */
+  private byte[] encodeSplitKeys() {
+    if (null == splitKeyBufs) return new byte[0];
+    
+    int size = 0;
+    for (ByteBuffer buf : splitKeyBufs) size += 4 + buf.remaining();
+    
+    final ByteBuffer res = ByteBuffer.allocate(size);
+    
+    for (ByteBuffer buf : splitKeyBufs) {
+      res.putInt(buf.remaining());
+      res.put(buf.duplicate());
+    }
+    
+    return res.array();
+  }
+  
+  /**
+   * @return the number of shards
+   */
+  public int shardCount() {
+    return shards.length;
+  }
+  
+  /**
+   * @param index the shard index
+   * @return the map of a single shard
+   */
+  public LMDBMap<K,V> shard(int index) {
+    return shards[index];
+  }
+  
+  /**
+   * @param key the key
+   * @return the index of the shard that holds the key
+   */
+  public int shardOf(K key) {
+    try (ReusableBuf cachedKeyBuf = shards[0].withCachedKeyBuf()) {
+      return shardOf(shards[0].keySerializer.serialize(key, cachedKeyBuf.buf));
+    }
+  }
+  
+  private int shardOf(ByteBuffer keyBuf) {
+    if (null == splitKeyBufs) return (int)Long.remainderUnsigned(LMDBBloomFilter.hash(keyBuf), shards.length);
+    
+    // The number of split keys that are less than or equal to the key
+    int low = 0;
+    int high = splitKeyBufs.length;
+    
+    while (low < high) {
+      final int mid = (low + high) >>> 1;
+      if (shards[0].compareKeys(splitKeyBufs[mid], keyBuf) <= 0) low = mid + 1;
+      else high = mid;
+    }
+    
+    return low;
+  }
+  
+  private LMDBMapStandalone<K,V> shardFor(K key) {
+    return shards[shardOf(key)];
+  }
+  
+  public V get(K key) {
+    return shardFor(key).get(key);
+  }
+  
+  public boolean containsKey(K key) {
+    return shardFor(key).containsKey(key);
+  }
+  
+  public V put(K key, V value) {
+    return shardFor(key).put(key, value);
+  }
+  
+  public void putNoPrev(K key, V value) {
+    shardFor(key).putNoPrev(key, value);
+  }
+  
+  public V remove(K key) {
+    return shardFor(key).remove(key);
+  }
+  
+  public boolean removeNoPrev(K key) {
+    return shardFor(key).removeNoPrev(key);
+  }
+  
+  /**
+   * Write the entries grouped by shard.  Each shard's entries are written in
+   * a single write transaction and the shards are written in parallel.
+   * @param m the entries to write
+   */
+  public void putAll(Map<? extends K, ? extends V> m) {
+    final List<List<Map.Entry<? extends K, ? extends V>>> batches = new ArrayList<List<Map.Entry<? extends K, ? extends V>>>(shards.length);
+    for (int i = 0; i < shards.length; i++) batches.add(new ArrayList<Map.Entry<? extends K, ? extends V>>());
+    
+    for (Map.Entry<? extends K, ? extends V> e : m.entrySet()) batches.get(shardOf(e.getKey())).add(e);
+    
+    final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(shards.length);
+    
+    for (int i = 0; i < shards.length; i++) {
+      final LMDBMapStandalone<K,V> shard = shards[i];
+      final List<Map.Entry<? extends K, ? extends V>> batch = batches.get(i);
+      if (batch.isEmpty()) continue;
+      
+      tasks.add(pool.submit(() -> {
+        try (LMDBTxnInternal txn = shard.withReadWriteTxn()) {
+          try {
+            for (Map.Entry<? extends K, ? extends V> e : batch) shard.putNoPrev(e.getKey(), e.getValue());
+          } catch (RuntimeException ex) {
+            txn.abort();
+            throw ex;
+          }
+        }
+      }));
+    }
+    
+    joinAll(tasks);
+  }
+  
+  /**
+   * Look up the keys grouped by shard.  Each shard's keys are looked up with
+   * a single {@link LMDBMap#getAll} and the shards are read in parallel.
+   * @param keys the keys to look up
+   * @return the value (or null) of each key in the iteration order of keys
+   */
+  @SuppressWarnings("unchecked")
+  public List<V> getAll(Collection<? extends K> keys) {
+    final List<List<K>> shardKeys = new ArrayList<List<K>>(shards.length);
+    final List<List<Integer>> shardPositions = new ArrayList<List<Integer>>(shards.length);
+    
+    for (int i = 0; i < shards.length; i++) {
+      shardKeys.add(new ArrayList<K>());
+      shardPositions.add(new ArrayList<Integer>());
+    }
+    
+    int position = 0;
+    
+    for (K key : keys) {
+      final int shard = shardOf(key);
+      shardKeys.get(shard).add(key);
+      shardPositions.get(shard).add(position++);
+    }
+    
+    final ForkJoinTask<List<V>>[] tasks = (ForkJoinTask<List<V>>[])new ForkJoinTask<?>[shards.length];
+    
+    for (int i = 0; i < shards.length; i++) {
+      final LMDBMapStandalone<K,V> shard = shards[i];
+      final List<K> batch = shardKeys.get(i);
+      if (!batch.isEmpty()) tasks[i] = pool.submit(() -> shard.getAll(batch));
+    }
+    
+    final Object[] values = new Object[position];
+    
+    for (int i = 0; i < shards.length; i++) {
+      if (null == tasks[i]) continue;
+      final List<V> res = tasks[i].join();
+      final List<Integer> positions = shardPositions.get(i);
+      for (int j = 0; j < positions.size(); j++) values[positions.get(j)] = res.get(j);
+    }
+    
+    return (List<V>)Arrays.asList(values);
+  }
+  
+  /**
+   * @return the total number of keys in all of the shards
+   */
+  public long keyCount() {
+    long res = 0;
+    for (LMDBMapStandalone<K,V> shard : shards) res += shard.keyCount();
+    return res;
+  }
+  
+  public boolean isEmpty() {
+    for (LMDBMapStandalone<K,V> shard : shards) if (!shard.isEmpty()) return false;
+    return true;
+  }
+  
+  /**
+   * Remove every entry from every shard (in parallel)
+   */
+  public void clear() {
+    final List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>(shards.length);
+    for (LMDBMapStandalone<K,V> shard : shards) tasks.add(pool.submit(() -> shard.clear()));
+    joinAll(tasks);
+  }
+  
+  /**
+   * Iterate over the entries of every shard in key order by merging a cursor
+   * (and read-only transaction) of each shard.  Keys are compared using
+   * their serialized bytes and only deserialized when returned.
+   * <p>
+   * <b>Note: This iterator <b>MUST BE CLOSED</b> by the user if it is not
+   * exhausted</b>
+   * @return the iterator
+   */
+  public LMDBIterator<Map.Entry<K,V>> lmdbIterator() {
+    return new MergingIterator();
+  }
+  
+  private final class MergingIterator implements LMDBIterator<Map.Entry<K,V>> {
+    private final List<LMDBMapImpl<K,V>.CursorImpl> cursors = new ArrayList<LMDBMapImpl<K,V>.CursorImpl>(shards.length);
+    private final KeyAndData[] heads = new KeyAndData[shards.length];
+    private final PriorityQueue<Integer> queue = new PriorityQueue<Integer>(shards.length, (a, b) -> shards[0].compareKeys(heads[a].key, heads[b].key));
+    private boolean closed = false;
+    
+    MergingIterator() {
+      try {
+        for (int i = 0; i < shards.length; i++) {
+          final LMDBMapImpl<K,V>.CursorImpl cursor = shards[i].openCursor(LMDBCursor.Mode.READ_ONLY);
+          cursors.add(cursor);
+          heads[i] = cursor.cursor.first();
+          if (null != heads[i]) queue.add(i);
+        }
+      } catch (RuntimeException ex) {
+        close();
+        throw ex;
+      }
+      
+      if (queue.isEmpty()) close();
+    }
+    
+    @Override
+    public boolean hasNext() {
+      return !queue.isEmpty();
+    }
+    
+    @Override
+    public Map.Entry<K,V> next() {
+      if (queue.isEmpty()) throw new NoSuchElementException();
+      
+      final int i = queue.poll();
+      final LMDBMapStandalone<K,V> shard = shards[i];
+      final Map.Entry<K,V> res = new AbstractMap.SimpleImmutableEntry<K,V>(shard.keySerializer.deserialize(heads[i].key), shard.valueSerializer.deserialize(heads[i].data));
+      
+      heads[i] = cursors.get(i).cursor.next();
+      if (null != heads[i]) queue.add(i);
+      else if (queue.isEmpty()) close();
+      
+      return res;
+    }
+    
+    @Override
+    public void close() {
+      if (closed) return;
+      closed = true;
+      queue.clear();
+      for (LMDBMapImpl<K,V>.CursorImpl cursor : cursors) cursor.close();
+    }
+  }
+  
+  private static void joinAll(List<ForkJoinTask<?>> tasks) {
+    RuntimeException failure = null;
+    
+    // Wait for every task (even if one failed) so nothing is still writing
+    for (ForkJoinTask<?> task : tasks) {
+      try {
+        task.join();
+      } catch (RuntimeException ex) {
+        if (null == failure) failure = ex;
+        else failure.addSuppressed(ex);
+      }
+    }
+    
+    if (null != failure) throw failure;
+  }
+  
+  /**
+   * Close every shard
+   */
+  @Override
+  public void close() {
+    for (LMDBMapStandalone<K,V> shard : shards) {
+      if (null != shard) shard.close();
+    }
+  }
+}
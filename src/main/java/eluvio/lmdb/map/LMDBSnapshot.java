@@ -0,0 +1,145 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+/**
+ * A handle to a single committed version (txn id) of an LMDB environment
+ * that can be read from any thread.
+ * <p>
+ * {@link #read} runs an action using the calling thread's own read-only
+ * transaction if that transaction sees exactly the captured version (i.e.
+ * nothing has been committed since the snapshot was captured).  Otherwise:
+ * <ul>
+ *   <li>If the environment uses MDB_NOTLS then the snapshot holds one
+ *   read-only transaction open at the captured version and the action runs
+ *   using that shared transaction.  LMDB requires the use of a shared
+ *   read-only transaction to be synchronized so actions using it run one at
+ *   a time.  Each snapshot has its own transaction and lock so actions on
+ *   different snapshots do not block each other.</li>
+ *   <li>Otherwise a {@link ConcurrentModificationException} is thrown.</li>
+ * </ul>
+ * <p>
+ * Snapshots <b>MUST BE CLOSED</b>.  While a MDB_NOTLS snapshot is open LMDB
+ * cannot reuse any pages freed after the captured version.
+ */
+public final class LMDBSnapshot implements AutoCloseable {
+  private final LMDBEnvInternal env;
+  private final long id;
+  private final ReusableTxn pinned;
+  /** Serializes use of this snapshot's pinned txn (other snapshots have their own) */
+  private final ReentrantLock pinnedLock = new ReentrantLock();
+  private volatile boolean closed = false;
+
+  /**
+   * Capture the latest committed version of the environment
+   * @param env an {@link LMDBMap}, {@link LMDBMultiMap} or {@link LMDBEnvTemplate}
+   * @return the snapshot
+   */
+  public static LMDBSnapshot capture(LMDBEnv env) {
+    return new LMDBSnapshot(LMDBEnvInternal.of(env));
+  }
+
+  private LMDBSnapshot(LMDBEnvInternal env) {
+    this.env = env;
+
+    if (env.env().isNotThreadLocalTransactions()) {
+      pinned = env.beginDetachedReadOnlyTxn();
+      id = pinned.id();
+    } else {
+      pinned = null;
+
+      try (LMDBTxnInternal txn = env.withReadOnlyTxn()) {
+        id = txn.txn().id();
+      }
+    }
+  }
+
+  /**
+   * @return the txn id of the captured version
+   */
+  public long id() {
+    return id;
+  }
+
+  /**
+   * @return true if this snapshot holds a read-only transaction open at the
+   *         captured version (i.e. the environment uses MDB_NOTLS)
+   */
+  public boolean isPinned() {
+    return null != pinned;
+  }
+
+  /**
+   * Run the action (which may perform any read operations on maps in this
+   * environment) against the captured version.
+   * @return the result of the action
+   * @throws ConcurrentModificationException if the captured version is no
+   *         longer the latest and the snapshot is not pinned
+   */
+  public <T> T read(Supplier<T> action) {
+    if (closed) throw new IllegalStateException("Snapshot has been closed");
+
+    try (LMDBTxnInternal txn = env.withReadOnlyTxn()) {
+      if (txn.readOnly() && txn.txn().id() == id) return action.get();
+    }
+
+    if (null == pinned) throw new ConcurrentModificationException("Snapshot " + id + " is no longer the latest version and MDB_NOTLS is not being used");
+
+    pinnedLock.lock();
+
+    try {
+      if (closed) throw new IllegalStateException("Snapshot has been closed");
+
+      final ReusableTxn prev = env.attachTxnToCurrentThread(pinned);
+
+      try {
+        return action.get();
+      } finally {
+        env.attachTxnToCurrentThread(prev);
+      }
+    } finally {
+      pinnedLock.unlock();
+    }
+  }
+
+  /**
+   * Same as {@link #read} for actions without a result
+   */
+  public void run(Runnable action) {
+    read(() -> {
+      action.run();
+      return null;
+    });
+  }
+
+  @Override
+  public void close() {
+    if (closed) return;
+
+    pinnedLock.lock();
+
+    try {
+      closed = true;
+      if (null != pinned) env.releaseDetachedReadOnlyTxn(pinned);
+    } finally {
+      pinnedLock.unlock();
+    }
+  }
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * A {@link Spliterator} over the keys, entries or values of an LMDB map.
+ * <p>
+ * {@link #forEachRemaining} traverses the rest of the range with a single
+ * cursor (and read-only transaction) that is closed before it returns.
+ * {@link #tryAdvance} instead reads small (but growing) batches of elements
+ * with a cursor that is closed as soon as the batch has been read, and the
+ * next batch continues after the last key of the previous one.  This means a
+ * short-circuited stream (e.g. findFirst, anyMatch or limit) never leaves a
+ * cursor or read-only transaction open on the worker threads, whether or not
+ * the stream itself is closed.  The duplicates of a key are always read in
+ * the same batch.
+ * <p>
+ * Since the range is not read in a single transaction the sizes are only
+ * estimates (i.e. this is not SIZED) and, like the concurrent collections,
+ * traversal is weakly consistent when the map is modified concurrently:
+ * every key is visited at most once and in order.
+ * <p>
+ * The keys that divide the range into partitions are picked once (by
+ * natively walking the keys without deserializing them) the first time the
+ * spliterator is split and further splits just divide that list.
+ *
+ * @param <K> map key
+ * @param <E> the element read from the cursor
+ * @param <T> the element type
+ */
+class LMDBSpliterator<K,E,T> implements Spliterator<T> {
+  /** Ranges with fewer elements than this are not split any further */
+  static final long MIN_SPLIT_SIZE = 1024;
+
+  /** The size of the first batch read by tryAdvance (each batch doubles in size) */
+  static final int MIN_BATCH_SIZE = 64;
+
+  /** The largest batch read by tryAdvance */
+  static final int MAX_BATCH_SIZE = 4096;
+
+  public static <K,V> Spliterator<K> forKeys(LMDBMapInternal<K,V> map) {
+    return new LMDBSpliterator<K,K,K>(map, m -> LMDBIteratorImpl.forKeys(m, LMDBCursor.Mode.READ_ONLY), Function.identity(), Function.identity(), false, DISTINCT | SORTED, map);
+  }
+
+  public static <K,V> Spliterator<Map.Entry<K,V>> forEntries(LMDBMapInternal<K,V> map) {
+    final Comparator<Map.Entry<K,V>> comparator = Map.Entry.comparingByKey(map);
+    return new LMDBSpliterator<K,Map.Entry<K,V>,Map.Entry<K,V>>(map, m -> LMDBIteratorImpl.forEntries(castMap(m), LMDBCursor.Mode.READ_ONLY), Map.Entry::getKey, Function.identity(), true, DISTINCT | SORTED, comparator);
+  }
+
+  public static <K,V> Spliterator<V> forValues(LMDBMapInternal<K,V> map) {
+    return new LMDBSpliterator<K,Map.Entry<K,V>,V>(map, m -> LMDBIteratorImpl.forEntries(castMap(m), LMDBCursor.Mode.READ_ONLY), Map.Entry::getKey, Map.Entry::getValue, true, 0, null);
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <K,V> LMDBMapInternal<K,V> castMap(LMDBMapInternal<K,?> map) {
+    return (LMDBMapInternal<K,V>)map;
+  }
+
+  /** The most partitions to pick split keys for (a few per worker thread) */
+  private static int maxPartitions() {
+    final ForkJoinPool pool = ForkJoinTask.inForkJoinPool() ? ForkJoinTask.getPool() : ForkJoinPool.commonPool();
+    return 4 * pool.getParallelism();
+  }
+
+  /** The part of the range that has not been read yet */
+  private LMDBMapInternal<K,?> map;
+  private final Function<LMDBMapInternal<K,?>, LMDBIterator<E>> iteratorFactory;
+  private final Function<E,K> keyOf;
+  private final Function<E,T> elementOf;
+  private final Comparator<? super K> keyComparator;
+  private final boolean countValues;
+  private final int characteristics;
+  private final Comparator<? super T> comparator;
+
+  /** The keys that split the unread range (or null if they have not been picked yet) */
+  private List<K> splitKeys;
+  private long size;
+
+  /** The current batch read by tryAdvance (or null if traversal has not started) */
+  private List<T> batch = null;
+  private int batchIdx = 0;
+  private int batchSize = MIN_BATCH_SIZE;
+  private boolean exhausted = false;
+
+  private LMDBSpliterator(LMDBMapInternal<K,?> map, Function<LMDBMapInternal<K,?>, LMDBIterator<E>> iteratorFactory, Function<E,K> keyOf, Function<E,T> elementOf, boolean countValues, int characteristics, Comparator<? super T> comparator) {
+    this(map, iteratorFactory, keyOf, elementOf, map, countValues, characteristics | ORDERED | NONNULL, comparator, null, -1);
+  }
+
+  private LMDBSpliterator(LMDBMapInternal<K,?> map, Function<LMDBMapInternal<K,?>, LMDBIterator<E>> iteratorFactory, Function<E,K> keyOf, Function<E,T> elementOf, Comparator<? super K> keyComparator, boolean countValues, int characteristics, Comparator<? super T> comparator, List<K> splitKeys, long size) {
+    this.map = map;
+    this.iteratorFactory = iteratorFactory;
+    this.keyOf = keyOf;
+    this.elementOf = elementOf;
+    this.keyComparator = keyComparator;
+    this.countValues = countValues;
+    this.characteristics = characteristics;
+    this.comparator = comparator;
+    this.splitKeys = splitKeys;
+    this.size = size;
+  }
+
+  @Override
+  public boolean tryAdvance(Consumer<? super T> action) {
+    if ((null == batch || batchIdx == batch.size()) && !readBatch()) return false;
+    final T next = batch.get(batchIdx);
+    batch.set(batchIdx++, null);
+    action.accept(next);
+    return true;
+  }
+
+  @Override
+  public void forEachRemaining(Consumer<? super T> action) {
+    if (null != batch) {
+      while (batchIdx < batch.size()) {
+        final T next = batch.get(batchIdx);
+        batch.set(batchIdx++, null);
+        action.accept(next);
+      }
+    } else {
+      batch = Collections.emptyList();
+    }
+
+    if (exhausted) return;
+    exhausted = true;
+    size = 0;
+
+    try (LMDBIterator<E> it = iteratorFactory.apply(map)) {
+      while (it.hasNext()) action.accept(elementOf.apply(it.next()));
+    }
+  }
+
+  /**
+   * Read the next batch of elements with a cursor that is closed before this
+   * returns.
+   * @return false if there are no more elements
+   */
+  private boolean readBatch() {
+    if (exhausted) return false;
+
+    final List<T> res = new ArrayList<T>(batchSize);
+    E last = null;
+
+    try (LMDBIterator<E> it = iteratorFactory.apply(map)) {
+      exhausted = true;
+
+      while (it.hasNext()) {
+        final E next = it.next();
+
+        // Stop at the first new key once the batch is full
+        if (res.size() >= batchSize && 0 != keyComparator.compare(keyOf.apply(last), keyOf.apply(next))) {
+          exhausted = false;
+          break;
+        }
+
+        res.add(elementOf.apply(next));
+        last = next;
+      }
+    }
+
+    if (!exhausted) map = map.tailMap(keyOf.apply(last), false);
+    if (size > 0) size = Math.max(size - res.size(), 0);
+
+    batch = res;
+    batchIdx = 0;
+    batchSize = Math.min(batchSize * 2, MAX_BATCH_SIZE);
+
+    return !res.isEmpty();
+  }
+
+  @Override
+  public Spliterator<T> trySplit() {
+    // Once traversal has started the range is fixed
+    if (null != batch) return null;
+
+    if (null == splitKeys) {
+      final long partitions = Math.min(estimateSize() / MIN_SPLIT_SIZE, maxPartitions());
+      splitKeys = partitions > 1 ? map.splitKeys((int)partitions) : Collections.emptyList();
+    }
+
+    if (splitKeys.isEmpty()) return null;
+
+    final int mid = splitKeys.size() / 2;
+    final K splitKey = splitKeys.get(mid);
+    final long prefixSize = estimateSize() / (splitKeys.size() + 1) * (mid + 1);
+
+    final LMDBSpliterator<K,E,T> prefix = new LMDBSpliterator<K,E,T>(map.headMap(splitKey, false), iteratorFactory, keyOf, elementOf, keyComparator, countValues, characteristics, comparator, splitKeys.subList(0, mid), prefixSize);
+
+    // This spliterator continues with the second half
+    map = map.tailMap(splitKey, true);
+    splitKeys = splitKeys.subList(mid + 1, splitKeys.size());
+    size -= prefixSize;
+
+    return prefix;
+  }
+
+  @Override
+  public long estimateSize() {
+    if (size < 0) size = countValues ? map.valueCount() : map.keyCount();
+    return size;
+  }
+
+  @Override
+  public int characteristics() {
+    return characteristics;
+  }
+
+  @Override
+  public Comparator<? super T> getComparator() {
+    if (!hasCharacteristics(SORTED)) throw new IllegalStateException();
+    return comparator;
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Syncs an environment to disk from a background thread so that commits do
+ * not have to (group durability).
+ * <p>
+ * While running, the environment is switched to MDB_NOSYNC and is synced
+ * (with mdb_env_sync) every intervalMillis if anything has been committed
+ * since the last sync, or sooner once maxTxns transactions have been
+ * committed or maxBytes bytes (of serialized keys and values) have been
+ * written since the last sync.
+ * <p>
+ * {@link #syncBarrier()} waits until everything committed by the calling
+ * thread (or before the call) has been synced so a writer can find out that
+ * its commit is durable without syncing on every commit itself.
+ * <p>
+ * Only commits made through the maps of this process are counted.
+ */
+public final class LMDBSyncScheduler implements AutoCloseable {
+  private static final Logger logger = Logger.getLogger(LMDBSyncScheduler.class.getName());
+
+  /**
+   * Start syncing the environment every intervalMillis
+   * @param env an {@link LMDBMap}, {@link LMDBMultiMap} or {@link LMDBEnvTemplate}
+   * @param intervalMillis the maximum time between a commit and the sync that
+   *        makes it durable
+   * @return the running scheduler
+   * @throws IllegalStateException if a scheduler is already running for the
+   *         environment
+   */
+  public static LMDBSyncScheduler start(LMDBEnv env, long intervalMillis) {
+    return start(env, intervalMillis, 0, 0);
+  }
+
+  /**
+   * Start syncing the environment every intervalMillis or after maxTxns
+   * commits or maxBytes written bytes (whichever comes first)
+   * @param env an {@link LMDBMap}, {@link LMDBMultiMap} or {@link LMDBEnvTemplate}
+   * @param intervalMillis the maximum time between a commit and the sync that
+   *        makes it durable
+   * @param maxTxns sync once this many transactions have been committed since
+   *        the last sync (0 to disable)
+   * @param maxBytes sync once this many bytes have been written since the
+   *        last sync (0 to disable)
+   * @return the running scheduler
+   * @throws IllegalStateException if a scheduler is already running for the
+   *         environment
+   */
+  public static LMDBSyncScheduler start(LMDBEnv env, long intervalMillis, long maxTxns, long maxBytes) {
+    return new LMDBSyncScheduler(LMDBEnvInternal.of(env), intervalMillis, maxTxns, maxBytes);
+  }
+
+  private final LMDBEnvInternal env;
+  private final long intervalNanos;
+  private final long maxTxns;
+  private final long maxBytes;
+  private final boolean wasNoSync;
+  private final Thread thread;
+
+  /** Guards waiting for (and signalling) syncs */
+  private final Object lock = new Object();
+
+  /** The number of transactions committed since the scheduler was started */
+  private final AtomicLong committed = new AtomicLong();
+
+  /** The bytes written since the last sync */
+  private final AtomicLong pendingBytes = new AtomicLong();
+
+  /** The number of committed transactions made durable by the last sync */
+  private volatile long synced = 0;
+
+  /** Set by a committing thread once maxTxns or maxBytes has been reached */
+  private volatile boolean thresholdReached = false;
+
+  private volatile long lastSyncNanos;
+  private volatile long syncCount = 0;
+  private volatile RuntimeException failure = null;
+  private volatile boolean closed = false;
+
+  /** Set once {@link #close()} has made its final sync */
+  private volatile boolean finished = false;
+
+  private LMDBSyncScheduler(LMDBEnvInternal env, long intervalMillis, long maxTxns, long maxBytes) {
+    if (intervalMillis <= 0) throw new IllegalArgumentException("intervalMillis must be > 0");
+    if (maxTxns < 0) throw new IllegalArgumentException("maxTxns must be >= 0");
+    if (maxBytes < 0) throw new IllegalArgumentException("maxBytes must be >= 0");
+
+    this.env = env;
+    this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMillis);
+    this.maxTxns = maxTxns;
+    this.maxBytes = maxBytes;
+    this.lastSyncNanos = System.nanoTime();
+
+    env.attachSyncScheduler(this);
+
+    wasNoSync = env.env().isNoSync();
+    env.disableSync();
+
+    thread = new Thread(this::run, "LMDBSyncScheduler");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /**
+   * Called by {@link LMDBEnvImpl} after a top-level write transaction has
+   * been committed
+   */
+  void committed() {
+    final long n = committed.incrementAndGet();
+    if ((0 < maxTxns && n - synced >= maxTxns) || (0 < maxBytes && pendingBytes.get() >= maxBytes)) wakeUp();
+  }
+
+  /**
+   * Called by {@link LMDBMapImpl} (from within the write transaction) for
+   * each key/value that is written or deleted
+   */
+  void written(long bytes) {
+    if (0 < maxBytes) pendingBytes.addAndGet(bytes);
+  }
+
+  private void wakeUp() {
+    if (thresholdReached) return;
+
+    synchronized (lock) {
+      thresholdReached = true;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * @return the number of transactions committed since the scheduler was
+   *         started
+   */
+  public long committedCount() {
+    return committed.get();
+  }
+
+  /**
+   * @return the number of committed transactions that have been synced
+   */
+  public long syncedCount() {
+    return synced;
+  }
+
+  /**
+   * @return the number of times the environment has been synced
+   */
+  public long syncCount() {
+    return syncCount;
+  }
+
+  /**
+   * Wait until every transaction committed before this call (including the
+   * calling thread's last commit) has been synced to disk
+   * @throws IllegalStateException if syncing the environment failed or the
+   *         scheduler was closed before the commits were synced
+   */
+  public void syncBarrier() throws InterruptedException {
+    syncBarrier(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Same as {@link #syncBarrier()} but gives up after the timeout
+   * @return true if the commits have been synced, false if the timeout
+   *         elapsed first
+   * @throws IllegalStateException if syncing the environment failed or the
+   *         scheduler was closed before the commits were synced
+   */
+  public boolean syncBarrier(long timeout, TimeUnit unit) throws InterruptedException {
+    final long target = committed.get();
+    if (synced >= target) return true;
+
+    final long start = System.nanoTime();
+    final long timeoutNanos = unit.toNanos(timeout);
+
+    synchronized (lock) {
+      while (synced < target) {
+        final RuntimeException ex = failure;
+        if (null != ex) throw new IllegalStateException("Syncing the environment failed", ex);
+        if (finished) throw new IllegalStateException("The sync scheduler has been closed");
+
+        final long remaining = timeoutNanos - (System.nanoTime() - start);
+        if (remaining <= 0) return false;
+        TimeUnit.NANOSECONDS.timedWait(lock, remaining);
+      }
+    }
+
+    return true;
+  }
+
+  private void run() {
+    try {
+      while (!closed) {
+        synchronized (lock) {
+          final long wait = lastSyncNanos + intervalNanos - System.nanoTime();
+          if (!closed && !thresholdReached && wait > 0) TimeUnit.NANOSECONDS.timedWait(lock, wait);
+        }
+
+        if (closed) break;
+
+        if (committed.get() > synced) {
+          if (thresholdReached || System.nanoTime() - lastSyncNanos >= intervalNanos) sync();
+        } else if (System.nanoTime() - lastSyncNanos >= intervalNanos) {
+          // Nothing to sync so just restart the interval
+          lastSyncNanos = System.nanoTime();
+        }
+      }
+    } catch (InterruptedException ex) {
+      // Closed
+    } catch (RuntimeException ex) {
+      logger.log(Level.SEVERE, "Syncing the environment failed", ex);
+
+      synchronized (lock) {
+        failure = ex;
+        lock.notifyAll();
+      }
+    }
+  }
+
+  private void sync() {
+    final long n = committed.get();
+    thresholdReached = false;
+    pendingBytes.set(0);
+    lastSyncNanos = System.nanoTime();
+
+    env.sync(true);
+
+    synchronized (lock) {
+      synced = n;
+      syncCount++;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * Stop the background thread, sync the environment and restore its
+   * MDB_NOSYNC setting
+   */
+  @Override
+  public void close() {
+    if (closed) return;
+    closed = true;
+
+    thread.interrupt();
+
+    boolean interrupted = false;
+
+    while (thread.isAlive()) {
+      try {
+        thread.join();
+      } catch (InterruptedException ex) {
+        interrupted = true;
+      }
+    }
+
+    env.detachSyncScheduler(this);
+    if (null == failure) sync();
+    if (!wasNoSync) env.enableSync();
+
+    synchronized (lock) {
+      finished = true;
+      lock.notifyAll();
+    }
+
+    if (interrupted) Thread.currentThread().interrupt();
+  }
+}
@@ -0,0 +1,241 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A serializer for composite (tuple) keys such as (tenantId, timestamp, seq)
+ * whose serialized bytes sort in the same order as the tuples.  Since LMDB
+ * compares keys with memcmp by default no Java comparator is needed and a
+ * range of keys sharing leading components is contiguous, so it can be read
+ * with a sub map or a prefix scan using a shorter tuple.
+ * <p>
+ * The fields are encoded as:
+ * <ul>
+ *   <li>ints and longs: big-endian with the sign bit flipped</li>
+ *   <li>Strings (UTF-8) and byte arrays: every 0x00 byte is escaped as
+ *   0x00 0xFF and the field is terminated by 0x00 0x01</li>
+ *   <li>descending fields: every byte of the ascending encoding is
+ *   inverted</li>
+ * </ul>
+ * <p>
+ * Tuples are Lists of boxed fields (e.g. {@code Arrays.asList(7, 1234L, "abc")}).
+ * A tuple may leave off trailing fields which is how ranges and prefixes of
+ * leading components are specified.  Fields cannot be null.
+ * <pre>
+ * LMDBTupleSerializer keys = LMDBTupleSerializer.builder().addInt().addLong(true).addString().build();
+ * </pre>
+ */
+public final class LMDBTupleSerializer extends LMDBSerializer<List<Object>> {
+  private static enum Type { INT, LONG, STRING, BYTES }
+  
+  private static final byte ESCAPE = 0x00;
+  private static final byte ESCAPED_ZERO = (byte)0xFF;
+  private static final byte TERMINATOR = 0x01;
+  
+  public static Builder builder() {
+    return new Builder();
+  }
+  
+  public static final class Builder {
+    private final List<Type> types = new ArrayList<Type>();
+    private final List<Boolean> descending = new ArrayList<Boolean>();
+    
+    private Builder() { }
+    
+    private Builder add(Type type, boolean desc) {
+      types.add(type);
+      descending.add(desc);
+      return this;
+    }
+    
+    public Builder addInt() { return addInt(false); }
+    public Builder addInt(boolean descending) { return add(Type.INT, descending); }
+    
+    public Builder addLong() { return addLong(false); }
+    public Builder addLong(boolean descending) { return add(Type.LONG, descending); }
+    
+    public Builder addString() { return addString(false); }
+    public Builder addString(boolean descending) { return add(Type.STRING, descending); }
+    
+    public Builder addBytes() { return addBytes(false); }
+    public Builder addBytes(boolean descending) { return add(Type.BYTES, descending); }
+    
+    public LMDBTupleSerializer build() {
+      if (types.isEmpty()) throw new IllegalStateException("A tuple needs at least one field");
+      
+      final boolean[] desc = new boolean[descending.size()];
+      for (int i = 0; i < desc.length; i++) desc[i] = descending.get(i);
+      
+      return new LMDBTupleSerializer(types.toArray(new Type[types.size()]), desc);
+    }
+  }
+  
+  private final Type[] types;
+  private final boolean[] descending;
+  
+  private LMDBTupleSerializer(Type[] types, boolean[] descending) {
+    this.types = types;
+    this.descending = descending;
+  }
+  
+  /**
+   * @return the number of fields in a complete tuple
+   */
+  public int fieldCount() {
+    return types.length;
+  }
+  
+  public int cachedBufferSize() { return -1; }
+  public boolean integerKeys() { return false; }
+  public boolean fixedSize() { return false; }
+  
+  public int serializedSize(List<Object> tuple) {
+    checkSize(tuple);
+    int size = 0;
+    
+    for (int i = 0; i < tuple.size(); i++) {
+      final Object field = tuple.get(i);
+      
+      switch (types[i]) {
+        case INT:
+          checkType(i, field, Integer.class);
+          size += 4;
+          break;
+        case LONG:
+          checkType(i, field, java.lang.Long.class);
+          size += 8;
+          break;
+        case STRING:
+          final java.lang.String s = checkType(i, field, java.lang.String.class);
+          size += escapedSize(String.serializedSize(s), zeros(s));
+          break;
+        case BYTES:
+          final byte[] b = checkType(i, field, byte[].class);
+          size += escapedSize(b.length, zeros(b));
+          break;
+      }
+    }
+    
+    return size;
+  }
+  
+  public ByteBuffer serialize(List<Object> tuple, ByteBuffer buf) {
+    final int size = serializedSize(tuple);
+    if (null == buf || buf.remaining() < size) buf = ByteBuffer.allocateDirect(size);
+    buf.order(ByteOrder.BIG_ENDIAN);
+    
+    for (int i = 0; i < tuple.size(); i++) {
+      final Object field = tuple.get(i);
+      final int start = buf.position();
+      
+      switch (types[i]) {
+        case INT:    buf.putInt((Integer)field ^ Integer.MIN_VALUE); break;
+        case LONG:   buf.putLong((java.lang.Long)field ^ java.lang.Long.MIN_VALUE); break;
+        case STRING: putEscaped(buf, ((java.lang.String)field).getBytes(StandardCharsets.UTF_8)); break;
+        case BYTES:  putEscaped(buf, (byte[])field); break;
+      }
+      
+      if (descending[i]) {
+        for (int j = start; j < buf.position(); j++) buf.put(j, (byte)~buf.get(j));
+      }
+    }
+    
+    buf.flip();
+    return buf;
+  }
+  
+  public List<Object> deserialize(ByteBuffer buf) {
+    final List<Object> res = new ArrayList<Object>(types.length);
+    buf.order(ByteOrder.BIG_ENDIAN);
+    
+    for (int i = 0; i < types.length && buf.hasRemaining(); i++) {
+      final int mask = descending[i] ? 0xFF : 0x00;
+      
+      switch (types[i]) {
+        case INT:    res.add(buf.getInt() ^ (descending[i] ? Integer.MAX_VALUE : Integer.MIN_VALUE)); break;
+        case LONG:   res.add(buf.getLong() ^ (descending[i] ? java.lang.Long.MAX_VALUE : java.lang.Long.MIN_VALUE)); break;
+        case STRING: res.add(new java.lang.String(getEscaped(buf, mask), StandardCharsets.UTF_8)); break;
+        case BYTES:  res.add(getEscaped(buf, mask)); break;
+      }
+    }
+    
+    return Collections.unmodifiableList(res);
+  }
+  
+  private void checkSize(List<Object> tuple) {
+    if (tuple.size() > types.length) throw new IllegalArgumentException("Expected at most " + types.length + " fields but got " + tuple.size());
+  }
+  
+  private <T> T checkType(int i, Object field, Class<T> clazz) {
+    if (!clazz.isInstance(field)) throw new IllegalArgumentException("Expected field " + i + " to be a " + clazz.getSimpleName() + " but got: " + field);
+    return clazz.cast(field);
+  }
+  
+  private static int escapedSize(int len, int zeros) {
+    return len + zeros + 2;
+  }
+  
+  private static int zeros(java.lang.String s) {
+    int res = 0;
+    for (int i = 0; i < s.length(); i++) if (0 == s.charAt(i)) res++;
+    return res;
+  }
+  
+  private static int zeros(byte[] b) {
+    int res = 0;
+    for (byte x : b) if (0 == x) res++;
+    return res;
+  }
+  
+  private static void putEscaped(ByteBuffer buf, byte[] bytes) {
+    for (byte b : bytes) {
+      buf.put(b);
+      if (ESCAPE == b) buf.put(ESCAPED_ZERO);
+    }
+    
+    buf.put(ESCAPE);
+    buf.put(TERMINATOR);
+  }
+  
+  private static byte[] getEscaped(ByteBuffer buf, int mask) {
+    final byte[] res = new byte[buf.remaining()];
+    int len = 0;
+    
+    while (true) {
+      if (!buf.hasRemaining()) throw new IllegalArgumentException("Unterminated field");
+      final byte b = (byte)(buf.get() ^ mask);
+      
+      if (ESCAPE == b) {
+        if (!buf.hasRemaining()) throw new IllegalArgumentException("Unterminated field");
+        final byte next = (byte)(buf.get() ^ mask);
+        if (TERMINATOR == next) break;
+        if (ESCAPED_ZERO != next) throw new IllegalArgumentException("Invalid escape sequence: 0x00 0x" + Integer.toHexString(next & 0xFF));
+      }
+      
+      res[len++] = b;
+    }
+    
+    return Arrays.copyOf(res, len);
+  }
+}
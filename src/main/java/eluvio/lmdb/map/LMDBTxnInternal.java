@@ -20,4 +20,11 @@ import eluvio.lmdb.api.Txn;
 abstract class LMDBTxnInternal implements LMDBTxn {
   abstract Txn txn();
   abstract boolean readOnly();
+  
+  /**
+   * @return true if {@link #txn()} was begun for this handle (so aborting it
+   *         only undoes the operation that opened the handle) and false if it
+   *         is a caller's enclosing transaction
+   */
+  abstract boolean ownsTxn();
 }
@@ -17,6 +17,7 @@ package eluvio.lmdb.map;
 
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.Spliterator;
 
 final class LMDBValuesCollection<V> implements LMDBCollection<V> {
   private final LMDBMapInternal<?,V> map;
@@ -91,6 +92,11 @@ final class LMDBValuesCollection<V> implements LMDBCollection<V> {
     return map.size();
   }
   
+  @Override
+  public Spliterator<V> spliterator() {
+    return LMDBSpliterator.forValues(map);
+  }
+  
   @Override
   public Object[] toArray() {
     try (LMDBTxnInternal txn = map.withReadOnlyTxn()) {
@@ -27,10 +27,37 @@ final class ReusableTxn implements LMDBTxn {
     @Override public void commit() { close(); }
     @Override public boolean readOnly() { return txn.readOnly; }
     @Override public Txn txn() { return txn; }
+    @Override public boolean ownsTxn() { return false; }
   }
-  private final Env env;
+  /** The environment this belongs to (or null for a standalone/detached ReusableTxn) */
+  private final LMDBEnvImpl owner;
+  
+  /** Only changes (to the owner's current Env) when there is no open transaction */
+  private volatile Env env;
+  private final LMDBMetrics metrics;
   private volatile Txn txn = null;
   
+  /**
+   * When the current transaction was begun or renewed (from System.nanoTime()).
+   * This and the fields below are only set once the owner tracks readers (see
+   * {@link LMDBEnvInternal#trackReaders()}) so begin/renew does not read the
+   * clock otherwise.
+   */
+  private volatile long openedAtNanos = 0;
+  
+  /** The thread that began or renewed the current transaction */
+  private volatile Thread openedBy = null;
+  
+  /** The txn id of the current transaction when it was begun or renewed */
+  private volatile long openedTxnId = 0;
+  
+  /**
+   * Set by the owning thread from when it starts using a transaction until
+   * its last transaction has ended so {@link LMDBEnvImpl#released} knows
+   * which ReusableTxns it can move off of an Env replaced by compact()
+   */
+  private volatile boolean active = false;
+  
   private int readOnlyDepth = 0;
   private final static int READ_ONLY = 1 << 0;
   private final static int ALLOW_NESTED = 1 << 1;
@@ -40,16 +67,18 @@ final class ReusableTxn implements LMDBTxn {
   private final LMDBTxnInternal ReadWriteTxn = new LMDBTxnImpl() {
     public void abort() { txn.abort(); }
     public void close() {
-      if (txn.isOpen()) txn.commit();
+      if (txn.isOpen()) commitTxn(txn);
       txn = txn.parent;
       
       // If there was no parent txn and our readOnlyDepth > 0 then it means
       // this read-write txn was nested under 1 or more read-only transactions.
       // So we need to restore a read-only transaction.
-      if (null == txn && readOnlyDepth > 0) txn = new Txn(env, Api.MDB_RDONLY);
+      if (null == txn && readOnlyDepth > 0) txn = newTxn(null, Api.MDB_RDONLY);
+      if (null == txn) idle();
     }
     
-    public void commit() { txn.commit(); }
+    public void commit() { commitTxn(txn); }
+    @Override public boolean ownsTxn() { return true; }
   };
   
   private final LMDBTxnInternal ReadOnlyTxn = new LMDBTxnImpl() {
@@ -60,7 +89,10 @@ final class ReusableTxn implements LMDBTxn {
       if (txn.isOpen()) {
         --readOnlyDepth;
         if (readOnlyDepth < 0) throw new IllegalStateException("readOnlyDepth is less than zero: "+readOnlyDepth);
-        if (0 == readOnlyDepth) txn.reset();
+        if (0 == readOnlyDepth) {
+          txn.reset();
+          idle();
+        }
       } else {
         throw new IllegalStateException("Expected read-only txn to still be open");
       }
@@ -85,7 +117,78 @@ final class ReusableTxn implements LMDBTxn {
   };
     
   public ReusableTxn(Env env) {
+    this(env, null);
+  }
+  
+  /**
+   * @param metrics where to record txn begin/commit latencies (or null if metrics are not enabled)
+   */
+  public ReusableTxn(Env env, LMDBMetrics metrics) {
+    this.owner = null;
     this.env = env;
+    this.metrics = metrics;
+  }
+  
+  /**
+   * A ReusableTxn whose top-level transactions follow the owner's current
+   * Env if it is swapped out by {@link LMDBEnvImpl#compact()}
+   */
+  ReusableTxn(LMDBEnvImpl owner, LMDBMetrics metrics) {
+    this.owner = owner;
+    this.env = owner.env;
+    this.metrics = metrics;
+  }
+  
+  /**
+   * A ReusableTxn with a read-only transaction that is already open.  The
+   * transaction stays open (i.e. is not reset when nested read-only
+   * transactions are closed) until {@link #close()} is called.
+   */
+  static ReusableTxn readOnly(Env env) {
+    final ReusableTxn res = new ReusableTxn(env);
+    final long start = System.nanoTime();
+    res.txn = new Txn(env, Api.MDB_RDONLY);
+    res.opened(res.txn, start);
+    res.readOnlyDepth = 1;
+    return res;
+  }
+  
+  /**
+   * @return the Env the transactions are (or will be) opened in
+   */
+  Env env() {
+    return env;
+  }
+  
+  /**
+   * @return true if there is no transaction open and no reset read-only
+   *         transaction waiting to be renewed
+   */
+  boolean isClosed() {
+    return null == txn;
+  }
+  
+  /**
+   * @return true if this belongs to an environment (i.e. is not detached)
+   */
+  boolean hasOwner() {
+    return null != owner;
+  }
+  
+  /**
+   * @return true if there is an open (not reset) transaction
+   */
+  boolean hasOpenTxn() {
+    final Txn current = txn;
+    return null != current && current.isOpen();
+  }
+  
+  /**
+   * @return the id of the current transaction
+   */
+  long id() {
+    if (null == txn || !txn.isOpen()) throw new IllegalStateException("No open transaction");
+    return txn.id();
   }
   
   public void abort() {
@@ -99,9 +202,11 @@ final class ReusableTxn implements LMDBTxn {
       txn.reset();
       --readOnlyDepth;
       if (0 != readOnlyDepth) throw new IllegalStateException("Expected readOnlyDepth to be 0");
+      idle();
     } else {
       txn.abort();
       txn = txn.parent;
+      if (null == txn) idle();
     }
   }
   
@@ -120,6 +225,7 @@ final class ReusableTxn implements LMDBTxn {
     }
     
     readOnlyDepth = 0;
+    active = false;
   }
 
   public void commit() {
@@ -133,9 +239,11 @@ final class ReusableTxn implements LMDBTxn {
       txn.reset();
       --readOnlyDepth;
       if (0 != readOnlyDepth) throw new IllegalStateException("Expected readOnlyDepth to be 0");
+      idle();
     } else {
-      txn.commit();
+      commitTxn(txn);
       txn = txn.parent;
+      if (null == txn) idle();
     }
   }
 
@@ -188,11 +296,20 @@ final class ReusableTxn implements LMDBTxn {
     // This is an exclusive flag
     if (useExistingReadOrWrite) assert flags == USE_EXISTING_READ_OR_WRITE;
     
+    if (!active) active = true;
+    
+    // The environment has been compacted and there is no open transaction
+    // keeping us on the old Env so move over to the new one
+    if (null != owner && env != owner.env) {
+      final Env prev = leaveReplacedEnv(false);
+      if (null != prev) owner.released(prev);
+    }
+    
     // No existing transaction, so start one of the requested type
     if (null == txn) {
       if (requireExisting || useExistingReadOrWrite) throw new IllegalStateException("Expected an existing transaction but none was found!");
       
-      txn = new Txn(env, readOnly ? Api.MDB_RDONLY : 0);
+      txn = newTxn(null, readOnly ? Api.MDB_RDONLY : 0);
       readOnlyDepth = readOnly ? 1 : 0;
       return readOnly ? ReadOnlyTxn : ReadWriteTxn;
     }
@@ -210,7 +327,7 @@ final class ReusableTxn implements LMDBTxn {
           return NopTxn;
         } else {
           ++readOnlyDepth;
-          if (txn.isInit()) txn.renew();
+          if (txn.isInit()) renewTxn(txn);
           return ReadOnlyTxn;
         }
       } else {
@@ -232,17 +349,141 @@ final class ReusableTxn implements LMDBTxn {
       // We have an read-only transaction in the INIT state that needs
       // to be aborted so we can re-open as read-write
       txn.abort();
-      txn = new Txn(env);
+      txn = newTxn(null, 0);
       return ReadWriteTxn;
     } else {
       // Want a read/write txn
       if (allowNested) {
         // We create a nested transaction
-        txn = new Txn(env, txn);
+        txn = newTxn(txn, 0);
         return ReadWriteTxn;
       } else {
         return NonNestedReadWriteWithinReadWriteTxn;
       }
     }
   }
+  
+  /**
+   * @return when the currently open read-only transaction was begun or
+   *         renewed (from System.nanoTime()) or 0 if there is no open
+   *         read-only transaction
+   */
+  long readOnlyOpenedAtNanos() {
+    final Txn current = txn;
+    return null != current && current.readOnly && current.isOpen() ? openedAtNanos : 0;
+  }
+  
+  /**
+   * @return the thread that opened the current read-only transaction (or
+   *         null if there is no open read-only transaction)
+   */
+  Thread readOnlyOpenedBy() {
+    return 0 != readOnlyOpenedAtNanos() ? openedBy : null;
+  }
+  
+  /**
+   * @return the txn id of the current read-only transaction (only valid if
+   *         {@link #readOnlyOpenedAtNanos()} is non-zero)
+   */
+  long readOnlyTxnId() {
+    return openedTxnId;
+  }
+  
+  private void opened(Txn txn, long start) {
+    openedBy = Thread.currentThread();
+    openedTxnId = txn.id();
+    openedAtNanos = start;
+  }
+  
+  private boolean tracksReaders() {
+    return null != owner && owner.tracksReaders();
+  }
+  
+  private void switchEnv() {
+    final Env prev = env;
+    env = owner.env;
+    owner.released(prev);
+  }
+  
+  /**
+   * Called by the owning thread once its last transaction has ended.  If the
+   * Env was replaced by compact() while the transaction was open then move
+   * to the new Env now so the old one can be closed.
+   */
+  private void idle() {
+    active = false;
+    
+    if (null != owner && env != owner.env) {
+      final Env prev = leaveReplacedEnv(true);
+      if (null != prev) owner.released(prev);
+    }
+  }
+  
+  /**
+   * Stop using an Env replaced by compact() by aborting the reset read-only
+   * transaction (if any) that is left on it.  This is synchronized since
+   * {@link LMDBEnvImpl#released} calls it for idle threads.
+   * @param requireIdle only move if the owning thread is not using a transaction
+   * @return the replaced Env or null if this did not move (or already had)
+   */
+  synchronized Env leaveReplacedEnv(boolean requireIdle) {
+    final Env prev = env;
+    if (prev == owner.env || (requireIdle && active)) return null;
+    if (null != txn && !txn.isInit()) return null;
+    
+    if (null != txn) txn.abort();
+    txn = null;
+    
+    // The txn must be cleared before env changes (see withTxn)
+    env = owner.env;
+    return prev;
+  }
+  
+  private Txn newTxn(Txn parent, int flags) {
+    final boolean track = null == parent && tracksReaders();
+    final long start = null != metrics || track ? System.nanoTime() : 0L;
+    Txn res = new Txn(env, parent, flags);
+    
+    // A top-level read/write transaction that was waiting on the write lock
+    // held by LMDBEnvImpl.compact() ends up on the old Env so retry it on the
+    // new one.  No other ReusableTxn state refers to the old Env at this point.
+    while (null == parent && !res.readOnly && null != owner && env != owner.env) {
+      res.abort();
+      switchEnv();
+      res = new Txn(env, null, flags);
+    }
+    
+    if (null == parent && !res.readOnly && null != owner) owner.writeBegun(res);
+    if (track) opened(res, start);
+    if (null != metrics) metrics.record(LMDBMetrics.Op.TXN_BEGIN, start);
+    return res;
+  }
+  
+  private void renewTxn(Txn txn) {
+    final boolean track = tracksReaders();
+    final long start = null != metrics || track ? System.nanoTime() : 0L;
+    txn.renew();
+    if (track) opened(txn, start);
+    if (null != metrics) metrics.record(LMDBMetrics.Op.TXN_BEGIN, start);
+  }
+  
+  private void commitTxn(Txn txn) {
+    final boolean topLevel = null == txn.parent && null != owner;
+    final long id = topLevel && !txn.readOnly ? owner.committing(txn) : 0;
+    
+    try {
+      if (null == metrics) {
+        txn.commit();
+      } else {
+        final long start = System.nanoTime();
+        txn.commit();
+        metrics.record(LMDBMetrics.Op.TXN_COMMIT, start);
+      }
+    } catch (RuntimeException ex) {
+      if (0 != id) owner.commitFailed();
+      throw ex;
+    }
+    
+    if (topLevel) owner.committed(id);
+  }
 }
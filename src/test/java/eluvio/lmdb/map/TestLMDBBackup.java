@@ -0,0 +1,197 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+
+public class TestLMDBBackup {
+
+  private static class TestEnv extends LMDBEnvTemplate {
+    final LMDBMapTemplate<Integer,String> map = new LMDBMapTemplate<Integer,String>("map", LMDBSerializer.Int, LMDBSerializer.String);
+
+    TestEnv(File path) {
+      super(path, false, LMDBEnv.DEFAULT_MAPSIZE, 2, LMDBEnv.DEFAULT_MAXREADERS, 0);
+    }
+  }
+
+  @Test
+  public void backupToDirectory() throws Exception {
+    backupToDirectory(false);
+    backupToDirectory(true);
+  }
+
+  private void backupToDirectory(boolean compact) throws Exception {
+    final File dir = Files.createTempDirectory("lmdb-backup").toFile();
+
+    try (TestEnv env = new TestEnv(null)) {
+      for (int i = 0; i < 10000; i++) env.map.put(i, "value" + i);
+      // Leave some free pages behind for the compacted copy to omit
+      for (int i = 0; i < 10000; i += 2) env.map.remove(i);
+
+      final LMDBBackup backup = LMDBBackup.start(env, dir, compact);
+
+      // Writes are not blocked by the backup
+      env.map.put(-1, "after");
+
+      final long bytes = backup.await();
+      assertTrue(backup.isDone());
+      assertEquals(bytes, backup.bytesCopied());
+      assertEquals(bytes, new File(dir, LMDBBackup.DATA_FILE_NAME).length());
+      assertTrue(backup.bytesPerSecond() > 0);
+    }
+
+    try (TestEnv copy = new TestEnv(dir)) {
+      // The concurrent put may or may not have committed before the backup's read-only txn started
+      final int size = copy.map.size();
+      assertTrue(5000 == size || 5001 == size);
+      assertEquals("value1", copy.map.get(1));
+      assertNull(copy.map.get(2));
+    } finally {
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void compactedIsSmaller() throws Exception {
+    try (TestEnv env = new TestEnv(null)) {
+      for (int i = 0; i < 10000; i++) env.map.put(i, "value" + i);
+      env.map.clear();
+      env.map.put(1, "one");
+
+      final ByteArrayOutputStream full = new ByteArrayOutputStream();
+      final ByteArrayOutputStream compacted = new ByteArrayOutputStream();
+
+      assertEquals(LMDBBackup.start(env, Channels.newChannel(full), false).await(), full.size());
+      assertEquals(LMDBBackup.start(env, Channels.newChannel(compacted), true).await(), compacted.size());
+
+      assertTrue(compacted.size() < full.size());
+    }
+  }
+
+  @Test
+  public void copyToPath() throws Exception {
+    final File dir = Files.createTempDirectory("lmdb-copy").toFile();
+
+    try {
+      try (TestEnv env = new TestEnv(dir)) {
+        env.map.put(1, "one");
+      }
+
+      final File copyDir = new File(dir, "copy");
+      assertTrue(copyDir.mkdir());
+
+      try (TestEnv env = new TestEnv(dir)) {
+        LMDBEnvInternal.of(env).env().copyTo(copyDir.toPath(), true);
+      }
+
+      try (TestEnv copy = new TestEnv(copyDir)) {
+        assertEquals("one", copy.map.get(1));
+      }
+
+      for (File f : copyDir.listFiles()) f.delete();
+      copyDir.delete();
+    } finally {
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+    }
+  }
+
+  /** Blocks the backup on its first write until released */
+  private static class GatedChannel implements WritableByteChannel {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final WritableByteChannel channel = Channels.newChannel(out);
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch gate = new CountDownLatch(1);
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      writing.countDown();
+      try {
+        gate.await();
+      } catch (InterruptedException ex) {
+        throw new IOException(ex);
+      }
+      return channel.write(src);
+    }
+
+    @Override
+    public boolean isOpen() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  @Test
+  public void backupSurvivesCompaction() throws Exception {
+    final File dir = Files.createTempDirectory("lmdb-backup").toFile();
+
+    try (TestEnv env = new TestEnv(dir)) {
+      for (int i = 0; i < 10000; i++) env.map.put(i, "value" + i);
+      for (int i = 0; i < 10000; i += 2) env.map.remove(i);
+
+      final GatedChannel channel = new GatedChannel();
+      final LMDBBackup backup = LMDBBackup.start(env, channel, false);
+      channel.writing.await();
+
+      // The retired Env stays open until the backup is done with it
+      LMDBCompaction.compact(env);
+      channel.gate.countDown();
+
+      final long bytes = backup.await();
+      assertEquals(bytes, channel.out.size());
+      assertEquals("value1", env.map.get(1));
+      assertEquals(5000, env.map.size());
+    } finally {
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void closeWaitsForBackup() throws Exception {
+    final TestEnv env = new TestEnv(null);
+    env.map.put(1, "one");
+
+    final GatedChannel channel = new GatedChannel();
+    final LMDBBackup backup = LMDBBackup.start(env, channel, false);
+    channel.writing.await();
+
+    final Thread closer = new Thread(env::close);
+    closer.start();
+    closer.join(200);
+    assertTrue(closer.isAlive());
+
+    channel.gate.countDown();
+    final long bytes = backup.await();
+    assertEquals(bytes, channel.out.size());
+    closer.join();
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import eluvio.lmdb.api.DB;
+import eluvio.lmdb.api.Txn;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+public class TestLMDBBloomFilter {
+
+  private static class TestEnv extends LMDBEnvTemplate {
+    final LMDBMapTemplate<Integer,String> map = new LMDBMapTemplate<Integer,String>("map", LMDBSerializer.Int, LMDBSerializer.String);
+
+    TestEnv(File path) {
+      super(path, false, LMDBEnv.DEFAULT_MAPSIZE, 2, LMDBEnv.DEFAULT_MAXREADERS, 0);
+    }
+  }
+
+  @Test
+  public void noFalseNegatives() {
+    try (TestEnv env = new TestEnv(null); LMDBBloomFilter filter = LMDBBloomFilter.open(env.map, 10000, 0.01)) {
+      assertTrue(filter.wasRebuiltOnOpen());
+
+      for (int i = 0; i < 10000; i += 2) env.map.put(i, "v" + i);
+
+      for (int i = 0; i < 10000; i++) {
+        assertEquals(i % 2 == 0, env.map.containsKey(i));
+        assertEquals(i % 2 == 0 ? "v" + i : null, env.map.get(i));
+      }
+
+      // Roughly 1% of the 10000 lookups for absent keys are false positives
+      assertEquals(20000, filter.lookupCount());
+      assertTrue(filter.negativeCount() > 9500);
+
+      // getAll() consults the filter for each key before reading
+      assertEquals(Arrays.asList("v0", null, "v2"), env.map.getAll(Arrays.asList(0, 1, 2)));
+      assertEquals(20003, filter.lookupCount());
+
+      // Uncommitted writes are visible to the writing thread
+      try (LMDBTxn txn = env.withReadWriteTxn()) {
+        env.map.put(1, "one");
+        assertEquals("one", env.map.get(1));
+        txn.abort();
+      }
+
+      assertNull(env.map.get(1));
+
+      env.map.remove(2);
+      env.map.clear();
+      assertFalse(env.map.containsKey(4));
+      env.map.put(4, "four");
+      assertEquals("four", env.map.get(4));
+    }
+  }
+
+  @Test
+  public void rebuild() {
+    try (TestEnv env = new TestEnv(null); LMDBBloomFilter filter = LMDBBloomFilter.open(env.map, 1000, 0.01)) {
+      for (int i = 0; i < 1000; i++) env.map.put(i, "v" + i);
+      env.map.clear();
+
+      final long before = filter.negativeCount();
+      for (int i = 0; i < 1000; i++) assertNull(env.map.get(i));
+      assertEquals(before, filter.negativeCount());
+
+      filter.rebuild();
+      for (int i = 0; i < 1000; i++) assertNull(env.map.get(i));
+      assertEquals(before + 1000, filter.negativeCount());
+    }
+  }
+
+  @Test
+  public void sharedByMapsOfTheSameDatabase() {
+    try (TestEnv env = new TestEnv(null); LMDBBloomFilter filter = LMDBBloomFilter.open(env.map, 1000, 0.01)) {
+      final LMDBMapImpl<Integer,String> other = new LMDBMapImpl<Integer,String>(env.env(), "map", LMDBSerializer.Int, LMDBSerializer.String, null, null, false);
+
+      for (int i = 0; i < 100; i++) other.put(i, "v" + i);
+      for (int i = 0; i < 100; i++) assertEquals("v" + i, env.map.get(i));
+      assertTrue(filter.isCurrent());
+
+      try {
+        LMDBBloomFilter.open(other, 1000, 0.01);
+        fail("Expected IllegalStateException");
+      } catch (IllegalStateException ex) {
+        // expected
+      }
+    }
+  }
+
+  @Test
+  public void unaccountedCommits() {
+    try (TestEnv env = new TestEnv(null); LMDBBloomFilter filter = LMDBBloomFilter.open(env.map, 1000, 0.01)) {
+      env.map.put(1, "one");
+      assertTrue(filter.isCurrent());
+
+      // Written through the api classes (the same as another process would)
+      try (Txn txn = env.env().env().beginTxn(0)) {
+        final DB db = new DB(txn, "map");
+        db.put(txn, LMDBSerializer.Int.serialize(2, null), LMDBSerializer.String.serialize("two", null));
+        txn.commit();
+      }
+
+      assertFalse(filter.isCurrent());
+      assertEquals("two", env.map.get(2));
+
+      // The next write finds the commit that isn't accounted for
+      env.map.put(3, "three");
+      assertFalse(filter.isCurrent());
+      assertEquals("two", env.map.get(2));
+      assertEquals("three", env.map.get(3));
+
+      filter.rebuild();
+      assertTrue(filter.isCurrent());
+
+      final long lookups = filter.lookupCount();
+      assertEquals("two", env.map.get(2));
+      assertEquals(lookups + 1, filter.lookupCount());
+    }
+  }
+
+  @Test
+  public void rejectedWithinTxn() {
+    try (TestEnv env = new TestEnv(null); LMDBBloomFilter filter = LMDBBloomFilter.open(env.map, 1000, 0.01)) {
+      try (LMDBTxn txn = env.withReadWriteTxn()) {
+        env.map.put(1, "one");
+
+        try {
+          filter.rebuild();
+          fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+          // expected
+        }
+
+        try {
+          filter.persist();
+          fail("Expected IllegalStateException");
+        } catch (IllegalStateException ex) {
+          // expected
+        }
+
+        txn.abort();
+      }
+
+      assertNull(env.map.get(1));
+    }
+  }
+
+  @Test
+  public void persistedFilter() throws Exception {
+    final File dir = Files.createTempDirectory("lmdb_bloom").toFile();
+
+    try {
+      try (TestEnv env = new TestEnv(dir)) {
+        for (int i = 0; i < 100; i++) env.map.put(i, "v" + i);
+
+        try (LMDBBloomFilter filter = LMDBBloomFilter.open(env.map, 1000, 0.01)) {
+          assertTrue(filter.wasRebuiltOnOpen());
+          env.map.put(100, "v100");
+        }
+      }
+
+      try (TestEnv env = new TestEnv(dir)) {
+        try (LMDBBloomFilter filter = LMDBBloomFilter.open(env.map, 1000, 0.01)) {
+          assertFalse(filter.wasRebuiltOnOpen());
+          for (int i = 0; i <= 100; i++) assertEquals("v" + i, env.map.get(i));
+        }
+
+        // Written without the filter so the persisted one is stale
+        env.map.put(200, "v200");
+
+        try (LMDBBloomFilter filter = LMDBBloomFilter.open(env.map, 1000, 0.01)) {
+          assertTrue(filter.wasRebuiltOnOpen());
+          assertEquals("v200", env.map.get(200));
+        }
+
+        // A different size can't use the persisted bits
+        try (LMDBBloomFilter filter = LMDBBloomFilter.open(env.map, 5000, 0.01)) {
+          assertTrue(filter.wasRebuiltOnOpen());
+        }
+      }
+    } finally {
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void hashIgnoresByteOrder() {
+    final ByteBuffer a = ByteBuffer.allocateDirect(8);
+    a.putLong(0x0102030405060708L).flip();
+    final ByteBuffer b = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    b.put(new byte[]{1, 2, 3, 4, 5, 6, 7, 8}).flip();
+    assertEquals(LMDBBloomFilter.hash(a), LMDBBloomFilter.hash(b));
+  }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class TestLMDBCachedMap {
+
+  private static class TestEnv extends LMDBEnvTemplate {
+    final LMDBMapTemplate<Integer,String> map = new LMDBMapTemplate<Integer,String>("map", LMDBSerializer.Int, LMDBSerializer.String);
+
+    TestEnv() {
+      super(null, false, LMDBEnv.DEFAULT_MAPSIZE, 2, LMDBEnv.DEFAULT_MAXREADERS, 0);
+    }
+  }
+
+  @Test
+  public void readThrough() {
+    try (TestEnv env = new TestEnv(); LMDBCachedMap<Integer,String> cached = new LMDBCachedMap<Integer,String>(env.map, 100)) {
+      env.map.put(1, "one");
+
+      assertEquals("one", cached.get(1));
+      assertEquals("one", cached.get(1));
+      assertNull(cached.get(2));
+      assertEquals(1, cached.hitCount());
+      assertEquals(2, cached.missCount());
+      assertEquals(1, cached.cachedCount());
+
+      // Writes through the underlying map invalidate the cache on commit
+      env.map.put(1, "ONE");
+      assertEquals(0, cached.cachedCount());
+      assertEquals("ONE", cached.get(1));
+
+      cached.remove(1);
+      assertNull(cached.get(1));
+
+      // Reads inside a transaction see its uncommitted writes
+      cached.put(3, "three");
+      assertEquals("three", cached.get(3));
+
+      try (LMDBTxn txn = env.withReadWriteTxn()) {
+        cached.put(3, "THREE");
+        assertEquals("THREE", cached.get(3));
+        txn.abort();
+      }
+
+      assertEquals("three", cached.get(3));
+
+      env.map.clear();
+      assertEquals(0, cached.cachedCount());
+      assertNull(cached.get(3));
+    }
+  }
+
+  @Test
+  public void eviction() {
+    try (TestEnv env = new TestEnv(); LMDBCachedMap<Integer,String> cached = new LMDBCachedMap<Integer,String>(env.map, 10)) {
+      for (int i = 0; i < 100; i++) env.map.put(i, "v" + i);
+
+      for (int round = 0; round < 3; round++) {
+        for (int i = 0; i < 100; i++) {
+          assertEquals("v" + i, cached.get(i));
+          // Key 0 is hot and should survive eviction
+          assertEquals("v0", cached.get(0));
+        }
+      }
+
+      assertEquals(10, cached.cachedCount());
+      assertTrue(cached.evictionCount() > 0);
+      assertTrue(cached.hitRate() > 0.4);
+    }
+  }
+
+  @Test
+  public void concurrentReaders() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try (TestEnv env = new TestEnv(); LMDBCachedMap<Integer,String> cached = new LMDBCachedMap<Integer,String>(env.map, 16)) {
+      for (int i = 0; i < 32; i++) env.map.put(i, "0");
+
+      for (int t = 0; t < 4; t++) {
+        executor.submit(() -> {
+          for (int n = 0; n < 2000; n++) cached.get(n % 32);
+          return null;
+        });
+      }
+
+      for (int version = 1; version <= 50; version++) {
+        for (int i = 0; i < 32; i++) env.map.put(i, Integer.toString(version));
+      }
+
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+
+      // No stale values are left behind
+      for (int i = 0; i < 32; i++) assertEquals("50", cached.get(i));
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void writeBehind() {
+    try (TestEnv env = new TestEnv()) {
+      try (LMDBCachedMap<Integer,String> cached = new LMDBCachedMap<Integer,String>(env.map, 100, 60000)) {
+        assertTrue(cached.isWriteBehind());
+
+        for (int i = 0; i < 10; i++) cached.put(1, "v" + i);
+        cached.put(2, "two");
+        cached.removeNoPrev(2);
+        cached.putNoPrev(3, "three");
+
+        assertEquals(3, cached.pendingWriteCount());
+        assertEquals("v9", cached.get(1));
+        assertNull(cached.get(2));
+        assertFalse(cached.containsKey(2));
+        assertTrue(cached.containsKey(3));
+        assertNull(env.map.get(1));
+
+        assertEquals(3, cached.flush());
+        assertEquals(0, cached.pendingWriteCount());
+        assertEquals("v9", env.map.get(1));
+        assertFalse(env.map.containsKey(2));
+
+        assertEquals("three", cached.remove(3));
+        assertEquals("three", env.map.get(3));
+
+        // Buffered writes can't be flushed into a transaction that might abort
+        try (LMDBTxn txn = env.withReadWriteTxn()) {
+          try {
+            cached.flush();
+            fail("Expected IllegalStateException");
+          } catch (IllegalStateException ex) {
+            // expected
+          }
+
+          try {
+            cached.close();
+            fail("Expected IllegalStateException");
+          } catch (IllegalStateException ex) {
+            // expected
+          }
+
+          txn.abort();
+        }
+
+        assertEquals(1, cached.pendingWriteCount());
+      }
+
+      // Closing flushes buffered writes
+      assertFalse(env.map.containsKey(3));
+    }
+  }
+}
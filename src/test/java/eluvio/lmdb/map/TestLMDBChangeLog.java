@@ -0,0 +1,176 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class TestLMDBChangeLog {
+
+  private static class TestEnv extends LMDBEnvTemplate {
+    final LMDBMapTemplate<Integer,String> map = new LMDBMapTemplate<Integer,String>("map", LMDBSerializer.Int, LMDBSerializer.String);
+    final LMDBMultiMapTemplate<Integer,Integer> multiMap = new LMDBMultiMapTemplate<Integer,Integer>("multiMap", LMDBSerializer.Int, LMDBSerializer.Int);
+
+    TestEnv() {
+      super(null, false, LMDBEnv.DEFAULT_MAPSIZE, 4, LMDBEnv.DEFAULT_MAXREADERS, 0);
+    }
+  }
+
+  private static void assertRecord(LMDBChangeLog.Record record, String map, LMDBChangeLog.Op op, Integer key, String value) {
+    assertEquals(map, record.map);
+    assertEquals(op, record.op);
+    assertEquals(key, record.key(LMDBSerializer.Int));
+    assertEquals(value, record.value(LMDBSerializer.String));
+  }
+
+  @Test
+  public void committedChanges() {
+    try (TestEnv env = new TestEnv(); LMDBChangeLog log = LMDBChangeLog.open(env)) {
+      env.map.put(1, "one");
+      env.map.put(2, "two");
+      env.map.remove(1);
+
+      // Aborted writes are not logged
+      env.beginTxn();
+      env.map.put(3, "three");
+      env.abortTxn();
+
+      env.map.putIfAbsent(2, "ignored");
+      env.map.replace(2, "TWO");
+      env.multiMap.add(1, 10);
+      env.multiMap.add(1, 11);
+      env.multiMap.remove(1, 10);
+      env.map.clear();
+
+      final LMDBChangeLog.Subscriber subscriber = log.subscribe("test");
+      final List<LMDBChangeLog.Record> records = subscriber.poll(100);
+
+      assertEquals(8, records.size());
+      assertRecord(records.get(0), "map", LMDBChangeLog.Op.PUT, 1, "one");
+      assertRecord(records.get(1), "map", LMDBChangeLog.Op.PUT, 2, "two");
+      assertRecord(records.get(2), "map", LMDBChangeLog.Op.DELETE, 1, null);
+      assertRecord(records.get(3), "map", LMDBChangeLog.Op.PUT, 2, "TWO");
+      assertEquals(Integer.valueOf(10), records.get(4).value(LMDBSerializer.Int));
+      assertEquals(Integer.valueOf(11), records.get(5).value(LMDBSerializer.Int));
+      assertEquals(LMDBChangeLog.Op.DELETE, records.get(6).op);
+      assertEquals("multiMap", records.get(6).map);
+      assertEquals(Integer.valueOf(10), records.get(6).value(LMDBSerializer.Int));
+      assertRecord(records.get(7), "map", LMDBChangeLog.Op.CLEAR, null, null);
+
+      for (int i = 0; i < records.size(); i++) assertEquals(i + 1, records.get(i).seq);
+      assertEquals(8, log.lastSeq());
+    }
+  }
+
+  @Test
+  public void rangeClear() {
+    try (TestEnv env = new TestEnv(); LMDBChangeLog log = LMDBChangeLog.open(env)) {
+      for (int i = 0; i < 10; i++) env.map.put(i, "v" + i);
+
+      final LMDBChangeLog.Subscriber subscriber = log.subscribe("test");
+      assertEquals(10, subscriber.poll(100).size());
+
+      env.map.subMap(3, true, 6, false).clear();
+
+      final List<LMDBChangeLog.Record> records = subscriber.poll(100);
+      assertEquals(3, records.size());
+      for (int i = 0; i < 3; i++) assertRecord(records.get(i), "map", LMDBChangeLog.Op.DELETE, i + 3, null);
+    }
+  }
+
+  @Test
+  public void checkpointsAndPrune() {
+    try (TestEnv env = new TestEnv(); LMDBChangeLog log = LMDBChangeLog.open(env)) {
+      for (int i = 0; i < 10; i++) env.map.put(i, "v" + i);
+
+      final LMDBChangeLog.Subscriber a = log.subscribe("a");
+      final LMDBChangeLog.Subscriber b = log.subscribe("b");
+
+      assertEquals(4, a.poll(4).size());
+      a.acknowledge();
+      assertEquals(4, a.checkpoint());
+
+      // A re-created subscriber resumes after its checkpoint
+      final LMDBChangeLog.Subscriber a2 = log.subscribe("a");
+      assertEquals(5, a2.poll(1).get(0).seq);
+
+      // b has not acknowledged anything
+      assertEquals(0, log.prune());
+
+      b.acknowledge(7);
+      assertEquals(4, log.prune());
+      assertEquals(6, log.size());
+
+      // The latest record is always kept
+      a.acknowledge(10);
+      b.acknowledge(10);
+      assertEquals(5, log.prune());
+      assertEquals(1, log.size());
+
+      env.map.put(100, "v100");
+      assertEquals(11, log.lastSeq());
+
+      assertTrue(log.unsubscribe("b"));
+      assertEquals(1, log.subscribers().size());
+    }
+  }
+
+  @Test
+  public void closedLogStopsRecording() {
+    try (TestEnv env = new TestEnv()) {
+      try (LMDBChangeLog log = LMDBChangeLog.open(env)) {
+        env.map.put(1, "one");
+        assertEquals(1, log.lastSeq());
+      }
+
+      env.map.put(2, "two");
+
+      try (LMDBChangeLog log = LMDBChangeLog.open(env)) {
+        assertEquals(1, log.lastSeq());
+      }
+    }
+  }
+
+  @Test
+  public void awaitIsSignalledOnCommit() throws Exception {
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+
+    try (TestEnv env = new TestEnv(); LMDBChangeLog log = LMDBChangeLog.open(env)) {
+      final LMDBChangeLog.Subscriber subscriber = log.subscribe("test");
+      assertTrue(subscriber.await(10, 10, TimeUnit.MILLISECONDS).isEmpty());
+
+      final Future<List<LMDBChangeLog.Record>> res = executor.submit(() -> subscriber.await(10, 30, TimeUnit.SECONDS));
+
+      try (LMDBTxn txn = env.withReadWriteTxn()) {
+        env.map.put(1, "one");
+        env.map.put(2, "two");
+      }
+
+      final List<LMDBChangeLog.Record> records = res.get(30, TimeUnit.SECONDS);
+      assertFalse(records.isEmpty());
+      assertRecord(records.get(0), "map", LMDBChangeLog.Op.PUT, 1, "one");
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
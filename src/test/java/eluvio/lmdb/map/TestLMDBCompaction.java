@@ -0,0 +1,244 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import eluvio.lmdb.api.Api;
+import eluvio.lmdb.api.Env;
+
+public class TestLMDBCompaction {
+
+  private static class TestEnv extends LMDBEnvTemplate {
+    final LMDBMapTemplate<Integer,String> map = new LMDBMapTemplate<Integer,String>("map", LMDBSerializer.Int, LMDBSerializer.String);
+    final LMDBMultiMapTemplate<Integer,Integer> multiMap = new LMDBMultiMapTemplate<Integer,Integer>("multiMap", LMDBSerializer.Int, LMDBSerializer.Int);
+
+    TestEnv(File path) {
+      super(path, false, LMDBEnv.DEFAULT_MAPSIZE, 2, LMDBEnv.DEFAULT_MAXREADERS, 0);
+    }
+  }
+
+  private static final String VALUE = new String(new char[200]).replace('\0', 'x');
+
+  private static void fill(TestEnv env) {
+    env.beginTxn();
+    for (int i = 0; i < 20000; i++) env.map.put(i, VALUE + i);
+    for (int i = 0; i < 100; i++) env.multiMap.add(i % 10, i);
+    env.commitTxn();
+
+    env.beginTxn();
+    for (int i = 0; i < 20000; i++) if (0 != i % 100) env.map.remove(i);
+    env.commitTxn();
+  }
+
+  private static void check(TestEnv env) {
+    assertEquals(200, env.map.size());
+    assertEquals(VALUE + 100, env.map.get(100));
+    assertNull(env.map.get(101));
+    assertEquals(100, env.multiMap.valueCount());
+    assertEquals(10, env.multiMap.get(3).size());
+  }
+
+  @Test
+  public void compactTemp() {
+    try (TestEnv env = new TestEnv(null)) {
+      fill(env);
+
+      final LMDBCompaction res = LMDBCompaction.compact(env);
+      assertTrue(res.toString(), res.bytesAfter < res.bytesBefore);
+      assertEquals(0, res.replayedKeys);
+
+      check(env);
+
+      // Writes go to the compacted environment
+      env.map.put(1, "one");
+      env.multiMap.add(1, 1000);
+      assertEquals("one", env.map.get(1));
+      assertEquals(11, env.multiMap.get(1).size());
+    }
+  }
+
+  @Test
+  public void compactDirectory() throws Exception {
+    final File dir = Files.createTempDirectory("lmdb-compact").toFile();
+
+    try {
+      final long sizeBefore;
+
+      try (TestEnv env = new TestEnv(dir)) {
+        fill(env);
+        sizeBefore = new File(dir, "data.mdb").length();
+
+        final LMDBCompaction res = LMDBCompaction.compact(env);
+        assertTrue(res.toString(), res.bytesAfter < res.bytesBefore);
+        assertTrue(new File(dir, "data.mdb").length() < sizeBefore);
+        assertFalse(new File(dir.getPath() + ".compacting").exists());
+
+        check(env);
+        env.map.put(1, "one");
+      }
+
+      // The compacted files replaced the originals
+      try (TestEnv env = new TestEnv(dir)) {
+        assertEquals("one", env.map.get(1));
+        assertEquals(201, env.map.size());
+        assertEquals(100, env.multiMap.valueCount());
+      }
+    } finally {
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void concurrentReadsAndWrites() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    try (TestEnv env = new TestEnv(null)) {
+      fill(env);
+
+      final AtomicBoolean done = new AtomicBoolean(false);
+
+      final Future<Integer> writer = executor.submit(() -> {
+        int i = 0;
+
+        while (!done.get()) {
+          env.map.put(100000 + i, "w" + i);
+          env.multiMap.add(-1, i);
+          if (0 == i % 2) env.map.remove(100 * (i % 200));
+          i++;
+        }
+
+        return i;
+      });
+
+      // A read-only txn that stays open (on the old environment) across the compaction
+      final Future<String> reader = executor.submit(() -> {
+        env.beginTxn(true);
+
+        try {
+          final String before = env.map.get(100);
+          while (!done.get()) Thread.sleep(1);
+          assertEquals(before, env.map.get(100));
+          return before;
+        } finally {
+          env.abortTxn();
+        }
+      });
+
+      Thread.sleep(50);
+      final LMDBCompaction res = LMDBCompaction.compact(env);
+      Thread.sleep(50);
+      done.set(true);
+
+      final int writes = writer.get();
+      assertEquals(VALUE + 100, reader.get());
+
+      // Nothing written before, during or after the compaction was lost
+      for (int i = 0; i < writes; i++) assertEquals("w" + i, env.map.get(100000 + i));
+      assertEquals(writes, env.multiMap.get(-1).size());
+
+      for (int i = 0; i < Math.min(writes, 200); i += 2) assertNull(env.map.get(100 * i));
+      assertEquals(VALUE + 100, env.map.get(100));
+
+      assertTrue(res.toString(), res.quiesceNanos <= res.elapsedNanos);
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void oldEnvIsClosedOnceUnused() throws Exception {
+    try (TestEnv env = new TestEnv(null)) {
+      fill(env);
+      env.disableMetaSync();
+
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      final CountDownLatch read = new CountDownLatch(1);
+      final CountDownLatch opened = new CountDownLatch(1);
+      final CountDownLatch finish = new CountDownLatch(1);
+      final CountDownLatch wake = new CountDownLatch(1);
+
+      // Has read from the old environment (leaving a reset read-only txn on it) and then stays idle
+      final Thread idle = new Thread(() -> {
+        try {
+          assertEquals(VALUE + 100, env.map.get(100));
+          read.countDown();
+          wake.await();
+          assertEquals(VALUE + 100, env.map.get(100));
+        } catch (Throwable ex) {
+          failure.set(ex);
+        }
+      });
+
+      // Has a read-only txn open on the old environment across the compaction
+      final Thread reader = new Thread(() -> {
+        try {
+          env.beginTxn(true);
+          assertEquals(VALUE + 100, env.map.get(100));
+          opened.countDown();
+          finish.await();
+          env.abortTxn();
+        } catch (Throwable ex) {
+          failure.set(ex);
+        }
+      });
+
+      idle.start();
+      reader.start();
+      read.await();
+      opened.await();
+
+      final Env old = LMDBEnvInternal.of(env).env();
+      LMDBCompaction.compact(env);
+      final Env current = LMDBEnvInternal.of(env).env();
+      assertNotSame(old, current);
+
+      // Still open for the reader
+      old.info();
+
+      finish.countDown();
+      reader.join();
+
+      // Closed once the reader's txn ended (without waiting for the idle thread's next txn)
+      try {
+        old.info();
+        fail("Expected the old Env to be closed");
+      } catch (IllegalStateException ex) {
+        // good
+      }
+
+      wake.countDown();
+      idle.join();
+      assertNull(failure.get());
+
+      // Runtime flags were carried over
+      assertEquals(Api.MDB_NOMETASYNC, current.getFlags() & Api.MDB_NOMETASYNC);
+      check(env);
+    }
+  }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestLMDBEnvMonitor {
+
+  @Test
+  public void sample() throws Exception {
+    try (
+      LMDBMapStandalone<Long,String> map = new LMDBMapStandalone<Long,String>(LMDBSerializer.Long, LMDBSerializer.String);
+      LMDBEnvMonitor monitor = new LMDBEnvMonitor(map)
+    ) {
+      final AtomicInteger mapUsage = new AtomicInteger();
+      final AtomicInteger longReaders = new AtomicInteger();
+      final AtomicInteger samples = new AtomicInteger();
+
+      monitor
+        .monitorDatabase(map)
+        .onSample(s -> samples.incrementAndGet())
+        .onMapUsageAbove(0.0, s -> mapUsage.incrementAndGet())
+        .onReaderHeldLongerThan(10, TimeUnit.MILLISECONDS, s -> longReaders.incrementAndGet());
+
+      for (long i = 0; i < 1000; i++) map.put(i, "value" + i);
+
+      LMDBEnvMonitor.Sample sample = monitor.sample();
+      assertEquals(LMDBEnv.DEFAULT_MAPSIZE, sample.mapSize);
+      assertTrue(sample.mapUsedBytes > 0);
+      assertTrue(sample.lastTxnId > 0);
+      assertEquals(0, sample.oldestReaderAgeMillis);
+      assertEquals(1000, sample.databases.get("").entries);
+      assertEquals(1, mapUsage.get());
+      assertEquals(0, longReaders.get());
+
+      try (LMDBTxn txn = map.withReadOnlyTxn()) {
+        Thread.sleep(20);
+        sample = monitor.sample();
+        assertTrue(sample.oldestReaderAgeMillis >= 10);
+        assertEquals(1, longReaders.get());
+
+        // Only called again once the condition has cleared
+        monitor.sample();
+        assertEquals(1, longReaders.get());
+      }
+
+      monitor.sample();
+      monitor.sample();
+      assertEquals(1, mapUsage.get());
+      assertEquals(1, longReaders.get());
+      assertEquals(5, samples.get());
+      assertNotNull(monitor.lastSample());
+    }
+  }
+
+  @Test
+  public void readers() throws Exception {
+    try (LMDBMapStandalone<Long,String> map = new LMDBMapStandalone<Long,String>(LMDBSerializer.Long, LMDBSerializer.String)) {
+      map.put(1L, "one");
+      LMDBReader.track(map);
+
+      final CountDownLatch opened = new CountDownLatch(1);
+      final CountDownLatch done = new CountDownLatch(1);
+
+      final Thread reader = new Thread(() -> {
+        try (LMDBTxn txn = map.withReadOnlyTxn()) {
+          map.get(1L);
+          opened.countDown();
+          done.await();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+        }
+      }, "long-reader");
+
+      reader.start();
+      opened.await();
+
+      try {
+        map.put(2L, "two");
+        map.put(3L, "three");
+
+        final List<LMDBReader> readers = LMDBReader.list(map);
+        assertFalse(readers.isEmpty());
+
+        final LMDBReader oldest = readers.get(0);
+        assertTrue(oldest.isCurrentProcess());
+        assertSame(reader, oldest.thread);
+        assertEquals(2, oldest.lag);
+        assertTrue(oldest.ageMillis >= 0);
+        assertTrue(oldest.stackTrace().length > 0);
+      } finally {
+        done.countDown();
+        reader.join();
+      }
+    }
+  }
+
+  @Test
+  public void closingTheEnvStopsTheMonitor() throws Exception {
+    final LMDBMapStandalone<Long,String> map = new LMDBMapStandalone<Long,String>(LMDBSerializer.Long, LMDBSerializer.String);
+    final LMDBEnvMonitor monitor = new LMDBEnvMonitor(map).monitorDatabase(map);
+    final AtomicInteger samples = new AtomicInteger();
+
+    monitor.onSample(s -> samples.incrementAndGet());
+    monitor.start(1, TimeUnit.MILLISECONDS);
+    map.put(1L, "one");
+    Thread.sleep(20);
+    map.close();
+
+    // No more samples are taken from the closed env
+    final int count = samples.get();
+    Thread.sleep(50);
+    assertEquals(count, samples.get());
+
+    try {
+      monitor.sample();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException ex) {
+      // expected
+    }
+
+    monitor.close();
+  }
+}
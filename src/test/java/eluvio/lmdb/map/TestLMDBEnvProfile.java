@@ -0,0 +1,73 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import eluvio.lmdb.api.Api;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+
+public class TestLMDBEnvProfile {
+
+  private static class TestEnv extends LMDBEnvTemplate {
+    final LMDBMapTemplate<Integer,String> map = new LMDBMapTemplate<Integer,String>("map", LMDBSerializer.Int, LMDBSerializer.String);
+
+    TestEnv(File dir, LMDBEnvProfile profile) {
+      super(dir, false, 64L * 1024L * 1024L, 2, LMDBEnv.DEFAULT_MAXREADERS, profile);
+    }
+  }
+
+  @Test
+  public void flags() {
+    assertEquals(Api.MDB_NOMEMINIT, LMDBEnvFlag.NO_MEM_INIT.lmdbValue);
+    assertEquals(Api.MDB_NORDAHEAD, LMDBEnvFlag.NO_READAHEAD.lmdbValue);
+    assertEquals(0, LMDBEnvProfile.DURABLE.lmdbFlags());
+    assertEquals(Api.MDB_WRITEMAP | Api.MDB_MAPASYNC | Api.MDB_NOSYNC, LMDBEnvProfile.BULK_LOAD.lmdbFlags());
+    assertEquals(Api.MDB_NOMETASYNC | Api.MDB_NOMEMINIT, LMDBEnvProfile.RELAXED.lmdbFlags());
+  }
+
+  @Test
+  public void profiles() throws Exception {
+    for (LMDBEnvProfile profile : LMDBEnvProfile.values()) {
+      final File dir = Files.createTempDirectory("lmdb-profile").toFile();
+
+      try {
+        try (TestEnv env = new TestEnv(dir, profile)) {
+          final int flags = env.env().env().getFlags();
+          assertEquals(profile.toString(), profile.lmdbFlags(), flags & profile.lmdbFlags());
+
+          try (LMDBTxn txn = env.withReadWriteTxn()) {
+            for (int i = 0; i < 1000; i++) env.map.put(i, "value" + i);
+          }
+
+          env.sync(true);
+        }
+
+        // Re-open with the default profile to check that everything made it to disk
+        try (TestEnv env = new TestEnv(dir, LMDBEnvProfile.DURABLE)) {
+          assertEquals(1000, env.map.keyCount());
+          assertEquals("value123", env.map.get(123));
+        }
+      } finally {
+        for (File f : dir.listFiles()) f.delete();
+        dir.delete();
+      }
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TestLMDBExpiringMap {
+
+  private static class ManualClockMap extends LMDBExpiringMap<String,String> {
+    volatile long now = 1_000_000L;
+
+    /** The number of upcoming sweeps that fail */
+    final AtomicInteger failures = new AtomicInteger();
+
+    ManualClockMap() {
+      super(LMDBSerializer.String, LMDBSerializer.String);
+    }
+
+    @Override
+    protected long currentTimeMillis() {
+      return now;
+    }
+
+    @Override
+    public long sweep(int batchSize) {
+      if (failures.getAndDecrement() > 0) throw new IllegalStateException("Sweep failed");
+      return super.sweep(batchSize);
+    }
+  }
+
+  @Test
+  public void sweeperSurvivesFailures() throws Exception {
+    try (ManualClockMap map = new ManualClockMap()) {
+      map.put("short", "value", 10, TimeUnit.SECONDS);
+      map.now += 10_000L;
+      map.failures.set(3);
+
+      map.startSweeper(5, TimeUnit.MILLISECONDS);
+
+      try {
+        final long deadline = System.currentTimeMillis() + 10_000L;
+        while (map.keyCount() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+
+        // Swept by a run after the failed ones
+        assertEquals(0, map.keyCount());
+        assertTrue(map.failures.get() < 0);
+      } finally {
+        map.stopSweeper();
+      }
+    }
+  }
+
+  @Test
+  public void basics() {
+    try (ManualClockMap map = new ManualClockMap()) {
+      map.put("forever", "value");
+      map.put("short", "value", 10, TimeUnit.SECONDS);
+      map.putExpiringAt("long", "value", map.now + 60_000L);
+
+      assertEquals("value", map.get("forever"));
+      assertEquals("value", map.get("short"));
+      assertEquals(LMDBExpiringMap.NO_EXPIRY, map.expiresAt("forever"));
+      assertEquals(map.now + 10_000L, map.expiresAt("short"));
+
+      map.now += 10_000L;
+
+      // Expired but not yet swept
+      assertNull(map.get("short"));
+      assertFalse(map.containsKey("short"));
+      assertEquals(-1, map.expiresAt("short"));
+      assertEquals(3, map.keyCount());
+
+      assertEquals(1, map.sweep());
+      assertEquals(2, map.keyCount());
+      assertEquals("value", map.get("long"));
+
+      // Re-putting without a TTL removes the old expiry index entry
+      map.put("long", "updated");
+      map.now += 120_000L;
+      assertEquals(0, map.sweep());
+      assertEquals("updated", map.get("long"));
+
+      assertTrue(map.remove("long"));
+      assertFalse(map.remove("long"));
+      assertEquals(1, map.keyCount());
+    }
+  }
+
+  @Test
+  public void sweepInBatches() {
+    try (ManualClockMap map = new ManualClockMap()) {
+      try (LMDBTxn txn = map.withReadWriteTxn()) {
+        for (int i = 0; i < 2500; i++) map.put("key" + i, "value" + i, 1 + (i % 7), TimeUnit.SECONDS);
+        map.put("keep", "value", 1, TimeUnit.HOURS);
+      }
+
+      map.now += 7_000L;
+
+      assertEquals(2500, map.sweep(1000));
+      assertEquals(1, map.keyCount());
+      assertEquals("value", map.get("keep"));
+    }
+  }
+
+  @Test
+  public void serializer() {
+    // Same as LMDBSerializer.String without a known serialized size
+    final LMDBSerializer<String> unsized = new LMDBSerializer<String>() {
+      public int cachedBufferSize() { return -1; }
+      public boolean integerKeys() { return false; }
+      public boolean fixedSize() { return false; }
+      public ByteBuffer serialize(String s, ByteBuffer buf) { return LMDBSerializer.String.serialize(s, buf); }
+      public String deserialize(ByteBuffer buf) { return LMDBSerializer.String.deserialize(buf); }
+    };
+
+    final String large = new String(new char[1000]).replace('\0', 'x');
+
+    for (LMDBSerializer<String> valueSerializer : Arrays.asList(LMDBSerializer.String, unsized)) {
+      final LMDBExpiringMap.ExpiringSerializer<String> serializer = new LMDBExpiringMap.ExpiringSerializer<String>(valueSerializer);
+
+      for (String value : Arrays.asList("", "value", large, "again")) {
+        for (ByteBuffer buf : Arrays.asList(null, ByteBuffer.allocateDirect(4), ByteBuffer.allocateDirect(2048))) {
+          final ByteBuffer res = serializer.serialize(new LMDBExpiringMap.Expiring<String>(123L, value), buf);
+          assertEquals(8 + value.length(), res.remaining());
+
+          final LMDBExpiringMap.Expiring<String> expiring = serializer.deserialize(res);
+          assertEquals(123L, expiring.expiresAt);
+          assertEquals(value, expiring.value);
+        }
+      }
+    }
+  }
+}
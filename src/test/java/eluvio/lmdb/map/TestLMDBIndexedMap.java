@@ -0,0 +1,164 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TestLMDBIndexedMap {
+
+  // Values are "city,age"
+  private static String city(String value) {
+    return value.split(",")[0];
+  }
+
+  private static Integer age(String value) {
+    return Integer.valueOf(value.split(",")[1]);
+  }
+
+  private static class TestEnv extends LMDBEnvTemplate {
+    final LMDBMapTemplate<String,String> main = new LMDBMapTemplate<String,String>("people", LMDBSerializer.String, LMDBSerializer.String);
+    final LMDBMultiMapTemplate<String,String> cityIndex = new LMDBMultiMapTemplate<String,String>("people_by_city", LMDBSerializer.String, LMDBSerializer.String);
+    final LMDBMultiMapTemplate<Integer,String> ageIndex = new LMDBMultiMapTemplate<Integer,String>("people_by_age", LMDBSerializer.Int, LMDBSerializer.String);
+
+    final LMDBIndexedMap<String,String> people = new LMDBIndexedMap<String,String>(main);
+    final LMDBIndexedMap.Index<String,String,String> byCity = people.addIndex(cityIndex, TestLMDBIndexedMap::city);
+    final LMDBIndexedMap.Index<Integer,String,String> byAge = people.addIndex(ageIndex, TestLMDBIndexedMap::age);
+
+    TestEnv() {
+      super(null, false, LMDBEnv.DEFAULT_MAPSIZE, 8, LMDBEnv.DEFAULT_MAXREADERS, 0);
+    }
+  }
+
+  @Test
+  public void maintainsIndexes() {
+    try (TestEnv env = new TestEnv()) {
+      env.people.put("alice", "paris,30");
+      env.people.put("bob", "paris,40");
+      env.people.put("carol", "rome,30");
+      env.people.putIfAbsent("dave", "oslo,50");
+
+      assertEquals(Arrays.asList("alice", "bob"), env.byCity.keys("paris"));
+      assertEquals(Arrays.asList("paris,30", "paris,40"), env.byCity.get("paris"));
+      assertEquals(Arrays.asList("alice", "carol"), env.byAge.keys(30));
+
+      env.people.put("alice", "rome,31");
+      assertEquals(Arrays.asList("bob"), env.byCity.keys("paris"));
+      assertEquals(Arrays.asList("alice", "carol"), env.byCity.keys("rome"));
+      assertEquals(Arrays.asList("carol"), env.byAge.keys(30));
+
+      env.people.remove("bob");
+      assertTrue(env.byCity.keys("paris").isEmpty());
+      assertTrue(env.byAge.keys(40).isEmpty());
+
+      env.people.computeIfPresent("carol", (k, v) -> "oslo,30");
+      env.people.replace("dave", "oslo,50", "oslo,51");
+      assertEquals(Arrays.asList("carol", "dave"), env.byCity.keys("oslo"));
+      assertEquals(Arrays.asList("dave"), env.byAge.keys(51));
+
+      assertEquals("alice", env.people.pollFirstKey());
+      assertTrue(env.byCity.keys("rome").isEmpty());
+
+      assertEquals(Arrays.asList("oslo,30", "oslo,51"), env.byAge.range(30, true, null, false));
+      assertEquals(Arrays.asList("oslo,30"), env.byAge.range(null, false, 51, false));
+
+      env.people.clear();
+      assertTrue(env.cityIndex.isEmpty());
+      assertTrue(env.ageIndex.isEmpty());
+    }
+  }
+
+  @Test
+  public void unchangedIndexKeysAreNotRewritten() {
+    try (TestEnv env = new TestEnv(); LMDBChangeLog log = LMDBChangeLog.open(env)) {
+      env.people.put("alice", "paris,30");
+      env.people.put("alice", "paris,31");
+
+      final List<LMDBChangeLog.Record> records = log.subscribe("test").poll(100);
+      int cityWrites = 0;
+      for (LMDBChangeLog.Record record : records) if ("people_by_city".equals(record.map)) cityWrites++;
+
+      // Only the first put added the city index entry (the second only changed the age index)
+      assertEquals(1, cityWrites);
+      assertEquals(Arrays.asList("alice"), env.byAge.keys(31));
+      assertTrue(env.byAge.keys(30).isEmpty());
+    }
+  }
+
+  @Test
+  public void failedWritesAreRolledBack() {
+    try (TestEnv env = new TestEnv()) {
+      env.people.put("alice", "paris,30");
+
+      try {
+        env.people.put("alice", "rome,notanumber");
+        fail("Expected a NumberFormatException");
+      } catch (NumberFormatException ex) {
+        // expected
+      }
+
+      assertEquals("paris,30", env.people.get("alice"));
+      assertEquals(Arrays.asList("alice"), env.byCity.keys("paris"));
+      assertTrue(env.byCity.keys("rome").isEmpty());
+
+      // Inside a caller's write transaction only the failed write is undone
+      try (LMDBTxn txn = env.withReadWriteTxn()) {
+        env.people.put("bob", "oslo,40");
+
+        try {
+          env.people.put("carol", "rome,notanumber");
+          fail("Expected a NumberFormatException");
+        } catch (NumberFormatException ex) {
+          // expected
+        }
+
+        env.people.put("dave", "oslo,50");
+      }
+
+      assertNull(env.people.get("carol"));
+      assertTrue(env.byCity.keys("rome").isEmpty());
+      assertEquals(Arrays.asList("bob", "dave"), env.byCity.keys("oslo"));
+      assertEquals(3, env.main.size());
+      assertEquals(3, env.ageIndex.size());
+    }
+  }
+
+  @Test
+  public void buildsIndexForExistingEntries() {
+    try (TestEnv env = new TestEnv()) {
+      for (int i = 0; i < 100; i++) env.main.put("p" + i, (0 == i % 2 ? "even" : "odd") + "," + i);
+
+      // Writes made directly to the underlying map are not indexed until rebuilt
+      assertTrue(env.byCity.keys("even").isEmpty());
+      assertEquals(100, env.byCity.rebuild());
+      assertEquals(50, env.byCity.keys("even").size());
+
+      assertEquals(100, env.byCity.range("even", true, "odd", true).size());
+      assertEquals(Collections.singletonList("odd,99"), env.byCity.range("even", false, null, false).subList(49, 50));
+
+      // An empty index is built when it is added
+      env.cityIndex.clear();
+      final LMDBIndexedMap<String,String> other = new LMDBIndexedMap<String,String>(env.main);
+      final LMDBIndexedMap.Index<String,String,String> byCity = other.addIndex(env.cityIndex, TestLMDBIndexedMap::city);
+      assertEquals(50, byCity.keys("odd").size());
+    }
+  }
+}
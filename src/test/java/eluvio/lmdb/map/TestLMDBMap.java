@@ -18,9 +18,23 @@ package eluvio.lmdb.map;
 import static org.junit.Assert.*;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.AbstractMap;
 import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Collectors;
+
+import eluvio.lmdb.api.ReaderInfo;
 
 import org.junit.Test;
 
@@ -500,7 +514,374 @@ public class TestLMDBMap extends TestLMDBCommon {
     }
   }
 
-  
+  @Test
+  public void streams() {
+    try (LMDBMapStandalone<Long,String> map = makeLongStringMap()) {
+      final Spliterator<Long> spliterator = map.keySet().spliterator();
+      assertTrue(spliterator.hasCharacteristics(Spliterator.SORTED | Spliterator.ORDERED));
+      assertFalse(spliterator.hasCharacteristics(Spliterator.SIZED));
+      assertEquals(20003, spliterator.estimateSize());
+
+      final Spliterator<Long> prefix = spliterator.trySplit();
+      assertNotNull(prefix);
+      assertEquals(20003, prefix.estimateSize() + spliterator.estimateSize());
+
+      final List<Long> keys = map.keySet().parallelStream().collect(Collectors.toList());
+      assertArrayEquals(longStringMapKeys(), keys.toArray());
+
+      assertEquals(20003, map.entrySet().parallelStream().filter(e -> e.getKey().toString().equals(e.getValue())).count());
+      assertEquals(2000, map.subMap(-1000L, 1000L).values().parallelStream().distinct().count());
+      assertEquals(Long.valueOf(Long.MAX_VALUE), map.descendingMap().keySet().stream().findFirst().get());
+    }
+  }
+
+  @Test
+  public void shortCircuitedStreams() {
+    try (LMDBMapStandalone<Long,String> map = makeLongStringMap()) {
+      for (int i = 0; i < 10; i++) {
+        assertTrue(map.keySet().parallelStream().anyMatch(k -> k > 5000L));
+        assertEquals("0", map.values().parallelStream().filter(v -> v.equals("0")).findFirst().get());
+        assertEquals(100, map.entrySet().parallelStream().limit(100).count());
+        assertEquals(Long.valueOf(Long.MIN_VALUE), map.keySet().stream().findFirst().get());
+      }
+
+      // No cursor (or read-only txn) is left open on the worker threads
+      assertEquals(0, activeReaders(map));
+
+      // Stepping through part of a spliterator doesn't hold a reader open either
+      final Spliterator<Map.Entry<Long,String>> spliterator = map.entrySet().spliterator();
+      assertTrue(spliterator.tryAdvance(e -> assertEquals(Long.valueOf(Long.MIN_VALUE), e.getKey())));
+      assertEquals(0, activeReaders(map));
+
+      final List<Long> rest = new ArrayList<Long>();
+      spliterator.forEachRemaining(e -> rest.add(e.getKey()));
+      assertEquals(20002, rest.size());
+      assertEquals(Long.valueOf(-10_000L), rest.get(0));
+      assertEquals(Long.valueOf(Long.MAX_VALUE), rest.get(rest.size() - 1));
+      assertEquals(0, activeReaders(map));
+    }
+  }
+
+  @Test
+  public void dupStreams() {
+    try (LMDBMultiMapStandalone<Long,Long> map = new LMDBMultiMapStandalone<Long,Long>(LMDBSerializer.Long, LMDBSerializer.Long)) {
+      try (LMDBTxn txn = map.withReadWriteTxn()) {
+        for (long k = 0; k < 500; k++) {
+          for (long v = 0; v < 10; v++) map.add(k, v);
+        }
+      }
+
+      // Every duplicate is visited exactly once even though the values are read in batches
+      final Spliterator<Long> spliterator = map.values().spliterator();
+      final List<Long> values = new ArrayList<Long>();
+      while (spliterator.tryAdvance(values::add)) { /* keep going */ }
+      assertEquals(5000, values.size());
+      assertEquals(5000, map.values().parallelStream().count());
+      assertEquals(500 * 45, map.values().parallelStream().mapToLong(Long::longValue).sum());
+    }
+  }
+
+  private static long activeReaders(LMDBEnv env) {
+    return LMDBReader.list(env).stream().filter(r -> ReaderInfo.NO_TXN != r.txnId).count();
+  }
+
+  @Test
+  public void parallelScanner() {
+    try (LMDBMapStandalone<Long,String> map = makeLongStringMap()) {
+      final ForkJoinPool pool = new ForkJoinPool(4);
+
+      try {
+        final List<Long> keys = new LMDBParallelScanner<Long,String>(map, pool).collect(Collectors.mapping(Map.Entry::getKey, Collectors.toList()));
+        assertArrayEquals(longStringMapKeys(), keys.toArray());
+
+        final AtomicLong count = new AtomicLong();
+        new LMDBParallelScanner<Long,String>(map.subMap(-1000L, 1000L), pool, 7).forEach(e -> count.incrementAndGet());
+        assertEquals(2000, count.get());
+
+        // Inside a write txn the scan sees the uncommitted writes
+        try (LMDBTxn txn = map.withReadWriteTxn()) {
+          map.put(20_000L, "uncommitted");
+          assertEquals(20004, new LMDBParallelScanner<Long,String>(map, pool).collect(Collectors.counting()).longValue());
+          txn.abort();
+        }
+
+        assertEquals(20003, new LMDBParallelScanner<Long,String>(map, pool).collect(Collectors.counting()).longValue());
+
+        // With every pool thread busy the calling thread scans everything itself
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < pool.getParallelism(); i++) pool.submit(() -> { release.await(); return null; });
+
+        try {
+          assertEquals(20003, new LMDBParallelScanner<Long,String>(map, pool).collect(Collectors.counting()).longValue());
+        } finally {
+          release.countDown();
+        }
+      } finally {
+        pool.shutdown();
+      }
+    }
+  }
+
+  @Test
+  public void parallelScannerReadsOneSnapshot() throws Exception {
+    try (LMDBMapStandalone<Long,String> map = makeLongStringMap()) {
+      final ForkJoinPool pool = new ForkJoinPool(4);
+      final AtomicBoolean done = new AtomicBoolean(false);
+
+      // Every commit adds one key at each end of the map
+      final Thread writer = new Thread(() -> {
+        for (long i = 1; !done.get(); i++) {
+          try (LMDBTxn txn = map.withReadWriteTxn()) {
+            map.put(1_000_000_000L + i, "low");
+            map.put(2_000_000_000L + i, "high");
+          }
+          // Scans do not block the writer so keep the map from growing without bound
+          LockSupport.parkNanos(100_000);
+        }
+      });
+
+      writer.start();
+
+      try {
+        final LMDBParallelScanner<Long,String> scanner = new LMDBParallelScanner<Long,String>(map.subMap(1_000_000_000L, 3_000_000_000L), pool, 16);
+
+        for (int i = 0; i < 50; i++) {
+          final Map<Boolean,Long> counts = scanner.collect(Collectors.partitioningBy(e -> e.getKey() < 2_000_000_000L, Collectors.counting()));
+          assertEquals(counts.get(true), counts.get(false));
+        }
+      } finally {
+        done.set(true);
+        writer.join();
+        pool.shutdown();
+      }
+    }
+  }
+
+  @Test
+  public void clearSubMap() {
+    try (LMDBMapStandalone<Long,String> env = makeLongStringMap()) {
+      env.headMap(-5000L).clear();
+      assertEquals(Long.valueOf(-5000L), env.firstKey());
+
+      // Large enough to be committed in more than one chunk
+      env.tailMap(-4000L, false).descendingMap().clear();
+      assertEquals(Long.valueOf(-4000L), env.lastKey());
+
+      env.subMap(-4500L, false, -4400L, true).clear();
+      assertEquals(901, env.size());
+      assertEquals("-4500", env.get(-4500L));
+      assertNull(env.get(-4499L));
+      assertNull(env.get(-4400L));
+      assertEquals("-4399", env.get(-4399L));
+    }
+  }
+
+  @Test
+  public void reservedValues() {
+    // Longer than LMDBMapImpl.RESERVE_MIN_SIZE so they are serialized directly into the page
+    final StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < 1000; i++) sb.append(i % 10 == 0 ? '\u00e9' : 'x');
+    final String big = sb.toString();
+
+    try (LMDBMapStandalone<Long,String> map = new LMDBMapStandalone<Long,String>(LMDBSerializer.Long, LMDBSerializer.String)) {
+      assertEquals(1100, LMDBSerializer.String.serializedSize(big));
+      assertEquals("a\u20ac\ud83d\ude00\ud800b".getBytes(StandardCharsets.UTF_8).length, LMDBSerializer.String.serializedSize("a\u20ac\ud83d\ude00\ud800b"));
+
+      assertNull(map.put(1L, big));
+      assertEquals(big, map.put(1L, big + "1"));
+      assertTrue(map.add(2L, big + "2"));
+      assertFalse(map.add(2L, "ignored"));
+      assertTrue(map.append(3L, big + "3"));
+      assertFalse(map.append(0L, big));
+      assertEquals(big + "1", map.replace(1L, big));
+      assertNull(map.putIfAbsent(4L, big + "4"));
+
+      assertEquals(4, map.size());
+      assertEquals(big, map.get(1L));
+      assertEquals(big + "2", map.get(2L));
+      assertEquals(big + "3", map.get(3L));
+      assertEquals(big + "4", map.get(4L));
+    }
+
+    // A serializer that gets its size wrong still produces the right value
+    final LMDBSerializer<String> wrongSize = new LMDBSerializer<String>() {
+      public int cachedBufferSize() { return -1; }
+      public boolean integerKeys() { return false; }
+      public boolean fixedSize() { return false; }
+      public int serializedSize(String s) { return LMDBSerializer.String.serializedSize(s) + 10; }
+      public ByteBuffer serialize(String s, ByteBuffer buf) { return LMDBSerializer.String.serialize(s, buf); }
+      public String deserialize(ByteBuffer buf) { return LMDBSerializer.String.deserialize(buf); }
+    };
+
+    try (LMDBMapStandalone<Long,String> map = new LMDBMapStandalone<Long,String>(LMDBSerializer.Long, wrongSize)) {
+      map.put(1L, big);
+      assertEquals(big, map.get(1L));
+    }
+
+    // A failed serialization does not leave a partially written value behind
+    final LMDBSerializer<String> failing = new LMDBSerializer<String>() {
+      public int cachedBufferSize() { return -1; }
+      public boolean integerKeys() { return false; }
+      public boolean fixedSize() { return false; }
+      public int serializedSize(String s) { return LMDBSerializer.String.serializedSize(s); }
+      public ByteBuffer serialize(String s, ByteBuffer buf) {
+        if (s.startsWith("fail")) throw new IllegalArgumentException(s);
+        return LMDBSerializer.String.serialize(s, buf);
+      }
+      public String deserialize(ByteBuffer buf) { return LMDBSerializer.String.deserialize(buf); }
+    };
+
+    try (LMDBMapStandalone<Long,String> map = new LMDBMapStandalone<Long,String>(LMDBSerializer.Long, failing)) {
+      map.put(1L, big);
+
+      try {
+        map.put(1L, "fail" + big);
+        fail("Expected an IllegalArgumentException");
+      } catch (IllegalArgumentException ex) {
+        // expected
+      }
+
+      assertEquals(big, map.get(1L));
+
+      // Inside a caller's write transaction only the failed write is undone
+      try (LMDBTxn txn = map.withReadWriteTxn()) {
+        map.put(2L, big);
+
+        try {
+          map.put(1L, "fail" + big);
+          fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+          // expected
+        }
+
+        try {
+          map.put(3L, "fail" + big);
+          fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException ex) {
+          // expected
+        }
+
+        map.put(4L, big);
+      }
+
+      assertEquals(big, map.get(1L));
+      assertEquals(big, map.get(2L));
+      assertNull(map.get(3L));
+      assertEquals(big, map.get(4L));
+    }
+  }
+
+  @Test
+  public void singleDescentUpdates() {
+    final String big = new String(new char[2000]).replace('\0', 'x');
+
+    try (LMDBMapStandalone<Long,String> map = new LMDBMapStandalone<Long,String>(LMDBSerializer.Long, LMDBSerializer.String)) {
+      assertNull(map.put(1L, "one"));
+      assertEquals("one", map.put(1L, big));
+      assertEquals(big, map.put(1L, "ONE"));
+      assertNull(map.remove(2L));
+      assertEquals("ONE", map.remove(1L));
+      assertTrue(map.isEmpty());
+
+      assertEquals("a", map.computeIfAbsent(1L, k -> "a"));
+      assertEquals("a", map.computeIfAbsent(1L, k -> "ignored"));
+      assertNull(map.computeIfAbsent(2L, k -> null));
+      assertFalse(map.containsKey(2L));
+
+      assertEquals("ab", map.computeIfPresent(1L, (k, v) -> v + "b"));
+      assertNull(map.computeIfPresent(2L, (k, v) -> "ignored"));
+      assertFalse(map.containsKey(2L));
+
+      assertEquals("1:ab", map.compute(1L, (k, v) -> k + ":" + v));
+      assertEquals("2:null", map.compute(2L, (k, v) -> k + ":" + v));
+      assertNull(map.compute(2L, (k, v) -> null));
+      assertFalse(map.containsKey(2L));
+
+      assertEquals("x", map.merge(3L, "x", String::concat));
+      assertEquals("x" + big, map.merge(3L, big, String::concat));
+      assertNull(map.merge(3L, "y", (a, b) -> null));
+      assertFalse(map.containsKey(3L));
+
+      assertEquals("1:ab", map.get(1L));
+      assertEquals(1, map.size());
+
+      // The function runs in the same write txn as the update
+      try {
+        map.compute(1L, (k, v) -> { throw new IllegalStateException(); });
+        fail("Expected an IllegalStateException");
+      } catch (IllegalStateException ex) {
+        // expected
+      }
+
+      assertEquals("1:ab", map.get(1L));
+    }
+  }
+
+  @Test
+  public void getAll() {
+    try (LMDBMapStandalone<Long,String> map = makeLongStringMap()) {
+      final List<Long> keys = Arrays.asList(5L, -5L, 99999999L, 5L, -10000L, 0L, -9999L, Long.MIN_VALUE, 10000L, 1L);
+      final List<String> values = map.getAll(keys);
+
+      assertEquals(keys.size(), values.size());
+      for (int i = 0; i < keys.size(); i++) assertEquals("Key " + keys.get(i), map.get(keys.get(i)), values.get(i));
+
+      assertTrue(map.getAll(Arrays.<Long>asList()).isEmpty());
+
+      final LMDBMap<Long,String> sub = map.subMap(-10L, true, 10L, false);
+      assertEquals(Arrays.asList("-10", null, "9", null), sub.getAll(Arrays.asList(-10L, 10L, 9L, -11L)));
+      assertEquals(Arrays.asList("-10", "10"), map.descendingMap().getAll(Arrays.asList(-10L, 10L)));
+    }
+
+    try (LMDBMapStandalone<String,String> map = new LMDBMapStandalone<String,String>(LMDBSerializer.String, LMDBSerializer.String)) {
+      for (String s : Arrays.asList("a", "ab", "abc", "b", "\u00e9", "zz")) map.put(s, s.toUpperCase());
+      assertEquals(Arrays.asList("ZZ", null, "AB", "A", "\u00c9", "ABC", null, "B"), map.getAll(Arrays.asList("zz", "aa", "ab", "a", "\u00e9", "abc", "abcd", "b")));
+    }
+  }
+
+  @Test
+  public void prefixScan() {
+    try (LMDBMapStandalone<String,String> map = new LMDBMapStandalone<String,String>(LMDBSerializer.String, LMDBSerializer.String)) {
+      for (String s : Arrays.asList("a", "a/1", "a/2", "a/x/1", "a0", "ab", "b/1", "b/2")) map.put(s, s.toUpperCase());
+
+      assertEquals(Arrays.asList("a/1", "a/2", "a/x/1"), LMDBIteratorImpl.drain(map.prefixScanKeys("a/")));
+      assertEquals(Arrays.asList("A/1", "A/2", "A/X/1"), LMDBIteratorImpl.drain(map.prefixScanValues("a/")));
+      assertEquals(Arrays.asList(new SimpleImmutableEntry<String,String>("b/1", "B/1"), new SimpleImmutableEntry<String,String>("b/2", "B/2")), LMDBIteratorImpl.drain(map.prefixScan("b")));
+      assertEquals(Arrays.asList("a", "a/1", "a/2", "a/x/1", "a0", "ab"), LMDBIteratorImpl.drain(map.prefixScanKeys("a")));
+      assertEquals(8, LMDBIteratorImpl.drain(map.prefixScanKeys("")).size());
+      assertTrue(LMDBIteratorImpl.drain(map.prefixScanKeys("c")).isEmpty());
+      assertTrue(LMDBIteratorImpl.drain(map.prefixScanKeys("a/3")).isEmpty());
+      assertEquals(Arrays.asList("a/x/1"), LMDBIteratorImpl.drain(map.prefixScanKeys(ByteBuffer.wrap("a/x".getBytes(StandardCharsets.UTF_8)))));
+
+      // An iterator that is not exhausted must be closed
+      try (LMDBIterator<String> it = map.prefixScanKeys("a/")) {
+        assertEquals("a/1", it.next());
+      }
+
+      assertEquals(Arrays.asList("a/2", "a/x/1"), LMDBIteratorImpl.drain(map.tailMap("a/2").prefixScanKeys("a/")));
+      assertEquals(Arrays.asList("a/1"), LMDBIteratorImpl.drain(map.subMap("0", "a/2").prefixScanKeys("a/")));
+      assertTrue(LMDBIteratorImpl.drain(map.tailMap("b").prefixScanKeys("a/")).isEmpty());
+      assertEquals(Arrays.asList("a/x/1", "a/2", "a/1"), LMDBIteratorImpl.drain(map.descendingMap().prefixScanKeys("a/")));
+      assertEquals(Arrays.asList("A/2", "A/1"), LMDBIteratorImpl.drain(map.headMap("a/x").descendingMap().prefixScanValues("a/")));
+    }
+
+    try (LMDBMapStandalone<byte[],String> map = new LMDBMapStandalone<byte[],String>(LMDBSerializer.ByteArray, LMDBSerializer.String)) {
+      map.put(new byte[]{ 1, (byte)0xff }, "1-ff");
+      map.put(new byte[]{ 1, (byte)0xff, 0 }, "1-ff-0");
+      map.put(new byte[]{ 2 }, "2");
+
+      assertEquals(Arrays.asList("1-ff", "1-ff-0"), LMDBIteratorImpl.drain(map.prefixScanValues(new byte[]{ 1, (byte)0xff })));
+      assertEquals(Arrays.asList("1-ff-0", "1-ff"), LMDBIteratorImpl.drain(map.descendingMap().prefixScanValues(new byte[]{ 1 })));
+    }
+
+    try (LMDBMapStandalone<Long,String> map = makeLongStringMap()) {
+      map.prefixScan(1L).close();
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException ex) {
+      // expected
+    }
+  }
+
   private void first(LMDBMap<Long,String> map, Long expected) {
     assertEquals(expected, map.firstKey());
     assertEquals(null == expected ? null : new SimpleImmutableEntry<Long,String>(expected, expected.toString()), map.firstEntry());
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.openmbean.TabularData;
+
+public class TestLMDBMetrics {
+
+  @Test
+  public void histogramBuckets() {
+    for (long value : new long[]{ 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789L, Long.MAX_VALUE }) {
+      final int index = LMDBLatencyHistogram.index(value);
+      assertTrue(value <= LMDBLatencyHistogram.highestEquivalentValue(index));
+      if (index > 0) assertTrue(value > LMDBLatencyHistogram.highestEquivalentValue(index - 1));
+    }
+  }
+
+  @Test
+  public void histogramPercentiles() {
+    final LMDBLatencyHistogram histogram = new LMDBLatencyHistogram();
+    for (long i = 1; i <= 10000; i++) histogram.record(i * 1000);
+
+    assertEquals(10000, histogram.count());
+    assertEquals(10_000_000, histogram.max());
+    assertEquals(5_000_500, histogram.mean());
+    assertWithin(5_000_000, histogram.percentile(50));
+    assertWithin(9_900_000, histogram.percentile(99));
+    assertEquals(10_000_000, histogram.percentile(100));
+
+    histogram.reset();
+    assertEquals(0, histogram.count());
+    assertEquals(0, histogram.percentile(50));
+  }
+
+  @Test
+  public void jmx() throws Exception {
+    final LMDBMetrics env = LMDBMetrics.forEnv("/tmp/test-lmdb-metrics");
+    final LMDBMetrics map = env.forMap("test");
+
+    try {
+      map.record(LMDBMetrics.Op.GET, System.nanoTime());
+      map.recordNotFound();
+      map.recordBytesWritten(123);
+
+      assertEquals(1, map.count(LMDBMetrics.Op.GET));
+      assertEquals(0, env.count(LMDBMetrics.Op.GET));
+
+      final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      final ObjectName name = new ObjectName("eluvio.lmdb:type=Map,path=" + ObjectName.quote("/tmp/test-lmdb-metrics") + ",name=" + ObjectName.quote("test"));
+      final TabularData counts = (TabularData)server.getAttribute(name, "Counts");
+
+      assertEquals(1L, counts.get(new Object[]{ "get" }).get("value"));
+      assertEquals(1L, counts.get(new Object[]{ "not_found" }).get("value"));
+      assertEquals(123L, counts.get(new Object[]{ "bytes_written" }).get("value"));
+
+      final Map<String,Long> latencies = map.getLatencyNanos();
+      assertTrue(latencies.get("get.max") >= 0);
+      assertEquals(Long.valueOf(0), latencies.get("put.p99"));
+
+      server.invoke(name, "reset", new Object[0], new String[0]);
+      assertEquals(0, map.count(LMDBMetrics.Op.GET));
+    } finally {
+      map.unregister();
+      env.unregister();
+    }
+  }
+
+  @Test
+  public void reservedValues() {
+    final String big = new String(new char[1000]).replace('\0', 'x');
+    final int[] bufferCapacity = new int[1];
+
+    // Records the capacity of the buffer it serializes into
+    final LMDBSerializer<String> recording = new LMDBSerializer<String>() {
+      public int cachedBufferSize() { return -1; }
+      public boolean integerKeys() { return false; }
+      public boolean fixedSize() { return false; }
+      public int serializedSize(String s) { return LMDBSerializer.String.serializedSize(s); }
+      public ByteBuffer serialize(String s, ByteBuffer buf) {
+        bufferCapacity[0] = null != buf ? buf.capacity() : -1;
+        return LMDBSerializer.String.serialize(s, buf);
+      }
+      public String deserialize(ByteBuffer buf) { return LMDBSerializer.String.deserialize(buf); }
+    };
+
+    final LMDBMetrics metrics = LMDBMetrics.forEnv("/tmp/test-lmdb-metrics-reserve");
+    final LMDBSerializer<String> metered = new LMDBMeteredSerializer<String>(recording, metrics);
+
+    try (LMDBMapStandalone<Long,String> map = new LMDBMapStandalone<Long,String>(LMDBSerializer.Long, metered)) {
+      assertEquals(1000, metered.serializedSize(big));
+
+      // The value is serialized directly into the reserved page
+      map.put(1L, big);
+      assertEquals(1000, bufferCapacity[0]);
+      assertEquals(big, map.get(1L));
+      assertEquals(1, metrics.count(LMDBMetrics.Op.SERIALIZE));
+    } finally {
+      metrics.unregister();
+    }
+  }
+
+  private static void assertWithin(long expected, long actual) {
+    assertTrue("Expected " + actual + " to be within 12.5% of " + expected, Math.abs(actual - expected) <= expected / 8);
+  }
+}
@@ -440,7 +440,43 @@ public class TestLMDBMultiMap extends TestLMDBCommon {
     }
   }
 
-  
+  @Test
+  public void subMapCounts() {
+    try (LMDBMultiMapStandalone<Long,Long> env = makeLongLongMap()) {
+      try (LMDBMultiMap<Long, Long> map = env.subMap(-1000L, false, 1000L, true)) {
+        assertFalse(map.isEmpty());
+        assertEquals(2000, map.keyCount());
+        assertEquals(2000 * VALUES_PER_KEY, map.valueCount());
+
+        assertTrue(map.removeAll(1000L));
+        assertEquals(1999, map.keyCount());
+        assertEquals(1999 * VALUES_PER_KEY, map.valueCount());
+      }
+
+      try (LMDBMultiMap<Long, Long> map = env.subMap(5L, false, 6L, false)) {
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.keyCount());
+        assertEquals(0, map.valueCount());
+      }
+    }
+  }
+
+  @Test
+  public void clearSubMap() {
+    try (LMDBMultiMapStandalone<Long,Long> env = makeLongLongMap()) {
+      env.subMap(-1000L, true, 1000L, false).clear();
+      assertEquals(18003, env.keyCount());
+      assertEquals(18003 * VALUES_PER_KEY, env.valueCount());
+      assertEquals(Long.valueOf(-1001L), env.lowerKey(0L));
+      assertEquals(Long.valueOf(1000L), env.higherKey(0L));
+
+      env.headMap(0L).clear();
+      assertEquals(Long.valueOf(1000L), env.firstKey());
+      checkMultiSet(env.get(1000L), 999L, 1000L, 1001L);
+    }
+  }
+
+
   private void first(LMDBMultiMap<Long,Long> map, Long expected) {
     assertEquals(expected, map.firstKey());
 //    assertEquals(null == expected ? null : new SimpleImmutableEntry<Long,String>(expected, expected.toString()), map.firstEntry());
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+public class TestLMDBReplication {
+
+  private static class TestEnv extends LMDBEnvTemplate {
+    final LMDBMapTemplate<Integer,String> map = new LMDBMapTemplate<Integer,String>("map", LMDBSerializer.Int, LMDBSerializer.String);
+    final LMDBMultiMapTemplate<Integer,Integer> multiMap = new LMDBMultiMapTemplate<Integer,Integer>("multiMap", LMDBSerializer.Int, LMDBSerializer.Int);
+
+    TestEnv(File path) {
+      super(path, false, LMDBEnv.DEFAULT_MAPSIZE, 6, LMDBEnv.DEFAULT_MAXREADERS, 0);
+    }
+  }
+
+  private static void assertSameContents(TestEnv expected, TestEnv actual) {
+    try (LMDBTxn e = expected.withReadOnlyTxn(); LMDBTxn a = actual.withReadOnlyTxn()) {
+      assertEquals(new TreeMap<Integer,String>((Map<Integer,String>)expected.map), new TreeMap<Integer,String>((Map<Integer,String>)actual.map));
+      assertEquals(expected.multiMap.valueCount(), actual.multiMap.valueCount());
+      for (int k = 0; k < 10; k++) assertEquals(new ArrayList<Integer>(expected.multiMap.get(k)), new ArrayList<Integer>(actual.multiMap.get(k)));
+    }
+  }
+
+  @Test
+  public void bootstrapAndFollow() throws Exception {
+    final File dir = Files.createTempDirectory("lmdb-replica").toFile();
+    final InetSocketAddress localhost = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    try (
+      TestEnv leaderEnv = new TestEnv(null);
+      LMDBChangeLog log = LMDBChangeLog.open(leaderEnv);
+      LMDBReplicationLeader leader = LMDBReplicationLeader.start(log, localhost)
+    ) {
+      for (int i = 0; i < 1000; i++) leaderEnv.map.put(i, "v" + i);
+      for (int i = 0; i < 20; i++) leaderEnv.multiMap.add(i % 10, i);
+
+      assertTrue(LMDBReplicationFollower.bootstrap(leader.address(), "replica", dir) > 0);
+
+      try (TestEnv followerEnv = new TestEnv(dir)) {
+        try (LMDBReplicationFollower follower = LMDBReplicationFollower.start(followerEnv, "replica", leader.address(), 10)) {
+          assertEquals(log.lastSeq(), follower.appliedSeq());
+          assertSameContents(leaderEnv, followerEnv);
+
+          for (int i = 0; i < 500; i++) leaderEnv.map.remove(i * 2);
+          leaderEnv.map.put(5000, "new");
+          leaderEnv.multiMap.remove(3, 13);
+          leaderEnv.multiMap.add(3, 100);
+          leaderEnv.map.subMap(900, 950).clear();
+
+          assertTrue(follower.awaitApplied(log.lastSeq(), 30, TimeUnit.SECONDS));
+          assertTrue(follower.isConnected());
+          assertSameContents(leaderEnv, followerEnv);
+
+          // The leader's checkpoint for the follower advances once it has synced
+          final long applied = follower.appliedSeq();
+          final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+          while (log.subscribers().get("replica:replica") < applied && System.nanoTime() < deadline) Thread.sleep(10);
+          assertEquals(Long.valueOf(applied), log.subscribers().get("replica:replica"));
+        }
+
+        // Changes made while the follower is stopped are caught up on restart
+        leaderEnv.map.clear();
+        leaderEnv.map.put(1, "one");
+
+        try (LMDBReplicationFollower follower = LMDBReplicationFollower.start(followerEnv, "replica", leader.address(), 10)) {
+          assertTrue(follower.awaitApplied(log.lastSeq(), 30, TimeUnit.SECONDS));
+          assertSameContents(leaderEnv, followerEnv);
+        }
+      }
+    } finally {
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void prunedTooFar() throws Exception {
+    final File dir = Files.createTempDirectory("lmdb-replica").toFile();
+    final InetSocketAddress localhost = new InetSocketAddress(InetAddress.getLoopbackAddress(), 0);
+
+    try (
+      TestEnv leaderEnv = new TestEnv(null);
+      LMDBChangeLog log = LMDBChangeLog.open(leaderEnv);
+      LMDBReplicationLeader leader = LMDBReplicationLeader.start(log, localhost);
+      TestEnv followerEnv = new TestEnv(dir)
+    ) {
+      // The follower was never bootstrapped and the leader no longer has the early records
+      for (int i = 0; i < 10; i++) leaderEnv.map.put(i, "v" + i);
+      log.prune();
+
+      try (LMDBReplicationFollower follower = LMDBReplicationFollower.start(followerEnv, "replica", leader.address())) {
+        assertFalse(follower.awaitApplied(1, 30, TimeUnit.SECONDS));
+        assertTrue(follower.failure() instanceof IllegalStateException);
+      }
+    } finally {
+      for (File f : dir.listFiles()) f.delete();
+      dir.delete();
+    }
+  }
+}
@@ -0,0 +1,194 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+public class TestLMDBShardedMap {
+  private static List<String> keys(LMDBShardedMap<String,String> map) {
+    final List<String> res = new ArrayList<String>();
+
+    try (LMDBIterator<Map.Entry<String,String>> it = map.lmdbIterator()) {
+      while (it.hasNext()) {
+        final Map.Entry<String,String> e = it.next();
+        assertEquals(e.getKey().toUpperCase(), e.getValue());
+        res.add(e.getKey());
+      }
+    }
+
+    return res;
+  }
+
+  private static String key(int i) {
+    return String.format("key-%05d", i);
+  }
+
+  @Test
+  public void hashPartitioned() throws Exception {
+    final File dir = Files.createTempDirectory("lmdb-sharded").toFile();
+
+    try (LMDBShardedMap<String,String> map = LMDBShardedMap.hashPartitioned(dir, 4, LMDBSerializer.String, LMDBSerializer.String)) {
+      assertEquals(4, dir.list().length);
+
+      final Map<String,String> batch = new HashMap<String,String>();
+      final List<String> expected = new ArrayList<String>();
+
+      for (int i = 0; i < 1000; i++) {
+        batch.put(key(i), key(i).toUpperCase());
+        expected.add(key(i));
+      }
+
+      map.putAll(batch);
+      assertEquals(1000, map.keyCount());
+
+      long total = 0;
+
+      for (int i = 0; i < map.shardCount(); i++) {
+        assertTrue(map.shard(i).keyCount() > 100);
+        total += map.shard(i).keyCount();
+      }
+
+      assertEquals(1000, total);
+      assertEquals(expected, keys(map));
+
+      assertEquals(key(7).toUpperCase(), map.get(key(7)));
+      assertTrue(map.shard(map.shardOf(key(7))).containsKey(key(7)));
+      assertEquals(Arrays.asList(key(999).toUpperCase(), null, key(0).toUpperCase()), map.getAll(Arrays.asList(key(999), "missing", key(0))));
+
+      assertEquals(key(7).toUpperCase(), map.remove(key(7)));
+      assertNull(map.get(key(7)));
+      assertEquals(999, keys(map).size());
+
+      // A partially consumed iterator must be closed
+      try (LMDBIterator<Map.Entry<String,String>> it = map.lmdbIterator()) {
+        assertEquals(key(0), it.next().getKey());
+      }
+
+      map.clear();
+      assertTrue(map.isEmpty());
+      assertTrue(keys(map).isEmpty());
+    } finally {
+      for (File shardDir : dir.listFiles()) {
+        for (File f : shardDir.listFiles()) f.delete();
+        shardDir.delete();
+      }
+
+      dir.delete();
+    }
+  }
+
+  @Test
+  public void rangePartitioned() {
+    try (LMDBShardedMap<String,String> map = LMDBShardedMap.rangePartitioned(null, Arrays.asList("h", "p"), LMDBSerializer.String, LMDBSerializer.String)) {
+      assertEquals(3, map.shardCount());
+      assertEquals(0, map.shardOf("a"));
+      assertEquals(1, map.shardOf("h"));
+      assertEquals(1, map.shardOf("o"));
+      assertEquals(2, map.shardOf("p"));
+      assertEquals(2, map.shardOf("z"));
+
+      for (String s : Arrays.asList("z", "b", "p", "h", "a", "q")) map.put(s, s.toUpperCase());
+
+      assertEquals(2, map.shard(0).keyCount());
+      assertEquals(1, map.shard(1).keyCount());
+      assertEquals(3, map.shard(2).keyCount());
+      assertEquals(Arrays.asList("a", "b", "h", "p", "q", "z"), keys(map));
+    }
+
+    try {
+      LMDBShardedMap.rangePartitioned(null, Arrays.asList("p", "h"), LMDBSerializer.String, LMDBSerializer.String);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+  }
+
+  @Test
+  public void layoutIsPersisted() throws Exception {
+    final File dir = Files.createTempDirectory("lmdb-sharded").toFile();
+
+    try {
+      try (LMDBShardedMap<String,String> map = LMDBShardedMap.rangePartitioned(dir, Arrays.asList("h", "p"), LMDBSerializer.String, LMDBSerializer.String)) {
+        for (String s : Arrays.asList("a", "h", "z")) map.put(s, s.toUpperCase());
+      }
+
+      assertLayoutMismatch(() -> LMDBShardedMap.rangePartitioned(dir, Arrays.asList("h", "q"), LMDBSerializer.String, LMDBSerializer.String));
+      assertLayoutMismatch(() -> LMDBShardedMap.rangePartitioned(dir, Arrays.asList("h", "p", "t"), LMDBSerializer.String, LMDBSerializer.String));
+      assertLayoutMismatch(() -> LMDBShardedMap.hashPartitioned(dir, 3, LMDBSerializer.String, LMDBSerializer.String));
+
+      // No shards were created by the mismatched opens
+      assertEquals(3, dir.list().length);
+
+      try (LMDBShardedMap<String,String> map = LMDBShardedMap.rangePartitioned(dir, Arrays.asList("h", "p"), LMDBSerializer.String, LMDBSerializer.String)) {
+        assertEquals(Arrays.asList("a", "h", "z"), keys(map));
+        assertEquals(1, map.shard(0).keyCount());
+      }
+    } finally {
+      for (File shardDir : dir.listFiles()) {
+        for (File f : shardDir.listFiles()) f.delete();
+        shardDir.delete();
+      }
+
+      dir.delete();
+    }
+  }
+
+  private static void assertLayoutMismatch(Supplier<LMDBShardedMap<String,String>> open) {
+    try {
+      open.get().close();
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+  }
+
+  @Test
+  public void concurrentWriters() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(4);
+
+    try (LMDBShardedMap<String,String> map = LMDBShardedMap.hashPartitioned(null, 4, LMDBSerializer.String, LMDBSerializer.String)) {
+      final List<Future<?>> futures = new ArrayList<Future<?>>();
+
+      for (int t = 0; t < 4; t++) {
+        final int thread = t;
+        futures.add(executor.submit(() -> {
+          for (int i = thread; i < 2000; i += 4) map.putNoPrev(key(i), key(i).toUpperCase());
+        }));
+      }
+
+      for (Future<?> f : futures) f.get();
+
+      assertEquals(2000, map.keyCount());
+      assertEquals(2000, keys(map).size());
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
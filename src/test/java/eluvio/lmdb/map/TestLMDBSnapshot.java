@@ -0,0 +1,89 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import eluvio.lmdb.api.Api;
+import org.junit.Test;
+
+import java.util.ConcurrentModificationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class TestLMDBSnapshot {
+
+  private static class TestEnv extends LMDBEnvTemplate {
+    final LMDBMapTemplate<String,String> map = new LMDBMapTemplate<String,String>("map", LMDBSerializer.String, LMDBSerializer.String);
+
+    TestEnv(int flags) {
+      super(null, false, LMDBEnv.DEFAULT_MAPSIZE, 2, LMDBEnv.DEFAULT_MAXREADERS, flags);
+    }
+  }
+
+  @Test
+  public void pinnedSnapshot() throws Exception {
+    final ExecutorService executor = Executors.newFixedThreadPool(2);
+
+    try (TestEnv env = new TestEnv(Api.MDB_NOTLS)) {
+      env.map.put("key", "before");
+
+      try (LMDBSnapshot snapshot = LMDBSnapshot.capture(env)) {
+        assertTrue(snapshot.isPinned());
+
+        // Nothing has changed yet so other threads use their own read-only txn
+        assertEquals("before", executor.submit(() -> snapshot.read(() -> env.map.get("key"))).get());
+
+        env.map.put("key", "after");
+        env.map.put("other", "value");
+
+        assertEquals("after", env.map.get("key"));
+        assertEquals("before", snapshot.read(() -> env.map.get("key")));
+        assertEquals("before", executor.submit(() -> snapshot.read(() -> env.map.get("key"))).get());
+        assertEquals(Long.valueOf(1), executor.submit(() -> snapshot.read(() -> env.map.keyCount())).get());
+
+        // The thread's own read-only txn is restored after reading the snapshot
+        assertEquals("after", executor.submit(() -> {
+          snapshot.read(() -> env.map.get("key"));
+          return env.map.get("key");
+        }).get());
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  @Test
+  public void unpinnedSnapshot() {
+    try (TestEnv env = new TestEnv(0)) {
+      env.map.put("key", "before");
+
+      try (LMDBSnapshot snapshot = LMDBSnapshot.capture(env)) {
+        assertFalse(snapshot.isPinned());
+        assertEquals("before", snapshot.read(() -> env.map.get("key")));
+
+        env.map.put("key", "after");
+
+        try {
+          snapshot.read(() -> env.map.get("key"));
+          fail("Expected a ConcurrentModificationException");
+        } catch (ConcurrentModificationException ex) {
+          // expected
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+public class TestLMDBSyncScheduler {
+
+  private static class TestEnv extends LMDBEnvTemplate {
+    final LMDBMapTemplate<Integer,String> map = new LMDBMapTemplate<Integer,String>("map", LMDBSerializer.Int, LMDBSerializer.String);
+
+    TestEnv(File dir) {
+      super(dir, false, 64L * 1024L * 1024L, 2, LMDBEnv.DEFAULT_MAXREADERS, 0);
+    }
+  }
+
+  private static void deleteDir(File dir) {
+    for (File f : dir.listFiles()) f.delete();
+    dir.delete();
+  }
+
+  @Test
+  public void interval() throws Exception {
+    final File dir = Files.createTempDirectory("lmdb-sync").toFile();
+
+    try (TestEnv env = new TestEnv(dir)) {
+      try (LMDBSyncScheduler scheduler = LMDBSyncScheduler.start(env, 10)) {
+        assertTrue(env.env().env().isNoSync());
+
+        // Nothing has been committed
+        assertTrue(scheduler.syncBarrier(0, TimeUnit.MILLISECONDS));
+
+        try (LMDBTxn txn = env.withReadWriteTxn()) {
+          env.map.put(1, "one");
+          env.map.put(2, "two");
+        }
+
+        env.map.put(3, "three");
+
+        // Read-only transactions are not counted
+        env.map.get(1);
+        assertEquals(2, scheduler.committedCount());
+
+        scheduler.syncBarrier();
+        assertEquals(2, scheduler.syncedCount());
+        assertTrue(scheduler.syncCount() >= 1);
+      }
+
+      assertFalse(env.env().env().isNoSync());
+
+      try {
+        LMDBSyncScheduler.start(env, 0);
+        fail("Expected an IllegalArgumentException");
+      } catch (IllegalArgumentException ex) {
+        // expected
+      }
+    } finally {
+      deleteDir(dir);
+    }
+  }
+
+  @Test
+  public void thresholds() throws Exception {
+    try (TestEnv env = new TestEnv(null)) {
+      try (LMDBSyncScheduler scheduler = LMDBSyncScheduler.start(env, TimeUnit.HOURS.toMillis(1), 10, 0)) {
+        for (int i = 0; i < 9; i++) env.map.put(i, "value");
+        assertFalse(scheduler.syncBarrier(50, TimeUnit.MILLISECONDS));
+
+        env.map.put(9, "value");
+        assertTrue(scheduler.syncBarrier(30, TimeUnit.SECONDS));
+        assertEquals(10, scheduler.syncedCount());
+      }
+
+      try (LMDBSyncScheduler scheduler = LMDBSyncScheduler.start(env, TimeUnit.HOURS.toMillis(1), 0, 1000)) {
+        env.map.put(100, "small");
+        assertFalse(scheduler.syncBarrier(50, TimeUnit.MILLISECONDS));
+
+        env.map.put(101, new String(new char[1000]).replace('\0', 'x'));
+        assertTrue(scheduler.syncBarrier(30, TimeUnit.SECONDS));
+      }
+
+      env.map.clear();
+      for (int i = 0; i < 10; i++) env.map.put(i, "value");
+
+      // Deletes through a cursor count toward the byte threshold too (4 bytes per key)
+      try (LMDBSyncScheduler scheduler = LMDBSyncScheduler.start(env, TimeUnit.HOURS.toMillis(1), 0, 40)) {
+        for (int i = 0; i < 9; i++) assertNotNull(env.map.pollFirstEntry());
+        assertFalse(scheduler.syncBarrier(50, TimeUnit.MILLISECONDS));
+
+        assertNotNull(env.map.pollFirstEntry());
+        assertTrue(scheduler.syncBarrier(30, TimeUnit.SECONDS));
+      }
+    }
+  }
+
+  @Test
+  public void closeSyncsPendingCommits() throws Exception {
+    try (TestEnv env = new TestEnv(null)) {
+      final LMDBSyncScheduler scheduler = LMDBSyncScheduler.start(env, TimeUnit.HOURS.toMillis(1));
+
+      try {
+        LMDBSyncScheduler.start(env, 10);
+        fail("Expected an IllegalStateException");
+      } catch (IllegalStateException ex) {
+        // expected
+      }
+
+      env.map.put(1, "one");
+      scheduler.close();
+
+      assertEquals(1, scheduler.syncedCount());
+      assertTrue(scheduler.syncBarrier(0, TimeUnit.MILLISECONDS));
+
+      // Commits after closing are no longer counted
+      env.map.put(2, "two");
+      assertEquals(1, scheduler.committedCount());
+    }
+  }
+
+  @Test
+  public void closingTheEnvClosesTheScheduler() throws Exception {
+    final TestEnv env = new TestEnv(null);
+    final LMDBSyncScheduler scheduler = LMDBSyncScheduler.start(env, 1);
+
+    for (int i = 0; i < 100; i++) env.map.put(i, "value");
+    env.close();
+
+    assertEquals(100, scheduler.syncedCount());
+    final long syncs = scheduler.syncCount();
+
+    // No more syncs are attempted on the closed env
+    Thread.sleep(50);
+    assertEquals(syncs, scheduler.syncCount());
+    assertTrue(scheduler.syncBarrier(0, TimeUnit.MILLISECONDS));
+    scheduler.close();
+
+    try {
+      env.env().env().sync(true);
+      fail("Expected an IllegalStateException");
+    } catch (IllegalStateException ex) {
+      // expected
+    }
+  }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2021 Tim Underwood (https://github.com/tpunder)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package eluvio.lmdb.map;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+public class TestLMDBTupleSerializer {
+  private static final LMDBTupleSerializer serializer = LMDBTupleSerializer.builder().addInt().addLong(true).addString().addBytes().build();
+
+  private static byte[] bytes(List<Object> tuple) {
+    final ByteBuffer buf = serializer.serialize(tuple, null);
+    final byte[] res = new byte[buf.remaining()];
+    buf.get(res);
+    return res;
+  }
+
+  private static int memcmp(byte[] a, byte[] b) {
+    for (int i = 0; i < Math.min(a.length, b.length); i++) {
+      final int cmp = (a[i] & 0xff) - (b[i] & 0xff);
+      if (0 != cmp) return cmp;
+    }
+
+    return a.length - b.length;
+  }
+
+  // The expected order: int ascending, long descending, String (by UTF-8 bytes) ascending, bytes ascending
+  private static final Comparator<List<Object>> expectedOrder = (a, b) -> {
+    int cmp = Integer.compare((Integer)a.get(0), (Integer)b.get(0));
+    if (0 == cmp) cmp = Long.compare((Long)b.get(1), (Long)a.get(1));
+    if (0 == cmp) cmp = memcmp(((String)a.get(2)).getBytes(StandardCharsets.UTF_8), ((String)b.get(2)).getBytes(StandardCharsets.UTF_8));
+    if (0 == cmp) cmp = memcmp((byte[])a.get(3), (byte[])b.get(3));
+    return cmp;
+  };
+
+  @Test
+  public void orderAndRoundTrip() {
+    final Random random = new Random(1234);
+    final int[] ints = { Integer.MIN_VALUE, -1, 0, 1, Integer.MAX_VALUE };
+    final long[] longs = { Long.MIN_VALUE, -256, -1, 0, 1, 255, Long.MAX_VALUE };
+    final String[] strings = { "", "\u0000", "\u0000\u0000", "\u0001", "a", "a\u0000", "a\u0000b", "ab", "\u00e9", "\uffff" };
+    final List<List<Object>> tuples = new ArrayList<List<Object>>();
+
+    for (int i = 0; i < 2000; i++) {
+      final byte[] b = new byte[random.nextInt(4)];
+      for (int j = 0; j < b.length; j++) b[j] = (byte)(random.nextInt(3) - 1);
+      tuples.add(Arrays.asList(ints[random.nextInt(ints.length)], longs[random.nextInt(longs.length)], strings[random.nextInt(strings.length)], b));
+    }
+
+    for (List<Object> tuple : tuples) {
+      final List<Object> res = serializer.deserialize(serializer.serialize(tuple, null));
+      assertEquals(tuple.subList(0, 3), res.subList(0, 3));
+      assertArrayEquals((byte[])tuple.get(3), (byte[])res.get(3));
+      assertEquals(bytes(tuple).length, serializer.serializedSize(tuple));
+    }
+
+    for (int i = 1; i < tuples.size(); i++) {
+      final List<Object> a = tuples.get(i - 1);
+      final List<Object> b = tuples.get(i);
+      assertEquals(Integer.signum(expectedOrder.compare(a, b)), Integer.signum(memcmp(bytes(a), bytes(b))));
+    }
+  }
+
+  @Test
+  public void leadingComponents() {
+    final List<Object> full = Arrays.asList(5, 10L, "abc", new byte[]{ 1, 2 });
+    final byte[] fullBytes = bytes(full);
+
+    // Shorter tuples are byte prefixes of the longer ones
+    for (int i = 0; i < 4; i++) {
+      final byte[] prefix = bytes(full.subList(0, i));
+      assertEquals(full.subList(0, i), serializer.deserialize(ByteBuffer.wrap(prefix)));
+      assertTrue(Arrays.equals(prefix, Arrays.copyOf(fullBytes, prefix.length)));
+    }
+
+    try {
+      serializer.serialize(Arrays.asList("wrong"), null);
+      fail("Expected an IllegalArgumentException");
+    } catch (IllegalArgumentException ex) {
+      // expected
+    }
+  }
+
+  @Test
+  public void mapRanges() {
+    final LMDBTupleSerializer keys = LMDBTupleSerializer.builder().addInt().addLong(true).addString().build();
+
+    try (LMDBMapStandalone<List<Object>,String> map = new LMDBMapStandalone<List<Object>,String>(keys, LMDBSerializer.String)) {
+      for (int tenant = 1; tenant <= 3; tenant++) {
+        for (long ts = 1; ts <= 3; ts++) {
+          map.put(Arrays.<Object>asList(tenant, ts, "part"), tenant + "@" + ts);
+        }
+      }
+
+      final List<String> expected = Arrays.asList("2@3", "2@2", "2@1");
+      assertEquals(expected, LMDBIteratorImpl.drain(map.subMap(Arrays.<Object>asList(2), Arrays.<Object>asList(3)).values().lmdbIterator()));
+      assertEquals(expected, LMDBIteratorImpl.drain(map.prefixScanValues(Arrays.<Object>asList(2))));
+      assertEquals(Arrays.asList("2@2", "2@1"), LMDBIteratorImpl.drain(map.subMap(Arrays.<Object>asList(2, 2L), Arrays.<Object>asList(3)).values().lmdbIterator()));
+      assertEquals(Arrays.<Object>asList(3, 1L, "part"), map.lastKey());
+      assertEquals(Collections.singletonList(1), map.firstKey().subList(0, 1));
+    }
+  }
+}